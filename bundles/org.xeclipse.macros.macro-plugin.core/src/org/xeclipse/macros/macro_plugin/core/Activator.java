@@ -19,6 +19,12 @@ import org.eclipse.core.runtime.Status;
  */
 public class Activator extends Plugin {
 
+	/**
+	 * The symbolic name of this bundle (used in the logged statuses, also when
+	 * the plugin is not available).
+	 */
+	public static final String PLUGIN_ID = "org.xeclipse.macros.macro-plugin.core"; //$NON-NLS-1$
+
 	private static Activator plugin;
 
 	public Activator() {
@@ -39,7 +45,7 @@ public class Activator extends Plugin {
 	 *            the status message
 	 */
 	public static void log(int severity, String message) {
-		log(new Status(severity, plugin.getBundle().getSymbolicName(), message));
+		log(new Status(severity, PLUGIN_ID, message));
 	}
 
 	/**
@@ -49,7 +55,7 @@ public class Activator extends Plugin {
 	 *            the exception to be logged
 	 */
 	public static void log(Throwable exception) {
-		log(new Status(IStatus.ERROR, plugin.getBundle().getSymbolicName(), exception.getMessage(), exception));
+		log(new Status(IStatus.ERROR, PLUGIN_ID, exception.getMessage(), exception));
 	}
 
 	/**
@@ -10,6 +10,13 @@
  *******************************************************************************/
 package org.xeclipse.macros.macro_plugin.core;
 
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import org.eclipse.core.runtime.IProgressMonitor;
+
 /**
  * Extension with the public API for dealing with macros.
  *
@@ -101,6 +108,25 @@ public interface EMacroService {
 	 */
 	void addMacroInstruction(IMacroInstruction macroInstruction, Object event, int priority);
 
+	/**
+	 * Same as {@link #addMacroInstruction(IMacroInstruction, Object, int)} but for
+	 * a macro instruction kept in a packed buffer (so that the macro instruction
+	 * object is only created when the macro is played back or saved).
+	 *
+	 * @param packedMacroInstructions
+	 *            the buffer with the macro instruction (the contents of the given
+	 *            slot must not be changed afterwards).
+	 * @param slot
+	 *            the slot of the macro instruction in the buffer.
+	 * @param event
+	 *            the event that triggered the creation of the macro instruction.
+	 * @param priority
+	 *            the priority of the macro instruction being added.
+	 * @see IPackedMacroInstructions
+	 */
+	void addPackedMacroInstruction(IPackedMacroInstructions packedMacroInstructions, int slot, Object event,
+			int priority);
+
 	/**
 	 * Toggles the macro record mode: if currently not recording, starts recording a
 	 * macro, otherwise stops the current recording and saves the macro.
@@ -124,6 +150,109 @@ public interface EMacroService {
 	 */
 	void playbackLastMacro() throws MacroPlaybackException;
 
+	/**
+	 * Plays back the last recorded macro the given number of times in a row.
+	 *
+	 * The playback is set up only once (so, listeners are notified that the
+	 * playback started and finished only once and the same playback context is
+	 * used for all the playbacks).
+	 *
+	 * @param times
+	 *            the number of times that the macro should be played back.
+	 * @return the number of times that the macro was completely played back.
+	 * @throws MacroPlaybackException
+	 *             if some error happened while playing back the macro (in which
+	 *             case the remaining playbacks are not done).
+	 */
+	int playbackLastMacro(int times) throws MacroPlaybackException;
+
+	/**
+	 * Plays back the last recorded macro repeatedly until some playback fails
+	 * (i.e.: until some macro instruction throws a {@link MacroPlaybackException}).
+	 * The number of playbacks is capped (a warning is logged when the cap is
+	 * reached) and the playback can't be cancelled (see
+	 * {@link #scheduleLastMacroPlaybackUntilFailure(Executor, IProgressMonitor)}).
+	 *
+	 * The playback is set up only once (so, listeners are notified that the
+	 * playback started and finished only once and the same playback context is
+	 * used for all the playbacks).
+	 *
+	 * @return the number of times that the macro was completely played back
+	 *         before the failure.
+	 */
+	int playbackLastMacroUntilFailure();
+
+	/**
+	 * Plays back the last recorded macro in time slices so that a long macro
+	 * doesn't freeze the UI: the first slice is run right away and each following
+	 * slice is submitted to the executor (i.e.: {@code display::asyncExec}). The
+	 * progress is reported to the monitor and the playback is cancelled with a
+	 * {@link CancelMacroPlaybackException} if the monitor is cancelled between
+	 * slices.
+	 *
+	 * Should be called in the thread where the executor runs its tasks.
+	 *
+	 * @param executor
+	 *            the executor which runs the slices after the first one (it must
+	 *            run the slices asynchronously).
+	 * @param monitor
+	 *            the monitor to report the progress and to be checked for
+	 *            cancellation (may be {@code null}).
+	 * @param maxSpeed
+	 *            if true, the macro is played back without time slices (for when
+	 *            keeping the UI responsive doesn't matter).
+	 * @return a future completed with true when the macro is completely played
+	 *         back, with false if it was not played back or exceptionally with
+	 *         the {@link CancelMacroPlaybackException} or
+	 *         {@link MacroPlaybackException} which stopped the playback.
+	 */
+	CompletableFuture<Boolean> scheduleLastMacroPlayback(Executor executor, IProgressMonitor monitor,
+			boolean maxSpeed);
+
+	/**
+	 * Plays back the last recorded macro repeatedly until some playback fails (as
+	 * {@link #playbackLastMacroUntilFailure()}) in time slices (as
+	 * {@link #scheduleLastMacroPlayback(Executor, IProgressMonitor, boolean)}),
+	 * so, the playback may be cancelled through the monitor.
+	 *
+	 * Should be called in the thread where the executor runs its tasks.
+	 *
+	 * @param executor
+	 *            the executor which runs the slices after the first one (it must
+	 *            run the slices asynchronously).
+	 * @param monitor
+	 *            the monitor to be checked for cancellation (may be
+	 *            {@code null}).
+	 * @return a future completed with the number of times that the macro was
+	 *         completely played back before the failure or exceptionally with
+	 *         the {@link CancelMacroPlaybackException} which cancelled the
+	 *         playback.
+	 */
+	CompletableFuture<Integer> scheduleLastMacroPlaybackUntilFailure(Executor executor, IProgressMonitor monitor);
+
+	/**
+	 * Applies the last recorded macro to the given files without opening editors
+	 * (the files are edited in parallel in plain text buffers, so, only macro
+	 * instructions for key events and basic text edition commands are
+	 * supported). Listeners are not notified, so, this may be called from any
+	 * thread.
+	 *
+	 * @param files
+	 *            the files to which the macro should be applied.
+	 * @param charset
+	 *            the charset used to read and write the files.
+	 * @param dryRun
+	 *            if true, the files are not written (the results just report
+	 *            which files would be changed).
+	 * @return the result of applying the macro to each file (in the same order
+	 *         of the files) or an empty list if there's no macro to be applied.
+	 * @throws MacroPlaybackException
+	 *             if the macro has some macro instruction which can't be played
+	 *             back without an editor (in which case no file is touched).
+	 */
+	List<MacroFileResult> applyLastMacroToFiles(List<Path> files, Charset charset, boolean dryRun)
+			throws MacroPlaybackException;
+
 	/**
 	 * Adds a macro state listener to be notified on changes in the macro
 	 * record/playback state.
@@ -205,7 +334,9 @@ public interface EMacroService {
 
 	/**
 	 * Adds a macro instructions listener (it may be added to validate the current
-	 * state of the macro recording).
+	 * state of the macro recording). If the listener is a
+	 * {@link ICoalescedMacroInstructionsListener}, it's notified asynchronously
+	 * with batches of added macro instructions.
 	 *
 	 * @param macroInstructionsListener
 	 *            the listener for macro instructions.
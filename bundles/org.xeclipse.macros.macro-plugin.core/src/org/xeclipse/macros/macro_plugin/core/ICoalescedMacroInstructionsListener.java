@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Fabio Zadrozny and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Fabio Zadrozny - initial API and implementation - http://eclip.se/8519
+ *******************************************************************************/
+package org.xeclipse.macros.macro_plugin.core;
+
+import java.util.concurrent.Executor;
+
+/**
+ * A listener for macro instructions added during macro recording which is
+ * notified asynchronously with the macro instructions added in a batch (so, the
+ * cost of the listener doesn't affect the recording of each macro instruction).
+ *
+ * It can't be used to validate the state of the recording (use a regular
+ * {@link IMacroInstructionsListener} for that).
+ */
+public interface ICoalescedMacroInstructionsListener extends IMacroInstructionsListener {
+
+	/**
+	 * Provides the executor used to deliver notifications (i.e.: one which runs
+	 * the notification in the UI thread at the next frame). At most one
+	 * notification is pending in the executor at any time and macro instructions
+	 * added in the meanwhile are coalesced into it.
+	 *
+	 * @return the executor where notifications should be delivered.
+	 */
+	Executor getNotificationExecutor();
+
+	/**
+	 * Called with the macro instructions added to the macro since the last
+	 * notification.
+	 *
+	 * @param count
+	 *            the number of macro instructions appended to the macro since the
+	 *            last notification (a macro instruction which replaced the one
+	 *            added for the same event, i.e.: a key press replaced by the
+	 *            command it triggered, is not counted, so, it may be 0).
+	 * @param lastMacroInstruction
+	 *            the last macro instruction added to the current macro.
+	 */
+	void postAddMacroInstructions(int count, IMacroInstruction lastMacroInstruction);
+
+	@Override
+	default void postAddMacroInstruction(IMacroInstruction macroInstruction) {
+		postAddMacroInstructions(1, macroInstruction);
+	}
+}
@@ -38,6 +38,20 @@ public interface IMacroInstruction {
 	 */
 	void execute(IMacroPlaybackContext macroPlaybackContext) throws MacroPlaybackException;
 
+	/**
+	 * Checks that the macro instruction can be executed in the given context.
+	 * Called for all the macro instructions of a macro before any of those is
+	 * executed (so, a macro which can't be played back fails without changing
+	 * anything). Should be fast and must not change anything.
+	 *
+	 * @param macroPlaybackContext
+	 *            the context which will be used to playback the macro.
+	 * @throws MacroPlaybackException
+	 *             if the macro instruction can't be executed in the given context.
+	 */
+	default void resolve(IMacroPlaybackContext macroPlaybackContext) throws MacroPlaybackException {
+	}
+
 	/**
 	 * Converts the macro instruction into a map for serialization, that can be used
 	 * to recreate the macro instruction with an {@link IMacroInstructionFactory}
@@ -10,6 +10,8 @@
  *******************************************************************************/
 package org.xeclipse.macros.macro_plugin.core;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -34,4 +36,42 @@ public interface IMacroInstructionFactory {
 	 */
 	IMacroInstruction create(Map<String, String> stringMap) throws Exception;
 
+	/**
+	 * Provides whether the macro instructions created by this factory are
+	 * immutable and may be shared. If {@code true}, when playing back a macro, a
+	 * single macro instruction is created for each distinct string map and it's
+	 * executed wherever an equal string map appears in the macro (so, executing
+	 * the macro instruction must not change its state).
+	 *
+	 * @return whether a macro instruction created by this factory may be executed
+	 *         in place of any other macro instruction created from an equal string
+	 *         map.
+	 */
+	default boolean isShareable() {
+		return false;
+	}
+
+	/**
+	 * Provides the optimizations which may be applied to recorded macros with
+	 * macro instructions created by this factory.
+	 *
+	 * @return the optimizers to be applied to recorded macros (in the order they
+	 *         should be checked).
+	 */
+	default List<IMacroInstructionsOptimizer> getOptimizers() {
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Provides the handler used to compile the macro instructions created by this
+	 * factory when a stored macro is compiled for playback.
+	 *
+	 * @return the handler which lowers the macro instructions to opcode operands
+	 *         or {@code null} if the macro instructions created by this factory
+	 *         should be kept as objects in the compiled macro.
+	 */
+	default IMacroOpcodeHandler getOpcodeHandler() {
+		return null;
+	}
+
 }
@@ -0,0 +1,54 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Fabio Zadrozny and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Fabio Zadrozny - initial API and implementation - http://eclip.se/8519
+ *******************************************************************************/
+package org.xeclipse.macros.macro_plugin.core;
+
+import java.util.List;
+
+/**
+ * An optimization applied to the macro instructions of a recorded macro
+ * (removing macro instructions which don't change the result of the
+ * playback).
+ *
+ * Optimizers are provided by {@link IMacroInstructionFactory#getOptimizers()}
+ * and are only applied if the optimization of recorded macros is enabled.
+ */
+public interface IMacroInstructionsOptimizer {
+
+	/**
+	 * Returned by {@link #optimize(List, IMacroInstruction)} to keep the macro
+	 * instruction.
+	 */
+	int KEEP = -1;
+
+	/**
+	 * Provides a name for what this optimizer removes (used to report the
+	 * optimizations done).
+	 *
+	 * @return the name of this optimizer.
+	 */
+	String getName();
+
+	/**
+	 * Decides whether a macro instruction should be kept, given the macro
+	 * instructions kept before it.
+	 *
+	 * @param previous
+	 *            the macro instructions kept before the given one (the last one is
+	 *            the one right before it). Note that only a limited number of the
+	 *            previous macro instructions is available.
+	 * @param macroInstruction
+	 *            the macro instruction to be checked.
+	 * @return {@link #KEEP} to keep the macro instruction or the number of macro
+	 *         instructions at the end of {@code previous} which should be removed
+	 *         along with it (i.e.: 0 to remove just the given macro instruction).
+	 */
+	int optimize(List<IMacroInstruction> previous, IMacroInstruction macroInstruction);
+}
@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Fabio Zadrozny and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Fabio Zadrozny - initial API and implementation - http://eclip.se/8519
+ *******************************************************************************/
+package org.xeclipse.macros.macro_plugin.core;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Lowers the macro instructions with a given id to int operands when a stored
+ * macro is compiled for playback and executes them from those operands (so,
+ * the stored parameters are parsed only once and a compiled macro is kept as a
+ * flat int array instead of a list of objects).
+ *
+ * Handlers are provided by {@link IMacroInstructionFactory#getOpcodeHandler()}
+ * (macro instructions without a handler are compiled to the macro instruction
+ * created by the factory).
+ */
+public interface IMacroOpcodeHandler {
+
+	/**
+	 * The constants shared by all the macro instructions of a compiled macro
+	 * (strings which can't be represented as ints, such as command ids, and
+	 * objects created from the operands, such as the macro instruction which
+	 * executes them, are added to it and referenced by their index).
+	 */
+	interface IConstantPool {
+
+		/**
+		 * Adds a constant to the pool (equal constants are only added once).
+		 *
+		 * @param constant
+		 *            the constant to be added.
+		 * @return the index of the constant in the pool.
+		 */
+		int add(String constant);
+
+		/**
+		 * Adds a constant created at compile time (so, the constant is created
+		 * only once for all the macro instructions with an equal key and
+		 * executing them doesn't need to allocate it). Macro instructions added
+		 * are resolved with the other macro instructions of the compiled macro.
+		 *
+		 * @param key
+		 *            the key of the constant (compared with equals, so, it should
+		 *            also identify the handler which adds it).
+		 * @param constantFactory
+		 *            creates the constant if none was added with an equal key.
+		 * @return the index of the constant in the pool.
+		 * @throws Exception
+		 *             if it was not possible to create the constant.
+		 */
+		int add(Object key, Callable<?> constantFactory) throws Exception;
+	}
+
+	/**
+	 * Lowers the parameters of a macro instruction to int operands.
+	 *
+	 * @param macroInstructionParameters
+	 *            the parameters of the macro instruction (contents of
+	 *            {@link IMacroInstruction#toMap()}).
+	 * @param constantPool
+	 *            the pool where constants referenced by the operands may be
+	 *            added.
+	 * @return the operands of the macro instruction or {@code null} if it can't
+	 *         be lowered (in which case the macro instruction created by the
+	 *         factory is used).
+	 * @throws Exception
+	 *             if the parameters are not valid.
+	 */
+	int[] compile(Map<String, String> macroInstructionParameters, IConstantPool constantPool) throws Exception;
+
+	/**
+	 * Executes a macro instruction from the operands created in
+	 * {@link #compile(Map, IConstantPool)}.
+	 *
+	 * @param macroPlaybackContext
+	 *            the context in which the macro is being played back.
+	 * @param code
+	 *            the compiled macro.
+	 * @param offset
+	 *            the offset of the first operand of the macro instruction in
+	 *            {@code code}.
+	 * @param constants
+	 *            the constants in the pool of the compiled macro.
+	 * @throws Exception
+	 *             if some error happened executing the macro instruction.
+	 */
+	void execute(IMacroPlaybackContext macroPlaybackContext, int[] code, int offset, Object[] constants)
+			throws Exception;
+}
@@ -31,4 +31,30 @@ public interface IMacroPlaybackContext extends IMacroContext {
 	void runMacroInstruction(String macroInstructionId, Map<String, String> macroInstructionParameters)
 			throws Exception;
 
+	/**
+	 * Checks that the given macro instruction can be executed in this context
+	 * (called for all the macro instructions of a macro before any of those is
+	 * executed). By default, the macro instruction checks itself.
+	 *
+	 * @param macroInstruction
+	 *            the macro instruction to be checked.
+	 * @throws MacroPlaybackException
+	 *             if the macro instruction can't be executed in this context.
+	 */
+	default void resolve(IMacroInstruction macroInstruction) throws MacroPlaybackException {
+		macroInstruction.resolve(this);
+	}
+
+	/**
+	 * Executes the given macro instruction in this context. By default, the macro
+	 * instruction executes itself.
+	 *
+	 * @param macroInstruction
+	 *            the macro instruction to be executed.
+	 * @throws MacroPlaybackException
+	 *             if some error happens executing the macro instruction.
+	 */
+	default void execute(IMacroInstruction macroInstruction) throws MacroPlaybackException {
+		macroInstruction.execute(this);
+	}
 }
@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Fabio Zadrozny and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Fabio Zadrozny - initial API and implementation - http://eclip.se/8519
+ *******************************************************************************/
+package org.xeclipse.macros.macro_plugin.core;
+
+import java.util.Map;
+
+/**
+ * A buffer which keeps the contents of many macro instructions packed (usually
+ * in arrays of primitives) and is only able to create the actual macro
+ * instruction objects on demand (so, recording a macro instruction kept in such
+ * a buffer doesn't need to allocate the macro instruction object).
+ *
+ * Such macro instructions are added to the macro being recorded through
+ * {@link EMacroService#addPackedMacroInstruction(IPackedMacroInstructions, int, Object, int)}.
+ *
+ * A slot in the buffer identifies one macro instruction and its contents must
+ * not change after it's added to a macro (the contents of a slot added to a
+ * macro may be read from other threads, i.e.: when it's saved). The storage of
+ * a slot must not be replaced either (i.e.: by growing arrays), as those
+ * threads only synchronize with the thread which added the slot when it's
+ * added to the macro: buffers with a fixed capacity should be used instead.
+ */
+public interface IPackedMacroInstructions {
+
+	/**
+	 * Provides the id of the macro instruction at the given slot.
+	 *
+	 * @param slot
+	 *            the slot of the macro instruction in this buffer.
+	 * @return the id of the macro instruction (as
+	 *         {@link IMacroInstruction#getId()}).
+	 */
+	String getMacroInstructionId(int slot);
+
+	/**
+	 * Creates the macro instruction stored at the given slot.
+	 *
+	 * @param slot
+	 *            the slot of the macro instruction in this buffer.
+	 * @return a new macro instruction with the contents of the given slot.
+	 */
+	IMacroInstruction createMacroInstruction(int slot);
+
+	/**
+	 * Provides the contents of the macro instruction stored at the given slot
+	 * (used when the macro is persisted, so, implementations should provide it
+	 * without creating the macro instruction).
+	 *
+	 * @param slot
+	 *            the slot of the macro instruction in this buffer.
+	 * @return the same contents that {@link IMacroInstruction#toMap()} would
+	 *         provide for the macro instruction.
+	 */
+	default Map<String, String> toMap(int slot) {
+		return createMacroInstruction(slot).toMap();
+	}
+}
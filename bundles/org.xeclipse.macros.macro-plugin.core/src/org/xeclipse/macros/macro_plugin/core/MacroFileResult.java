@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Fabio Zadrozny and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Fabio Zadrozny - initial API and implementation - http://eclip.se/8519
+ *******************************************************************************/
+package org.xeclipse.macros.macro_plugin.core;
+
+import java.nio.file.Path;
+
+/**
+ * The result of applying a macro to a file (see
+ * {@link EMacroService#applyLastMacroToFiles(java.util.List, java.nio.charset.Charset, boolean)}).
+ */
+public final class MacroFileResult {
+
+	/**
+	 * The possible outcomes of applying a macro to a file.
+	 */
+	public enum Status {
+
+		/**
+		 * The macro changed the contents of the file (which were written back unless
+		 * in a dry run).
+		 */
+		MODIFIED,
+
+		/**
+		 * The macro was applied but the contents of the file didn't change.
+		 */
+		UNCHANGED,
+
+		/**
+		 * It was not possible to apply the macro (the file was not changed).
+		 */
+		FAILED
+	}
+
+	private final Path fPath;
+
+	private final Status fStatus;
+
+	private final Exception fError;
+
+	/**
+	 * @param path
+	 *            the file to which the macro was applied.
+	 * @param status
+	 *            the outcome of applying the macro.
+	 * @param error
+	 *            the error which made the macro fail ({@code null} if it didn't
+	 *            fail).
+	 */
+	public MacroFileResult(Path path, Status status, Exception error) {
+		fPath = path;
+		fStatus = status;
+		fError = error;
+	}
+
+	/**
+	 * @return the file to which the macro was applied.
+	 */
+	public Path getPath() {
+		return fPath;
+	}
+
+	/**
+	 * @return the outcome of applying the macro.
+	 */
+	public Status getStatus() {
+		return fStatus;
+	}
+
+	/**
+	 * @return the error which made the macro fail ({@code null} if it didn't
+	 *         fail).
+	 */
+	public Exception getError() {
+		return fError;
+	}
+
+	@Override
+	public String toString() {
+		return fError == null ? fPath + ": " + fStatus //$NON-NLS-1$
+				: fPath + ": " + fStatus + " (" + fError.getMessage() + ")"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
+}
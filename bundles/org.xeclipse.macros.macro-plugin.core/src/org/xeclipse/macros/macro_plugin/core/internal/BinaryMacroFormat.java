@@ -0,0 +1,358 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Fabio Zadrozny and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Fabio Zadrozny - initial API and implementation - http://eclip.se/8519
+ *******************************************************************************/
+package org.xeclipse.macros.macro_plugin.core.internal;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import org.xeclipse.macros.macro_plugin.core.IMacroInstruction;
+
+/**
+ * A compact binary encoding for macros (an alternative to the XML written by
+ * {@link ComposableMacro#writeXML(OutputStream)} which round-trips the same
+ * {@link IMacroInstruction#toMap()} contents).
+ *
+ * The layout is:
+ *
+ * <pre>
+ * magic (4 bytes) | version (varint) | instructions | 0 (varint)
+ *
+ * instruction: repeat (varint) | id (string) | entries count (varint) | entries
+ * entry: key (string) | value tag (1 byte) | value
+ * value: zigzag varint (for canonical integers) or string
+ * string: varint with 0 followed by a new string (length varint + UTF-8 bytes)
+ *         which is added to the string table or the 1-based index of a string
+ *         already in the string table.
+ * </pre>
+ *
+ * The string table is built per file as strings are first seen, so, ids, keys
+ * and values which are repeated (the usual case for keystrokes) are only
+ * written once. Equal macro instructions in a row are written only once along
+ * with the number of times they should be executed.
+ *
+ * Version 1 (still accepted when reading) had the instructions count right
+ * after the version and no repeat count in the instructions.
+ */
+public final class BinaryMacroFormat {
+
+	/**
+	 * The header identifying a macro in the binary format (the first byte is not
+	 * valid in an UTF-8 XML file, so, it's not possible to mistake one format for
+	 * the other).
+	 */
+	private static final byte[] MAGIC = new byte[] { (byte) 0x89, 'M', 'C', 'R' };
+
+	/* default */ static final int VERSION = 2;
+
+	private static final int VERSION_WITHOUT_REPEAT = 1;
+
+	/**
+	 * Repeat count which marks the end of the macro instructions.
+	 */
+	private static final int END_OF_INSTRUCTIONS = 0;
+
+	private static final int VALUE_TAG_INT = 0;
+
+	private static final int VALUE_TAG_STRING = 1;
+
+	private static final int NEW_STRING = 0;
+
+	private BinaryMacroFormat() {
+	}
+
+	/**
+	 * Checks whether the given stream has the contents of a macro in the binary
+	 * format. The stream position is not changed.
+	 *
+	 * @param inputStream
+	 *            the stream to check (must support {@link InputStream#mark(int)}).
+	 * @return true if the stream starts with the binary format header and false
+	 *         otherwise.
+	 * @throws IOException
+	 *             if some error happens reading the stream.
+	 */
+	public static boolean isBinaryFormat(InputStream inputStream) throws IOException {
+		inputStream.mark(MAGIC.length);
+		try {
+			for (byte b : MAGIC) {
+				if (inputStream.read() != (b & 0xFF)) {
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			inputStream.reset();
+		}
+	}
+
+	/**
+	 * Writes the given macro instructions in the binary format.
+	 *
+	 * @param outputStream
+	 *            the stream where the contents should be written (not closed by
+	 *            this method).
+	 * @param macroInstructions
+	 *            the macro instructions to be written.
+	 * @throws IOException
+	 *             if some error happens writing to the stream.
+	 */
+	public static void write(OutputStream outputStream, Iterable<IMacroInstruction> macroInstructions)
+			throws IOException {
+		write(outputStream, new MacroInstructionRuns(macroInstructions));
+	}
+
+	/**
+	 * Writes the given runs of macro instructions in the binary format.
+	 *
+	 * @param outputStream
+	 *            the stream where the contents should be written (not closed by
+	 *            this method).
+	 * @param runs
+	 *            the runs of macro instructions to be written.
+	 * @throws IOException
+	 *             if some error happens writing to the stream.
+	 */
+	/* default */ static void write(OutputStream outputStream, MacroInstructionRuns runs) throws IOException {
+		outputStream.write(MAGIC);
+		writeVarint(outputStream, VERSION);
+
+		Map<String, Integer> stringTable = new HashMap<>();
+		while (runs.next()) {
+			Map<String, String> map = runs.getMap();
+			writeVarint(outputStream, runs.getRepeat());
+			writeString(outputStream, stringTable, runs.getId());
+			writeVarint(outputStream, map.size());
+			for (Entry<String, String> entry : map.entrySet()) {
+				writeString(outputStream, stringTable, entry.getKey());
+				String value = entry.getValue();
+				if (isCanonicalInt(value)) {
+					outputStream.write(VALUE_TAG_INT);
+					int i = Integer.parseInt(value);
+					writeVarint(outputStream, (i << 1) ^ (i >> 31));
+				} else {
+					outputStream.write(VALUE_TAG_STRING);
+					writeString(outputStream, stringTable, value);
+				}
+			}
+		}
+		writeVarint(outputStream, END_OF_INSTRUCTIONS);
+		outputStream.flush();
+	}
+
+	/**
+	 * Reads the macro instructions from a stream with contents in the binary
+	 * format, passing each one to the visitor as soon as it is read.
+	 *
+	 * @param inputStream
+	 *            the stream with the binary contents of the macro.
+	 * @param visitor
+	 *            the visitor which should handle each macro instruction read.
+	 * @throws Exception
+	 *             if the contents are not valid or if the visitor is not able to
+	 *             handle some macro instruction.
+	 */
+	/* default */ static void readMacroInstructions(InputStream inputStream, IStoredMacroInstructionVisitor visitor)
+			throws Exception {
+		Reader reader = new Reader(inputStream);
+		while (reader.readNext(visitor)) {
+			// Keep on reading.
+		}
+	}
+
+	/**
+	 * Reads the macro instructions from a stream with contents in the binary
+	 * format one at a time (closing it doesn't close the stream).
+	 */
+	/* default */ static final class Reader implements IStoredMacroReader {
+
+		private final InputStream fInputStream;
+
+		private final int fVersion;
+
+		private final List<String> fStringTable = new ArrayList<>();
+
+		/**
+		 * The number of macro instructions left to be read in the version without
+		 * repeat counts (-1 in the current version, where the end is marked in the
+		 * contents).
+		 */
+		private int fRemaining;
+
+		private boolean fFinished;
+
+		/**
+		 * Reads the header of the binary contents.
+		 *
+		 * @param inputStream
+		 *            the stream with the binary contents of the macro.
+		 * @throws IOException
+		 *             if the contents are not in a supported binary format.
+		 */
+		/* default */ Reader(InputStream inputStream) throws IOException {
+			fInputStream = inputStream;
+			for (byte b : MAGIC) {
+				if (readByte(inputStream) != (b & 0xFF)) {
+					throw new IOException("Contents are not in the binary macro format."); //$NON-NLS-1$
+				}
+			}
+			fVersion = readVarint(inputStream);
+			if (fVersion != VERSION && fVersion != VERSION_WITHOUT_REPEAT) {
+				throw new IOException(String.format("Unsupported binary macro format version: %s.", fVersion)); //$NON-NLS-1$
+			}
+			fRemaining = fVersion == VERSION_WITHOUT_REPEAT ? readVarint(inputStream) : -1;
+		}
+
+		@Override
+		public boolean readNext(IStoredMacroInstructionVisitor visitor) throws Exception {
+			if (fFinished || fRemaining == 0) {
+				return false;
+			}
+			InputStream inputStream = fInputStream;
+			int repeat = 1;
+			if (fVersion != VERSION_WITHOUT_REPEAT) {
+				repeat = readVarint(inputStream);
+				if (repeat == END_OF_INSTRUCTIONS) {
+					fFinished = true;
+					return false;
+				}
+				if (repeat < 0) {
+					throw new IOException(String.format("Invalid repeat count: %s.", repeat)); //$NON-NLS-1$
+				}
+			} else {
+				fRemaining--;
+			}
+			String macroInstructionId = readString(inputStream, fStringTable);
+			int entriesCount = readVarint(inputStream);
+			Map<String, String> macroInstructionParameters = new HashMap<>();
+			for (int j = 0; j < entriesCount; j++) {
+				String key = readString(inputStream, fStringTable);
+				int tag = readByte(inputStream);
+				String value;
+				if (tag == VALUE_TAG_INT) {
+					int zigzag = readVarint(inputStream);
+					value = Integer.toString((zigzag >>> 1) ^ -(zigzag & 1));
+				} else if (tag == VALUE_TAG_STRING) {
+					value = readString(inputStream, fStringTable);
+				} else {
+					throw new IOException(String.format("Unexpected value tag: %s.", tag)); //$NON-NLS-1$
+				}
+				macroInstructionParameters.put(key, value);
+			}
+			visitor.visit(macroInstructionId, macroInstructionParameters, repeat);
+			return true;
+		}
+
+		@Override
+		public void close() {
+			fFinished = true;
+		}
+	}
+
+	/**
+	 * Checks whether the given string is an integer which is converted back to the
+	 * same string by {@link Integer#toString(int)}.
+	 */
+	private static boolean isCanonicalInt(String str) {
+		int length = str.length();
+		if (length == 0 || length > 11) {
+			return false;
+		}
+		int start = str.charAt(0) == '-' ? 1 : 0;
+		if (start == length || (str.charAt(start) == '0' && (length - start > 1 || start == 1))) {
+			// Just "-", leading zeros or "-0".
+			return false;
+		}
+		for (int i = start; i < length; i++) {
+			char c = str.charAt(i);
+			if (c < '0' || c > '9') {
+				return false;
+			}
+		}
+		try {
+			Integer.parseInt(str);
+			return true;
+		} catch (NumberFormatException e) {
+			return false; // Out of range.
+		}
+	}
+
+	/* default */ static void writeString(OutputStream outputStream, Map<String, Integer> stringTable, String str)
+			throws IOException {
+		Integer index = stringTable.get(str);
+		if (index != null) {
+			writeVarint(outputStream, index);
+			return;
+		}
+		stringTable.put(str, stringTable.size() + 1);
+		writeVarint(outputStream, NEW_STRING);
+		byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		writeVarint(outputStream, bytes.length);
+		outputStream.write(bytes);
+	}
+
+	/* default */ static String readString(InputStream inputStream, List<String> stringTable) throws IOException {
+		int index = readVarint(inputStream);
+		if (index != NEW_STRING) {
+			if (index > stringTable.size()) {
+				throw new IOException(String.format("Invalid string table index: %s.", index)); //$NON-NLS-1$
+			}
+			return stringTable.get(index - 1);
+		}
+		int length = readVarint(inputStream);
+		byte[] bytes = new byte[length];
+		int read = 0;
+		while (read < length) {
+			int n = inputStream.read(bytes, read, length - read);
+			if (n < 0) {
+				throw new EOFException();
+			}
+			read += n;
+		}
+		String str = new String(bytes, StandardCharsets.UTF_8);
+		stringTable.add(str);
+		return str;
+	}
+
+	/* default */ static void writeVarint(OutputStream outputStream, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			outputStream.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		outputStream.write(value);
+	}
+
+	/* default */ static int readVarint(InputStream inputStream) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = readByte(inputStream);
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint."); //$NON-NLS-1$
+	}
+
+	/* default */ static int readByte(InputStream inputStream) throws IOException {
+		int b = inputStream.read();
+		if (b < 0) {
+			throw new EOFException();
+		}
+		return b;
+	}
+}
@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Fabio Zadrozny and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Fabio Zadrozny - initial API and implementation - http://eclip.se/8519
+ *******************************************************************************/
+package org.xeclipse.macros.macro_plugin.core.internal;
+
+import java.util.concurrent.RejectedExecutionException;
+import org.xeclipse.macros.macro_plugin.core.Activator;
+import org.xeclipse.macros.macro_plugin.core.ICoalescedMacroInstructionsListener;
+import org.xeclipse.macros.macro_plugin.core.IMacroInstruction;
+import org.xeclipse.macros.macro_plugin.core.IPackedMacroInstructions;
+
+/**
+ * Accumulates the macro instructions added for a
+ * {@link ICoalescedMacroInstructionsListener} and delivers those in a single
+ * notification through the executor of the listener.
+ */
+/* default */ class CoalescedMacroInstructionsNotifier {
+
+	private final ICoalescedMacroInstructionsListener fListener;
+
+	/**
+	 * Number of macro instructions appended to the macro since the last
+	 * notification (macro instructions which replaced the one added for the same
+	 * event are not counted).
+	 */
+	private int fCount;
+
+	/**
+	 * The last macro instruction added (if {@code null}, the last one is at
+	 * fLastSlot in fLastPackedMacroInstructions and is only created when the
+	 * notification is delivered).
+	 */
+	private IMacroInstruction fLastMacroInstruction;
+
+	private IPackedMacroInstructions fLastPackedMacroInstructions;
+
+	private int fLastSlot;
+
+	/**
+	 * Whether a notification is pending in the executor.
+	 */
+	private boolean fScheduled;
+
+	/**
+	 * Set when the listener is removed (pending notifications are discarded).
+	 */
+	private volatile boolean fDisposed;
+
+	/* default */ CoalescedMacroInstructionsNotifier(ICoalescedMacroInstructionsListener listener) {
+		fListener = listener;
+	}
+
+	/* default */ ICoalescedMacroInstructionsListener getListener() {
+		return fListener;
+	}
+
+	/**
+	 * Records that a macro instruction was added.
+	 *
+	 * @param macroInstruction
+	 *            the macro instruction added.
+	 * @param appended
+	 *            the number of macro instructions appended to the macro (0 if the
+	 *            macro instruction replaced one added for the same event).
+	 */
+	/* default */ void added(IMacroInstruction macroInstruction, int appended) {
+		synchronized (this) {
+			fCount += appended;
+			fLastMacroInstruction = macroInstruction;
+			fLastPackedMacroInstructions = null;
+			if (fScheduled) {
+				return;
+			}
+			fScheduled = true;
+		}
+		schedule();
+	}
+
+	/**
+	 * Records that a macro instruction kept in a packed buffer was added.
+	 *
+	 * @param packedMacroInstructions
+	 *            the buffer with the macro instruction.
+	 * @param slot
+	 *            the slot of the macro instruction in the buffer.
+	 * @param appended
+	 *            the number of macro instructions appended to the macro (0 if the
+	 *            macro instruction replaced one added for the same event).
+	 */
+	/* default */ void addedPacked(IPackedMacroInstructions packedMacroInstructions, int slot, int appended) {
+		synchronized (this) {
+			fCount += appended;
+			fLastMacroInstruction = null;
+			fLastPackedMacroInstructions = packedMacroInstructions;
+			fLastSlot = slot;
+			if (fScheduled) {
+				return;
+			}
+			fScheduled = true;
+		}
+		schedule();
+	}
+
+	/**
+	 * Discards pending notifications (the listener won't be notified anymore).
+	 */
+	/* default */ void dispose() {
+		fDisposed = true;
+	}
+
+	private void schedule() {
+		try {
+			fListener.getNotificationExecutor().execute(this::deliver);
+		} catch (RejectedExecutionException e) {
+			synchronized (this) {
+				fScheduled = false;
+			}
+		}
+	}
+
+	private void deliver() {
+		int count;
+		IMacroInstruction lastMacroInstruction;
+		synchronized (this) {
+			fScheduled = false;
+			count = fCount;
+			fCount = 0;
+			lastMacroInstruction = fLastMacroInstruction;
+			if (lastMacroInstruction == null && fLastPackedMacroInstructions != null) {
+				lastMacroInstruction = fLastPackedMacroInstructions.createMacroInstruction(fLastSlot);
+			}
+			fLastMacroInstruction = null;
+			fLastPackedMacroInstructions = null;
+		}
+		if (fDisposed || lastMacroInstruction == null) {
+			return;
+		}
+		try {
+			fListener.postAddMacroInstructions(count, lastMacroInstruction);
+		} catch (RuntimeException e) {
+			Activator.log(e);
+		}
+	}
+}
@@ -0,0 +1,354 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Fabio Zadrozny and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Fabio Zadrozny - initial API and implementation - http://eclip.se/8519
+ *******************************************************************************/
+package org.xeclipse.macros.macro_plugin.core.internal;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.core.runtime.Assert;
+import org.xeclipse.macros.macro_plugin.core.IMacroInstructionFactory;
+
+/**
+ * A cache for the programs compiled from stored macros (so that replaying the
+ * same stored macro doesn't need to read it from the disk and compile its macro
+ * instructions all over again).
+ *
+ * Entries are keyed by the path of the stored macro along with its size and
+ * last modified time (an entry is only valid while those match the ones of the
+ * file on disk) and the least recently used entries are evicted when the
+ * maximum number of entries or the maximum size of the compiled programs is
+ * reached. The size of a program is its code length plus the number of its
+ * constants and a program bigger than the maximum size is never cached (so
+ * that huge stored macros aren't kept in memory after being played back).
+ */
+public class CompiledMacroCache {
+
+	/**
+	 * Default maximum number of macros kept in the cache.
+	 */
+	public static final int DEFAULT_MAX_ENTRIES = 8;
+
+	/**
+	 * Default maximum size of the programs kept in the cache (the sum of the code
+	 * length and of the number of constants of the cached programs).
+	 */
+	public static final int DEFAULT_MAX_SIZE = 256 * 1024;
+
+	/**
+	 * The state of a stored macro on disk (used to check whether a cached entry
+	 * is still valid).
+	 */
+	public static final class StoredMacroState {
+
+		private final long fSize;
+		private final long fLastModified;
+
+		private StoredMacroState(long size, long lastModified) {
+			fSize = size;
+			fLastModified = lastModified;
+		}
+
+		/**
+		 * Reads the current state of the given stored macro.
+		 *
+		 * @param path
+		 *            the path to the stored macro.
+		 * @return the current state of the stored macro on disk.
+		 * @throws IOException
+		 *             if it was not possible to read the file attributes.
+		 */
+		public static StoredMacroState read(Path path) throws IOException {
+			BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+			return new StoredMacroState(attributes.size(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+		}
+
+		/**
+		 * @return the size of the stored macro on disk (in bytes).
+		 */
+		public long getSize() {
+			return fSize;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof StoredMacroState)) {
+				return false;
+			}
+			StoredMacroState other = (StoredMacroState) obj;
+			return fSize == other.fSize && fLastModified == other.fLastModified;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(fSize) * 31 + Long.hashCode(fLastModified);
+		}
+	}
+
+	private static final class CacheEntry {
+
+		private final StoredMacroState fState;
+
+		/**
+		 * The factories used to compile the program (programs compiled with
+		 * different factories can't be shared).
+		 */
+		private final Map<String, IMacroInstructionFactory> fMacroInstructionIdToFactory;
+
+		private final MacroProgram fProgram;
+
+		private final int fSize;
+
+		private CacheEntry(StoredMacroState state, Map<String, IMacroInstructionFactory> macroInstructionIdToFactory,
+				MacroProgram program) {
+			fState = state;
+			fMacroInstructionIdToFactory = macroInstructionIdToFactory;
+			fProgram = program;
+			fSize = getSize(program);
+		}
+	}
+
+	private int fMaxEntries;
+
+	private int fMaxSize;
+
+	/**
+	 * The sum of the sizes of the cached programs.
+	 */
+	private int fTotalSize;
+
+	/**
+	 * Map of the stored macro path to the cached entry (in access order, so, the
+	 * first entry is the least recently used one).
+	 */
+	private final LinkedHashMap<Path, CacheEntry> fEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+	/**
+	 * @param maxEntries
+	 *            the maximum number of stored macros to be kept in the cache (must
+	 *            be &ge; 1).
+	 */
+	public CompiledMacroCache(int maxEntries) {
+		this(maxEntries, DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * @param maxEntries
+	 *            the maximum number of stored macros to be kept in the cache (must
+	 *            be &ge; 1).
+	 * @param maxSize
+	 *            the maximum size of the programs kept in the cache (must be &ge;
+	 *            1).
+	 */
+	public CompiledMacroCache(int maxEntries, int maxSize) {
+		setMaxEntries(maxEntries);
+		setMaxSize(maxSize);
+	}
+
+	/**
+	 * Provides the size that a program takes in the cache.
+	 *
+	 * @param program
+	 *            the compiled program.
+	 * @return the code length plus the number of constants of the program.
+	 */
+	public static int getSize(MacroProgram program) {
+		return program.getCodeLength() + program.getConstantsCount();
+	}
+
+	/**
+	 * Sets the maximum number of stored macros to be kept in the cache (if there
+	 * are more entries, the least recently used ones are removed).
+	 *
+	 * @param maxEntries
+	 *            the maximum number of stored macros to be kept in the cache (must
+	 *            be &ge; 1).
+	 */
+	public synchronized void setMaxEntries(int maxEntries) {
+		Assert.isTrue(maxEntries >= 1);
+		fMaxEntries = maxEntries;
+		evictWhileOverLimits();
+	}
+
+	/**
+	 * Sets the maximum size of the programs kept in the cache (if the cached
+	 * programs are bigger, the least recently used ones are removed).
+	 *
+	 * @param maxSize
+	 *            the maximum sum of the code length and of the number of
+	 *            constants of the cached programs (must be &ge; 1).
+	 */
+	public synchronized void setMaxSize(int maxSize) {
+		Assert.isTrue(maxSize >= 1);
+		fMaxSize = maxSize;
+		evictWhileOverLimits();
+	}
+
+	/**
+	 * @return the maximum size of the programs kept in the cache (a program bigger
+	 *         than it is never cached).
+	 */
+	public synchronized int getMaxSize() {
+		return fMaxSize;
+	}
+
+	/**
+	 * Removes the least recently used entries while the cache is over its limits.
+	 */
+	private void evictWhileOverLimits() {
+		Iterator<CacheEntry> iterator = fEntries.values().iterator();
+		while ((fEntries.size() > fMaxEntries || fTotalSize > fMaxSize) && iterator.hasNext()) {
+			fTotalSize -= iterator.next().fSize;
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * Provides the program cached for the given stored macro.
+	 *
+	 * @param path
+	 *            the path to the stored macro.
+	 * @param state
+	 *            the current state of the stored macro on disk.
+	 * @param macroInstructionIdToFactory
+	 *            the factories which should've been used to compile the program.
+	 * @return the cached program or {@code null} if there's no valid entry for the
+	 *         given stored macro.
+	 */
+	public synchronized MacroProgram get(Path path, StoredMacroState state,
+			Map<String, IMacroInstructionFactory> macroInstructionIdToFactory) {
+		CacheEntry entry = fEntries.get(path);
+		if (entry == null) {
+			return null;
+		}
+		if (!entry.fState.equals(state)) {
+			// The file changed on disk.
+			invalidate(path);
+			return null;
+		}
+		if (entry.fMacroInstructionIdToFactory != macroInstructionIdToFactory) {
+			return null;
+		}
+		return entry.fProgram;
+	}
+
+	/**
+	 * Caches the program compiled from the given stored macro (unless the program
+	 * is bigger than the maximum size of the cache).
+	 *
+	 * @param path
+	 *            the path to the stored macro.
+	 * @param state
+	 *            the state of the stored macro on disk when it was read.
+	 * @param macroInstructionIdToFactory
+	 *            the factories used to compile the program.
+	 * @param program
+	 *            the program compiled from the stored macro.
+	 */
+	public synchronized void put(Path path, StoredMacroState state,
+			Map<String, IMacroInstructionFactory> macroInstructionIdToFactory, MacroProgram program) {
+		CacheEntry entry = new CacheEntry(state, macroInstructionIdToFactory, program);
+		invalidate(path);
+		if (entry.fSize > fMaxSize) {
+			return;
+		}
+		fEntries.put(path, entry);
+		fTotalSize += entry.fSize;
+		evictWhileOverLimits();
+	}
+
+	/**
+	 * Removes the entry related to the given stored macro.
+	 *
+	 * @param path
+	 *            the path to the stored macro.
+	 */
+	public synchronized void invalidate(Path path) {
+		CacheEntry entry = fEntries.remove(path);
+		if (entry != null) {
+			fTotalSize -= entry.fSize;
+		}
+	}
+
+	/**
+	 * Removes all the entries whose stored macro was removed or changed on disk.
+	 *
+	 * The files are checked without holding the lock of the cache (so, a slow
+	 * disk doesn't block the lookups done to play back macros) and an entry
+	 * which was replaced meanwhile is kept.
+	 */
+	public void invalidateStale() {
+		List<Map.Entry<Path, CacheEntry>> entries;
+		synchronized (this) {
+			entries = new ArrayList<>(fEntries.size());
+			for (Map.Entry<Path, CacheEntry> entry : fEntries.entrySet()) {
+				entries.add(new SimpleImmutableEntry<>(entry.getKey(), entry.getValue()));
+			}
+		}
+		List<Map.Entry<Path, CacheEntry>> staleEntries = new ArrayList<>();
+		for (Map.Entry<Path, CacheEntry> entry : entries) {
+			boolean stale;
+			try {
+				stale = !entry.getValue().fState.equals(StoredMacroState.read(entry.getKey()));
+			} catch (IOException e) {
+				// Removed or unreadable.
+				stale = true;
+			}
+			if (stale) {
+				staleEntries.add(entry);
+			}
+		}
+		if (staleEntries.isEmpty()) {
+			return;
+		}
+		synchronized (this) {
+			for (Map.Entry<Path, CacheEntry> entry : staleEntries) {
+				if (fEntries.remove(entry.getKey(), entry.getValue())) {
+					fTotalSize -= entry.getValue().fSize;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes all the entries from the cache.
+	 */
+	public synchronized void clear() {
+		fEntries.clear();
+		fTotalSize = 0;
+	}
+
+	/**
+	 * Provides the number of stored macros currently cached.
+	 *
+	 * @return the number of entries in the cache.
+	 */
+	public synchronized int size() {
+		return fEntries.size();
+	}
+
+	/**
+	 * Provides the size of the programs currently cached.
+	 *
+	 * @return the sum of the code length and of the number of constants of the
+	 *         cached programs.
+	 */
+	public synchronized int getSize() {
+		return fTotalSize;
+	}
+}
@@ -12,10 +12,11 @@ package org.xeclipse.macros.macro_plugin.core.internal;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Base64;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -23,6 +24,9 @@ import java.util.Map.Entry;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
@@ -37,6 +41,7 @@ import org.w3c.dom.Element;
 import org.xeclipse.macros.macro_plugin.core.IMacroInstruction;
 import org.xeclipse.macros.macro_plugin.core.IMacroInstructionFactory;
 import org.xeclipse.macros.macro_plugin.core.IMacroPlaybackContext;
+import org.xeclipse.macros.macro_plugin.core.IPackedMacroInstructions;
 import org.xeclipse.macros.macro_plugin.core.MacroPlaybackException;
 
 /**
@@ -51,6 +56,12 @@ public class ComposableMacro implements IMacro {
 
 	public static final String XML_ID_ATTRIBUTE = "id"; //$NON-NLS-1$
 
+	/**
+	 * Attribute with the number of times an instruction should be executed in a
+	 * row (only written when it's more than 1).
+	 */
+	public static final String XML_REPEAT_ATTRIBUTE = "repeat"; //$NON-NLS-1$
+
 	public static final String XML_BASE64_ATTRIBUTE = "base64"; //$NON-NLS-1$
 
 	public static final String XML_BASE64_ATTRIBUTE_TRUE = "true"; //$NON-NLS-1$
@@ -61,6 +72,23 @@ public class ComposableMacro implements IMacro {
 
 	public static final String XML_VALUE_TAG = "value"; //$NON-NLS-1$
 
+	/**
+	 * System property which may be set to {@code true} to go back to building a
+	 * DOM in memory to serialize the macro (by default the macro is streamed
+	 * directly to the output with a {@link XMLStreamWriter}).
+	 */
+	public static final String DOM_SERIALIZATION_PROPERTY = "org.xeclipse.macros.macro_plugin.core.domSerialization"; //$NON-NLS-1$
+
+	/**
+	 * The XML declaration written when streaming the macro (matches the one
+	 * written by the DOM identity transform).
+	 */
+	private static final String XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>"; //$NON-NLS-1$
+
+	private static final String XML_NEW_LINE = "\n"; //$NON-NLS-1$
+
+	private static final String XML_INDENT = "  "; //$NON-NLS-1$
+
 	/**
 	 * Provides the macro instruction id to an implementation which is able to
 	 * recreate it.
@@ -68,26 +96,31 @@ public class ComposableMacro implements IMacro {
 	private final Map<String, IMacroInstructionFactory> fMacroInstructionIdToFactory;
 
 	/**
-	 * The macro instructions which compose this macro.
+	 * The macro instructions which compose this macro (some of those may be kept
+	 * packed and are only created when requested).
 	 */
-	private List<IMacroInstruction> fMacroInstructions = new ArrayList<>();
-
-	private static class IndexAndPriority {
+	private final MacroInstructionList fMacroInstructions = new MacroInstructionList();
 
-		private final int fIndex;
-		private final int fPriority;
+	/**
+	 * Maps the last events seen to the current index of the macro instruction in
+	 * fMacroInstructions and the priority for the given macro instruction (older
+	 * events are evicted, so, memory doesn't grow with the recording).
+	 */
+	private final EventPlacementRing fEventToPlacement = new EventPlacementRing();
 
-		private IndexAndPriority(int index, int priority) {
-			fIndex = index;
-			fPriority = priority;
-		}
-	}
+	/**
+	 * Journal where changes to the macro are appended while it is being recorded
+	 * (may be {@code null}).
+	 */
+	private MacroJournal fMacroJournal;
 
 	/**
-	 * Map of an event to the current index of the macro instruction in
-	 * fMacroInstructions and the priority for the given macro instruction.
+	 * Number of playbacks and saves which acquired this macro and are still using
+	 * it.
 	 */
-	private final Map<Object, IndexAndPriority> fEventToPlacement = new HashMap<>();
+	private int fUsers;
+
+	private boolean fDisposed;
 
 	/**
 	 * @param macroInstructionIdToFactory
@@ -106,11 +139,14 @@ public class ComposableMacro implements IMacro {
 	 *            the macro instruction to be checked.
 	 */
 	private void checkMacroInstruction(IMacroInstruction macroInstruction) {
+		checkMacroInstructionId(macroInstruction.getId());
+	}
+
+	private void checkMacroInstructionId(String macroInstructionId) {
 		Assert.isTrue(
-				fMacroInstructionIdToFactory == null
-						|| fMacroInstructionIdToFactory.containsKey(macroInstruction.getId()),
+				fMacroInstructionIdToFactory == null || fMacroInstructionIdToFactory.containsKey(macroInstructionId),
 				String.format("Macro instruction: %s not properly registered through a %s extension point.", //$NON-NLS-1$
-						macroInstruction.getId(), MacroServiceImpl.MACRO_INSTRUCTION_FACTORY_EXTENSION_POINT));
+						macroInstructionId, MacroServiceImpl.MACRO_INSTRUCTION_FACTORY_EXTENSION_POINT));
 	}
 
 	/**
@@ -122,6 +158,79 @@ public class ComposableMacro implements IMacro {
 	public void addMacroInstruction(IMacroInstruction macroInstruction) {
 		checkMacroInstruction(macroInstruction);
 		fMacroInstructions.add(macroInstruction);
+		if (fMacroJournal != null) {
+			fMacroJournal.add(macroInstruction);
+		}
+	}
+
+	/**
+	 * Appends the macro instruction at the given index of another macro which
+	 * accepts the same macro instructions (a packed macro instruction is kept
+	 * packed, so, it's not created). The macro instruction is not journaled.
+	 *
+	 * @param macro
+	 *            the macro with the macro instruction to be appended.
+	 * @param index
+	 *            the index of the macro instruction in the given macro.
+	 */
+	/* default */ void addMacroInstructionOf(ComposableMacro macro, int index) {
+		Assert.isLegal(macro.fMacroInstructionIdToFactory == fMacroInstructionIdToFactory);
+		fMacroInstructions.addEntryOf(macro.fMacroInstructions, index);
+	}
+
+	/**
+	 * Sets the max number of macro instructions of this macro which are kept in
+	 * memory (older macro instructions over that limit are spilled to a temporary
+	 * file and are read back as needed).
+	 *
+	 * @param maxMacroInstructionsInMemory
+	 *            the max number of macro instructions kept in memory or 0 to keep
+	 *            all of those in memory.
+	 */
+	public void setMemoryBudget(int maxMacroInstructionsInMemory) {
+		fMacroInstructions.setMemoryBudget(maxMacroInstructionsInMemory);
+	}
+
+	/**
+	 * Releases the temporary file used to keep macro instructions which didn't fit
+	 * in the memory budget once the playbacks and saves which acquired the macro
+	 * are finished (the macro can't be acquired afterwards).
+	 */
+	public synchronized void dispose() {
+		if (!fDisposed) {
+			fDisposed = true;
+			if (fUsers == 0) {
+				fMacroInstructions.close();
+			}
+		}
+	}
+
+	@Override
+	public synchronized boolean acquire() {
+		if (fDisposed) {
+			return false;
+		}
+		fUsers++;
+		return true;
+	}
+
+	@Override
+	public synchronized void release() {
+		fUsers--;
+		if (fUsers == 0 && fDisposed) {
+			fMacroInstructions.close();
+		}
+	}
+
+	/**
+	 * Sets the journal where the macro instructions accepted from now on should be
+	 * appended.
+	 *
+	 * @param macroJournal
+	 *            the journal for this macro or {@code null} to stop journaling.
+	 */
+	public void setMacroJournal(MacroJournal macroJournal) {
+		fMacroJournal = macroJournal;
 	}
 
 	/**
@@ -146,16 +255,61 @@ public class ComposableMacro implements IMacro {
 	 */
 	public boolean addMacroInstruction(IMacroInstruction macroInstruction, Object event, int priority) {
 		Assert.isNotNull(event);
-		IndexAndPriority currentIndexAndPriority = fEventToPlacement.get(event);
-		if (currentIndexAndPriority == null) {
+		int position = fEventToPlacement.find(event);
+		if (position == -1) {
 			addMacroInstruction(macroInstruction);
-			fEventToPlacement.put(event, new IndexAndPriority(fMacroInstructions.size() - 1, priority));
+			fEventToPlacement.add(event, fMacroInstructions.size() - 1, priority);
 			return true;
 		}
-		if (priority >= currentIndexAndPriority.fPriority) {
+		if (priority >= fEventToPlacement.getPriority(position)) {
 			checkMacroInstruction(macroInstruction);
-			fMacroInstructions.set(currentIndexAndPriority.fIndex, macroInstruction);
-			fEventToPlacement.put(event, new IndexAndPriority(currentIndexAndPriority.fIndex, priority));
+			int index = fEventToPlacement.getIndex(position);
+			fMacroInstructions.replace(index, macroInstruction);
+			if (fMacroJournal != null) {
+				fMacroJournal.set(index, macroInstruction);
+			}
+			fEventToPlacement.setPriority(position, priority);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Same as {@link #addMacroInstruction(IMacroInstruction, Object, int)} but for
+	 * a macro instruction kept in a packed buffer (which is only created when the
+	 * macro is played back or serialized).
+	 *
+	 * @param packedMacroInstructions
+	 *            the buffer with the macro instruction (the contents of the given
+	 *            slot must not be changed afterwards).
+	 * @param slot
+	 *            the slot of the macro instruction in the buffer.
+	 * @param event
+	 *            the event that triggered the creation of the macro instruction.
+	 * @param priority
+	 *            the priority of the macro instruction being added.
+	 * @return true if the macro instruction was actually added and false otherwise.
+	 */
+	public boolean addPackedMacroInstruction(IPackedMacroInstructions packedMacroInstructions, int slot,
+			Object event, int priority) {
+		Assert.isNotNull(event);
+		checkMacroInstructionId(packedMacroInstructions.getMacroInstructionId(slot));
+		int position = fEventToPlacement.find(event);
+		if (position == -1) {
+			fMacroInstructions.addPacked(packedMacroInstructions, slot);
+			if (fMacroJournal != null) {
+				fMacroJournal.add(packedMacroInstructions, slot);
+			}
+			fEventToPlacement.add(event, fMacroInstructions.size() - 1, priority);
+			return true;
+		}
+		if (priority >= fEventToPlacement.getPriority(position)) {
+			int index = fEventToPlacement.getIndex(position);
+			fMacroInstructions.replacePacked(index, packedMacroInstructions, slot);
+			if (fMacroJournal != null) {
+				fMacroJournal.set(index, packedMacroInstructions, slot);
+			}
+			fEventToPlacement.setPriority(position, priority);
 			return true;
 		}
 		return false;
@@ -171,8 +325,79 @@ public class ComposableMacro implements IMacro {
 
 	@Override
 	public void playback(IMacroPlaybackContext macroPlaybackContext) throws MacroPlaybackException {
-		for (IMacroInstruction macroInstruction : fMacroInstructions) {
-			macroInstruction.execute(macroPlaybackContext);
+		playback(getPlaybackMacroInstructions(), macroPlaybackContext);
+	}
+
+	/**
+	 * Provides the macro instructions to be resolved and then executed in a
+	 * playback (packed macro instructions are created once for both passes,
+	 * unless chunks were spilled to the disk, in which case those are read in
+	 * each pass so that the memory is still bounded).
+	 */
+	private Iterable<IMacroInstruction> getPlaybackMacroInstructions() {
+		if (fMacroInstructions.hasSpilledChunks()) {
+			return fMacroInstructions;
+		}
+		return new ArrayList<>(fMacroInstructions);
+	}
+
+	/**
+	 * Creates the macro instructions once (packed and spilled macro instructions
+	 * would be created again at each playback otherwise). If chunks were spilled
+	 * to the disk, the macro itself is used so that the memory is still bounded.
+	 */
+	@Override
+	public IMacro prepareRepeatedPlayback() {
+		if (fMacroInstructions.hasSpilledChunks()) {
+			return this;
+		}
+		List<IMacroInstruction> macroInstructions = new ArrayList<>(fMacroInstructions);
+		return macroPlaybackContext -> playback(macroInstructions, macroPlaybackContext);
+	}
+
+	/**
+	 * Plays back a macro instruction at each step (all the macro instructions are
+	 * resolved before the first step).
+	 */
+	@Override
+	public IMacroPlaybackCursor startPlayback(IMacroPlaybackContext macroPlaybackContext)
+			throws MacroPlaybackException {
+		Iterable<IMacroInstruction> macroInstructions = getPlaybackMacroInstructions();
+		for (IMacroInstruction macroInstruction : macroInstructions) {
+			macroPlaybackContext.resolve(macroInstruction);
+		}
+		final int totalSteps = fMacroInstructions.size();
+		final Iterator<IMacroInstruction> iterator = macroInstructions.iterator();
+		return new IMacroPlaybackCursor() {
+
+			@Override
+			public int getTotalSteps() {
+				return totalSteps;
+			}
+
+			@Override
+			public boolean playbackNext() throws MacroPlaybackException {
+				if (!iterator.hasNext()) {
+					return false;
+				}
+				macroPlaybackContext.execute(iterator.next());
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Plays back the given macro instructions (the context decides how each one
+	 * is resolved and executed). Nothing is executed if some macro instruction
+	 * can't be.
+	 */
+	private static void playback(Iterable<IMacroInstruction> macroInstructions,
+			IMacroPlaybackContext macroPlaybackContext) throws MacroPlaybackException {
+		for (IMacroInstruction macroInstruction : macroInstructions) {
+			macroPlaybackContext.resolve(macroInstruction);
+		}
+		for (IMacroInstruction macroInstruction : macroInstructions) {
+			macroPlaybackContext.execute(macroInstruction);
 		}
 	}
 
@@ -186,6 +411,147 @@ public class ComposableMacro implements IMacro {
 	 *             if some error happens converting the macro to XML.
 	 */
 	public byte[] toXMLBytes() throws IOException {
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		writeXML(outputStream);
+		return outputStream.toByteArray();
+	}
+
+	/**
+	 * Writes the macro as UTF-8 encoded XML to the given stream (the actual load
+	 * and playback is later done by {@link SavedXMLMacro}).
+	 *
+	 * Instructions are streamed one at a time, so, no intermediary representation
+	 * of the whole macro is kept in memory (unless the
+	 * {@link #DOM_SERIALIZATION_PROPERTY} is set, in which case a DOM is built and
+	 * written).
+	 *
+	 * @param outputStream
+	 *            the stream where the contents should be written (not closed by
+	 *            this method).
+	 * @throws IOException
+	 *             if some error happens converting the macro to XML.
+	 */
+	public void writeXML(OutputStream outputStream) throws IOException {
+		if (Boolean.getBoolean(DOM_SERIALIZATION_PROPERTY)) {
+			outputStream.write(toDOMXMLBytes());
+			return;
+		}
+		try {
+			// The declaration is written directly as the stream writer is not
+			// able to write the standalone attribute.
+			outputStream.write((XML_DECLARATION + XML_NEW_LINE).getBytes(StandardCharsets.UTF_8));
+			XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(outputStream,
+					StandardCharsets.UTF_8.name());
+			if (fMacroInstructions.isEmpty()) {
+				writer.writeEmptyElement(XML_MACRO_TAG);
+			} else {
+				writer.writeStartElement(XML_MACRO_TAG);
+			}
+			MacroInstructionRuns runs = new MacroInstructionRuns(fMacroInstructions);
+			while (runs.next()) {
+				Map<String, String> map = runs.getMap();
+				int repeat = runs.getRepeat();
+
+				writeIndent(writer, 1);
+				writer.writeStartElement(XML_INSTRUCTION_TAG);
+				writer.writeAttribute(XML_ID_ATTRIBUTE, runs.getId());
+				if (repeat > 1) {
+					writer.writeAttribute(XML_REPEAT_ATTRIBUTE, Integer.toString(repeat));
+				}
+				writeIndent(writer, 2);
+				if (map.isEmpty()) {
+					writer.writeEmptyElement(XML_DEFINITION_TAG);
+				} else {
+					writer.writeStartElement(XML_DEFINITION_TAG);
+					for (Entry<String, String> entry : map.entrySet()) {
+						writeIndent(writer, 3);
+						writeTextElement(writer, XML_KEY_TAG, entry.getKey());
+						writeIndent(writer, 3);
+						writeTextElement(writer, XML_VALUE_TAG, entry.getValue());
+					}
+					writeIndent(writer, 2);
+					writer.writeEndElement();
+				}
+				writeIndent(writer, 1);
+				writer.writeEndElement();
+			}
+			if (!fMacroInstructions.isEmpty()) {
+				writeIndent(writer, 0);
+				writer.writeEndElement();
+			}
+			writer.writeCharacters(XML_NEW_LINE);
+			writer.flush();
+			writer.close();
+		} catch (XMLStreamException e) {
+			throw new IOException("Error converting macro to XML.", e); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * Writes the macro in the compact binary format (the actual load and playback
+	 * is later done by {@link SavedXMLMacro}, which detects the format from the
+	 * contents).
+	 *
+	 * @param outputStream
+	 *            the stream where the contents should be written (not closed by
+	 *            this method).
+	 * @throws IOException
+	 *             if some error happens writing the macro.
+	 * @see BinaryMacroFormat
+	 */
+	public void writeBinary(OutputStream outputStream) throws IOException {
+		BinaryMacroFormat.write(outputStream, new MacroInstructionRuns(fMacroInstructions));
+	}
+
+	/**
+	 * Provides the bytes of the macro in the compact binary format.
+	 *
+	 * @return an array of bytes which can be used to rerun the macro later on.
+	 * @throws IOException
+	 *             if some error happens converting the macro.
+	 * @see #writeBinary(OutputStream)
+	 */
+	public byte[] toBinaryBytes() throws IOException {
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		writeBinary(outputStream);
+		return outputStream.toByteArray();
+	}
+
+	private static void writeIndent(XMLStreamWriter writer, int level) throws XMLStreamException {
+		writer.writeCharacters(XML_NEW_LINE);
+		for (int i = 0; i < level; i++) {
+			writer.writeCharacters(XML_INDENT);
+		}
+	}
+
+	private static void writeTextElement(XMLStreamWriter writer, String tag, String str) throws XMLStreamException {
+		if (str.isEmpty()) {
+			// Written as the DOM does (i.e.: <key/> and not <key></key>).
+			writer.writeEmptyElement(tag);
+			return;
+		}
+		writer.writeStartElement(tag);
+		if (isAsciiPrintable(str)) {
+			writer.writeCharacters(str);
+		} else {
+			writer.writeAttribute(XML_BASE64_ATTRIBUTE, XML_BASE64_ATTRIBUTE_TRUE);
+			writer.writeCharacters(new String(Base64.getEncoder().encode(str.getBytes(StandardCharsets.UTF_8)),
+					StandardCharsets.UTF_8));
+		}
+		writer.writeEndElement();
+	}
+
+	/**
+	 * Provides the contents of the macro as XML by building a DOM in memory and
+	 * then transforming it (only used if {@link #DOM_SERIALIZATION_PROPERTY} is
+	 * set).
+	 *
+	 * @return an UTF-8 encoded array of bytes which can be used to rerun the macro
+	 *         later on.
+	 * @throws IOException
+	 *             if some error happens converting the macro to XML.
+	 */
+	private byte[] toDOMXMLBytes() throws IOException {
 		try {
 			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
 			factory.setFeature("http://xml.org/sax/features/namespaces", false); //$NON-NLS-1$
@@ -197,12 +563,16 @@ public class ComposableMacro implements IMacro {
 			Document document = documentBuilder.newDocument();
 			Element root = document.createElement(XML_MACRO_TAG);
 
-			for (IMacroInstruction macroInstruction : fMacroInstructions) {
-				Map<String, String> map = macroInstruction.toMap();
-				Iterator<Entry<String, String>> iterator = map.entrySet().iterator();
+			MacroInstructionRuns runs = new MacroInstructionRuns(fMacroInstructions);
+			while (runs.next()) {
+				int repeat = runs.getRepeat();
+				Iterator<Entry<String, String>> iterator = runs.getMap().entrySet().iterator();
 
 				Element instructionElement = document.createElement(XML_INSTRUCTION_TAG);
-				instructionElement.setAttribute(XML_ID_ATTRIBUTE, macroInstruction.getId());
+				instructionElement.setAttribute(XML_ID_ATTRIBUTE, runs.getId());
+				if (repeat > 1) {
+					instructionElement.setAttribute(XML_REPEAT_ATTRIBUTE, Integer.toString(repeat));
+				}
 				Element instructionDefinition = document.createElement(XML_DEFINITION_TAG);
 				while (iterator.hasNext()) {
 					Entry<String, String> entry = iterator.next();
@@ -266,4 +636,20 @@ public class ComposableMacro implements IMacro {
 	public int getLength() {
 		return fMacroInstructions.size();
 	}
+
+	/**
+	 * @return the macro instructions of this macro (packed macro instructions are
+	 *         created when accessed).
+	 */
+	/* default */ List<IMacroInstruction> getMacroInstructions() {
+		return Collections.unmodifiableList(fMacroInstructions);
+	}
+
+	/**
+	 * @return the factories of the macro instructions accepted in this macro (may
+	 *         be {@code null}).
+	 */
+	/* default */ Map<String, IMacroInstructionFactory> getMacroInstructionIdToFactory() {
+		return fMacroInstructionIdToFactory;
+	}
 }
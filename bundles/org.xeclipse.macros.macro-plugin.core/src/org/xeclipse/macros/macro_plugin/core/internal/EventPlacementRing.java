@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Fabio Zadrozny and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Fabio Zadrozny - initial API and implementation - http://eclip.se/8519
+ *******************************************************************************/
+package org.xeclipse.macros.macro_plugin.core.internal;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the placement (index in the macro and priority) of the macro
+ * instructions added for the last few events, so that macro instructions
+ * created for the same event can be arbitrated by their priority.
+ *
+ * Events are compared by identity and, when the ring is full, the placement of
+ * the oldest event is discarded (the arbitration only applies to events which
+ * trigger multiple macro instructions in a row, such as a key press and the
+ * command it triggers, so, only the last few events are relevant).
+ */
+/* default */ class EventPlacementRing {
+
+	/* default */ static final int DEFAULT_CAPACITY = 16;
+
+	private final Object[] fEvents;
+
+	private final int[] fIndexes;
+
+	private final int[] fPriorities;
+
+	/**
+	 * Position where the next event will be put.
+	 */
+	private int fNext;
+
+	/* default */ EventPlacementRing() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/* default */ EventPlacementRing(int capacity) {
+		fEvents = new Object[capacity];
+		fIndexes = new int[capacity];
+		fPriorities = new int[capacity];
+	}
+
+	/**
+	 * Finds the position of the given event in the ring (searching from the
+	 * newest to the oldest event).
+	 *
+	 * @param event
+	 *            the event to look for.
+	 * @return the position of the event or -1 if it's not in the ring.
+	 */
+	/* default */ int find(Object event) {
+		int length = fEvents.length;
+		for (int i = 1; i <= length; i++) {
+			int position = (fNext - i + length) % length;
+			Object current = fEvents[position];
+			if (current == event) {
+				return position;
+			}
+			if (current == null) {
+				// Positions before this one were never used.
+				return -1;
+			}
+		}
+		return -1;
+	}
+
+	/* default */ int getIndex(int position) {
+		return fIndexes[position];
+	}
+
+	/* default */ int getPriority(int position) {
+		return fPriorities[position];
+	}
+
+	/**
+	 * Updates the priority of the event at the given position.
+	 *
+	 * @param position
+	 *            a position obtained from {@link #find(Object)}.
+	 * @param priority
+	 *            the new priority for the event.
+	 */
+	/* default */ void setPriority(int position, int priority) {
+		fPriorities[position] = priority;
+	}
+
+	/**
+	 * Adds the placement for an event which is not in the ring (evicting the
+	 * oldest event if the ring is full).
+	 *
+	 * @param event
+	 *            the event to be added.
+	 * @param index
+	 *            the index of the macro instruction created for the event.
+	 * @param priority
+	 *            the priority of the macro instruction created for the event.
+	 */
+	/* default */ void add(Object event, int index, int priority) {
+		fEvents[fNext] = event;
+		fIndexes[fNext] = index;
+		fPriorities[fNext] = priority;
+		fNext = (fNext + 1) % fEvents.length;
+	}
+
+	/**
+	 * Removes all the events from the ring.
+	 */
+	/* default */ void clear() {
+		Arrays.fill(fEvents, null);
+		fNext = 0;
+	}
+}
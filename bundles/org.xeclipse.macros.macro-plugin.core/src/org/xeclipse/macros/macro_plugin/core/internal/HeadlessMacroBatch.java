@@ -0,0 +1,221 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Fabio Zadrozny and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Fabio Zadrozny - initial API and implementation - http://eclip.se/8519
+ *******************************************************************************/
+package org.xeclipse.macros.macro_plugin.core.internal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import org.xeclipse.macros.macro_plugin.core.IMacroInstruction;
+import org.xeclipse.macros.macro_plugin.core.MacroFileResult;
+import org.xeclipse.macros.macro_plugin.core.MacroFileResult.Status;
+import org.xeclipse.macros.macro_plugin.core.MacroPlaybackException;
+
+/**
+ * Applies a macro to many files in parallel (each file is loaded in a
+ * {@link HeadlessTextBuffer} and the macro is played back in its own
+ * {@link HeadlessMacroPlaybackContext}).
+ */
+/* default */ class HeadlessMacroBatch {
+
+	/**
+	 * Max number of files handled by a single task (ranges with more files are
+	 * split among the workers).
+	 */
+	private static final int FILES_PER_TASK = 4;
+
+	/**
+	 * Suffix of the temporary files where the changed contents are written before
+	 * replacing the files.
+	 */
+	private static final String TEMP_EXT = ".tmp"; //$NON-NLS-1$
+
+	/**
+	 * The macro instructions to be applied (obtained only once from the macro and
+	 * then shared, read-only, by all the workers).
+	 */
+	private final List<IMacroInstruction> fMacroInstructions;
+
+	private final Charset fCharset;
+
+	private final boolean fDryRun;
+
+	private HeadlessMacroBatch(List<IMacroInstruction> macroInstructions, Charset charset, boolean dryRun) {
+		fMacroInstructions = macroInstructions;
+		fCharset = charset;
+		fDryRun = dryRun;
+	}
+
+	/**
+	 * Collects the contents of the macro instructions played back (without
+	 * applying those).
+	 */
+	private static final class MacroInstructionsCollector extends HeadlessMacroPlaybackContext {
+
+		private final List<IMacroInstruction> fCollected = new ArrayList<>();
+
+		private MacroInstructionsCollector() {
+			super(new HeadlessTextBuffer("")); //$NON-NLS-1$
+		}
+
+		@Override
+		public void runMacroInstruction(String macroInstructionId, Map<String, String> macroInstructionParameters)
+				throws MacroPlaybackException {
+			if (!isSupported(macroInstructionId, macroInstructionParameters)) {
+				throw new MacroPlaybackException(String.format(
+						"Macro instruction: %s (%s) not supported in headless playback.", //$NON-NLS-1$
+						macroInstructionId, macroInstructionParameters));
+			}
+			fCollected.add(new StoredMacroInstruction(macroInstructionId, new HashMap<>(macroInstructionParameters)));
+		}
+	}
+
+	/**
+	 * Applies the given macro to the given files.
+	 *
+	 * @param macro
+	 *            the macro to be applied.
+	 * @param files
+	 *            the files to which the macro should be applied.
+	 * @param charset
+	 *            the charset used to read and write the files.
+	 * @param dryRun
+	 *            if true, the files are not written (the results just report
+	 *            which files would be changed).
+	 * @param parallelism
+	 *            the number of threads used to apply the macro.
+	 * @return the result for each file (in the same order of the files).
+	 * @throws MacroPlaybackException
+	 *             if the macro has some macro instruction which can't be played
+	 *             back without an editor (in which case no file is touched).
+	 */
+	/* default */ static List<MacroFileResult> apply(IMacro macro, List<Path> files, Charset charset, boolean dryRun,
+			int parallelism) throws MacroPlaybackException {
+		MacroInstructionsCollector collector = new MacroInstructionsCollector();
+		macro.playback(collector);
+		HeadlessMacroBatch batch = new HeadlessMacroBatch(collector.fCollected, charset, dryRun);
+
+		MacroFileResult[] results = new MacroFileResult[files.size()];
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			pool.invoke(batch.new ApplyTask(files, results, 0, files.size()));
+		} finally {
+			pool.shutdown();
+		}
+		return Collections.unmodifiableList(Arrays.asList(results));
+	}
+
+	private final class ApplyTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<Path> fFiles;
+
+		private final MacroFileResult[] fResults;
+
+		private final int fStart;
+
+		private final int fEnd;
+
+		private ApplyTask(List<Path> files, MacroFileResult[] results, int start, int end) {
+			fFiles = files;
+			fResults = results;
+			fStart = start;
+			fEnd = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (fEnd - fStart <= FILES_PER_TASK) {
+				for (int i = fStart; i < fEnd; i++) {
+					fResults[i] = apply(fFiles.get(i));
+				}
+				return;
+			}
+			int middle = (fStart + fEnd) >>> 1;
+			invokeAll(new ApplyTask(fFiles, fResults, fStart, middle), new ApplyTask(fFiles, fResults, middle, fEnd));
+		}
+	}
+
+	private MacroFileResult apply(Path path) {
+		try {
+			String original = read(path);
+			HeadlessMacroPlaybackContext macroPlaybackContext = new HeadlessMacroPlaybackContext(
+					new HeadlessTextBuffer(original));
+			for (IMacroInstruction macroInstruction : fMacroInstructions) {
+				macroPlaybackContext.execute(macroInstruction);
+			}
+			String text = macroPlaybackContext.getTextBuffer().getText();
+			if (text.equals(original)) {
+				return new MacroFileResult(path, Status.UNCHANGED, null);
+			}
+			if (!fDryRun) {
+				ByteBuffer bytes = fCharset.newEncoder().onMalformedInput(CodingErrorAction.REPORT)
+						.onUnmappableCharacter(CodingErrorAction.REPORT).encode(CharBuffer.wrap(text));
+				write(path, Arrays.copyOfRange(bytes.array(), bytes.arrayOffset() + bytes.position(),
+						bytes.arrayOffset() + bytes.limit()));
+			}
+			return new MacroFileResult(path, Status.MODIFIED, null);
+		} catch (IOException | MacroPlaybackException | RuntimeException e) {
+			return new MacroFileResult(path, Status.FAILED, e);
+		}
+	}
+
+	/**
+	 * Replaces the contents of a file. The contents are written to a sibling
+	 * temporary file which is then moved over the file, so, the file is never left
+	 * partially written if the write fails.
+	 */
+	private static void write(Path path, byte[] bytes) throws IOException {
+		// Symbolic links are kept (the file they point to is replaced).
+		Path file = path.toRealPath();
+		Path tempFile = Files.createTempFile(file.getParent(), file.getFileName().toString(), TEMP_EXT);
+		try {
+			Files.write(tempFile, bytes);
+			PosixFileAttributeView attributeView = Files.getFileAttributeView(file, PosixFileAttributeView.class);
+			if (attributeView != null) {
+				// The temporary file is only readable by the owner.
+				Files.setPosixFilePermissions(tempFile, attributeView.readAttributes().permissions());
+			}
+			try {
+				Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tempFile);
+		}
+	}
+
+	/**
+	 * Reads the contents of a file (failing if it's not valid in the charset,
+	 * so that it's never written back with replacement characters).
+	 */
+	private String read(Path path) throws IOException {
+		byte[] bytes = Files.readAllBytes(path);
+		return fCharset.newDecoder().onMalformedInput(CodingErrorAction.REPORT)
+				.onUnmappableCharacter(CodingErrorAction.REPORT).decode(ByteBuffer.wrap(bytes)).toString();
+	}
+}
@@ -0,0 +1,490 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Fabio Zadrozny and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Fabio Zadrozny - initial API and implementation - http://eclip.se/8519
+ *******************************************************************************/
+package org.xeclipse.macros.macro_plugin.core.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.xeclipse.macros.macro_plugin.core.IMacroInstruction;
+import org.xeclipse.macros.macro_plugin.core.IMacroPlaybackContext;
+import org.xeclipse.macros.macro_plugin.core.MacroPlaybackException;
+
+/**
+ * A playback context which applies macros to a {@link HeadlessTextBuffer}
+ * instead of an editor (so, it doesn't need SWT nor the UI thread and may be
+ * used to apply a macro to many documents in parallel, one context per
+ * document).
+ *
+ * Macro instructions are interpreted from their id and parameters (the same
+ * contents which are saved to the disk). Key events and a whitelist of text
+ * edition commands (see {@link #isSupportedCommand(String)}) are supported.
+ * Any other macro instruction makes the playback fail with a
+ * {@link MacroPlaybackException} (so, the document is never left half-edited by
+ * something which couldn't be reproduced).
+ */
+public class HeadlessMacroPlaybackContext implements IMacroPlaybackContext {
+
+	/**
+	 * Id of the macro instructions for key events (see
+	 * StyledTextKeyDownMacroInstruction in the texteditor bundle).
+	 */
+	/* default */ static final String KEY_EVENT_ID = "KeyEvent"; //$NON-NLS-1$
+
+	/**
+	 * Id of the macro instructions for commands (see
+	 * MacroInstructionForParameterizedCommand in the ui bundle).
+	 */
+	/* default */ static final String COMMAND_ID = "Command"; //$NON-NLS-1$
+
+	private static final String KEY_CODE = "keyCode"; //$NON-NLS-1$
+
+	private static final String STATE_MASK = "stateMask"; //$NON-NLS-1$
+
+	private static final String CHARACTER = "character"; //$NON-NLS-1$
+
+	private static final String COMMAND = "command"; //$NON-NLS-1$
+
+	// Same values as the constants in org.eclipse.swt.SWT (which isn't available
+	// in this bundle).
+
+	private static final int ALT = 1 << 16;
+
+	private static final int SHIFT = 1 << 17;
+
+	private static final int CTRL = 1 << 18;
+
+	private static final int COMMAND_KEY = 1 << 22;
+
+	private static final int MODIFIER_MASK = ALT | SHIFT | CTRL | COMMAND_KEY;
+
+	private static final int KEYCODE_BIT = 1 << 24;
+
+	private static final int ARROW_UP = KEYCODE_BIT + 1;
+
+	private static final int ARROW_DOWN = KEYCODE_BIT + 2;
+
+	private static final int ARROW_LEFT = KEYCODE_BIT + 3;
+
+	private static final int ARROW_RIGHT = KEYCODE_BIT + 4;
+
+	private static final int HOME = KEYCODE_BIT + 7;
+
+	private static final int END = KEYCODE_BIT + 8;
+
+	private static final int KEYPAD_CR = KEYCODE_BIT + 80;
+
+	private static final char BS = '\b';
+
+	private static final char CR = '\r';
+
+	private static final char LF = '\n';
+
+	private static final char TAB = '\t';
+
+	private static final char ESC = 0x1B;
+
+	private static final char DEL = 0x7F;
+
+	private static final String TEXT_COMMAND_PREFIX = "org.eclipse.ui.edit.text."; //$NON-NLS-1$
+
+	private final Map<Object, Object> fContext = new HashMap<>();
+
+	private final HeadlessTextBuffer fTextBuffer;
+
+	/**
+	 * @param textBuffer
+	 *            the buffer to which macros played back in this context are
+	 *            applied.
+	 */
+	public HeadlessMacroPlaybackContext(HeadlessTextBuffer textBuffer) {
+		fTextBuffer = textBuffer;
+	}
+
+	/**
+	 * @return the buffer to which macros played back in this context are applied.
+	 */
+	public HeadlessTextBuffer getTextBuffer() {
+		return fTextBuffer;
+	}
+
+	@Override
+	public Object get(String key) {
+		return fContext.get(key);
+	}
+
+	@Override
+	public void set(String key, Object value) {
+		fContext.put(key, value);
+	}
+
+	/**
+	 * Applies the given macro instruction to the text buffer (through the contents
+	 * of {@link IMacroInstruction#toMap()}, so, the macro instruction itself is
+	 * not executed).
+	 *
+	 * @param macroInstruction
+	 *            the macro instruction to be applied.
+	 * @throws MacroPlaybackException
+	 *             if the macro instruction is not supported without an editor.
+	 */
+	@Override
+	public void execute(IMacroInstruction macroInstruction) throws MacroPlaybackException {
+		runMacroInstruction(macroInstruction.getId(), macroInstruction.toMap());
+	}
+
+	/**
+	 * Checks that the given macro instruction may be applied to the text buffer
+	 * (without applying it).
+	 *
+	 * @param macroInstruction
+	 *            the macro instruction to be checked.
+	 * @throws MacroPlaybackException
+	 *             if the macro instruction is not supported without an editor.
+	 */
+	@Override
+	public void resolve(IMacroInstruction macroInstruction) throws MacroPlaybackException {
+		String macroInstructionId = macroInstruction.getId();
+		Map<String, String> macroInstructionParameters = macroInstruction.toMap();
+		if (!isSupported(macroInstructionId, macroInstructionParameters)) {
+			throw new MacroPlaybackException(
+					String.format("Macro instruction: %s (%s) not supported in headless playback.", //$NON-NLS-1$
+							macroInstructionId, macroInstructionParameters));
+		}
+	}
+
+	@Override
+	public void runMacroInstruction(String macroInstructionId, Map<String, String> macroInstructionParameters)
+			throws MacroPlaybackException {
+		if (KEY_EVENT_ID.equals(macroInstructionId)) {
+			runKeyEvent(macroInstructionParameters);
+		} else if (COMMAND_ID.equals(macroInstructionId)) {
+			runCommand(macroInstructionParameters.get(COMMAND));
+		} else {
+			throw new MacroPlaybackException(
+					String.format("Macro instruction: %s not supported in headless playback.", macroInstructionId)); //$NON-NLS-1$
+		}
+	}
+
+	private static int getInt(Map<String, String> map, String key) throws MacroPlaybackException {
+		String value = map.get(key);
+		if (value == null) {
+			return 0;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new MacroPlaybackException(String.format("Invalid %s: %s.", key, value), e); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * Applies a key event the way that a StyledText does with its default key
+	 * bindings (without the actions which depend on the editor viewport, such as
+	 * page up/down).
+	 */
+	private void runKeyEvent(Map<String, String> map) throws MacroPlaybackException {
+		int keyCode = getInt(map, KEY_CODE);
+		int stateMask = getInt(map, STATE_MASK);
+		String characterStr = map.get(CHARACTER);
+		char character = characterStr != null && characterStr.length() == 1 ? characterStr.charAt(0) : 0;
+
+		boolean select = (stateMask & SHIFT) != 0;
+		boolean word = (stateMask & (CTRL | COMMAND_KEY | ALT)) != 0;
+		HeadlessTextBuffer buffer = fTextBuffer;
+		switch (keyCode) {
+		case ARROW_LEFT:
+			if (word) {
+				buffer.wordPrevious(select);
+			} else {
+				buffer.left(select);
+			}
+			return;
+		case ARROW_RIGHT:
+			if (word) {
+				buffer.wordNext(select);
+			} else {
+				buffer.right(select);
+			}
+			return;
+		case ARROW_UP:
+			if (!word) {
+				buffer.up(select);
+			}
+			return; // With a modifier it just scrolls.
+		case ARROW_DOWN:
+			if (!word) {
+				buffer.down(select);
+			}
+			return;
+		case HOME:
+			if (word) {
+				buffer.textStart(select);
+			} else {
+				buffer.lineStart(select, false);
+			}
+			return;
+		case END:
+			if (word) {
+				buffer.textEnd(select);
+			} else {
+				buffer.lineEnd(select);
+			}
+			return;
+		case KEYPAD_CR:
+			buffer.newLine();
+			return;
+		default:
+			break;
+		}
+		if ((keyCode & MODIFIER_MASK) != 0 && (keyCode & ~MODIFIER_MASK) == 0 || keyCode == 0 && character == 0) {
+			// Just a modifier pressed.
+			return;
+		}
+		if ((keyCode & KEYCODE_BIT) != 0) {
+			throw new MacroPlaybackException(
+					String.format("Key code: %s not supported in headless playback.", keyCode)); //$NON-NLS-1$
+		}
+
+		boolean ctrl = (stateMask & (CTRL | COMMAND_KEY)) != 0;
+		switch (character) {
+		case BS:
+			if (ctrl) {
+				buffer.deletePreviousWord();
+			} else {
+				buffer.deletePrevious();
+			}
+			return;
+		case DEL:
+			if (ctrl) {
+				buffer.deleteNextWord();
+			} else {
+				buffer.deleteNext();
+			}
+			return;
+		case CR:
+		case LF:
+			buffer.newLine();
+			return;
+		case ESC:
+			return;
+		default:
+			break;
+		}
+		boolean altGr = (stateMask & (CTRL | ALT)) == (CTRL | ALT);
+		if ((character >= ' ' || character == TAB) && (altGr || (stateMask & (CTRL | ALT | COMMAND_KEY)) == 0)) {
+			buffer.type(character);
+			return;
+		}
+		throw new MacroPlaybackException(String.format(
+				"Key event (keyCode: %s, stateMask: %s) not supported in headless playback.", keyCode, stateMask)); //$NON-NLS-1$
+	}
+
+	/**
+	 * Checks whether a macro instruction may be played back without an editor
+	 * (key events are always accepted: those which can't be reproduced only fail
+	 * when played back).
+	 *
+	 * @param macroInstructionId
+	 *            the id of the macro instruction.
+	 * @param macroInstructionParameters
+	 *            the parameters of the macro instruction.
+	 * @return whether the macro instruction is supported in a headless playback.
+	 */
+	public static boolean isSupported(String macroInstructionId, Map<String, String> macroInstructionParameters) {
+		if (KEY_EVENT_ID.equals(macroInstructionId)) {
+			return true;
+		}
+		if (COMMAND_ID.equals(macroInstructionId)) {
+			String serializedCommand = macroInstructionParameters.get(COMMAND);
+			return serializedCommand != null && isSupportedCommand(getCommandId(serializedCommand));
+		}
+		return false;
+	}
+
+	/**
+	 * @param commandId
+	 *            the id of a command (without parameters).
+	 * @return whether the given command can be played back without an editor.
+	 */
+	public static boolean isSupportedCommand(String commandId) {
+		switch (commandId) {
+		case "org.eclipse.ui.edit.delete": //$NON-NLS-1$
+		case "org.eclipse.ui.edit.selectAll": //$NON-NLS-1$
+		case "org.eclipse.ui.file.save": //$NON-NLS-1$
+		case "org.eclipse.ui.file.saveAll": //$NON-NLS-1$
+			return true;
+		default:
+			return commandId.startsWith(TEXT_COMMAND_PREFIX)
+					&& isSupportedTextCommand(commandId.substring(TEXT_COMMAND_PREFIX.length()));
+		}
+	}
+
+	private static boolean isSupportedTextCommand(String name) {
+		switch (name) {
+		case "goto.lineStart": //$NON-NLS-1$
+		case "goto.lineEnd": //$NON-NLS-1$
+		case "goto.textStart": //$NON-NLS-1$
+		case "goto.textEnd": //$NON-NLS-1$
+		case "goto.lineUp": //$NON-NLS-1$
+		case "goto.lineDown": //$NON-NLS-1$
+		case "goto.columnPrevious": //$NON-NLS-1$
+		case "goto.columnNext": //$NON-NLS-1$
+		case "goto.wordPrevious": //$NON-NLS-1$
+		case "goto.wordNext": //$NON-NLS-1$
+		case "select.lineStart": //$NON-NLS-1$
+		case "select.lineEnd": //$NON-NLS-1$
+		case "select.textStart": //$NON-NLS-1$
+		case "select.textEnd": //$NON-NLS-1$
+		case "select.lineUp": //$NON-NLS-1$
+		case "select.lineDown": //$NON-NLS-1$
+		case "select.columnPrevious": //$NON-NLS-1$
+		case "select.columnNext": //$NON-NLS-1$
+		case "select.wordPrevious": //$NON-NLS-1$
+		case "select.wordNext": //$NON-NLS-1$
+		case "moveLineUp": //$NON-NLS-1$
+		case "moveLineDown": //$NON-NLS-1$
+		case "copyLineUp": //$NON-NLS-1$
+		case "copyLineDown": //$NON-NLS-1$
+		case "delete.line": //$NON-NLS-1$
+		case "delete.line.to.end": //$NON-NLS-1$
+		case "delete.line.to.beginning": //$NON-NLS-1$
+		case "deletePrevious": //$NON-NLS-1$
+		case "deleteNext": //$NON-NLS-1$
+		case "deletePreviousWord": //$NON-NLS-1$
+		case "deleteNextWord": //$NON-NLS-1$
+		case "smartEnter": //$NON-NLS-1$
+		case "smartEnterInverse": //$NON-NLS-1$
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * @param serializedCommand
+	 *            the command as serialized by ParameterizedCommand.serialize().
+	 * @return the id of the command (without its parameters).
+	 */
+	/* default */ static String getCommandId(String serializedCommand) {
+		int i = serializedCommand.indexOf('(');
+		return i >= 0 ? serializedCommand.substring(0, i) : serializedCommand;
+	}
+
+	private void runCommand(String serializedCommand) throws MacroPlaybackException {
+		if (serializedCommand == null) {
+			throw new MacroPlaybackException("Command not available in macro instruction."); //$NON-NLS-1$
+		}
+		String commandId = getCommandId(serializedCommand);
+		if (!isSupportedCommand(commandId)) {
+			throw new MacroPlaybackException(
+					String.format("Command: %s not supported in headless playback.", commandId)); //$NON-NLS-1$
+		}
+		HeadlessTextBuffer buffer = fTextBuffer;
+		switch (commandId) {
+		case "org.eclipse.ui.edit.delete": //$NON-NLS-1$
+			buffer.deleteNext();
+			return;
+		case "org.eclipse.ui.edit.selectAll": //$NON-NLS-1$
+			buffer.selectAll();
+			return;
+		case "org.eclipse.ui.file.save": //$NON-NLS-1$
+		case "org.eclipse.ui.file.saveAll": //$NON-NLS-1$
+			// The contents are saved by whoever created the buffer.
+			return;
+		default:
+			break;
+		}
+		String name = commandId.substring(TEXT_COMMAND_PREFIX.length());
+		boolean select = name.startsWith("select."); //$NON-NLS-1$
+		switch (name) {
+		case "goto.lineStart": //$NON-NLS-1$
+		case "select.lineStart": //$NON-NLS-1$
+			buffer.lineStart(select, true);
+			break;
+		case "goto.lineEnd": //$NON-NLS-1$
+		case "select.lineEnd": //$NON-NLS-1$
+			buffer.lineEnd(select);
+			break;
+		case "goto.textStart": //$NON-NLS-1$
+		case "select.textStart": //$NON-NLS-1$
+			buffer.textStart(select);
+			break;
+		case "goto.textEnd": //$NON-NLS-1$
+		case "select.textEnd": //$NON-NLS-1$
+			buffer.textEnd(select);
+			break;
+		case "goto.lineUp": //$NON-NLS-1$
+		case "select.lineUp": //$NON-NLS-1$
+			buffer.up(select);
+			break;
+		case "goto.lineDown": //$NON-NLS-1$
+		case "select.lineDown": //$NON-NLS-1$
+			buffer.down(select);
+			break;
+		case "goto.columnPrevious": //$NON-NLS-1$
+		case "select.columnPrevious": //$NON-NLS-1$
+			buffer.left(select);
+			break;
+		case "goto.columnNext": //$NON-NLS-1$
+		case "select.columnNext": //$NON-NLS-1$
+			buffer.right(select);
+			break;
+		case "goto.wordPrevious": //$NON-NLS-1$
+		case "select.wordPrevious": //$NON-NLS-1$
+			buffer.wordPrevious(select);
+			break;
+		case "goto.wordNext": //$NON-NLS-1$
+		case "select.wordNext": //$NON-NLS-1$
+			buffer.wordNext(select);
+			break;
+		case "moveLineUp": //$NON-NLS-1$
+			buffer.moveLines(true);
+			break;
+		case "moveLineDown": //$NON-NLS-1$
+			buffer.moveLines(false);
+			break;
+		case "copyLineUp": //$NON-NLS-1$
+			buffer.copyLines(true);
+			break;
+		case "copyLineDown": //$NON-NLS-1$
+			buffer.copyLines(false);
+			break;
+		case "delete.line": //$NON-NLS-1$
+			buffer.deleteLines();
+			break;
+		case "delete.line.to.end": //$NON-NLS-1$
+			buffer.deleteToLineEnd();
+			break;
+		case "delete.line.to.beginning": //$NON-NLS-1$
+			buffer.deleteToLineStart();
+			break;
+		case "deletePrevious": //$NON-NLS-1$
+			buffer.deletePrevious();
+			break;
+		case "deleteNext": //$NON-NLS-1$
+			buffer.deleteNext();
+			break;
+		case "deletePreviousWord": //$NON-NLS-1$
+			buffer.deletePreviousWord();
+			break;
+		case "deleteNextWord": //$NON-NLS-1$
+			buffer.deleteNextWord();
+			break;
+		case "smartEnter": //$NON-NLS-1$
+			buffer.smartEnter(false);
+			break;
+		case "smartEnterInverse": //$NON-NLS-1$
+			buffer.smartEnter(true);
+			break;
+		default:
+			throw new AssertionError(commandId);
+		}
+	}
+}
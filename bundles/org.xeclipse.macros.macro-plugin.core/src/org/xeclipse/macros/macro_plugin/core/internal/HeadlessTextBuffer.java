@@ -0,0 +1,628 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Fabio Zadrozny and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Fabio Zadrozny - initial API and implementation - http://eclip.se/8519
+ *******************************************************************************/
+package org.xeclipse.macros.macro_plugin.core.internal;
+
+/**
+ * A plain text document with a caret and a selection (used to play back macros
+ * without an editor).
+ *
+ * The selection goes from an anchor to the caret (so, it's empty if both are
+ * at the same offset). Lines may be delimited by "\r\n", "\n" or "\r" and the
+ * delimiter found first in the initial text is used for new lines.
+ */
+public class HeadlessTextBuffer {
+
+	private final StringBuilder fText;
+
+	private final String fLineDelimiter;
+
+	private int fCaret;
+
+	private int fAnchor;
+
+	/**
+	 * The column to keep when moving the caret up or down (-1 if not moving
+	 * vertically).
+	 */
+	private int fPreferredColumn = -1;
+
+	/**
+	 * Creates a buffer with the caret at the start of the text.
+	 *
+	 * @param text
+	 *            the initial contents of the buffer.
+	 */
+	public HeadlessTextBuffer(String text) {
+		this(text, 0);
+	}
+
+	/**
+	 * @param text
+	 *            the initial contents of the buffer.
+	 * @param caretOffset
+	 *            the initial offset of the caret.
+	 */
+	public HeadlessTextBuffer(String text, int caretOffset) {
+		fText = new StringBuilder(text);
+		fLineDelimiter = findLineDelimiter(text);
+		setCaretOffset(caretOffset, false);
+	}
+
+	private static String findLineDelimiter(String text) {
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '\n') {
+				return "\n"; //$NON-NLS-1$
+			}
+			if (c == '\r') {
+				return i + 1 < text.length() && text.charAt(i + 1) == '\n' ? "\r\n" : "\r"; //$NON-NLS-1$ //$NON-NLS-2$
+			}
+		}
+		return "\n"; //$NON-NLS-1$
+	}
+
+	/**
+	 * @return the current contents of the buffer.
+	 */
+	public String getText() {
+		return fText.toString();
+	}
+
+	/**
+	 * @return the delimiter used for new lines.
+	 */
+	public String getLineDelimiter() {
+		return fLineDelimiter;
+	}
+
+	/**
+	 * @return the offset of the caret.
+	 */
+	public int getCaretOffset() {
+		return fCaret;
+	}
+
+	/**
+	 * @return the start offset of the selection.
+	 */
+	public int getSelectionStart() {
+		return Math.min(fAnchor, fCaret);
+	}
+
+	/**
+	 * @return the end offset of the selection.
+	 */
+	public int getSelectionEnd() {
+		return Math.max(fAnchor, fCaret);
+	}
+
+	/**
+	 * @return whether some text is selected.
+	 */
+	public boolean hasSelection() {
+		return fAnchor != fCaret;
+	}
+
+	/**
+	 * Moves the caret.
+	 *
+	 * @param offset
+	 *            the new offset of the caret (clamped to the text bounds).
+	 * @param select
+	 *            whether the selection should be extended to the new offset (if
+	 *            not, the selection is cleared).
+	 */
+	public void setCaretOffset(int offset, boolean select) {
+		fCaret = Math.max(0, Math.min(offset, fText.length()));
+		if (!select) {
+			fAnchor = fCaret;
+		}
+		fPreferredColumn = -1;
+	}
+
+	/**
+	 * Selects the given range (the caret is placed at its end).
+	 *
+	 * @param start
+	 *            the start offset of the selection.
+	 * @param end
+	 *            the end offset of the selection.
+	 */
+	public void setSelection(int start, int end) {
+		setCaretOffset(start, false);
+		setCaretOffset(end, true);
+	}
+
+	// Lines -----------------------------------------------------------------
+
+	private boolean isDelimiter(int offset) {
+		char c = fText.charAt(offset);
+		return c == '\n' || c == '\r';
+	}
+
+	/* default */ int getLineStart(int offset) {
+		int i = offset;
+		while (i > 0 && !isDelimiter(i - 1)) {
+			i--;
+		}
+		return i;
+	}
+
+	/* default */ int getLineEnd(int offset) {
+		int i = offset;
+		while (i < fText.length() && !isDelimiter(i)) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * @return the length of the line delimiter at the given offset (0 if at the
+	 *         end of the text).
+	 */
+	private int getDelimiterLength(int lineEnd) {
+		if (lineEnd >= fText.length()) {
+			return 0;
+		}
+		if (fText.charAt(lineEnd) == '\r' && lineEnd + 1 < fText.length() && fText.charAt(lineEnd + 1) == '\n') {
+			return 2;
+		}
+		return 1;
+	}
+
+	/**
+	 * @return the length of the line delimiter which ends right before the given
+	 *         line start (0 if at the start of the text).
+	 */
+	private int getPreviousDelimiterLength(int lineStart) {
+		if (lineStart == 0) {
+			return 0;
+		}
+		if (fText.charAt(lineStart - 1) == '\n' && lineStart >= 2 && fText.charAt(lineStart - 2) == '\r') {
+			return 2;
+		}
+		return 1;
+	}
+
+	private int getColumn() {
+		return fPreferredColumn >= 0 ? fPreferredColumn : fCaret - getLineStart(fCaret);
+	}
+
+	/**
+	 * @return the offset of the first char which is not a space or tab in the line
+	 *         of the given offset.
+	 */
+	private int getFirstNonWhitespace(int offset) {
+		int i = getLineStart(offset);
+		int lineEnd = getLineEnd(offset);
+		while (i < lineEnd && isSpaceOrTab(fText.charAt(i))) {
+			i++;
+		}
+		return i;
+	}
+
+	private static boolean isSpaceOrTab(char c) {
+		return c == ' ' || c == '\t';
+	}
+
+	// Caret moves -----------------------------------------------------------
+
+	/**
+	 * Moves the caret one character to the left (a selection is collapsed to its
+	 * start if not extending it).
+	 *
+	 * @param select
+	 *            whether the selection should be extended.
+	 */
+	public void left(boolean select) {
+		if (!select && hasSelection()) {
+			setCaretOffset(getSelectionStart(), false);
+		} else if (fCaret > 0) {
+			int lineStart = getLineStart(fCaret);
+			setCaretOffset(fCaret == lineStart ? fCaret - getPreviousDelimiterLength(fCaret) : fCaret - 1, select);
+		}
+	}
+
+	/**
+	 * Moves the caret one character to the right (a selection is collapsed to its
+	 * end if not extending it).
+	 *
+	 * @param select
+	 *            whether the selection should be extended.
+	 */
+	public void right(boolean select) {
+		if (!select && hasSelection()) {
+			setCaretOffset(getSelectionEnd(), false);
+		} else if (fCaret < fText.length()) {
+			int lineEnd = getLineEnd(fCaret);
+			setCaretOffset(fCaret == lineEnd ? fCaret + getDelimiterLength(fCaret) : fCaret + 1, select);
+		}
+	}
+
+	/**
+	 * Moves the caret to the previous line (keeping the column of the first
+	 * vertical move).
+	 *
+	 * @param select
+	 *            whether the selection should be extended.
+	 */
+	public void up(boolean select) {
+		int column = getColumn();
+		int lineStart = getLineStart(fCaret);
+		if (lineStart == 0) {
+			setCaretOffset(0, select);
+		} else {
+			int previousLineEnd = lineStart - getPreviousDelimiterLength(lineStart);
+			int previousLineStart = getLineStart(previousLineEnd);
+			setCaretOffset(Math.min(previousLineStart + column, previousLineEnd), select);
+		}
+		fPreferredColumn = column;
+	}
+
+	/**
+	 * Moves the caret to the next line (keeping the column of the first vertical
+	 * move).
+	 *
+	 * @param select
+	 *            whether the selection should be extended.
+	 */
+	public void down(boolean select) {
+		int column = getColumn();
+		int lineEnd = getLineEnd(fCaret);
+		if (lineEnd == fText.length()) {
+			setCaretOffset(lineEnd, select);
+		} else {
+			int nextLineStart = lineEnd + getDelimiterLength(lineEnd);
+			setCaretOffset(Math.min(nextLineStart + column, getLineEnd(nextLineStart)), select);
+		}
+		fPreferredColumn = column;
+	}
+
+	/**
+	 * Moves the caret to the start of the line.
+	 *
+	 * @param select
+	 *            whether the selection should be extended.
+	 * @param smart
+	 *            if true, moves to the first char which is not whitespace (or to
+	 *            the start of the line if already there).
+	 */
+	public void lineStart(boolean select, boolean smart) {
+		int lineStart = getLineStart(fCaret);
+		if (smart) {
+			int firstNonWhitespace = getFirstNonWhitespace(fCaret);
+			setCaretOffset(fCaret == firstNonWhitespace ? lineStart : firstNonWhitespace, select);
+		} else {
+			setCaretOffset(lineStart, select);
+		}
+	}
+
+	/**
+	 * Moves the caret to the end of the line.
+	 *
+	 * @param select
+	 *            whether the selection should be extended.
+	 */
+	public void lineEnd(boolean select) {
+		setCaretOffset(getLineEnd(fCaret), select);
+	}
+
+	/**
+	 * Moves the caret to the start of the text.
+	 *
+	 * @param select
+	 *            whether the selection should be extended.
+	 */
+	public void textStart(boolean select) {
+		setCaretOffset(0, select);
+	}
+
+	/**
+	 * Moves the caret to the end of the text.
+	 *
+	 * @param select
+	 *            whether the selection should be extended.
+	 */
+	public void textEnd(boolean select) {
+		setCaretOffset(fText.length(), select);
+	}
+
+	private static boolean isWordPart(char c) {
+		return Character.isLetterOrDigit(c) || c == '_';
+	}
+
+	/**
+	 * @return the offset of the start of the word before the given offset
+	 *         (whitespace before the caret is skipped first).
+	 */
+	private int getPreviousWordStart(int offset) {
+		int lineStart = getLineStart(offset);
+		if (offset == lineStart) {
+			return offset - getPreviousDelimiterLength(offset);
+		}
+		int i = offset;
+		while (i > lineStart && isSpaceOrTab(fText.charAt(i - 1))) {
+			i--;
+		}
+		if (i > lineStart) {
+			boolean word = isWordPart(fText.charAt(i - 1));
+			while (i > lineStart && !isSpaceOrTab(fText.charAt(i - 1)) && isWordPart(fText.charAt(i - 1)) == word) {
+				i--;
+			}
+		}
+		return i;
+	}
+
+	/**
+	 * @return the offset of the start of the word after the given offset (the
+	 *         current word and the whitespace after it are skipped).
+	 */
+	private int getNextWordStart(int offset) {
+		int lineEnd = getLineEnd(offset);
+		if (offset == lineEnd) {
+			return offset + getDelimiterLength(offset);
+		}
+		int i = offset;
+		if (!isSpaceOrTab(fText.charAt(i))) {
+			boolean word = isWordPart(fText.charAt(i));
+			while (i < lineEnd && !isSpaceOrTab(fText.charAt(i)) && isWordPart(fText.charAt(i)) == word) {
+				i++;
+			}
+		}
+		while (i < lineEnd && isSpaceOrTab(fText.charAt(i))) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * Moves the caret to the start of the previous word.
+	 *
+	 * @param select
+	 *            whether the selection should be extended.
+	 */
+	public void wordPrevious(boolean select) {
+		setCaretOffset(getPreviousWordStart(fCaret), select);
+	}
+
+	/**
+	 * Moves the caret to the start of the next word.
+	 *
+	 * @param select
+	 *            whether the selection should be extended.
+	 */
+	public void wordNext(boolean select) {
+		setCaretOffset(getNextWordStart(fCaret), select);
+	}
+
+	/**
+	 * Selects the whole text.
+	 */
+	public void selectAll() {
+		setSelection(0, fText.length());
+	}
+
+	// Edition ---------------------------------------------------------------
+
+	/**
+	 * Replaces the selection with the given text (placing the caret after it).
+	 *
+	 * @param str
+	 *            the text to be inserted.
+	 */
+	public void replaceSelection(String str) {
+		replace(getSelectionStart(), getSelectionEnd(), str);
+	}
+
+	private void replace(int start, int end, String str) {
+		fText.replace(start, end, str);
+		setCaretOffset(start + str.length(), false);
+	}
+
+	/**
+	 * Types a character (replacing the selection).
+	 *
+	 * @param c
+	 *            the character typed.
+	 */
+	public void type(char c) {
+		replaceSelection(String.valueOf(c));
+	}
+
+	/**
+	 * Breaks the line at the caret (replacing the selection), indenting the new
+	 * line with the leading whitespace of the current line.
+	 */
+	public void newLine() {
+		int start = getSelectionStart();
+		int lineStart = getLineStart(start);
+		int indentEnd = Math.min(getFirstNonWhitespace(start), start);
+		replaceSelection(fLineDelimiter + fText.substring(lineStart, indentEnd));
+	}
+
+	/**
+	 * Deletes the selection or the character before the caret.
+	 */
+	public void deletePrevious() {
+		if (hasSelection()) {
+			replaceSelection(""); //$NON-NLS-1$
+		} else if (fCaret > 0) {
+			int lineStart = getLineStart(fCaret);
+			replace(fCaret == lineStart ? fCaret - getPreviousDelimiterLength(fCaret) : fCaret - 1, fCaret, ""); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * Deletes the selection or the character after the caret.
+	 */
+	public void deleteNext() {
+		if (hasSelection()) {
+			replaceSelection(""); //$NON-NLS-1$
+		} else if (fCaret < fText.length()) {
+			int lineEnd = getLineEnd(fCaret);
+			replace(fCaret, fCaret == lineEnd ? fCaret + getDelimiterLength(fCaret) : fCaret + 1, ""); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * Deletes the selection or up to the start of the previous word.
+	 */
+	public void deletePreviousWord() {
+		if (hasSelection()) {
+			replaceSelection(""); //$NON-NLS-1$
+		} else {
+			replace(getPreviousWordStart(fCaret), fCaret, ""); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * Deletes the selection or up to the start of the next word.
+	 */
+	public void deleteNextWord() {
+		if (hasSelection()) {
+			replaceSelection(""); //$NON-NLS-1$
+		} else {
+			replace(fCaret, getNextWordStart(fCaret), ""); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * Deletes the lines touched by the selection (along with their delimiters).
+	 */
+	public void deleteLines() {
+		int start = getBlockStart();
+		int end = getBlockEnd();
+		int delimiterLength = getDelimiterLength(end);
+		if (delimiterLength == 0 && start > 0) {
+			// Last line: remove the delimiter before it instead.
+			start -= getPreviousDelimiterLength(start);
+		}
+		replace(start, end + delimiterLength, ""); //$NON-NLS-1$
+	}
+
+	/**
+	 * Deletes from the caret to the end of the line.
+	 */
+	public void deleteToLineEnd() {
+		replace(fCaret, getLineEnd(fCaret), ""); //$NON-NLS-1$
+	}
+
+	/**
+	 * Deletes from the start of the line to the caret.
+	 */
+	public void deleteToLineStart() {
+		replace(getLineStart(fCaret), fCaret, ""); //$NON-NLS-1$
+	}
+
+	/**
+	 * Inserts a new line after (or before) the current line, keeping its
+	 * indentation, and moves the caret to it.
+	 *
+	 * @param before
+	 *            whether the new line should be added before the current line.
+	 */
+	public void smartEnter(boolean before) {
+		int lineStart = getLineStart(fCaret);
+		String indent = fText.substring(lineStart, getFirstNonWhitespace(fCaret));
+		if (before) {
+			fText.insert(lineStart, indent + fLineDelimiter);
+			setCaretOffset(lineStart + indent.length(), false);
+		} else {
+			int lineEnd = getLineEnd(fCaret);
+			fText.insert(lineEnd, fLineDelimiter + indent);
+			setCaretOffset(lineEnd + fLineDelimiter.length() + indent.length(), false);
+		}
+	}
+
+	/**
+	 * @return the start of the first line touched by the selection.
+	 */
+	private int getBlockStart() {
+		return getLineStart(getSelectionStart());
+	}
+
+	/**
+	 * @return the end of the last line touched by the selection (not including
+	 *         its delimiter). A selection which ends at the start of a line
+	 *         doesn't touch that line.
+	 */
+	private int getBlockEnd() {
+		int end = getSelectionEnd();
+		if (hasSelection() && end > getSelectionStart() && getLineStart(end) == end) {
+			end -= getPreviousDelimiterLength(end);
+		}
+		return getLineEnd(end);
+	}
+
+	/**
+	 * Moves the lines touched by the selection up or down one line (keeping the
+	 * selection in the moved lines).
+	 *
+	 * @param up
+	 *            whether the lines should be moved up (or down).
+	 */
+	public void moveLines(boolean up) {
+		int blockStart = getBlockStart();
+		int blockEnd = getBlockEnd();
+		int shift;
+		if (up) {
+			if (blockStart == 0) {
+				return;
+			}
+			int delimiterLength = getPreviousDelimiterLength(blockStart);
+			int previousLineEnd = blockStart - delimiterLength;
+			int previousLineStart = getLineStart(previousLineEnd);
+			String previousLine = fText.substring(previousLineStart, previousLineEnd);
+			String delimiter = fText.substring(previousLineEnd, blockStart);
+			String block = fText.substring(blockStart, blockEnd);
+			fText.replace(previousLineStart, blockEnd, block + delimiter + previousLine);
+			shift = -(previousLine.length() + delimiter.length());
+		} else {
+			int delimiterLength = getDelimiterLength(blockEnd);
+			if (delimiterLength == 0) {
+				return;
+			}
+			int nextLineStart = blockEnd + delimiterLength;
+			int nextLineEnd = getLineEnd(nextLineStart);
+			String nextLine = fText.substring(nextLineStart, nextLineEnd);
+			String delimiter = fText.substring(blockEnd, nextLineStart);
+			String block = fText.substring(blockStart, blockEnd);
+			fText.replace(blockStart, nextLineEnd, nextLine + delimiter + block);
+			shift = nextLine.length() + delimiter.length();
+		}
+		shiftSelection(shift);
+	}
+
+	/**
+	 * Duplicates the lines touched by the selection (the selection is kept in the
+	 * upper or lower copy).
+	 *
+	 * @param up
+	 *            whether the selection should be kept in the upper copy (or in the
+	 *            lower copy).
+	 */
+	public void copyLines(boolean up) {
+		int blockStart = getBlockStart();
+		int blockEnd = getBlockEnd();
+		String block = fText.substring(blockStart, blockEnd);
+		fText.insert(blockEnd, fLineDelimiter + block);
+		if (!up) {
+			shiftSelection(block.length() + fLineDelimiter.length());
+		}
+	}
+
+	private void shiftSelection(int shift) {
+		int anchor = fAnchor + shift;
+		int caret = fCaret + shift;
+		setCaretOffset(anchor, false);
+		setCaretOffset(caret, true);
+	}
+}
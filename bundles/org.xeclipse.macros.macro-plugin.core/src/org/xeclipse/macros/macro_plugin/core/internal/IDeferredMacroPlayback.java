@@ -0,0 +1,44 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Fabio Zadrozny and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Fabio Zadrozny - initial API and implementation - http://eclip.se/8519
+ *******************************************************************************/
+package org.xeclipse.macros.macro_plugin.core.internal;
+
+import org.xeclipse.macros.macro_plugin.core.IMacroInstruction;
+
+/**
+ * Work left pending by macro instructions during a playback so that it can be
+ * merged with the work of the macro instructions which follow (i.e.: text typed
+ * by consecutive key presses inserted at once). It must be completed before
+ * executing a macro instruction which can't be merged with it and at the end of
+ * the playback.
+ *
+ * @see MacroPlaybackContextImpl#addDeferredPlayback(IDeferredMacroPlayback)
+ */
+public interface IDeferredMacroPlayback {
+
+	/**
+	 * Checks whether the given macro instruction may be executed while this work
+	 * is still pending (usually because it'll merge its work into it).
+	 *
+	 * @param macroInstruction
+	 *            the macro instruction about to be executed.
+	 * @return true if this work may still be kept pending and false if it should
+	 *         be completed before executing the given macro instruction.
+	 */
+	boolean canDefer(IMacroInstruction macroInstruction);
+
+	/**
+	 * Completes the pending work.
+	 *
+	 * @throws Exception
+	 *             if it was not possible to complete the pending work.
+	 */
+	void complete() throws Exception;
+}
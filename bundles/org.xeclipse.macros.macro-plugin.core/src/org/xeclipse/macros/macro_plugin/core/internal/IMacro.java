@@ -10,6 +10,7 @@
  *******************************************************************************/
 package org.xeclipse.macros.macro_plugin.core.internal;
 
+import org.eclipse.core.runtime.IProgressMonitor;
 import org.xeclipse.macros.macro_plugin.core.IMacroPlaybackContext;
 import org.xeclipse.macros.macro_plugin.core.MacroPlaybackException;
 
@@ -32,4 +33,68 @@ import org.xeclipse.macros.macro_plugin.core.MacroPlaybackException;
 	 *             if there was some error running the macro.
 	 */
 	void playback(IMacroPlaybackContext macroPlaybackContext) throws MacroPlaybackException;
+
+	/**
+	 * Provides the macro to be used to play back this macro many times in a row
+	 * (which may keep the macro instructions created for the first playback
+	 * instead of creating those again at each playback).
+	 *
+	 * @return the macro to be played back repeatedly.
+	 */
+	default IMacro prepareRepeatedPlayback() {
+		return this;
+	}
+
+	/**
+	 * Marks that a playback or save of this macro started (so, the resources of
+	 * the macro aren't released while it's in use). Each successful call must be
+	 * paired with a call to {@link #release()}.
+	 *
+	 * @return false if the macro was already disposed (in which case it must not
+	 *         be used).
+	 */
+	default boolean acquire() {
+		return true;
+	}
+
+	/**
+	 * Marks that a playback or save started with {@link #acquire()} finished (so,
+	 * resources kept for it may be released).
+	 */
+	default void release() {
+	}
+
+	/**
+	 * Starts a playback of this macro which is done one step at a time. Macros
+	 * which can't be played back in steps do the whole playback in a single step.
+	 *
+	 * @param macroPlaybackContext
+	 *            the context to playback the macro.
+	 * @return the cursor which plays back the steps of the macro.
+	 * @throws MacroPlaybackException
+	 *             if the macro can't be played back in the given context (in which
+	 *             case nothing is executed).
+	 */
+	default IMacroPlaybackCursor startPlayback(IMacroPlaybackContext macroPlaybackContext)
+			throws MacroPlaybackException {
+		return new IMacroPlaybackCursor() {
+
+			private boolean fPlayedBack;
+
+			@Override
+			public int getTotalSteps() {
+				return IProgressMonitor.UNKNOWN;
+			}
+
+			@Override
+			public boolean playbackNext() throws MacroPlaybackException {
+				if (fPlayedBack) {
+					return false;
+				}
+				fPlayedBack = true;
+				playback(macroPlaybackContext);
+				return true;
+			}
+		};
+	}
 }
\ No newline at end of file
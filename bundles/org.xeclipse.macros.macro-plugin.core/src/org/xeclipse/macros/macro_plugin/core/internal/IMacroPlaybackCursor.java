@@ -0,0 +1,45 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Fabio Zadrozny and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Fabio Zadrozny - initial API and implementation - http://eclip.se/8519
+ *******************************************************************************/
+package org.xeclipse.macros.macro_plugin.core.internal;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.xeclipse.macros.macro_plugin.core.MacroPlaybackException;
+
+/**
+ * A macro playback which is done one step at a time (so that it may be
+ * interleaved with other work, see {@link MacroPlaybackScheduler}).
+ */
+/* default */ interface IMacroPlaybackCursor {
+
+	/**
+	 * @return the number of steps in the playback or
+	 *         {@link IProgressMonitor#UNKNOWN} if it's not known.
+	 */
+	int getTotalSteps();
+
+	/**
+	 * Plays back the next step.
+	 *
+	 * @return false if there was no step left to be played back and true
+	 *         otherwise.
+	 * @throws MacroPlaybackException
+	 *             if some error happened playing back the step.
+	 */
+	boolean playbackNext() throws MacroPlaybackException;
+
+	/**
+	 * Releases the resources kept for the playback (called when the playback is
+	 * finished, even if it failed or was cancelled before all the steps were
+	 * played back).
+	 */
+	default void close() {
+	}
+}
@@ -0,0 +1,31 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Fabio Zadrozny and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Fabio Zadrozny - initial API and implementation - http://eclip.se/8519
+ *******************************************************************************/
+package org.xeclipse.macros.macro_plugin.core.internal;
+
+import org.xeclipse.macros.macro_plugin.core.MacroPlaybackException;
+
+/**
+ * Checks whether a playback done in time slices may still be resumed (other
+ * events are processed between slices, so, the state in which the playback was
+ * started may have changed meanwhile).
+ *
+ * @see MacroPlaybackContextImpl#addResumeCheck(IMacroPlaybackResumeCheck)
+ */
+public interface IMacroPlaybackResumeCheck {
+
+	/**
+	 * Called before each slice after the first one.
+	 *
+	 * @throws MacroPlaybackException
+	 *             if the playback can't be resumed (in which case it fails).
+	 */
+	void checkResume() throws MacroPlaybackException;
+}
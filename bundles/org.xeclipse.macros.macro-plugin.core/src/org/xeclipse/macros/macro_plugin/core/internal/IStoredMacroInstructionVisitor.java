@@ -0,0 +1,55 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Fabio Zadrozny and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Fabio Zadrozny - initial API and implementation - http://eclip.se/8519
+ *******************************************************************************/
+package org.xeclipse.macros.macro_plugin.core.internal;
+
+import java.util.Map;
+
+/**
+ * Receives the macro instructions read from a stored macro (in the order in
+ * which they were stored).
+ */
+/* default */ interface IStoredMacroInstructionVisitor {
+
+	/**
+	 * Called for each macro instruction read from a stored macro.
+	 *
+	 * @param macroInstructionId
+	 *            the id of the macro instruction read.
+	 * @param macroInstructionParameters
+	 *            the parameters to recreate the macro instruction (contents of
+	 *            {@link org.xeclipse.macros.macro_plugin.core.IMacroInstruction#toMap()}).
+	 * @throws Exception
+	 *             if some error happened handling the macro instruction.
+	 */
+	void visit(String macroInstructionId, Map<String, String> macroInstructionParameters) throws Exception;
+
+	/**
+	 * Called for a macro instruction which was stored once to be executed
+	 * multiple times in a row. By default, it's handled as if the macro
+	 * instruction had been read {@code repeat} times.
+	 *
+	 * @param macroInstructionId
+	 *            the id of the macro instruction read.
+	 * @param macroInstructionParameters
+	 *            the parameters to recreate the macro instruction.
+	 * @param repeat
+	 *            the number of times the macro instruction should be executed (at
+	 *            least 1).
+	 * @throws Exception
+	 *             if some error happened handling the macro instruction.
+	 */
+	default void visit(String macroInstructionId, Map<String, String> macroInstructionParameters, int repeat)
+			throws Exception {
+		for (int i = 0; i < repeat; i++) {
+			visit(macroInstructionId, macroInstructionParameters);
+		}
+	}
+}
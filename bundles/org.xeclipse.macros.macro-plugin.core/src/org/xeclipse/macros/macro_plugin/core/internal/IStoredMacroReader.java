@@ -0,0 +1,34 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Fabio Zadrozny and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Fabio Zadrozny - initial API and implementation - http://eclip.se/8519
+ *******************************************************************************/
+package org.xeclipse.macros.macro_plugin.core.internal;
+
+import java.io.Closeable;
+
+/**
+ * Reads the macro instructions of a stored macro one at a time (so, the reading
+ * may be stopped and resumed later on, i.e.: to play back a huge stored macro a
+ * chunk at a time).
+ */
+/* default */ interface IStoredMacroReader extends Closeable {
+
+	/**
+	 * Reads the next macro instruction, passing it to the given visitor.
+	 *
+	 * @param visitor
+	 *            the visitor which should handle the macro instruction read.
+	 * @return false if there was no macro instruction left to be read and true
+	 *         otherwise.
+	 * @throws Exception
+	 *             if the contents are malformed or if the visitor is not able to
+	 *             handle the macro instruction.
+	 */
+	boolean readNext(IStoredMacroInstructionVisitor visitor) throws Exception;
+}
@@ -0,0 +1,286 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Fabio Zadrozny and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Fabio Zadrozny - initial API and implementation - http://eclip.se/8519
+ *******************************************************************************/
+package org.xeclipse.macros.macro_plugin.core.internal;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import org.xeclipse.macros.macro_plugin.core.Activator;
+import org.xeclipse.macros.macro_plugin.core.internal.MacroManager.StoredMacroReference;
+
+/**
+ * An in-memory index of the stored macros in a directory, ordered by their last
+ * modified time. It's seeded with a single scan of the directory and is then
+ * kept up to date through a {@link WatchService} (so, finding the newest or
+ * oldest stored macro doesn't require listing the directory).
+ */
+public class MacroDirectoryIndex {
+
+	/**
+	 * Orders from the newest to the oldest (the path is used to disambiguate
+	 * entries with the same time).
+	 */
+	private static final Comparator<StoredMacroReference> NEWEST_FIRST = (o1, o2) -> {
+		int compare = Long.compare(o2.fLastModified, o1.fLastModified);
+		if (compare != 0) {
+			return compare;
+		}
+		return o1.fPath.compareTo(o2.fPath);
+	};
+
+	private final Path fDirectory;
+
+	private final Predicate<Path> fFilter;
+
+	/**
+	 * Called with the path of stored macros which were changed or removed (may be
+	 * {@code null}).
+	 */
+	private final Consumer<Path> fOnChange;
+
+	private final TreeSet<StoredMacroReference> fReferences = new TreeSet<>(NEWEST_FIRST);
+
+	private final Map<Path, StoredMacroReference> fPathToReference = new HashMap<>();
+
+	private final WatchService fWatchService;
+
+	/**
+	 * Whether the directory is still being watched (if not, the index may be out
+	 * of date).
+	 */
+	private volatile boolean fWatching = true;
+
+	/**
+	 * Creates an index for the given directory (which is scanned in the
+	 * constructor and then watched for changes).
+	 *
+	 * @param directory
+	 *            the directory to be indexed.
+	 * @param filter
+	 *            accepts the paths which should be indexed.
+	 * @param onChange
+	 *            called with the path of indexed files which were changed or
+	 *            removed (may be {@code null}).
+	 * @throws IOException
+	 *             if it was not possible to scan or watch the directory.
+	 */
+	public MacroDirectoryIndex(Path directory, Predicate<Path> filter, Consumer<Path> onChange) throws IOException {
+		fDirectory = directory;
+		fFilter = filter;
+		fOnChange = onChange;
+		fWatchService = directory.getFileSystem().newWatchService();
+		try {
+			// Register before scanning so that no change is lost in between.
+			directory.register(fWatchService, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+			rescan();
+		} catch (IOException e) {
+			fWatchService.close();
+			throw e;
+		}
+		Thread thread = new Thread(this::watch, "Macro directory watcher: " + directory); //$NON-NLS-1$
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @return the indexed directory.
+	 */
+	public Path getDirectory() {
+		return fDirectory;
+	}
+
+	/**
+	 * Scans the whole directory, replacing the current contents of the index.
+	 *
+	 * @throws IOException
+	 *             if it was not possible to list the directory.
+	 */
+	public void rescan() throws IOException {
+		List<StoredMacroReference> references = new ArrayList<>();
+		try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(fDirectory, fFilter::test)) {
+			for (Path p : directoryStream) {
+				try {
+					references.add(new StoredMacroReference(p,
+							Files.getLastModifiedTime(p).to(TimeUnit.NANOSECONDS)));
+				} catch (NoSuchFileException e) {
+					// Removed in the meanwhile.
+				}
+			}
+		}
+		synchronized (this) {
+			fReferences.clear();
+			fPathToReference.clear();
+			for (StoredMacroReference reference : references) {
+				put(reference);
+			}
+		}
+	}
+
+	/**
+	 * Adds or updates the entry for the given file (the index is updated through
+	 * the file system notifications anyways, but this makes the change visible
+	 * right away).
+	 *
+	 * @param path
+	 *            the file to be added to the index.
+	 */
+	public void update(Path path) {
+		if (!fFilter.test(path)) {
+			return;
+		}
+		try {
+			long lastModified = Files.getLastModifiedTime(path).to(TimeUnit.NANOSECONDS);
+			synchronized (this) {
+				put(new StoredMacroReference(path, lastModified));
+			}
+		} catch (IOException e) {
+			remove(path);
+		}
+	}
+
+	/**
+	 * Removes the entry for the given file from the index.
+	 *
+	 * @param path
+	 *            the file to be removed from the index.
+	 */
+	public synchronized void remove(Path path) {
+		StoredMacroReference reference = fPathToReference.remove(path);
+		if (reference != null) {
+			fReferences.remove(reference);
+		}
+	}
+
+	private void put(StoredMacroReference reference) {
+		StoredMacroReference old = fPathToReference.put(reference.fPath, reference);
+		if (old != null) {
+			fReferences.remove(old);
+		}
+		fReferences.add(reference);
+	}
+
+	/**
+	 * @return the newest stored macro or {@code null} if there's none.
+	 */
+	public synchronized StoredMacroReference getNewest() {
+		return fReferences.isEmpty() ? null : fReferences.first();
+	}
+
+	/**
+	 * Removes the oldest stored macro from the index (the file itself is not
+	 * removed).
+	 *
+	 * @return the oldest stored macro or {@code null} if there's none.
+	 */
+	public synchronized StoredMacroReference removeOldest() {
+		StoredMacroReference reference = fReferences.pollLast();
+		if (reference != null) {
+			fPathToReference.remove(reference.fPath);
+		}
+		return reference;
+	}
+
+	/**
+	 * @return the number of stored macros in the index.
+	 */
+	public synchronized int size() {
+		return fReferences.size();
+	}
+
+	/**
+	 * @return the stored macros in the index sorted from the newest to the oldest.
+	 */
+	public synchronized List<StoredMacroReference> getReferences() {
+		return new ArrayList<>(fReferences);
+	}
+
+	/**
+	 * @return whether the directory is still being watched for changes (if it's
+	 *         not, the index may not reflect the contents of the directory).
+	 */
+	public boolean isWatching() {
+		return fWatching;
+	}
+
+	/**
+	 * Stops watching the directory.
+	 */
+	public void close() {
+		try {
+			fWatchService.close();
+		} catch (IOException e) {
+			Activator.log(e);
+		}
+	}
+
+	private void watch() {
+		try {
+			while (true) {
+				WatchKey key = fWatchService.take();
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						rescan();
+						if (fOnChange != null) {
+							// We don't know what changed.
+							fOnChange.accept(null);
+						}
+						continue;
+					}
+					Path path = fDirectory.resolve((Path) event.context());
+					if (!fFilter.test(path)) {
+						continue;
+					}
+					if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+						remove(path);
+					} else {
+						update(path);
+					}
+					if (fOnChange != null && event.kind() != StandardWatchEventKinds.ENTRY_CREATE) {
+						fOnChange.accept(path);
+					}
+				}
+				if (!key.reset()) {
+					// Directory no longer accessible.
+					synchronized (this) {
+						fReferences.clear();
+						fPathToReference.clear();
+					}
+					return;
+				}
+			}
+		} catch (ClosedWatchServiceException e) {
+			// Closed: just stop.
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			Activator.log(e);
+		} finally {
+			fWatching = false;
+		}
+	}
+}
@@ -0,0 +1,525 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Fabio Zadrozny and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Fabio Zadrozny - initial API and implementation - http://eclip.se/8519
+ *******************************************************************************/
+package org.xeclipse.macros.macro_plugin.core.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.RandomAccess;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.xeclipse.macros.macro_plugin.core.Activator;
+import org.xeclipse.macros.macro_plugin.core.IMacroInstruction;
+import org.xeclipse.macros.macro_plugin.core.IPackedMacroInstructions;
+
+/**
+ * The list of macro instructions of a {@link ComposableMacro}. Each entry is
+ * either an actual macro instruction or a slot in a
+ * {@link IPackedMacroInstructions} (in which case the macro instruction is only
+ * created when it's requested).
+ *
+ * Entries are kept in fixed-size chunks (so, appending never copies the
+ * entries already added). If a memory budget is set, the oldest chunks are
+ * spilled to a temporary file when the budget is exceeded and are read back
+ * (as {@link StoredMacroInstruction}s) when requested. Spilling is done in a
+ * background thread (so, the thread which adds macro instructions doesn't wait
+ * on disk I/O), so, the budget may be exceeded while the spill catches up.
+ *
+ * Only appending and replacing entries is supported.
+ */
+/* default */ class MacroInstructionList extends AbstractList<IMacroInstruction> implements RandomAccess {
+
+	/* default */ static final int CHUNK_SIZE = 1024;
+
+	private static final int NO_SLOT = -1;
+
+	private static final String SPILL_FILE_PREFIX = "macro_spill_"; //$NON-NLS-1$
+
+	private static final String SPILL_FILE_EXT = ".chunks"; //$NON-NLS-1$
+
+	/**
+	 * Thread where chunks are spilled (shared by all the lists and stopped when
+	 * idle).
+	 */
+	private static final ThreadPoolExecutor SPILL_EXECUTOR;
+
+	static {
+		SPILL_EXECUTOR = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+				runnable -> {
+					Thread thread = new Thread(runnable, "Macro spill"); //$NON-NLS-1$
+					thread.setDaemon(true);
+					return thread;
+				});
+		SPILL_EXECUTOR.allowCoreThreadTimeOut(true);
+	}
+
+	private static final class Chunk {
+
+		/**
+		 * Either an {@link IMacroInstruction} or an {@link IPackedMacroInstructions}
+		 * ({@code null} if the chunk was spilled).
+		 */
+		private Object[] fEntries = new Object[CHUNK_SIZE];
+
+		/**
+		 * The slot for entries which are {@link IPackedMacroInstructions}
+		 * ({@code null} if the chunk was spilled).
+		 */
+		private int[] fSlots = new int[CHUNK_SIZE];
+
+		/**
+		 * Position of the chunk contents in the spill file (only valid if spilled).
+		 */
+		private long fSpillPosition;
+
+		private int fSpillLength;
+
+		/**
+		 * Incremented when an entry is replaced (so that a chunk changed while
+		 * being spilled isn't marked as spilled).
+		 */
+		private int fVersion;
+
+		private boolean isSpilled() {
+			return fEntries == null;
+		}
+	}
+
+	private final List<Chunk> fChunks = new ArrayList<>();
+
+	private int fSize;
+
+	/**
+	 * Max number of chunks kept in memory (0 means that there's no limit).
+	 */
+	private int fMaxChunksInMemory;
+
+	private int fChunksInMemory;
+
+	/**
+	 * File where chunks are spilled (created on the first spill and removed when
+	 * the list is closed).
+	 */
+	private FileChannel fSpillChannel;
+
+	private long fSpillFileSize;
+
+	/**
+	 * Whether a spill is pending or running in the spill thread.
+	 */
+	private boolean fSpillScheduled;
+
+	/**
+	 * Set when the list is closed (no other chunk is spilled afterwards).
+	 */
+	private boolean fClosed;
+
+	/**
+	 * Set if spilling to the disk failed (in which case all the chunks are kept in
+	 * memory).
+	 */
+	private boolean fSpillFailed;
+
+	/**
+	 * The last spilled chunk read back (so that iterating over a spilled chunk
+	 * reads it only once).
+	 */
+	private Chunk fReadChunk;
+
+	private IMacroInstruction[] fReadChunkContents;
+
+	/**
+	 * Sets the max number of macro instructions to be kept in memory (rounded up
+	 * to whole chunks). Older chunks over that limit are spilled to the disk.
+	 *
+	 * @param maxMacroInstructionsInMemory
+	 *            the max number of macro instructions kept in memory or 0 to keep
+	 *            all of those in memory.
+	 */
+	/* default */ synchronized void setMemoryBudget(int maxMacroInstructionsInMemory) {
+		fMaxChunksInMemory = maxMacroInstructionsInMemory <= 0 ? 0
+				: Math.max(2, (maxMacroInstructionsInMemory + CHUNK_SIZE - 1) / CHUNK_SIZE);
+	}
+
+	@Override
+	public boolean add(IMacroInstruction macroInstruction) {
+		addEntry(macroInstruction, NO_SLOT);
+		return true;
+	}
+
+	/**
+	 * Appends a macro instruction kept in a packed buffer.
+	 *
+	 * @param packedMacroInstructions
+	 *            the buffer with the macro instruction.
+	 * @param slot
+	 *            the slot of the macro instruction in the buffer.
+	 */
+	/* default */ void addPacked(IPackedMacroInstructions packedMacroInstructions, int slot) {
+		addEntry(packedMacroInstructions, slot);
+	}
+
+	/**
+	 * Appends the entry at the given index of another list (so, a packed macro
+	 * instruction is still kept packed).
+	 *
+	 * @param source
+	 *            the list with the entry to be appended.
+	 * @param index
+	 *            the index of the entry in the source list.
+	 */
+	/* default */ void addEntryOf(MacroInstructionList source, int index) {
+		Object entry;
+		int slot;
+		synchronized (source) {
+			source.checkIndex(index);
+			Chunk chunk = source.fChunks.get(index / CHUNK_SIZE);
+			int offset = index % CHUNK_SIZE;
+			if (chunk.isSpilled()) {
+				entry = source.readChunk(chunk)[offset];
+				slot = NO_SLOT;
+			} else {
+				entry = chunk.fEntries[offset];
+				slot = chunk.fSlots[offset];
+			}
+		}
+		addEntry(entry, slot);
+	}
+
+	private synchronized void addEntry(Object entry, int slot) {
+		int offset = fSize % CHUNK_SIZE;
+		if (offset == 0) {
+			fChunks.add(new Chunk());
+			fChunksInMemory++;
+			scheduleSpillIfOverBudget();
+		}
+		Chunk chunk = fChunks.get(fChunks.size() - 1);
+		chunk.fEntries[offset] = entry;
+		chunk.fSlots[offset] = slot;
+		fSize++;
+		modCount++;
+	}
+
+	/**
+	 * Replaces the entry at the given index with a macro instruction.
+	 *
+	 * @param index
+	 *            the index of the entry to be replaced.
+	 * @param macroInstruction
+	 *            the new macro instruction at the given index.
+	 */
+	/* default */ void replace(int index, IMacroInstruction macroInstruction) {
+		replaceEntry(index, macroInstruction, NO_SLOT);
+	}
+
+	/**
+	 * Replaces the entry at the given index with a macro instruction kept in a
+	 * packed buffer.
+	 *
+	 * @param index
+	 *            the index of the entry to be replaced.
+	 * @param packedMacroInstructions
+	 *            the buffer with the macro instruction.
+	 * @param slot
+	 *            the slot of the macro instruction in the buffer.
+	 */
+	/* default */ void replacePacked(int index, IPackedMacroInstructions packedMacroInstructions, int slot) {
+		replaceEntry(index, packedMacroInstructions, slot);
+	}
+
+	private synchronized void replaceEntry(int index, Object entry, int slot) {
+		checkIndex(index);
+		Chunk chunk = fChunks.get(index / CHUNK_SIZE);
+		if (chunk.isSpilled()) {
+			// Unusual (replacements are done for recent entries): bring it back to
+			// memory (it may be spilled again later on).
+			chunk.fEntries = Arrays.copyOf(readChunk(chunk), CHUNK_SIZE, Object[].class);
+			chunk.fSlots = new int[CHUNK_SIZE];
+			Arrays.fill(chunk.fSlots, NO_SLOT);
+			fChunksInMemory++;
+			fReadChunk = null;
+			fReadChunkContents = null;
+		}
+		int offset = index % CHUNK_SIZE;
+		chunk.fEntries[offset] = entry;
+		chunk.fSlots[offset] = slot;
+		chunk.fVersion++;
+	}
+
+	/**
+	 * Provides the id of the macro instruction at the given index (without
+	 * creating it if it's packed).
+	 *
+	 * @param index
+	 *            the index of the macro instruction.
+	 * @return the id of the macro instruction.
+	 */
+	/* default */ synchronized String getId(int index) {
+		checkIndex(index);
+		Chunk chunk = fChunks.get(index / CHUNK_SIZE);
+		int offset = index % CHUNK_SIZE;
+		if (chunk.isSpilled()) {
+			return readChunk(chunk)[offset].getId();
+		}
+		return getId(chunk.fEntries[offset], chunk.fSlots[offset]);
+	}
+
+	/**
+	 * Provides the contents of the macro instruction at the given index (without
+	 * creating it if it's packed).
+	 *
+	 * @param index
+	 *            the index of the macro instruction.
+	 * @return the contents of the macro instruction (as
+	 *         {@link IMacroInstruction#toMap()}).
+	 */
+	/* default */ synchronized Map<String, String> getMap(int index) {
+		checkIndex(index);
+		Chunk chunk = fChunks.get(index / CHUNK_SIZE);
+		int offset = index % CHUNK_SIZE;
+		if (chunk.isSpilled()) {
+			return readChunk(chunk)[offset].toMap();
+		}
+		return getMap(chunk.fEntries[offset], chunk.fSlots[offset]);
+	}
+
+	private static Map<String, String> getMap(Object entry, int slot) {
+		if (slot == NO_SLOT) {
+			return ((IMacroInstruction) entry).toMap();
+		}
+		return ((IPackedMacroInstructions) entry).toMap(slot);
+	}
+
+	private static String getId(Object entry, int slot) {
+		if (slot == NO_SLOT) {
+			return ((IMacroInstruction) entry).getId();
+		}
+		return ((IPackedMacroInstructions) entry).getMacroInstructionId(slot);
+	}
+
+	/**
+	 * Provides the macro instruction at the given index (packed macro
+	 * instructions are created at each call and spilled macro instructions are
+	 * provided as {@link StoredMacroInstruction}s).
+	 */
+	@Override
+	public synchronized IMacroInstruction get(int index) {
+		checkIndex(index);
+		Chunk chunk = fChunks.get(index / CHUNK_SIZE);
+		int offset = index % CHUNK_SIZE;
+		if (chunk.isSpilled()) {
+			return readChunk(chunk)[offset];
+		}
+		int slot = chunk.fSlots[offset];
+		if (slot == NO_SLOT) {
+			return (IMacroInstruction) chunk.fEntries[offset];
+		}
+		return ((IPackedMacroInstructions) chunk.fEntries[offset]).createMacroInstruction(slot);
+	}
+
+	@Override
+	public synchronized int size() {
+		return fSize;
+	}
+
+	/**
+	 * @return whether some chunk of the list is currently spilled to the disk.
+	 */
+	/* default */ synchronized boolean hasSpilledChunks() {
+		return fChunksInMemory < fChunks.size();
+	}
+
+	/**
+	 * Removes the file where chunks were spilled (the list must not be used
+	 * afterwards).
+	 */
+	/* default */ synchronized void close() {
+		fClosed = true;
+		if (fSpillChannel != null) {
+			try {
+				fSpillChannel.close();
+			} catch (IOException e) {
+				Activator.log(e);
+			}
+			fSpillChannel = null;
+		}
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= fSize) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + fSize); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+	}
+
+	/**
+	 * Requests the spill thread to spill the oldest chunks in memory if over the
+	 * budget.
+	 */
+	private void scheduleSpillIfOverBudget() {
+		if (fSpillScheduled || getChunkToSpill() == null) {
+			return;
+		}
+		fSpillScheduled = true;
+		SPILL_EXECUTOR.execute(this::spillWhileOverBudget);
+	}
+
+	/**
+	 * @return the oldest chunk in memory if over the budget (the chunk being
+	 *         filled is never spilled) or {@code null}.
+	 */
+	private Chunk getChunkToSpill() {
+		if (fMaxChunksInMemory <= 0 || fSpillFailed || fClosed || fChunksInMemory <= fMaxChunksInMemory) {
+			return null;
+		}
+		int last = fChunks.size() - 1;
+		for (int i = 0; i < last; i++) {
+			Chunk chunk = fChunks.get(i);
+			if (!chunk.isSpilled()) {
+				return chunk;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Spills the oldest chunks in memory while over the budget (run in the spill
+	 * thread: the lock is only held to get the chunk contents and to mark it as
+	 * spilled).
+	 */
+	private void spillWhileOverBudget() {
+		try {
+			while (true) {
+				Chunk chunk;
+				Object[] entries;
+				int[] slots;
+				int version;
+				FileChannel spillChannel;
+				synchronized (this) {
+					chunk = getChunkToSpill();
+					if (chunk == null) {
+						fSpillScheduled = false;
+						return;
+					}
+					entries = chunk.fEntries.clone();
+					slots = chunk.fSlots.clone();
+					version = chunk.fVersion;
+					spillChannel = fSpillChannel;
+				}
+				byte[] bytes = toBytes(entries, slots);
+				if (spillChannel == null) {
+					Path path = Files.createTempFile(SPILL_FILE_PREFIX, SPILL_FILE_EXT);
+					spillChannel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+							StandardOpenOption.DELETE_ON_CLOSE);
+				}
+				long position;
+				synchronized (this) {
+					if (fClosed) {
+						if (fSpillChannel == null) {
+							spillChannel.close();
+						}
+						fSpillScheduled = false;
+						return;
+					}
+					fSpillChannel = spillChannel;
+					position = fSpillFileSize;
+					fSpillFileSize += bytes.length;
+				}
+				ByteBuffer buffer = ByteBuffer.wrap(bytes);
+				while (buffer.hasRemaining()) {
+					spillChannel.write(buffer, position + buffer.position());
+				}
+				synchronized (this) {
+					if (!fClosed && !chunk.isSpilled() && chunk.fVersion == version) {
+						chunk.fSpillPosition = position;
+						chunk.fSpillLength = bytes.length;
+						chunk.fEntries = null;
+						chunk.fSlots = null;
+						fChunksInMemory--;
+					}
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			synchronized (this) {
+				fSpillFailed = true;
+				fSpillScheduled = false;
+				if (fClosed) {
+					// Closed while spilling: nothing to report.
+					return;
+				}
+			}
+			Activator.log(e);
+		}
+	}
+
+	private static byte[] toBytes(Object[] entries, int[] slots) throws IOException {
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		Map<String, Integer> stringTable = new HashMap<>();
+		for (int i = 0; i < CHUNK_SIZE; i++) {
+			// Packed macro instructions are written without being created.
+			Map<String, String> map = getMap(entries[i], slots[i]);
+			BinaryMacroFormat.writeString(outputStream, stringTable, getId(entries[i], slots[i]));
+			BinaryMacroFormat.writeVarint(outputStream, map.size());
+			for (Entry<String, String> entry : map.entrySet()) {
+				BinaryMacroFormat.writeString(outputStream, stringTable, entry.getKey());
+				BinaryMacroFormat.writeString(outputStream, stringTable, entry.getValue());
+			}
+		}
+		return outputStream.toByteArray();
+	}
+
+	private IMacroInstruction[] readChunk(Chunk chunk) {
+		if (fReadChunk == chunk) {
+			return fReadChunkContents;
+		}
+		IMacroInstruction[] contents = new IMacroInstruction[CHUNK_SIZE];
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(chunk.fSpillLength);
+			while (buffer.hasRemaining()) {
+				if (fSpillChannel.read(buffer, chunk.fSpillPosition + buffer.position()) < 0) {
+					throw new IOException("Unexpected end of macro spill file."); //$NON-NLS-1$
+				}
+			}
+			InputStream inputStream = new ByteArrayInputStream(buffer.array());
+			List<String> stringTable = new ArrayList<>();
+			for (int i = 0; i < CHUNK_SIZE; i++) {
+				String id = BinaryMacroFormat.readString(inputStream, stringTable);
+				int entriesCount = BinaryMacroFormat.readVarint(inputStream);
+				// Keep the order of the entries as they were spilled.
+				Map<String, String> map = new LinkedHashMap<>();
+				for (int j = 0; j < entriesCount; j++) {
+					String key = BinaryMacroFormat.readString(inputStream, stringTable);
+					map.put(key, BinaryMacroFormat.readString(inputStream, stringTable));
+				}
+				contents[i] = new StoredMacroInstruction(id, map);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to read spilled macro instructions.", e); //$NON-NLS-1$
+		}
+		fReadChunk = chunk;
+		fReadChunkContents = contents;
+		return contents;
+	}
+}
@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Fabio Zadrozny and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Fabio Zadrozny - initial API and implementation - http://eclip.se/8519
+ *******************************************************************************/
+package org.xeclipse.macros.macro_plugin.core.internal;
+
+import java.util.Iterator;
+import java.util.Map;
+import org.xeclipse.macros.macro_plugin.core.IMacroInstruction;
+
+/**
+ * Iterates over runs of macro instructions which have the same id and contents
+ * (so that a run can be stored only once along with a repeat count). Each macro
+ * instruction is converted with {@link IMacroInstruction#toMap()} only once
+ * (and macro instructions kept packed in a {@link MacroInstructionList} aren't
+ * created at all).
+ */
+/* default */ class MacroInstructionRuns {
+
+	/**
+	 * The list read by index (if {@code null}, fIterator is used).
+	 */
+	private final MacroInstructionList fList;
+
+	private final Iterator<IMacroInstruction> fIterator;
+
+	private int fIndex;
+
+	private String fId;
+
+	private Map<String, String> fMap;
+
+	private int fRepeat;
+
+	/**
+	 * The macro instruction read after the current run (which starts the next run).
+	 */
+	private IMacroInstruction fNext;
+
+	private String fNextId;
+
+	private Map<String, String> fNextMap;
+
+	/* default */ MacroInstructionRuns(Iterable<IMacroInstruction> macroInstructions) {
+		fList = null;
+		fIterator = macroInstructions.iterator();
+		readNext();
+	}
+
+	/* default */ MacroInstructionRuns(MacroInstructionList macroInstructions) {
+		fList = macroInstructions;
+		fIterator = null;
+		readNext();
+	}
+
+	/**
+	 * Reads the macro instruction after the current one into fNextId and fNextMap
+	 * (fNextId is {@code null} if there are no more macro instructions).
+	 */
+	private void readNext() {
+		IMacroInstruction previous = fNext;
+		fNext = null;
+		fNextId = null;
+		fNextMap = null;
+		if (fList != null) {
+			if (fIndex < fList.size()) {
+				fNextId = fList.getId(fIndex);
+				fNextMap = fList.getMap(fIndex);
+				fIndex++;
+			}
+		} else if (fIterator.hasNext()) {
+			fNext = fIterator.next();
+			fNextId = fNext.getId();
+			fNextMap = fNext == previous ? fMap : fNext.toMap();
+		}
+	}
+
+	/**
+	 * Moves to the next run.
+	 *
+	 * @return false if there are no more runs.
+	 */
+	/* default */ boolean next() {
+		if (fNextId == null) {
+			return false;
+		}
+		fId = fNextId;
+		fMap = fNextMap;
+		fRepeat = 1;
+		readNext();
+		while (fNextId != null && fId.equals(fNextId) && fMap.equals(fNextMap)) {
+			fRepeat++;
+			readNext();
+		}
+		return true;
+	}
+
+	/**
+	 * @return the id of the macro instructions in the current run.
+	 */
+	/* default */ String getId() {
+		return fId;
+	}
+
+	/**
+	 * @return the contents of the macro instructions in the current run.
+	 */
+	/* default */ Map<String, String> getMap() {
+		return fMap;
+	}
+
+	/**
+	 * @return the number of macro instructions in the current run (at least 1).
+	 */
+	/* default */ int getRepeat() {
+		return fRepeat;
+	}
+}
@@ -0,0 +1,577 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Fabio Zadrozny and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Fabio Zadrozny - initial API and implementation - http://eclip.se/8519
+ *******************************************************************************/
+package org.xeclipse.macros.macro_plugin.core.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.xeclipse.macros.macro_plugin.core.Activator;
+import org.xeclipse.macros.macro_plugin.core.IMacroInstruction;
+import org.xeclipse.macros.macro_plugin.core.IPackedMacroInstructions;
+
+/**
+ * An append-only journal of the macro instructions accepted while a macro is
+ * being recorded (so that a recording is not lost if the application crashes
+ * before the recording is stopped and the macro is saved).
+ *
+ * Records are appended to a buffer which is written in batches by a background
+ * executor shared with other persistence work (so, the thread which records the
+ * macro instructions doesn't wait on disk I/O nor builds the contents of packed
+ * macro instructions and a journal doesn't need a thread of its own). Each
+ * batch is flushed to the file (so, it's kept if the application crashes), but
+ * it's only forced to the disk if the last force is older than a second or when
+ * the journal is sealed.
+ *
+ * The journal file is exclusively locked until it's closed or deleted (the
+ * macros directory may be shared by many running applications and a locked
+ * journal belongs to a recording which is still alive, so, it must not be
+ * recovered).
+ *
+ * The layout is:
+ *
+ * <pre>
+ * magic (4 bytes) | version (varint) | records
+ *
+ * record: ADD | id (string) | entries
+ *         SET | index (varint) | id (string) | entries
+ *         SEAL
+ * entries: entries count (varint) | (key (string) | value (string))*
+ * </pre>
+ *
+ * Strings use the same string table encoding used in {@link BinaryMacroFormat}.
+ */
+public class MacroJournal {
+
+	/* default */ static final String JOURNAL_PREFIX = "macro_journal_"; //$NON-NLS-1$
+
+	/* default */ static final String JOURNAL_EXT = ".journal"; //$NON-NLS-1$
+
+	private static final byte[] MAGIC = new byte[] { (byte) 0x89, 'M', 'J', 'L' };
+
+	private static final int VERSION = 1;
+
+	private static final int RECORD_ADD = 1;
+
+	private static final int RECORD_SET = 2;
+
+	private static final int RECORD_SEAL = 3;
+
+	/**
+	 * Min interval between forces of the written records to the disk.
+	 */
+	private static final long SYNC_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private final Path fPath;
+
+	/**
+	 * Executor which writes the records (it must run one task at a time: the
+	 * fields below are only accessed from its tasks, unless stated otherwise).
+	 */
+	private final Executor fWriter;
+
+	private final FileChannel fChannel;
+
+	private final OutputStream fOutputStream;
+
+	private final Map<String, Integer> fStringTable = new HashMap<>();
+
+	/**
+	 * Whether there are records written to the output stream which still weren't
+	 * forced to the disk.
+	 */
+	private boolean fDirty;
+
+	/**
+	 * When the written records were last forced to the disk (as
+	 * {@link System#nanoTime()}).
+	 */
+	private long fLastSync = System.nanoTime();
+
+	/**
+	 * Set if some error happened writing to the journal (in which case no other
+	 * record is written).
+	 */
+	private boolean fFailed;
+
+	/**
+	 * Completed when the journal is sealed (and its contents are on the disk).
+	 */
+	private final CompletableFuture<Void> fSealed = new CompletableFuture<>();
+
+	/**
+	 * Records appended which still weren't written (guarded by this journal).
+	 */
+	private RecordBuffer fPending = new RecordBuffer();
+
+	/**
+	 * Records being written by the writer (swapped with {@link #fPending} when a
+	 * batch is written, so, the buffers are reused).
+	 */
+	private RecordBuffer fWriting = new RecordBuffer();
+
+	/**
+	 * Whether the journal was sealed, after which records are no longer appended
+	 * (guarded by this journal).
+	 */
+	private boolean fSealing;
+
+	/**
+	 * Scheduled when the first record of a batch is appended.
+	 */
+	private final Runnable fWriteBatch = this::writeBatch;
+
+	private MacroJournal(Path path, Executor writer) throws IOException {
+		fPath = path;
+		fWriter = writer;
+		fChannel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		// Released when the channel is closed.
+		if (!tryLock(fChannel)) {
+			fChannel.close();
+			throw new IOException(String.format("Unable to lock the macro journal: %s.", path)); //$NON-NLS-1$
+		}
+		fOutputStream = new BufferedOutputStream(Channels.newOutputStream(fChannel));
+		// Only buffered (written to the file with the first batch).
+		fOutputStream.write(MAGIC);
+		BinaryMacroFormat.writeVarint(fOutputStream, VERSION);
+	}
+
+	/**
+	 * Creates a new journal in the given directory.
+	 *
+	 * @param directory
+	 *            the directory where the journal should be created.
+	 * @param writer
+	 *            the executor where the records should be written (it must run
+	 *            one task at a time, in the order they were submitted).
+	 * @return the created journal.
+	 * @throws IOException
+	 *             if it was not possible to create the journal file.
+	 */
+	public static MacroJournal create(Path directory, Executor writer) throws IOException {
+		return new MacroJournal(Files.createTempFile(directory, JOURNAL_PREFIX, JOURNAL_EXT), writer);
+	}
+
+	/**
+	 * @return the path of the journal file.
+	 */
+	public Path getPath() {
+		return fPath;
+	}
+
+	/**
+	 * Appends a record for a macro instruction added at the end of the macro.
+	 *
+	 * @param macroInstruction
+	 *            the macro instruction added.
+	 */
+	public void add(IMacroInstruction macroInstruction) {
+		append(-1, null, 0, copy(macroInstruction));
+	}
+
+	/**
+	 * Appends a record for a packed macro instruction added at the end of the
+	 * macro (its contents are only read when the record is written, so, neither
+	 * the macro instruction nor its contents are created in the calling thread).
+	 *
+	 * @param packedMacroInstructions
+	 *            the buffer with the macro instruction (the contents of the given
+	 *            slot must not be changed afterwards).
+	 * @param slot
+	 *            the slot of the macro instruction in the buffer.
+	 */
+	public void add(IPackedMacroInstructions packedMacroInstructions, int slot) {
+		append(-1, packedMacroInstructions, slot, null);
+	}
+
+	/**
+	 * Appends a record for a macro instruction which replaced the one at the
+	 * given index.
+	 *
+	 * @param index
+	 *            the index of the macro instruction replaced.
+	 * @param macroInstruction
+	 *            the new macro instruction at the given index.
+	 */
+	public void set(int index, IMacroInstruction macroInstruction) {
+		append(index, null, 0, copy(macroInstruction));
+	}
+
+	/**
+	 * Appends a record for a packed macro instruction which replaced the one at
+	 * the given index.
+	 *
+	 * @param index
+	 *            the index of the macro instruction replaced.
+	 * @param packedMacroInstructions
+	 *            the buffer with the new macro instruction (the contents of the
+	 *            given slot must not be changed afterwards).
+	 * @param slot
+	 *            the slot of the new macro instruction in the buffer.
+	 */
+	public void set(int index, IPackedMacroInstructions packedMacroInstructions, int slot) {
+		append(index, packedMacroInstructions, slot, null);
+	}
+
+	private static IMacroInstruction copy(IMacroInstruction macroInstruction) {
+		// The contents are obtained in the calling thread (macro instructions
+		// aren't expected to be thread-safe).
+		return new StoredMacroInstruction(macroInstruction.getId(), macroInstruction.toMap());
+	}
+
+	private synchronized void append(int index, IPackedMacroInstructions packedMacroInstructions, int slot,
+			IMacroInstruction macroInstruction) {
+		if (fSealing) {
+			return;
+		}
+		fPending.add(index, packedMacroInstructions, slot, macroInstruction);
+		if (fPending.fCount == 1) {
+			// Otherwise, the batch is already scheduled.
+			try {
+				fWriter.execute(fWriteBatch);
+			} catch (RejectedExecutionException e) {
+				// Already disposed (the records already written are recovered later on).
+			}
+		}
+	}
+
+	/**
+	 * Appends the record which marks the journal as complete, which is then forced
+	 * to the disk in the background (so, the caller doesn't wait on disk I/O). No
+	 * other record may be added afterwards. The journal is still locked until
+	 * it's closed or deleted.
+	 *
+	 * @return a future completed when the journal is sealed.
+	 */
+	public synchronized CompletableFuture<Void> seal() {
+		if (fSealing) {
+			return fSealed;
+		}
+		fSealing = true;
+		try {
+			fWriter.execute(() -> {
+				try {
+					writeBatch();
+					if (!fFailed) {
+						fOutputStream.write(RECORD_SEAL);
+						fDirty = true;
+					}
+					sync();
+				} catch (IOException e) {
+					fail(e);
+				} finally {
+					fSealed.complete(null);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Already disposed: kept unsealed (so, it's recovered later on).
+			fSealed.complete(null);
+		}
+		return fSealed;
+	}
+
+	/**
+	 * Seals the journal and closes its file (releasing its lock), keeping it to be
+	 * recovered later on.
+	 *
+	 * @return a future completed when the file is closed.
+	 */
+	public CompletableFuture<Void> close() {
+		return seal().thenRun(this::closeChannel);
+	}
+
+	/**
+	 * Seals the journal and removes its file (which is only closed afterwards, so,
+	 * it's not recovered meanwhile).
+	 *
+	 * @return a future completed when the file is removed.
+	 */
+	public CompletableFuture<Void> delete() {
+		return seal().thenRun(() -> {
+			try {
+				Files.deleteIfExists(fPath);
+			} catch (IOException e) {
+				Activator.log(e);
+			} finally {
+				closeChannel();
+			}
+		});
+	}
+
+	private void closeChannel() {
+		try {
+			fOutputStream.close();
+		} catch (IOException e) {
+			Activator.log(e);
+		}
+	}
+
+	/**
+	 * Tries to exclusively lock a journal (the lock is released when the channel
+	 * is closed).
+	 *
+	 * @param channel
+	 *            the channel of the journal file (opened for writing).
+	 * @return false if the journal is already locked (by this or by some other
+	 *         process) and true if the lock was acquired.
+	 * @throws IOException
+	 *             if some error happens while locking the file.
+	 */
+	public static boolean tryLock(FileChannel channel) throws IOException {
+		try {
+			return channel.tryLock() != null;
+		} catch (OverlappingFileLockException e) {
+			// Locked in this process.
+			return false;
+		}
+	}
+
+	/**
+	 * Records appended to the journal (kept in arrays reused across batches, so,
+	 * appending a record doesn't allocate).
+	 */
+	private static final class RecordBuffer {
+
+		private int fCount;
+
+		/**
+		 * The index replaced by each record or -1 for records which add a macro
+		 * instruction.
+		 */
+		private int[] fIndexes = new int[16];
+
+		private IPackedMacroInstructions[] fPackedMacroInstructions = new IPackedMacroInstructions[16];
+
+		private int[] fSlots = new int[16];
+
+		/**
+		 * The macro instruction of each record which is not packed.
+		 */
+		private IMacroInstruction[] fMacroInstructions = new IMacroInstruction[16];
+
+		private void add(int index, IPackedMacroInstructions packedMacroInstructions, int slot,
+				IMacroInstruction macroInstruction) {
+			if (fCount == fIndexes.length) {
+				int capacity = fCount * 2;
+				fIndexes = Arrays.copyOf(fIndexes, capacity);
+				fPackedMacroInstructions = Arrays.copyOf(fPackedMacroInstructions, capacity);
+				fSlots = Arrays.copyOf(fSlots, capacity);
+				fMacroInstructions = Arrays.copyOf(fMacroInstructions, capacity);
+			}
+			fIndexes[fCount] = index;
+			fPackedMacroInstructions[fCount] = packedMacroInstructions;
+			fSlots[fCount] = slot;
+			fMacroInstructions[fCount] = macroInstruction;
+			fCount++;
+		}
+
+		private void clear() {
+			Arrays.fill(fPackedMacroInstructions, 0, fCount, null);
+			Arrays.fill(fMacroInstructions, 0, fCount, null);
+			fCount = 0;
+		}
+	}
+
+	/**
+	 * Writes the records appended since the last batch (called in the writer).
+	 */
+	private void writeBatch() {
+		RecordBuffer records;
+		synchronized (this) {
+			records = fPending;
+			fPending = fWriting;
+		}
+		fWriting = records;
+		try {
+			if (!fFailed) {
+				for (int i = 0; i < records.fCount; i++) {
+					writeRecord(records, i);
+				}
+				fDirty |= records.fCount > 0;
+				fOutputStream.flush();
+				if (System.nanoTime() - fLastSync >= SYNC_INTERVAL_NANOS) {
+					sync();
+				}
+			}
+		} catch (IOException e) {
+			fail(e);
+		} finally {
+			records.clear();
+		}
+	}
+
+	private void writeRecord(RecordBuffer records, int i) throws IOException {
+		int index = records.fIndexes[i];
+		if (index == -1) {
+			fOutputStream.write(RECORD_ADD);
+		} else {
+			fOutputStream.write(RECORD_SET);
+			BinaryMacroFormat.writeVarint(fOutputStream, index);
+		}
+		IPackedMacroInstructions packedMacroInstructions = records.fPackedMacroInstructions[i];
+		if (packedMacroInstructions != null) {
+			int slot = records.fSlots[i];
+			writeMacroInstruction(packedMacroInstructions.getMacroInstructionId(slot),
+					packedMacroInstructions.toMap(slot));
+		} else {
+			IMacroInstruction macroInstruction = records.fMacroInstructions[i];
+			writeMacroInstruction(macroInstruction.getId(), macroInstruction.toMap());
+		}
+	}
+
+	private void fail(IOException e) {
+		fFailed = true;
+		Activator.log(e);
+	}
+
+	private void writeMacroInstruction(String id, Map<String, String> map) throws IOException {
+		BinaryMacroFormat.writeString(fOutputStream, fStringTable, id);
+		BinaryMacroFormat.writeVarint(fOutputStream, map.size());
+		for (Entry<String, String> entry : map.entrySet()) {
+			BinaryMacroFormat.writeString(fOutputStream, fStringTable, entry.getKey());
+			BinaryMacroFormat.writeString(fOutputStream, fStringTable, entry.getValue());
+		}
+	}
+
+	private void sync() {
+		if (!fDirty || fFailed) {
+			return;
+		}
+		try {
+			fOutputStream.flush();
+			fChannel.force(false);
+			fDirty = false;
+			fLastSync = System.nanoTime();
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Provides the journals available in the given directory.
+	 *
+	 * @param directory
+	 *            the directory where journals should be looked up.
+	 * @return the paths to the journals in the directory.
+	 * @throws IOException
+	 *             if it was not possible to list the directory.
+	 */
+	public static List<Path> listJournals(Path directory) throws IOException {
+		List<Path> journals = new ArrayList<>();
+		try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory, entry -> {
+			String name = entry.getFileName().toString().toLowerCase();
+			return name.startsWith(JOURNAL_PREFIX) && name.endsWith(JOURNAL_EXT);
+		})) {
+			for (Path p : directoryStream) {
+				journals.add(p);
+			}
+		}
+		return journals;
+	}
+
+	/**
+	 * Reads the macro instructions recorded in a journal (which may not have been
+	 * sealed). Records which were only partially written are ignored.
+	 *
+	 * @param path
+	 *            the path to the journal.
+	 * @return the macro instructions recorded in the journal (with replacements
+	 *         already applied).
+	 * @throws IOException
+	 *             if the file is not a journal or can't be read.
+	 */
+	public static List<IMacroInstruction> recover(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			return recover(channel, path);
+		}
+	}
+
+	/**
+	 * Same as {@link #recover(Path)}, but reading from a channel already opened
+	 * (i.e.: the channel used to lock the journal while it's recovered). The
+	 * channel is not closed.
+	 *
+	 * @param channel
+	 *            the channel of the journal file.
+	 * @param path
+	 *            the path to the journal.
+	 * @return the macro instructions recorded in the journal (with replacements
+	 *         already applied).
+	 * @throws IOException
+	 *             if the file is not a journal or can't be read.
+	 */
+	@SuppressWarnings("resource") // Closing the stream would close the channel.
+	public static List<IMacroInstruction> recover(FileChannel channel, Path path) throws IOException {
+		List<IMacroInstruction> macroInstructions = new ArrayList<>();
+		channel.position(0);
+		InputStream inputStream = new BufferedInputStream(Channels.newInputStream(channel));
+		for (byte b : MAGIC) {
+			if (BinaryMacroFormat.readByte(inputStream) != (b & 0xFF)) {
+				throw new IOException(String.format("File: %s is not a macro journal.", path)); //$NON-NLS-1$
+			}
+		}
+		int version = BinaryMacroFormat.readVarint(inputStream);
+		if (version != VERSION) {
+			throw new IOException(String.format("Unsupported macro journal version: %s.", version)); //$NON-NLS-1$
+		}
+		List<String> stringTable = new ArrayList<>();
+		try {
+			while (true) {
+				int record = inputStream.read();
+				if (record == RECORD_ADD) {
+					macroInstructions.add(readMacroInstruction(inputStream, stringTable));
+				} else if (record == RECORD_SET) {
+					int index = BinaryMacroFormat.readVarint(inputStream);
+					IMacroInstruction macroInstruction = readMacroInstruction(inputStream, stringTable);
+					if (index < macroInstructions.size()) {
+						macroInstructions.set(index, macroInstruction);
+					}
+				} else {
+					// Sealed, end of file or garbage written in a crash.
+					break;
+				}
+			}
+		} catch (IOException e) {
+			// Last record not completely written: keep what was read.
+		}
+		return macroInstructions;
+	}
+
+	private static IMacroInstruction readMacroInstruction(InputStream inputStream, List<String> stringTable)
+			throws IOException {
+		String id = BinaryMacroFormat.readString(inputStream, stringTable);
+		int entriesCount = BinaryMacroFormat.readVarint(inputStream);
+		Map<String, String> map = new HashMap<>();
+		for (int i = 0; i < entriesCount; i++) {
+			String key = BinaryMacroFormat.readString(inputStream, stringTable);
+			map.put(key, BinaryMacroFormat.readString(inputStream, stringTable));
+		}
+		return new StoredMacroInstruction(id, map);
+	}
+}
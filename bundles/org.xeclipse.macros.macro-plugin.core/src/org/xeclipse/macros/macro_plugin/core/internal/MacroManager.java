@@ -10,34 +10,59 @@
  *******************************************************************************/
 package org.xeclipse.macros.macro_plugin.core.internal;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import org.eclipse.core.runtime.Assert;
+import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.ListenerList;
 import org.eclipse.core.runtime.SafeRunner;
+import org.eclipse.osgi.util.NLS;
 import org.xeclipse.macros.macro_plugin.core.Activator;
 import org.xeclipse.macros.macro_plugin.core.CancelMacroException;
+import org.xeclipse.macros.macro_plugin.core.CancelMacroPlaybackException;
 import org.xeclipse.macros.macro_plugin.core.CancelMacroRecordingException;
 import org.xeclipse.macros.macro_plugin.core.EMacroService;
+import org.xeclipse.macros.macro_plugin.core.ICoalescedMacroInstructionsListener;
 import org.xeclipse.macros.macro_plugin.core.IMacroInstruction;
 import org.xeclipse.macros.macro_plugin.core.IMacroInstructionFactory;
 import org.xeclipse.macros.macro_plugin.core.IMacroInstructionsListener;
+import org.xeclipse.macros.macro_plugin.core.IMacroInstructionsOptimizer;
 import org.xeclipse.macros.macro_plugin.core.IMacroPlaybackContext;
 import org.xeclipse.macros.macro_plugin.core.IMacroRecordContext;
 import org.xeclipse.macros.macro_plugin.core.IMacroStateListener;
+import org.xeclipse.macros.macro_plugin.core.IPackedMacroInstructions;
+import org.xeclipse.macros.macro_plugin.core.MacroFileResult;
 import org.xeclipse.macros.macro_plugin.core.MacroPlaybackException;
 import org.xeclipse.macros.macro_plugin.core.IMacroStateListener.StateChange;
 
@@ -48,6 +73,21 @@ public class MacroManager {
 
 	private static final String XML_EXT = ".xml"; //$NON-NLS-1$
 
+	private static final String BINARY_EXT = ".macro"; //$NON-NLS-1$
+
+	/**
+	 * Suffix added to the name of temporary macros which were compressed with gzip
+	 * (when reading, compressed contents are detected from the gzip header, so,
+	 * files compressed without the suffix are also read properly).
+	 */
+	private static final String GZIP_EXT = ".gz"; //$NON-NLS-1$
+
+	/**
+	 * Extension of the file used while a temporary macro is being written (it's
+	 * renamed to the final extension when completely written).
+	 */
+	private static final String WRITE_EXT = ".tmp"; //$NON-NLS-1$
+
 	private static final String TEMP_MACRO_PREFIX = "temp_macro_"; //$NON-NLS-1$
 
 	/**
@@ -79,12 +119,218 @@ public class MacroManager {
 		return fMaxNumberOfTemporaryMacros;
 	}
 
+	/**
+	 * Whether temporary macros should be saved in the compact binary format
+	 * instead of XML (macros in both formats are always loaded).
+	 */
+	private boolean fSaveInBinaryFormat = false;
+
+	/**
+	 * Sets whether temporary macros should be saved in the compact binary format
+	 * (see {@link BinaryMacroFormat}) instead of XML. Macros already stored in any
+	 * of the formats are still loaded.
+	 *
+	 * @param saveInBinaryFormat
+	 *            true to save new macros in the binary format and false to save
+	 *            them as XML.
+	 */
+	public void setSaveInBinaryFormat(boolean saveInBinaryFormat) {
+		fSaveInBinaryFormat = saveInBinaryFormat;
+	}
+
+	/**
+	 * @return whether temporary macros are saved in the compact binary format.
+	 */
+	public boolean isSaveInBinaryFormat() {
+		return fSaveInBinaryFormat;
+	}
+
+	/**
+	 * Default size (in bytes) above which stored macros are compressed.
+	 */
+	public static final int DEFAULT_COMPRESSION_THRESHOLD = 64 * 1024;
+
+	/**
+	 * Macros whose serialized contents are bigger than this number of bytes are
+	 * saved compressed with gzip (if negative, macros are never compressed).
+	 */
+	private int fCompressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+
+	/**
+	 * Sets the size above which temporary macros are saved compressed with gzip
+	 * (smaller macros are saved uncompressed so that they're still easy to read).
+	 * Compressed macros are saved with a {@value #GZIP_EXT} suffix (i.e.:
+	 * {@code .xml.gz}) and are detected from their contents when loaded.
+	 *
+	 * @param compressionThreshold
+	 *            the number of bytes of the serialized macro above which it should
+	 *            be compressed or a negative number to never compress macros.
+	 */
+	public void setCompressionThreshold(int compressionThreshold) {
+		fCompressionThreshold = compressionThreshold;
+	}
+
+	/**
+	 * @return the number of bytes of the serialized macro above which it is saved
+	 *         compressed (negative if macros are never compressed).
+	 */
+	public int getCompressionThreshold() {
+		return fCompressionThreshold;
+	}
+
+	/**
+	 * Default time (in milliseconds) of each slice of a scheduled playback (small
+	 * enough for the UI to keep on painting at about 60 frames per second).
+	 */
+	public static final int DEFAULT_PLAYBACK_SLICE_MILLIS = 12;
+
+	/**
+	 * Time of each slice of a scheduled playback (in milliseconds).
+	 */
+	private int fPlaybackSliceMillis = DEFAULT_PLAYBACK_SLICE_MILLIS;
+
+	/**
+	 * Sets the time during which a scheduled playback runs before giving control
+	 * back to the executor.
+	 *
+	 * @param playbackSliceMillis
+	 *            the time of each slice of a scheduled playback in milliseconds
+	 *            (must be positive).
+	 * @see #scheduleLastMacroPlayback(EMacroService, IMacroPlaybackContext,
+	 *      Executor, IProgressMonitor, boolean)
+	 */
+	public void setPlaybackSliceMillis(int playbackSliceMillis) {
+		Assert.isLegal(playbackSliceMillis > 0, "The playback slice time must be positive."); //$NON-NLS-1$
+		fPlaybackSliceMillis = playbackSliceMillis;
+	}
+
+	/**
+	 * @return the time of each slice of a scheduled playback in milliseconds.
+	 */
+	public int getPlaybackSliceMillis() {
+		return fPlaybackSliceMillis;
+	}
+
+	/**
+	 * Default number of macro instructions of the macro being recorded which are
+	 * kept in memory.
+	 */
+	public static final int DEFAULT_RECORDING_MEMORY_BUDGET = 64 * 1024;
+
+	/**
+	 * Max number of macro instructions of the macro being recorded which are kept
+	 * in memory (0 means that there's no limit).
+	 */
+	private int fRecordingMemoryBudget = DEFAULT_RECORDING_MEMORY_BUDGET;
+
+	/**
+	 * Sets the max number of macro instructions of a macro being recorded which
+	 * are kept in memory (older macro instructions are spilled to a temporary
+	 * file). Only applies to recordings started afterwards.
+	 *
+	 * @param recordingMemoryBudget
+	 *            the max number of macro instructions kept in memory or 0 to keep
+	 *            all of those in memory.
+	 */
+	public void setRecordingMemoryBudget(int recordingMemoryBudget) {
+		fRecordingMemoryBudget = recordingMemoryBudget;
+	}
+
+	/**
+	 * @return the max number of macro instructions of a macro being recorded which
+	 *         are kept in memory (0 if there's no limit).
+	 */
+	public int getRecordingMemoryBudget() {
+		return fRecordingMemoryBudget;
+	}
+
+	/**
+	 * Whether recorded macros should be optimized before being saved and played
+	 * back.
+	 */
+	private boolean fOptimizeMacros = false;
+
+	/**
+	 * Sets whether recorded macros should be optimized (through the
+	 * {@link IMacroInstructionsOptimizer}s provided by the factories of the
+	 * recorded macro instructions) before being saved and played back. The
+	 * optimization is done in the background when the recording stops (the
+	 * recorded macro is played back until the optimized macro replaces it).
+	 *
+	 * @param optimizeMacros
+	 *            whether recorded macros should be optimized.
+	 */
+	public void setOptimizeMacros(boolean optimizeMacros) {
+		fOptimizeMacros = optimizeMacros;
+	}
+
+	/**
+	 * @return whether recorded macros are optimized before being saved and played
+	 *         back.
+	 */
+	public boolean isOptimizeMacros() {
+		return fOptimizeMacros;
+	}
+
+	/**
+	 * What was removed from the last recorded macro which was optimized (set in
+	 * the persistence thread).
+	 */
+	private volatile MacroOptimizationReport fLastOptimizationReport;
+
+	/**
+	 * @return what was removed from the last recorded macro which was optimized
+	 *         (or {@code null} if no recorded macro was optimized). Macros are
+	 *         optimized in the background before being saved, so, it's only
+	 *         available for the last recorded macro after
+	 *         {@link #getLastSaveFuture()} is completed.
+	 */
+	public MacroOptimizationReport getLastOptimizationReport() {
+		return fLastOptimizationReport;
+	}
+
 	/**
 	 * The directories where macros should be looked up. The first directory is the
 	 * one where macros are persisted.
 	 */
 	private File[] fMacrosDirectories;
 
+	/**
+	 * Cache for the macro instructions created when playing back macros stored on
+	 * disk (bounded by the size of the compiled programs, so, huge stored macros
+	 * are always read from the disk).
+	 */
+	private final CompiledMacroCache fCompiledMacroCache = new CompiledMacroCache(
+			CompiledMacroCache.DEFAULT_MAX_ENTRIES, CompiledMacroCache.DEFAULT_MAX_SIZE);
+
+	/**
+	 * Single thread where temporary macros and the journal of the macro being
+	 * recorded are written to the disk (so that recording and stopping a
+	 * recording don't wait on disk I/O). Saves are never run in the
+	 * requesting thread: they're queued until the thread is available (superseded
+	 * saves are dropped from {@link #fPendingSaves}, so, the queued tasks don't
+	 * hold their macros).
+	 */
+	private final ThreadPoolExecutor fPersistenceExecutor;
+
+	/**
+	 * The journals of the macros whose save is still pending (those must not be
+	 * recovered as they are removed once the macro is saved).
+	 */
+	private final Set<Path> fPendingSaveJournals = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * The saves which are waiting for the persistence thread in each directory
+	 * (oldest first). Older saves are dropped when there are more pending saves
+	 * than the max number of temporary macros (as those would be removed anyway).
+	 */
+	private final Map<File, Deque<PendingSave>> fPendingSaves = new HashMap<>();
+
+	/**
+	 * The future related to the last save of a temporary macro.
+	 */
+	private volatile CompletableFuture<Boolean> fLastSave = CompletableFuture.completedFuture(Boolean.TRUE);
+
 	/**
 	 * Holds the macro currently being recorded (if we are in record mode). If
 	 * not in record mode, should be {@code null}.
@@ -92,9 +338,24 @@ public class MacroManager {
 	private ComposableMacro fMacroBeingRecorded;
 
 	/**
-	 * Holds the last recorded or played back macro.
+	 * Journal where the macro currently being recorded is appended (so that it's
+	 * possible to recover it if the recording is not properly finished). If not in
+	 * record mode or if the journal could not be created, should be {@code null}.
+	 */
+	private MacroJournal fMacroJournal;
+
+	/**
+	 * Holds the last recorded or played back macro (volatile as it may be read
+	 * from other threads for headless playbacks).
+	 */
+	private volatile IMacro fLastMacro;
+
+	/**
+	 * Updates {@link #fLastMacro} atomically (it's replaced in the persistence
+	 * thread when a recorded macro is optimized).
 	 */
-	private IMacro fLastMacro;
+	private static final AtomicReferenceFieldUpdater<MacroManager, IMacro> LAST_MACRO = AtomicReferenceFieldUpdater
+			.newUpdater(MacroManager.class, IMacro.class, "fLastMacro"); //$NON-NLS-1$
 
 	/**
 	 * Flag indicating whether we are playing back a macro.
@@ -127,9 +388,35 @@ public class MacroManager {
 	 *            directory that appears last is the one which is used.
 	 */
 	public MacroManager(File... macrosDirectories) {
+		fPersistenceExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(), runnable -> {
+					Thread thread = new Thread(runnable, "Macro persistence"); //$NON-NLS-1$
+					thread.setDaemon(true);
+					return thread;
+				});
+		fPersistenceExecutor.allowCoreThreadTimeOut(true);
 		setMacrosDirectories(macrosDirectories);
 	}
 
+	/**
+	 * Releases the resources held by this manager: the macros directories are no
+	 * longer watched and the persistence thread is stopped once the saves already
+	 * requested are finished. A macro still being recorded is not saved, but its
+	 * journal is closed so that it's recovered the next time macros are loaded.
+	 * The manager must not be used afterwards.
+	 */
+	public void dispose() {
+		for (MacroDirectoryIndex index : fDirectoryIndexes.values()) {
+			index.close();
+		}
+		fDirectoryIndexes = Collections.emptyMap();
+		MacroJournal macroJournal = fMacroJournal;
+		if (macroJournal != null) {
+			macroJournal.close();
+		}
+		fPersistenceExecutor.shutdown();
+	}
+
 	/**
 	 * Sets the macro directories which should be tracked for macros.
 	 *
@@ -145,9 +432,61 @@ public class MacroManager {
 			Assert.isNotNull(file);
 		}
 		fMacrosDirectories = macrosDirectories;
+		updateDirectoryIndexes();
 		reloadMacros();
 	}
 
+	/**
+	 * Index of the temporary macros in each of the macros directories (a directory
+	 * which could not be watched has no index and is scanned as needed).
+	 */
+	private volatile Map<File, MacroDirectoryIndex> fDirectoryIndexes = Collections.emptyMap();
+
+	/**
+	 * Creates the indexes for the current macros directories (disposing the
+	 * previous ones).
+	 */
+	private void updateDirectoryIndexes() {
+		for (MacroDirectoryIndex index : fDirectoryIndexes.values()) {
+			index.close();
+		}
+		Map<File, MacroDirectoryIndex> directoryIndexes = new HashMap<>();
+		for (File macroDirectory : fMacrosDirectories) {
+			if (macroDirectory.isDirectory()) {
+				try {
+					directoryIndexes.put(macroDirectory,
+							new MacroDirectoryIndex(macroDirectory.toPath(), MacroManager::isTemporaryMacro, path -> {
+								if (path == null) {
+									fCompiledMacroCache.invalidateStale();
+								} else {
+									fCompiledMacroCache.invalidate(path);
+								}
+							}));
+				} catch (IOException e) {
+					// It'll be scanned when needed.
+					Activator.log(e);
+				}
+			}
+		}
+		fDirectoryIndexes = directoryIndexes;
+	}
+
+	/**
+	 * Provides the index for the given directory if it is being kept up to date.
+	 *
+	 * @param macroDirectory
+	 *            the directory for which the index is requested.
+	 * @return the index for the directory or {@code null} if the directory is not
+	 *         indexed.
+	 */
+	private MacroDirectoryIndex getDirectoryIndex(File macroDirectory) {
+		MacroDirectoryIndex index = fDirectoryIndexes.get(macroDirectory);
+		if (index != null && index.isWatching()) {
+			return index;
+		}
+		return null;
+	}
+
 	/**
 	 * Return {@code true} if a macro is currently being recorded, and {@code false}
 	 * otherwise.
@@ -181,9 +520,7 @@ public class MacroManager {
 		ComposableMacro macroBeingRecorded = fMacroBeingRecorded;
 		if (macroBeingRecorded != null) {
 			macroBeingRecorded.addMacroInstruction(macroInstruction);
-			for (IMacroInstructionsListener listener : fMacroInstructionsListeners) {
-				listener.postAddMacroInstruction(macroInstruction);
-			}
+			notifyMacroInstructionAdded(macroInstruction, 1);
 		}
 	}
 
@@ -219,14 +556,70 @@ public class MacroManager {
 			throws CancelMacroRecordingException {
 		ComposableMacro macroBeingRecorded = fMacroBeingRecorded;
 		if (macroBeingRecorded != null) {
+			int length = macroBeingRecorded.getLength();
 			if (macroBeingRecorded.addMacroInstruction(macroInstruction, event, priority)) {
-				for (IMacroInstructionsListener listener : fMacroInstructionsListeners) {
-					listener.postAddMacroInstruction(macroInstruction);
+				notifyMacroInstructionAdded(macroInstruction, macroBeingRecorded.getLength() - length);
+			}
+		}
+	}
+
+	/**
+	 * Same as {@link #addMacroInstruction(IMacroInstruction, Object, int)} but for
+	 * a macro instruction kept in a packed buffer (so that the macro instruction
+	 * object is only created if needed).
+	 *
+	 * @param packedMacroInstructions
+	 *            the buffer with the macro instruction (the contents of the given
+	 *            slot must not be changed afterwards).
+	 * @param slot
+	 *            the slot of the macro instruction in the buffer.
+	 * @param event
+	 *            the event that triggered the creation of the macro instruction.
+	 * @param priority
+	 *            the priority of the macro instruction being added.
+	 * @throws CancelMacroRecordingException
+	 *             if the macro recording has been cancelled.
+	 */
+	public void addPackedMacroInstruction(IPackedMacroInstructions packedMacroInstructions, int slot,
+			Object event, int priority) throws CancelMacroRecordingException {
+		ComposableMacro macroBeingRecorded = fMacroBeingRecorded;
+		if (macroBeingRecorded != null) {
+			int length = macroBeingRecorded.getLength();
+			if (macroBeingRecorded.addPackedMacroInstruction(packedMacroInstructions, slot, event, priority)) {
+				int appended = macroBeingRecorded.getLength() - length;
+				if (!fMacroInstructionsListeners.isEmpty()) {
+					// Only create the macro instruction if someone is interested in it.
+					IMacroInstruction macroInstruction = packedMacroInstructions.createMacroInstruction(slot);
+					for (IMacroInstructionsListener listener : fMacroInstructionsListeners) {
+						listener.postAddMacroInstruction(macroInstruction);
+					}
+				}
+				for (CoalescedMacroInstructionsNotifier notifier : fCoalescedNotifiers) {
+					notifier.addedPacked(packedMacroInstructions, slot, appended);
 				}
 			}
 		}
 	}
 
+	/**
+	 * Notifies the listeners that a macro instruction was added to the macro being
+	 * recorded (coalesced listeners are only notified later on).
+	 *
+	 * @param macroInstruction
+	 *            the macro instruction added.
+	 * @param appended
+	 *            the number of macro instructions appended to the macro (0 if the
+	 *            macro instruction replaced one added for the same event).
+	 */
+	private void notifyMacroInstructionAdded(IMacroInstruction macroInstruction, int appended) {
+		for (IMacroInstructionsListener listener : fMacroInstructionsListeners) {
+			listener.postAddMacroInstruction(macroInstruction);
+		}
+		for (CoalescedMacroInstructionsNotifier notifier : fCoalescedNotifiers) {
+			notifier.added(macroInstruction, appended);
+		}
+	}
+
 	private static final class MacroRecordContext implements IMacroRecordContext {
 
 		private final Map<Object, Object> fContext = new HashMap<>();
@@ -263,6 +656,8 @@ public class MacroManager {
 			fIsRecording = true;
 			fMacroRecordContext = new MacroRecordContext();
 			fMacroBeingRecorded = new ComposableMacro(macroInstructionIdToFactory);
+			fMacroBeingRecorded.setMemoryBudget(fRecordingMemoryBudget);
+			openMacroJournal(fMacroBeingRecorded);
 			for (IMacroStateListener listener : fStateListeners) {
 				SafeRunner.run(() -> listener.macroRecordContextCreated(fMacroRecordContext));
 			}
@@ -287,14 +682,172 @@ public class MacroManager {
 			// we're recording is set).
 			notifyMacroStateChange(macroService, StateChange.RECORD_FINISHED);
 			fMacroBeingRecorded.clearCachedInfo();
-			if (fMacroBeingRecorded.getLength() > 0) {
-				// No point in saving an empty macro.
-				saveTemporaryMacro(fMacroBeingRecorded);
-				fLastMacro = fMacroBeingRecorded;
+			MacroJournal macroJournal = fMacroJournal;
+			if (macroJournal != null) {
+				fMacroBeingRecorded.setMacroJournal(null);
+				// Only sealed here (without waiting for it): the macro itself is written
+				// by the background save.
+				macroJournal.seal();
+			}
+			ComposableMacro macro = fMacroBeingRecorded;
+			if (macro.getLength() > 0) {
+				// If it should be optimized, the recorded macro is available until the
+				// optimized macro replaces it.
+				disposeIfNotLastMacro(LAST_MACRO.getAndSet(this, macro));
 			}
+			saveTemporaryMacro(macro, macroJournal, fOptimizeMacros);
+			disposeIfNotLastMacro(macro);
 		} finally {
 			fMacroBeingRecorded = null;
 			fMacroRecordContext = null;
+			fMacroJournal = null;
+		}
+	}
+
+	/**
+	 * Optimizes a recorded macro with the optimizers provided by the factories of
+	 * its macro instructions (called in the persistence thread, as it goes
+	 * through the whole macro). If the recorded macro is still the last macro,
+	 * the optimized macro replaces it.
+	 *
+	 * @param macro
+	 *            the recorded macro (acquired by the caller).
+	 * @return the optimized macro (acquired, so, it must be released by the
+	 *         caller) or the recorded macro itself if there's nothing to be
+	 *         applied or if the optimization failed.
+	 */
+	private ComposableMacro optimizeMacro(ComposableMacro macro) {
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = macro.getMacroInstructionIdToFactory();
+		if (macroInstructionIdToFactory == null || macro.getLength() == 0) {
+			return macro;
+		}
+		List<IMacroInstructionsOptimizer> optimizers = new ArrayList<>();
+		// Sorted so that the optimizers are always applied in the same order.
+		for (String macroInstructionId : new TreeSet<>(macroInstructionIdToFactory.keySet())) {
+			optimizers.addAll(macroInstructionIdToFactory.get(macroInstructionId).getOptimizers());
+		}
+		if (optimizers.isEmpty()) {
+			return macro;
+		}
+		MacroOptimizationReport report = new MacroOptimizationReport();
+		ComposableMacro optimized;
+		try {
+			optimized = MacroOptimizer.optimize(macro, optimizers, fRecordingMemoryBudget, report);
+		} catch (RuntimeException e) {
+			Activator.log(e);
+			return macro;
+		}
+		fLastOptimizationReport = report;
+		if (!report.getRemoved().isEmpty()) {
+			Activator.log(IStatus.INFO, report.toString());
+		}
+		optimized.acquire();
+		if (LAST_MACRO.compareAndSet(this, macro, optimized)) {
+			// Only actually released when the playbacks which acquired it finish.
+			macro.dispose();
+		} else {
+			// Some other macro became the last macro meanwhile: just save it.
+			optimized.dispose();
+		}
+		return optimized;
+	}
+
+	/**
+	 * Disposes a recorded macro which is no longer the last macro (its resources
+	 * are only released after the saves and playbacks which acquired it finish).
+	 *
+	 * @param macro
+	 *            the macro to be disposed (may be {@code null}).
+	 */
+	private void disposeIfNotLastMacro(IMacro macro) {
+		if (macro instanceof ComposableMacro && macro != fLastMacro) {
+			((ComposableMacro) macro).dispose();
+		}
+	}
+
+	/**
+	 * Acquires the last macro to be played back (see {@link IMacro#acquire()}).
+	 *
+	 * @return the last macro (which must be released afterwards) or {@code null}
+	 *         if there's no last macro.
+	 */
+	private IMacro acquireLastMacro() {
+		IMacro macro = fLastMacro;
+		// A macro is only disposed after it's no longer the last macro.
+		while (macro != null && !macro.acquire()) {
+			macro = fLastMacro;
+		}
+		return macro;
+	}
+
+	/**
+	 * Creates the journal for the macro which started being recorded.
+	 *
+	 * @param macro
+	 *            the macro being recorded.
+	 */
+	private void openMacroJournal(ComposableMacro macro) {
+		if (fMacrosDirectories == null || fMacrosDirectories.length == 0 || !fMacrosDirectories[0].isDirectory()) {
+			return;
+		}
+		try {
+			fMacroJournal = MacroJournal.create(fMacrosDirectories[0].toPath(), fPersistenceExecutor);
+			macro.setMacroJournal(fMacroJournal);
+		} catch (IOException e) {
+			// Record without a journal.
+			Activator.log(e);
+		}
+	}
+
+	/**
+	 * Recovers the macros from journals which were left behind (i.e.: the
+	 * application was closed while recording), saving those as temporary macros.
+	 * Journals which are locked belong to a recording which is still alive
+	 * (possibly in some other application sharing the macros directory), so,
+	 * those are skipped.
+	 */
+	private void recoverMacroJournals() {
+		if (fMacrosDirectories == null || fMacrosDirectories.length == 0 || !fMacrosDirectories[0].isDirectory()) {
+			return;
+		}
+		List<Path> journals;
+		try {
+			journals = MacroJournal.listJournals(fMacrosDirectories[0].toPath());
+		} catch (IOException e) {
+			Activator.log(e);
+			return;
+		}
+		MacroJournal currentMacroJournal = fMacroJournal;
+		for (Path journal : journals) {
+			if (currentMacroJournal != null && journal.equals(currentMacroJournal.getPath())
+					|| fPendingSaveJournals.contains(journal)) {
+				continue;
+			}
+			// The lock is kept until the journal is removed (so, it's not recovered
+			// concurrently by some other application).
+			try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.READ,
+					StandardOpenOption.WRITE)) {
+				if (!MacroJournal.tryLock(channel)) {
+					continue;
+				}
+				List<IMacroInstruction> macroInstructions = MacroJournal.recover(channel, journal);
+				boolean saved = true;
+				if (!macroInstructions.isEmpty()) {
+					ComposableMacro macro = new ComposableMacro(null);
+					for (IMacroInstruction macroInstruction : macroInstructions) {
+						macro.addMacroInstruction(macroInstruction);
+					}
+					saved = writeTemporaryMacro(macro, fMacrosDirectories, fSaveInBinaryFormat,
+							fCompressionThreshold, fMaxNumberOfTemporaryMacros);
+				}
+				if (saved) {
+					Files.deleteIfExists(journal);
+				}
+			} catch (NoSuchFileException e) {
+				// Removed after being listed (its macro was saved).
+			} catch (IOException e) {
+				Activator.log(e);
+			}
 		}
 	}
 
@@ -314,44 +867,290 @@ public class MacroManager {
 	}
 
 	/**
-	 * Saves a composable macro as a temporary macro on disk.
+	 * A save of a temporary macro which is waiting for (or running in) the
+	 * persistence thread.
+	 */
+	private final class PendingSave implements Runnable {
+
+		private final ComposableMacro fMacro;
+
+		private final MacroJournal fMacroJournal;
+
+		private final boolean fOptimize;
+
+		private final File[] fSaveMacrosDirectories;
+
+		private final boolean fSaveInBinary;
+
+		private final int fSaveCompressionThreshold;
+
+		private final int fSaveMaxNumberOfTemporaryMacros;
+
+		/**
+		 * Completed with whether the macro was saved (after its journal is removed
+		 * or closed).
+		 */
+		private final CompletableFuture<Boolean> fFuture = new CompletableFuture<>();
+
+		private PendingSave(ComposableMacro macro, MacroJournal macroJournal, boolean optimize) {
+			fMacro = macro;
+			fMacroJournal = macroJournal;
+			fOptimize = optimize;
+			fSaveMacrosDirectories = fMacrosDirectories;
+			fSaveInBinary = fSaveInBinaryFormat;
+			fSaveCompressionThreshold = fCompressionThreshold;
+			fSaveMaxNumberOfTemporaryMacros = fMaxNumberOfTemporaryMacros;
+		}
+
+		private File getDirectory() {
+			return fSaveMacrosDirectories == null || fSaveMacrosDirectories.length == 0 ? null
+					: fSaveMacrosDirectories[0];
+		}
+
+		/**
+		 * @return whether this save may supersede older saves (an empty macro isn't
+		 *         actually written, so, it doesn't).
+		 */
+		private boolean isCoalesced() {
+			return fMacro.getLength() > 0;
+		}
+
+		/**
+		 * Removes this save from the pending saves.
+		 *
+		 * @return false if it was already removed (i.e.: superseded by newer
+		 *         saves).
+		 */
+		private boolean removePending() {
+			if (!isCoalesced()) {
+				return true;
+			}
+			synchronized (fPendingSaves) {
+				Deque<PendingSave> pendingSaves = fPendingSaves.get(getDirectory());
+				if (pendingSaves == null || !pendingSaves.remove(this)) {
+					return false;
+				}
+				if (pendingSaves.isEmpty()) {
+					fPendingSaves.remove(getDirectory());
+				}
+				return true;
+			}
+		}
+
+		@Override
+		public void run() {
+			if (!removePending()) {
+				// Superseded by newer saves.
+				return;
+			}
+			boolean saved = false;
+			ComposableMacro macroToSave = fMacro;
+			try {
+				if (fOptimize) {
+					macroToSave = optimizeMacro(fMacro);
+				}
+				// No point in saving an empty macro.
+				saved = macroToSave.getLength() == 0 || writeTemporaryMacro(macroToSave, fSaveMacrosDirectories,
+						fSaveInBinary, fSaveCompressionThreshold, fSaveMaxNumberOfTemporaryMacros);
+			} catch (RuntimeException e) {
+				Activator.log(e);
+			} finally {
+				if (macroToSave != fMacro) {
+					macroToSave.release();
+				}
+				fMacro.release();
+				// If it wasn't saved, the journal is closed and kept to be recovered
+				// later on.
+				finish(saved, saved);
+			}
+		}
+
+		/**
+		 * Drops this save because newer saves in the same directory would already
+		 * remove its macro (its journal is removed too, so, it's not recovered).
+		 */
+		private void supersede() {
+			fMacro.release();
+			finish(false, true);
+		}
+
+		/**
+		 * Finishes this save without running it (the journal is kept to be
+		 * recovered later on).
+		 */
+		private void reject() {
+			fMacro.release();
+			finish(false, false);
+		}
+
+		private void finish(boolean saved, boolean deleteJournal) {
+			if (fMacroJournal == null) {
+				fFuture.complete(saved);
+				return;
+			}
+			// The save is only finished after the journal is removed, so, a new
+			// manager for the same directory won't recover it.
+			Path journalPath = fMacroJournal.getPath();
+			(deleteJournal ? fMacroJournal.delete() : fMacroJournal.close()).whenComplete((result, e) -> {
+				fPendingSaveJournals.remove(journalPath);
+				fFuture.complete(saved);
+			});
+		}
+	}
+
+	/**
+	 * Saves a composable macro as a temporary macro on disk. The actual write
+	 * happens in the persistence thread (the macro must not be changed
+	 * afterwards). If the persistence thread is slow, only the saves which would
+	 * still be kept after the older temporary macros are removed remain pending
+	 * (so, the macros waiting to be saved don't pile up in memory).
 	 *
 	 * @param macro
-	 *            the macro to be recorded as a temporary macro.
+	 *            the macro to be recorded as a temporary macro (if empty, nothing
+	 *            is saved).
+	 * @param macroJournal
+	 *            the journal of the macro (which is removed after the macro is
+	 *            saved) or {@code null}.
+	 * @param optimize
+	 *            whether the macro should be optimized before being saved (in
+	 *            which case the optimized macro is saved and replaces the macro as
+	 *            the last macro).
+	 * @return a future which is completed with whether the macro was saved.
 	 */
-	private void saveTemporaryMacro(ComposableMacro macro) {
-		if (fMacrosDirectories == null || fMacrosDirectories.length == 0) {
-			return;
+	private CompletableFuture<Boolean> saveTemporaryMacro(ComposableMacro macro, MacroJournal macroJournal,
+			boolean optimize) {
+		if (macroJournal != null) {
+			fPendingSaveJournals.add(macroJournal.getPath());
+		}
+		// Released when the save finishes (the macro may be disposed meanwhile).
+		macro.acquire();
+		PendingSave save = new PendingSave(macro, macroJournal, optimize);
+		if (save.isCoalesced()) {
+			List<PendingSave> superseded = new ArrayList<>();
+			synchronized (fPendingSaves) {
+				Deque<PendingSave> pendingSaves = fPendingSaves.computeIfAbsent(save.getDirectory(),
+						directory -> new ArrayDeque<>());
+				pendingSaves.add(save);
+				while (pendingSaves.size() > save.fSaveMaxNumberOfTemporaryMacros) {
+					superseded.add(pendingSaves.removeFirst());
+				}
+			}
+			for (PendingSave pendingSave : superseded) {
+				pendingSave.supersede();
+			}
+		}
+		try {
+			fPersistenceExecutor.execute(save);
+		} catch (RejectedExecutionException e) {
+			// Already disposed (the journal is kept to be recovered later on).
+			if (save.removePending()) {
+				save.reject();
+			}
+		}
+		fLastSave = save.fFuture;
+		return save.fFuture;
+	}
+
+	/**
+	 * Provides a future which is completed when the last requested save of a
+	 * temporary macro (done when a recording is stopped) finishes.
+	 *
+	 * @return a future completed with whether the last macro was saved (already
+	 *         completed if there's no pending save).
+	 */
+	public CompletableFuture<Boolean> getLastSaveFuture() {
+		return fLastSave;
+	}
+
+	/**
+	 * Actually writes a composable macro as a temporary macro on disk (removing
+	 * older temporary macros if needed). The contents are written to a temporary
+	 * file which is then renamed, so, a partially written macro is never visible
+	 * as a temporary macro.
+	 *
+	 * @return whether the macro was saved.
+	 */
+	private boolean writeTemporaryMacro(ComposableMacro macro, File[] macrosDirectories, boolean saveInBinaryFormat,
+			int compressionThreshold, int maxNumberOfTemporaryMacros) {
+		if (macrosDirectories == null || macrosDirectories.length == 0) {
+			return false;
 		}
 		// The first one is the one we use as a working directory to store
 		// temporary macros.
-		File macroDirectory = fMacrosDirectories[0];
+		File macroDirectory = macrosDirectories[0];
 		if (!macroDirectory.isDirectory()) {
 			Activator.log(IStatus.ERROR,
 					String.format("Unable to save macro. Expected: %s to be a directory.", macroDirectory)); //$NON-NLS-1$
-			return;
+			return false;
 		}
 
-		List<StoredMacroReference> storedMacroReferences = listTemporaryMacroReferences(macroDirectory);
+		MacroDirectoryIndex index = getDirectoryIndex(macroDirectory);
+		List<StoredMacroReference> storedMacroReferences = index == null
+				? listTemporaryMacroReferences(macroDirectory)
+				: null;
 
+		Path writeFile = null;
 		try {
-			Path tempFile = Files.createTempFile(Paths.get(macroDirectory.toURI()), TEMP_MACRO_PREFIX, XML_EXT);
-			Files.write(tempFile, macro.toXMLBytes(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
-					StandardOpenOption.TRUNCATE_EXISTING);
+			writeFile = Files.createTempFile(Paths.get(macroDirectory.toURI()), TEMP_MACRO_PREFIX, WRITE_EXT);
+			OutputStream fileOutputStream = new BufferedOutputStream(Files.newOutputStream(writeFile,
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+			ThresholdGZIPOutputStream gzipOutputStream = compressionThreshold >= 0
+					? new ThresholdGZIPOutputStream(fileOutputStream, compressionThreshold)
+					: null;
+			try (OutputStream outputStream = gzipOutputStream != null ? gzipOutputStream : fileOutputStream) {
+				if (saveInBinaryFormat) {
+					macro.writeBinary(outputStream);
+				} else {
+					macro.writeXML(outputStream);
+				}
+			}
+			String writeFileName = writeFile.getFileName().toString();
+			String ext = saveInBinaryFormat ? BINARY_EXT : XML_EXT;
+			if (gzipOutputStream != null && gzipOutputStream.isCompressing()) {
+				ext += GZIP_EXT;
+			}
+			Path tempFile = writeFile.resolveSibling(
+					writeFileName.substring(0, writeFileName.length() - WRITE_EXT.length()) + ext);
+			try {
+				Files.move(writeFile, tempFile, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(writeFile, tempFile);
+			}
+			if (index != null) {
+				index.update(tempFile);
+			}
 		} catch (IOException e) {
 			Activator.log(e);
-			return; // Can't create file at expected place;
+			if (writeFile != null) {
+				try {
+					Files.deleteIfExists(writeFile);
+				} catch (IOException e1) {
+					Activator.log(e1);
+				}
+			}
+			return false; // Can't create file at expected place;
 		}
 
 		// Remove older files
-		while (storedMacroReferences.size() >= fMaxNumberOfTemporaryMacros) {
-			StoredMacroReference removeFile = storedMacroReferences.remove(storedMacroReferences.size() - 1);
-			try {
-				Files.deleteIfExists(removeFile.fPath);
-			} catch (Exception e) {
-				Activator.log(e);
+		if (index != null) {
+			while (index.size() > maxNumberOfTemporaryMacros) {
+				deleteTemporaryMacro(index.removeOldest());
+			}
+		} else {
+			while (storedMacroReferences.size() >= maxNumberOfTemporaryMacros) {
+				deleteTemporaryMacro(storedMacroReferences.remove(storedMacroReferences.size() - 1));
 			}
 		}
+		return true;
+	}
+
+	private void deleteTemporaryMacro(StoredMacroReference removeFile) {
+		fCompiledMacroCache.invalidate(removeFile.fPath);
+		try {
+			Files.deleteIfExists(removeFile.fPath);
+		} catch (Exception e) {
+			Activator.log(e);
+		}
 	}
 
 	/**
@@ -366,20 +1165,17 @@ public class MacroManager {
 	 *         time
 	 */
 	public List<StoredMacroReference> listTemporaryMacroReferences(File macroDirectory) {
+		MacroDirectoryIndex index = getDirectoryIndex(macroDirectory);
+		if (index != null) {
+			return index.getReferences();
+		}
 		// It is a sorted list and not a tree map to deal with the case of
 		// multiple times pointing to the same file (although hard to happen,
 		// it is not impossible).
 		List<StoredMacroReference> storedMacroReferences = new ArrayList<>();
 
 		try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(Paths.get(macroDirectory.toURI()),
-				new DirectoryStream.Filter<Path>() {
-
-					@Override
-					public boolean accept(Path entry) {
-						String name = entry.getFileName().toString().toLowerCase();
-						return name.startsWith(TEMP_MACRO_PREFIX) && name.endsWith(XML_EXT);
-					}
-				})) {
+				MacroManager::isTemporaryMacro)) {
 			for (Path p : directoryStream) {
 				storedMacroReferences
 						.add(new StoredMacroReference(p, Files.getLastModifiedTime(p).to(TimeUnit.NANOSECONDS)));
@@ -400,6 +1196,21 @@ public class MacroManager {
 		return storedMacroReferences;
 	}
 
+	/**
+	 * Checks whether the given path is a temporary macro saved by this manager.
+	 *
+	 * @param path
+	 *            the path to be checked.
+	 * @return true if the path has the name of a temporary macro.
+	 */
+	private static boolean isTemporaryMacro(Path path) {
+		String name = path.getFileName().toString().toLowerCase();
+		if (name.endsWith(GZIP_EXT)) {
+			name = name.substring(0, name.length() - GZIP_EXT.length());
+		}
+		return name.startsWith(TEMP_MACRO_PREFIX) && (name.endsWith(XML_EXT) || name.endsWith(BINARY_EXT));
+	}
+
 	/**
 	 * Notifies that a macro state change occurred (see
 	 * {@link org.xeclipse.macros.macro_plugin.core.IMacroStateListener}).
@@ -434,7 +1245,155 @@ public class MacroManager {
 	 */
 	public void playbackLastMacro(EMacroService macroService, final IMacroPlaybackContext macroPlaybackContext)
 			throws MacroPlaybackException {
-		if (fLastMacro != null && !fIsPlayingBack) {
+		playbackLastMacro(macroService, macroPlaybackContext, 1, false);
+	}
+
+	/**
+	 * Plays back the last recorded macro the given number of times in a row (the
+	 * listeners are notified of the playback start/finish only once and the same
+	 * playback context is used for all the playbacks).
+	 *
+	 * @param macroService
+	 *            the macro service (used to notify listeners of the change.
+	 * @param macroPlaybackContext
+	 *            a context to be used to playback the macro (passed to the macro to
+	 *            be played back).
+	 * @param times
+	 *            the number of times that the macro should be played back.
+	 * @return the number of times that the macro was completely played back.
+	 * @throws MacroPlaybackException
+	 *             if some error happens when running the macro (in which case no
+	 *             other playback is done).
+	 */
+	public int playbackLastMacro(EMacroService macroService, final IMacroPlaybackContext macroPlaybackContext,
+			int times) throws MacroPlaybackException {
+		Assert.isLegal(times >= 0, "The number of times to play back the macro must not be negative."); //$NON-NLS-1$
+		return playbackLastMacro(macroService, macroPlaybackContext, times, false);
+	}
+
+	/**
+	 * Default max number of times that the last macro is played back by
+	 * {@link #playbackLastMacroUntilFailure(EMacroService, IMacroPlaybackContext)}
+	 * (so that a macro which never fails doesn't run forever).
+	 */
+	public static final int DEFAULT_MAX_PLAYBACKS_UNTIL_FAILURE = 100000;
+
+	/**
+	 * Max number of times that the last macro is played back until a failure.
+	 */
+	private int fMaxPlaybacksUntilFailure = DEFAULT_MAX_PLAYBACKS_UNTIL_FAILURE;
+
+	/**
+	 * Sets the max number of times that the last macro is played back when
+	 * playing it back until a failure (a warning is logged when a playback stops
+	 * because this number was reached).
+	 *
+	 * @param maxPlaybacksUntilFailure
+	 *            the max number of playbacks (must be positive).
+	 */
+	public void setMaxPlaybacksUntilFailure(int maxPlaybacksUntilFailure) {
+		Assert.isLegal(maxPlaybacksUntilFailure > 0, "The max number of playbacks must be positive."); //$NON-NLS-1$
+		fMaxPlaybacksUntilFailure = maxPlaybacksUntilFailure;
+	}
+
+	/**
+	 * @return the max number of times that the last macro is played back when
+	 *         playing it back until a failure.
+	 */
+	public int getMaxPlaybacksUntilFailure() {
+		return fMaxPlaybacksUntilFailure;
+	}
+
+	/**
+	 * Plays back the last recorded macro repeatedly until some playback fails
+	 * (or until it's played back {@link #getMaxPlaybacksUntilFailure()} times,
+	 * in which case a warning is logged). The listeners are notified of the
+	 * playback start/finish only once and the same playback context is used for
+	 * all the playbacks.
+	 *
+	 * This playback can't be cancelled (see
+	 * {@link #scheduleLastMacroPlaybackUntilFailure(EMacroService, IMacroPlaybackContext, Executor, IProgressMonitor)}
+	 * for a playback until a failure which can be cancelled).
+	 *
+	 * @param macroService
+	 *            the macro service (used to notify listeners of the change.
+	 * @param macroPlaybackContext
+	 *            a context to be used to playback the macro (passed to the macro to
+	 *            be played back).
+	 * @return the number of times that the macro was completely played back
+	 *         before the failure.
+	 */
+	public int playbackLastMacroUntilFailure(EMacroService macroService,
+			final IMacroPlaybackContext macroPlaybackContext) {
+		int maxPlaybacks = fMaxPlaybacksUntilFailure;
+		int played;
+		try {
+			played = playbackLastMacro(macroService, macroPlaybackContext, maxPlaybacks, true);
+		} catch (MacroPlaybackException e) {
+			// Not thrown when playing back until a failure.
+			throw new AssertionError(e);
+		}
+		if (played == maxPlaybacks) {
+			logMaxPlaybacksUntilFailureReached(played);
+		}
+		return played;
+	}
+
+	/**
+	 * Plays back the last recorded macro repeatedly until some playback fails as
+	 * {@link #playbackLastMacroUntilFailure(EMacroService, IMacroPlaybackContext)},
+	 * but in time slices (see
+	 * {@link #scheduleLastMacroPlayback(EMacroService, IMacroPlaybackContext, Executor, IProgressMonitor, boolean)}),
+	 * so, the playback may be cancelled through the monitor between slices.
+	 *
+	 * @param macroService
+	 *            the macro service (used to notify listeners of the change.
+	 * @param macroPlaybackContext
+	 *            a context to be used to playback the macro (passed to the macro to
+	 *            be played back).
+	 * @param executor
+	 *            the executor which runs the slices after the first one.
+	 * @param monitor
+	 *            the monitor to be checked for cancellation (may be
+	 *            {@code null}).
+	 * @return a future completed with the number of times that the macro was
+	 *         completely played back before the failure (0 if it was not played
+	 *         back) or exceptionally with the
+	 *         {@link CancelMacroPlaybackException} which cancelled the playback.
+	 */
+	public CompletableFuture<Integer> scheduleLastMacroPlaybackUntilFailure(EMacroService macroService,
+			final IMacroPlaybackContext macroPlaybackContext, Executor executor, IProgressMonitor monitor) {
+		int maxPlaybacks = fMaxPlaybacksUntilFailure;
+		UntilFailurePlaybackCursor[] cursor = new UntilFailurePlaybackCursor[1];
+		return schedulePlayback(macroService, macroPlaybackContext, executor, monitor,
+				TimeUnit.MILLISECONDS.toNanos(fPlaybackSliceMillis), macro -> {
+					cursor[0] = new UntilFailurePlaybackCursor(macro.prepareRepeatedPlayback(),
+							macroPlaybackContext, maxPlaybacks);
+					return cursor[0];
+				}).thenApply(played -> {
+					if (!played) {
+						return 0;
+					}
+					int playedTimes = cursor[0].getPlayed();
+					if (playedTimes == maxPlaybacks) {
+						logMaxPlaybacksUntilFailureReached(playedTimes);
+					}
+					return playedTimes;
+				});
+	}
+
+	private static void logMaxPlaybacksUntilFailureReached(int played) {
+		Activator.log(IStatus.WARNING, NLS.bind(Messages.MacroManager_MaxPlaybacksUntilFailureReached, played));
+	}
+
+	private int playbackLastMacro(EMacroService macroService, final IMacroPlaybackContext macroPlaybackContext,
+			int times, boolean untilFailure) throws MacroPlaybackException {
+		int played = 0;
+		if (fIsPlayingBack) {
+			return played;
+		}
+		IMacro lastMacro = acquireLastMacro();
+		if (lastMacro != null) {
 			// Note that we can play back while recording, but we can't change
 			// the recording mode while playing back.
 			fIsPlayingBack = true;
@@ -445,14 +1404,202 @@ public class MacroManager {
 				}
 
 				if (notifyMacroStateChange(macroService, StateChange.PLAYBACK_STARTED)) {
-					fLastMacro.playback(macroPlaybackContext);
+					IMacro macro = times > 1 ? lastMacro.prepareRepeatedPlayback() : lastMacro;
+					for (; played < times; played++) {
+						MacroPlaybackException exception = null;
+						try {
+							macro.playback(macroPlaybackContext);
+						} catch (MacroPlaybackException e) {
+							exception = e;
+						} finally {
+							// The work left pending by the macro instructions executed
+							// before a failure (such as text typed) is still done.
+							exception = completeDeferredPlayback(macroPlaybackContext, exception);
+						}
+						if (exception != null) {
+							if (untilFailure) {
+								break;
+							}
+							throw exception;
+						}
+					}
 				}
 			} finally {
-				fIsPlayingBack = false;
-				notifyMacroStateChange(macroService, StateChange.PLAYBACK_FINISHED);
-				fMacroPlaybackContext = null;
+				finishPlayback(macroService, lastMacro);
+			}
+		}
+		return played;
+	}
+
+	/**
+	 * Plays back the last recorded macro in time slices (see
+	 * {@link #setPlaybackSliceMillis(int)}). The first slice is run right away
+	 * and the next ones are submitted to the given executor, so, if the executor
+	 * runs its tasks asynchronously in the UI thread, the UI remains responsive
+	 * during the playback. The cancellation is checked between slices.
+	 *
+	 * Should be called in the same thread where the executor runs its tasks (the
+	 * listeners are notified in that thread).
+	 *
+	 * @param macroService
+	 *            the macro service (used to notify listeners of the change.
+	 * @param macroPlaybackContext
+	 *            a context to be used to playback the macro (passed to the macro to
+	 *            be played back).
+	 * @param executor
+	 *            the executor which runs the slices after the first one.
+	 * @param monitor
+	 *            the monitor to report the progress and to be checked for
+	 *            cancellation (may be {@code null}).
+	 * @param maxSpeed
+	 *            if true, the macro is played back without time slices (the
+	 *            cancellation is still checked from time to time).
+	 * @return a future completed with true when the macro is completely played
+	 *         back, with false if it was not played back (there's no macro,
+	 *         some other playback is running or a listener vetoed it) or
+	 *         exceptionally with the {@link CancelMacroPlaybackException} or
+	 *         {@link MacroPlaybackException} which stopped the playback. The
+	 *         playback is already finished when the future is completed.
+	 */
+	public CompletableFuture<Boolean> scheduleLastMacroPlayback(EMacroService macroService,
+			final IMacroPlaybackContext macroPlaybackContext, Executor executor, IProgressMonitor monitor,
+			boolean maxSpeed) {
+		long sliceNanos = maxSpeed ? 0 : TimeUnit.MILLISECONDS.toNanos(fPlaybackSliceMillis);
+		return schedulePlayback(macroService, macroPlaybackContext, executor, monitor, sliceNanos,
+				macro -> macro.startPlayback(macroPlaybackContext));
+	}
+
+	/**
+	 * Creates the cursor used in a scheduled playback of a macro.
+	 */
+	private interface IPlaybackCursorFactory {
+		IMacroPlaybackCursor create(IMacro macro) throws MacroPlaybackException;
+	}
+
+	private CompletableFuture<Boolean> schedulePlayback(EMacroService macroService,
+			final IMacroPlaybackContext macroPlaybackContext, Executor executor, IProgressMonitor monitor,
+			long sliceNanos, IPlaybackCursorFactory cursorFactory) {
+		if (fIsPlayingBack) {
+			return CompletableFuture.completedFuture(Boolean.FALSE);
+		}
+		IMacro macro = acquireLastMacro();
+		if (macro == null) {
+			return CompletableFuture.completedFuture(Boolean.FALSE);
+		}
+		fIsPlayingBack = true;
+		try {
+			fMacroPlaybackContext = macroPlaybackContext;
+			for (IMacroStateListener listener : fStateListeners) {
+				SafeRunner.run(() -> listener.macroPlaybackContextCreated(macroPlaybackContext));
 			}
+			if (notifyMacroStateChange(macroService, StateChange.PLAYBACK_STARTED)) {
+				IMacroPlaybackCursor cursor = cursorFactory.create(macro);
+				return new MacroPlaybackScheduler(cursor, macroPlaybackContext, executor, monitor, sliceNanos,
+						() -> finishPlayback(macroService, macro)).start();
+			}
+			finishPlayback(macroService, macro);
+			return CompletableFuture.completedFuture(Boolean.FALSE);
+		} catch (RuntimeException | MacroPlaybackException e) {
+			finishPlayback(macroService, macro);
+			CompletableFuture<Boolean> future = new CompletableFuture<>();
+			future.completeExceptionally(e);
+			return future;
+		}
+	}
+
+	private void finishPlayback(EMacroService macroService, IMacro macro) {
+		macro.release();
+		fIsPlayingBack = false;
+		notifyMacroStateChange(macroService, StateChange.PLAYBACK_FINISHED);
+		fMacroPlaybackContext = null;
+	}
+
+	/**
+	 * Plays back the last recorded macro in a headless context (i.e.: applying it
+	 * to a text buffer instead of an editor). Unlike the other playbacks, the
+	 * listeners are not notified and it may be called from any thread (and many
+	 * headless playbacks may run concurrently, each in its own context).
+	 *
+	 * @param macroPlaybackContext
+	 *            the headless context with the text buffer to which the macro
+	 *            should be applied.
+	 * @return false if there's no macro to be played back and true otherwise.
+	 * @throws MacroPlaybackException
+	 *             if some error happens when running the macro or if it has some
+	 *             macro instruction which is not supported in a headless context.
+	 */
+	public boolean playbackLastMacroHeadless(HeadlessMacroPlaybackContext macroPlaybackContext)
+			throws MacroPlaybackException {
+		IMacro macro = acquireLastMacro();
+		if (macro == null) {
+			return false;
 		}
+		try {
+			macro.playback(macroPlaybackContext);
+		} finally {
+			macro.release();
+		}
+		return true;
+	}
+
+	/**
+	 * Applies the last recorded macro to the given files in parallel (each file is
+	 * loaded in a text buffer and the macro is played back in its own headless
+	 * context).
+	 *
+	 * @param files
+	 *            the files to which the macro should be applied.
+	 * @param charset
+	 *            the charset used to read and write the files.
+	 * @param dryRun
+	 *            if true, the files are not written (the results just report
+	 *            which files would be changed).
+	 * @return the result for each file (in the same order of the files) or an
+	 *         empty list if there's no macro to be applied.
+	 * @throws MacroPlaybackException
+	 *             if the macro has some macro instruction which can't be played
+	 *             back without an editor (in which case no file is touched).
+	 */
+	public List<MacroFileResult> applyLastMacroToFiles(List<Path> files, Charset charset, boolean dryRun)
+			throws MacroPlaybackException {
+		IMacro macro = acquireLastMacro();
+		if (macro == null) {
+			return Collections.emptyList();
+		}
+		try {
+			return HeadlessMacroBatch.apply(macro, files, charset, dryRun,
+					Runtime.getRuntime().availableProcessors());
+		} finally {
+			macro.release();
+		}
+	}
+
+	/* default */ static void completeDeferredPlayback(IMacroPlaybackContext macroPlaybackContext)
+			throws MacroPlaybackException {
+		if (macroPlaybackContext instanceof MacroPlaybackContextImpl) {
+			((MacroPlaybackContextImpl) macroPlaybackContext).completeDeferredPlayback();
+		}
+	}
+
+	/**
+	 * Completes the work left pending in the given context, even if the playback
+	 * already failed.
+	 *
+	 * @return the exception which made the playback fail (the first one if both
+	 *         the playback and the pending work failed) or {@code null} if none
+	 *         failed.
+	 */
+	private static MacroPlaybackException completeDeferredPlayback(IMacroPlaybackContext macroPlaybackContext,
+			MacroPlaybackException exception) {
+		try {
+			completeDeferredPlayback(macroPlaybackContext);
+		} catch (MacroPlaybackException e) {
+			if (exception == null) {
+				return e;
+			}
+			exception.addSuppressed(e);
+		}
+		return exception;
 	}
 
 	/**
@@ -496,11 +1643,21 @@ public class MacroManager {
 	 * Reloads the macros available from the disk.
 	 */
 	public void reloadMacros() {
+		recoverMacroJournals();
+		fCompiledMacroCache.invalidateStale();
 		for (File macroDirectory : fMacrosDirectories) {
 			if (macroDirectory.isDirectory()) {
-				List<StoredMacroReference> storedMacroReferences = listTemporaryMacroReferences(macroDirectory);
-				if (storedMacroReferences.size() > 0) {
-					fLastMacro = new SavedXMLMacro(storedMacroReferences.get(0).fPath.toFile());
+				MacroDirectoryIndex index = getDirectoryIndex(macroDirectory);
+				StoredMacroReference newest;
+				if (index != null) {
+					newest = index.getNewest();
+				} else {
+					List<StoredMacroReference> storedMacroReferences = listTemporaryMacroReferences(macroDirectory);
+					newest = storedMacroReferences.isEmpty() ? null : storedMacroReferences.get(0);
+				}
+				if (newest != null) {
+					disposeIfNotLastMacro(
+							LAST_MACRO.getAndSet(this, new SavedXMLMacro(newest.fPath.toFile(), fCompiledMacroCache)));
 					return; // Load the last from the first directory (others aren't used for the last
 							// macro).
 				}
@@ -512,14 +1669,32 @@ public class MacroManager {
 
 	private final ListenerList<IMacroInstructionsListener> fMacroInstructionsListeners = new ListenerList<>();
 
+	/**
+	 * Notifiers for the {@link ICoalescedMacroInstructionsListener}s (which are not
+	 * notified synchronously).
+	 */
+	private final ListenerList<CoalescedMacroInstructionsNotifier> fCoalescedNotifiers = new ListenerList<>();
+
 	/**
 	 * Adds a macro instructions listener (it may be added to validate the current
-	 * state of the macro recording).
+	 * state of the macro recording). A {@link ICoalescedMacroInstructionsListener}
+	 * is notified asynchronously (with the macro instructions added in the
+	 * meanwhile coalesced in a single notification).
 	 *
 	 * @param macroInstructionsListener
 	 *            the listener for macro instructions.
 	 */
 	public void addMacroInstructionsListener(IMacroInstructionsListener macroInstructionsListener) {
+		if (macroInstructionsListener instanceof ICoalescedMacroInstructionsListener) {
+			for (CoalescedMacroInstructionsNotifier notifier : fCoalescedNotifiers) {
+				if (notifier.getListener() == macroInstructionsListener) {
+					return;
+				}
+			}
+			fCoalescedNotifiers.add(new CoalescedMacroInstructionsNotifier(
+					(ICoalescedMacroInstructionsListener) macroInstructionsListener));
+			return;
+		}
 		fMacroInstructionsListeners.add(macroInstructionsListener);
 	}
 
@@ -530,6 +1705,12 @@ public class MacroManager {
 	 *            the listener for macro instructions.
 	 */
 	public void removeMacroInstructionsListener(IMacroInstructionsListener macroInstructionsListener) {
+		for (CoalescedMacroInstructionsNotifier notifier : fCoalescedNotifiers) {
+			if (notifier.getListener() == macroInstructionsListener) {
+				notifier.dispose();
+				fCoalescedNotifiers.remove(notifier);
+			}
+		}
 		fMacroInstructionsListeners.remove(macroInstructionsListener);
 	}
 
@@ -555,6 +1736,16 @@ public class MacroManager {
 		return fMacroPlaybackContext;
 	}
 
+	/**
+	 * Provides the cache with the macro instructions created when playing back
+	 * macros stored on disk.
+	 *
+	 * @return the cache used for stored macros.
+	 */
+	public CompiledMacroCache getCompiledMacroCache() {
+		return fCompiledMacroCache;
+	}
+
 	/**
 	 * Provides the number of macro instructions in the macro being currently
 	 * recorded or -1 if there is no macro being recorded.
@@ -0,0 +1,72 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Fabio Zadrozny and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Fabio Zadrozny - initial API and implementation - http://eclip.se/8519
+ *******************************************************************************/
+package org.xeclipse.macros.macro_plugin.core.internal;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Reports what was removed when a recorded macro was optimized.
+ */
+public class MacroOptimizationReport {
+
+	private final Map<String, Integer> fRemoved = new LinkedHashMap<>();
+
+	private int fOriginalLength;
+
+	private int fOptimizedLength;
+
+	/* default */ void addRemoved(String optimizerName, int removed) {
+		fRemoved.merge(optimizerName, removed, Integer::sum);
+	}
+
+	/* default */ void setLengths(int originalLength, int optimizedLength) {
+		fOriginalLength = originalLength;
+		fOptimizedLength = optimizedLength;
+	}
+
+	/**
+	 * @return the number of macro instructions removed by each optimizer (only
+	 *         optimizers which removed something are available).
+	 */
+	public Map<String, Integer> getRemoved() {
+		return Collections.unmodifiableMap(fRemoved);
+	}
+
+	/**
+	 * @return the number of macro instructions in the macro before the
+	 *         optimization.
+	 */
+	public int getOriginalLength() {
+		return fOriginalLength;
+	}
+
+	/**
+	 * @return the number of macro instructions in the macro after the
+	 *         optimization.
+	 */
+	public int getOptimizedLength() {
+		return fOptimizedLength;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder buf = new StringBuilder();
+		buf.append("Macro optimized from ").append(fOriginalLength).append(" to ").append(fOptimizedLength) //$NON-NLS-1$ //$NON-NLS-2$
+				.append(" macro instructions."); //$NON-NLS-1$
+		for (Entry<String, Integer> entry : fRemoved.entrySet()) {
+			buf.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue()); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		return buf.toString();
+	}
+}
@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Fabio Zadrozny and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Fabio Zadrozny - initial API and implementation - http://eclip.se/8519
+ *******************************************************************************/
+package org.xeclipse.macros.macro_plugin.core.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.eclipse.core.runtime.Assert;
+import org.xeclipse.macros.macro_plugin.core.Activator;
+import org.xeclipse.macros.macro_plugin.core.IMacroInstruction;
+import org.xeclipse.macros.macro_plugin.core.IMacroInstructionFactory;
+import org.xeclipse.macros.macro_plugin.core.IMacroInstructionsOptimizer;
+
+/**
+ * Applies {@link IMacroInstructionsOptimizer}s to a recorded macro, creating a
+ * new macro with the macro instructions which were kept (packed macro
+ * instructions are only created for the optimizers to check those and are
+ * still kept packed in the new macro).
+ *
+ * The macro instructions are visited in order and the ones kept are held in a
+ * window (which the optimizers may look back into) before being added to the
+ * new macro, so, the memory used doesn't depend on the size of the macro.
+ */
+/* default */ final class MacroOptimizer {
+
+	/**
+	 * Min number of previous macro instructions available to the optimizers.
+	 */
+	/* default */ static final int WINDOW_SIZE = 256;
+
+	private MacroOptimizer() {
+	}
+
+	/**
+	 * Creates an optimized version of the given macro.
+	 *
+	 * @param macro
+	 *            the macro to be optimized (not changed).
+	 * @param optimizers
+	 *            the optimizers to be applied (for each macro instruction, the
+	 *            first optimizer which doesn't keep it decides what's removed).
+	 * @param memoryBudget
+	 *            the memory budget of the optimized macro.
+	 * @param report
+	 *            receives what was removed.
+	 * @return a new macro with the macro instructions which were kept.
+	 */
+	/* default */ static ComposableMacro optimize(ComposableMacro macro, List<IMacroInstructionsOptimizer> optimizers,
+			int memoryBudget, MacroOptimizationReport report) {
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = macro.getMacroInstructionIdToFactory();
+		ComposableMacro optimized = new ComposableMacro(macroInstructionIdToFactory);
+		optimized.setMemoryBudget(memoryBudget);
+
+		List<IMacroInstruction> window = new ArrayList<>(2 * WINDOW_SIZE);
+		List<IMacroInstruction> previous = Collections.unmodifiableList(window);
+		// The index in the macro of each macro instruction in the window (the kept
+		// macro instructions are copied from the macro, so, packed ones are kept
+		// packed in the optimized macro).
+		int[] windowIndexes = new int[2 * WINDOW_SIZE];
+		List<IMacroInstruction> macroInstructions = macro.getMacroInstructions();
+		for (int i = 0, length = macroInstructions.size(); i < length; i++) {
+			IMacroInstruction macroInstruction = macroInstructions.get(i);
+			if (macroInstruction instanceof StoredMacroInstruction) {
+				// Spilled to the disk: recreate it so that optimizers see the
+				// actual macro instruction.
+				macroInstruction = recreate((StoredMacroInstruction) macroInstruction, macroInstructionIdToFactory);
+			}
+			boolean keep = true;
+			for (IMacroInstructionsOptimizer optimizer : optimizers) {
+				int removePrevious = optimizer.optimize(previous, macroInstruction);
+				if (removePrevious != IMacroInstructionsOptimizer.KEEP) {
+					Assert.isLegal(removePrevious >= 0 && removePrevious <= window.size(),
+							String.format("Optimizer: %s asked to remove %s macro instructions (available: %s).", //$NON-NLS-1$
+									optimizer.getName(), removePrevious, window.size()));
+					window.subList(window.size() - removePrevious, window.size()).clear();
+					report.addRemoved(optimizer.getName(), removePrevious + 1);
+					keep = false;
+					break;
+				}
+			}
+			if (keep) {
+				windowIndexes[window.size()] = i;
+				window.add(macroInstruction);
+				if (window.size() == 2 * WINDOW_SIZE) {
+					for (int j = 0; j < WINDOW_SIZE; j++) {
+						optimized.addMacroInstructionOf(macro, windowIndexes[j]);
+					}
+					System.arraycopy(windowIndexes, WINDOW_SIZE, windowIndexes, 0, WINDOW_SIZE);
+					window.subList(0, WINDOW_SIZE).clear();
+				}
+			}
+		}
+		for (int j = 0; j < window.size(); j++) {
+			optimized.addMacroInstructionOf(macro, windowIndexes[j]);
+		}
+		report.setLengths(macro.getLength(), optimized.getLength());
+		return optimized;
+	}
+
+	private static IMacroInstruction recreate(StoredMacroInstruction storedMacroInstruction,
+			Map<String, IMacroInstructionFactory> macroInstructionIdToFactory) {
+		IMacroInstructionFactory macroInstructionFactory = macroInstructionIdToFactory
+				.get(storedMacroInstruction.getId());
+		if (macroInstructionFactory != null) {
+			try {
+				return macroInstructionFactory.create(storedMacroInstruction.toMap());
+			} catch (Exception e) {
+				Activator.log(e);
+			}
+		}
+		return storedMacroInstruction;
+	}
+}
@@ -10,11 +10,15 @@
  *******************************************************************************/
 package org.xeclipse.macros.macro_plugin.core.internal;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import org.xeclipse.macros.macro_plugin.core.IMacroInstruction;
 import org.xeclipse.macros.macro_plugin.core.IMacroInstructionFactory;
 import org.xeclipse.macros.macro_plugin.core.IMacroPlaybackContext;
+import org.xeclipse.macros.macro_plugin.core.MacroPlaybackException;
 
 /**
  * Provides a way to recreate commands when playing back a macro.
@@ -25,6 +29,31 @@ public class MacroPlaybackContextImpl implements IMacroPlaybackContext {
 
 	private Map<String, IMacroInstructionFactory> fMacroInstructionIdToFactory;
 
+	/**
+	 * Max number of shareable macro instructions kept (afterwards, new macro
+	 * instructions are still created but are no longer shared).
+	 */
+	private static final int MAX_SHARED_MACRO_INSTRUCTIONS = 4096;
+
+	/**
+	 * The macro instructions created by factories which declared those as
+	 * shareable (by id and then by parameters).
+	 */
+	private final Map<String, Map<Map<String, String>, IMacroInstruction>> fSharedMacroInstructions = new HashMap<>();
+
+	private int fSharedMacroInstructionsCount;
+
+	/**
+	 * Work left pending by the last macro instructions executed (in the order it
+	 * was added).
+	 */
+	private final List<IDeferredMacroPlayback> fDeferredPlaybacks = new ArrayList<>(2);
+
+	/**
+	 * Checks done before a playback done in time slices is resumed.
+	 */
+	private final List<IMacroPlaybackResumeCheck> fResumeChecks = new ArrayList<>(1);
+
 	/**
 	 * @param macroInstructionIdToFactory
 	 *            a map pointing from the macro instruction id to the factory used
@@ -47,14 +76,169 @@ public class MacroPlaybackContextImpl implements IMacroPlaybackContext {
 	@Override
 	public void runMacroInstruction(String macroInstructionId, Map<String, String> macroInstructionParameters)
 			throws Exception {
+		IMacroInstruction macroInstruction = createMacroInstruction(macroInstructionId, macroInstructionParameters);
+		execute(macroInstruction);
+	}
+
+	/**
+	 * Executes the given macro instruction in this context (completing the work
+	 * left pending by previous macro instructions which can't be merged with the
+	 * given one).
+	 *
+	 * @param macroInstruction
+	 *            the macro instruction to be executed.
+	 * @throws MacroPlaybackException
+	 *             if some error happens executing the macro instruction or
+	 *             completing the pending work.
+	 */
+	@Override
+	public void execute(IMacroInstruction macroInstruction) throws MacroPlaybackException {
+		for (int i = 0; i < fDeferredPlaybacks.size(); i++) {
+			if (!fDeferredPlaybacks.get(i).canDefer(macroInstruction)) {
+				// Work added afterwards may depend on it, so, complete it too.
+				completeDeferredPlayback(i);
+				break;
+			}
+		}
+		macroInstruction.execute(this);
+	}
+
+	/**
+	 * Provides the pending work of the given type.
+	 *
+	 * @param deferredPlaybackClass
+	 *            the type of the pending work.
+	 * @return the last pending work of the given type added or {@code null} if
+	 *         there's none.
+	 */
+	public <T extends IDeferredMacroPlayback> T getDeferredPlayback(Class<T> deferredPlaybackClass) {
+		for (int i = fDeferredPlaybacks.size() - 1; i >= 0; i--) {
+			IDeferredMacroPlayback deferredPlayback = fDeferredPlaybacks.get(i);
+			if (deferredPlaybackClass.isInstance(deferredPlayback)) {
+				return deferredPlaybackClass.cast(deferredPlayback);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Adds work to be completed later on (pending work is completed in the
+	 * reverse order in which it was added).
+	 *
+	 * @param deferredPlayback
+	 *            the work to be completed before executing a macro instruction
+	 *            which can't be merged with it or when the playback finishes.
+	 */
+	public void addDeferredPlayback(IDeferredMacroPlayback deferredPlayback) {
+		fDeferredPlaybacks.add(deferredPlayback);
+	}
+
+	/**
+	 * Adds a check to be done before a playback done in time slices is resumed in
+	 * a new slice.
+	 *
+	 * @param resumeCheck
+	 *            the check which may fail the playback before it's resumed.
+	 */
+	public void addResumeCheck(IMacroPlaybackResumeCheck resumeCheck) {
+		fResumeChecks.add(resumeCheck);
+	}
+
+	/**
+	 * Checks whether the playback may be resumed in a new slice.
+	 *
+	 * @throws MacroPlaybackException
+	 *             if some check doesn't allow the playback to be resumed.
+	 */
+	/* default */ void checkResume() throws MacroPlaybackException {
+		for (IMacroPlaybackResumeCheck resumeCheck : fResumeChecks) {
+			resumeCheck.checkResume();
+		}
+	}
+
+	/**
+	 * Completes all the work left pending by the last macro instructions executed.
+	 *
+	 * @throws MacroPlaybackException
+	 *             if it was not possible to complete the pending work.
+	 */
+	public void completeDeferredPlayback() throws MacroPlaybackException {
+		completeDeferredPlayback(0);
+	}
+
+	/**
+	 * Completes the pending work from the last one added up to the given index
+	 * (even if completing some of it fails).
+	 */
+	private void completeDeferredPlayback(int fromIndex) throws MacroPlaybackException {
+		MacroPlaybackException exception = null;
+		while (fDeferredPlaybacks.size() > fromIndex) {
+			IDeferredMacroPlayback deferredPlayback = fDeferredPlaybacks.remove(fDeferredPlaybacks.size() - 1);
+			try {
+				deferredPlayback.complete();
+			} catch (MacroPlaybackException e) {
+				if (exception == null) {
+					exception = e;
+				}
+			} catch (Exception e) {
+				if (exception == null) {
+					exception = new MacroPlaybackException(e.getMessage(), e);
+				}
+			}
+		}
+		if (exception != null) {
+			throw exception;
+		}
+	}
+
+	/**
+	 * Creates a macro instruction given its id and parameters (without running
+	 * it). If the related factory declares its macro instructions as shareable,
+	 * the macro instruction previously created in this context for equal
+	 * parameters is returned.
+	 *
+	 * @param macroInstructionId
+	 *            the id of the macro instruction to be created.
+	 * @param macroInstructionParameters
+	 *            the parameters to create the macro instruction.
+	 * @return the macro instruction created by the related factory.
+	 * @throws Exception
+	 *             if it was not possible to create the macro instruction with the
+	 *             given parameters.
+	 */
+	public IMacroInstruction createMacroInstruction(String macroInstructionId,
+			Map<String, String> macroInstructionParameters) throws Exception {
 		IMacroInstructionFactory macroFactory = fMacroInstructionIdToFactory.get(macroInstructionId);
 		if (macroFactory == null) {
-			throw new IllegalStateException("Unable to find IMacroInstructionFactory for macro instruction: " //$NON-NLS-1$
+			throw new MacroPlaybackException("Unable to find IMacroInstructionFactory for macro instruction: " //$NON-NLS-1$
 					+ macroInstructionId);
 		}
 
-		IMacroInstruction macroInstruction = macroFactory.create(macroInstructionParameters);
-		macroInstruction.execute(this);
+		if (!macroFactory.isShareable()) {
+			return macroFactory.create(macroInstructionParameters);
+		}
+		Map<Map<String, String>, IMacroInstruction> parametersToMacroInstruction = fSharedMacroInstructions
+				.computeIfAbsent(macroInstructionId, id -> new HashMap<>());
+		IMacroInstruction macroInstruction = parametersToMacroInstruction.get(macroInstructionParameters);
+		if (macroInstruction == null) {
+			macroInstruction = macroFactory.create(macroInstructionParameters);
+			if (fSharedMacroInstructionsCount < MAX_SHARED_MACRO_INSTRUCTIONS) {
+				// Copy as the parameters could be changed by the caller afterwards.
+				parametersToMacroInstruction.put(Collections.unmodifiableMap(new HashMap<>(macroInstructionParameters)),
+						macroInstruction);
+				fSharedMacroInstructionsCount++;
+			}
+		}
+		return macroInstruction;
+	}
 
+	/**
+	 * Provides the factories used to create macro instructions in this context.
+	 *
+	 * @return a map pointing from the macro instruction id to the factory used to
+	 *         create the related macro instruction.
+	 */
+	public Map<String, IMacroInstructionFactory> getMacroInstructionIdToFactory() {
+		return fMacroInstructionIdToFactory;
 	}
 }
@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Fabio Zadrozny and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Fabio Zadrozny - initial API and implementation - http://eclip.se/8519
+ *******************************************************************************/
+package org.xeclipse.macros.macro_plugin.core.internal;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.xeclipse.macros.macro_plugin.core.CancelMacroPlaybackException;
+import org.xeclipse.macros.macro_plugin.core.IMacroPlaybackContext;
+import org.xeclipse.macros.macro_plugin.core.MacroPlaybackException;
+
+/**
+ * Plays back a macro in time slices: the steps of the playback are run until
+ * the slice time is over and then the playback is resumed in a new slice
+ * submitted to the executor (so, when the executor runs tasks in the UI thread,
+ * the UI keeps on processing its events between slices). The progress is
+ * reported to a progress monitor, which is also checked for cancellation
+ * between slices.
+ *
+ * Before resuming the playback in a new slice, the checks added to the context
+ * (see {@link MacroPlaybackContextImpl#addResumeCheck(IMacroPlaybackResumeCheck)})
+ * may still fail it.
+ *
+ * A slice time of 0 plays back at max speed: the whole playback is done in the
+ * first slice (the cancellation is still checked every
+ * {@link #MAX_SPEED_CANCEL_CHECK_INTERVAL} steps).
+ */
+/* default */ final class MacroPlaybackScheduler implements Runnable {
+
+	/**
+	 * Number of steps played back at max speed between checks for cancellation.
+	 */
+	private static final int MAX_SPEED_CANCEL_CHECK_INTERVAL = 1024;
+
+	private final IMacroPlaybackCursor fCursor;
+
+	private final IMacroPlaybackContext fMacroPlaybackContext;
+
+	private final Executor fExecutor;
+
+	private final IProgressMonitor fMonitor;
+
+	private final long fSliceNanos;
+
+	/**
+	 * Called when the playback finishes (either completed, failed or cancelled),
+	 * before the future is completed.
+	 */
+	private final Runnable fOnFinish;
+
+	private final CompletableFuture<Boolean> fFuture = new CompletableFuture<>();
+
+	/**
+	 * Whether the first slice was already run (the next ones resume the playback).
+	 */
+	private boolean fFirstSliceRun;
+
+	/**
+	 * @param cursor
+	 *            the playback to be run.
+	 * @param macroPlaybackContext
+	 *            the context in which the macro is played back.
+	 * @param executor
+	 *            the executor where the slices after the first one are run (it
+	 *            must not run the slices synchronously).
+	 * @param monitor
+	 *            the monitor to report the progress and to be checked for
+	 *            cancellation (may be {@code null}).
+	 * @param sliceNanos
+	 *            the time of each slice in nanoseconds or 0 to play back at max
+	 *            speed.
+	 * @param onFinish
+	 *            called when the playback finishes.
+	 */
+	/* default */ MacroPlaybackScheduler(IMacroPlaybackCursor cursor, IMacroPlaybackContext macroPlaybackContext,
+			Executor executor, IProgressMonitor monitor, long sliceNanos, Runnable onFinish) {
+		fCursor = cursor;
+		fMacroPlaybackContext = macroPlaybackContext;
+		fExecutor = executor;
+		fMonitor = monitor != null ? monitor : new NullProgressMonitor();
+		fSliceNanos = sliceNanos;
+		fOnFinish = onFinish;
+	}
+
+	/**
+	 * Runs the first slice in the current thread (the next slices are run
+	 * through the executor).
+	 *
+	 * @return a future which is completed with true when the playback finishes or
+	 *         exceptionally with the {@link CancelMacroPlaybackException} or
+	 *         {@link MacroPlaybackException} which stopped it.
+	 */
+	/* default */ CompletableFuture<Boolean> start() {
+		fMonitor.beginTask(Messages.MacroPlaybackScheduler_TaskName, fCursor.getTotalSteps());
+		run();
+		return fFuture;
+	}
+
+	/**
+	 * Runs a single slice of the playback. When the playback finishes (completed,
+	 * failed or cancelled), the cursor is closed and the work left pending by the
+	 * macro instructions already executed is completed before the playback is
+	 * finished (as done when a playback which is not scheduled fails).
+	 */
+	@Override
+	public void run() {
+		Throwable exception = null;
+		boolean resumed = false;
+		try {
+			resumed = runSlice();
+		} catch (Throwable e) {
+			exception = e;
+		} finally {
+			if (!resumed) {
+				try {
+					fCursor.close();
+				} finally {
+					finish(completeDeferredPlayback(exception));
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true if the playback continues in a new slice submitted to the
+	 *         executor and false if it's finished.
+	 */
+	private boolean runSlice() throws MacroPlaybackException, CancelMacroPlaybackException {
+		if (fMonitor.isCanceled()) {
+			throw new CancelMacroPlaybackException();
+		}
+		if (fFirstSliceRun && fMacroPlaybackContext instanceof MacroPlaybackContextImpl) {
+			((MacroPlaybackContextImpl) fMacroPlaybackContext).checkResume();
+		}
+		fFirstSliceRun = true;
+		long sliceStart = System.nanoTime();
+		int steps = 0;
+		while (fCursor.playbackNext()) {
+			fMonitor.worked(1);
+			steps++;
+			if (fSliceNanos == 0) {
+				if (steps % MAX_SPEED_CANCEL_CHECK_INTERVAL == 0 && fMonitor.isCanceled()) {
+					throw new CancelMacroPlaybackException();
+				}
+			} else if (System.nanoTime() - sliceStart >= fSliceNanos) {
+				// Show what was played back so far before giving control back.
+				MacroManager.completeDeferredPlayback(fMacroPlaybackContext);
+				fExecutor.execute(this);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Completes the work left pending in the playback context, even if the
+	 * playback already failed or was cancelled.
+	 *
+	 * @return the exception which stopped the playback (the first one if both the
+	 *         playback and the pending work failed) or {@code null} if none
+	 *         failed.
+	 */
+	private Throwable completeDeferredPlayback(Throwable exception) {
+		try {
+			MacroManager.completeDeferredPlayback(fMacroPlaybackContext);
+		} catch (Throwable e) {
+			if (exception == null) {
+				return e;
+			}
+			exception.addSuppressed(e);
+		}
+		return exception;
+	}
+
+	private void finish(Throwable exception) {
+		try {
+			fMonitor.done();
+			fOnFinish.run();
+		} finally {
+			if (exception == null) {
+				fFuture.complete(Boolean.TRUE);
+			} else {
+				fFuture.completeExceptionally(exception);
+			}
+		}
+	}
+}
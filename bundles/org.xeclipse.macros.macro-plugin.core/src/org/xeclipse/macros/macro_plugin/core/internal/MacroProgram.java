@@ -0,0 +1,346 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Fabio Zadrozny and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Fabio Zadrozny - initial API and implementation - http://eclip.se/8519
+ *******************************************************************************/
+package org.xeclipse.macros.macro_plugin.core.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import org.xeclipse.macros.macro_plugin.core.IMacroInstruction;
+import org.xeclipse.macros.macro_plugin.core.IMacroInstructionFactory;
+import org.xeclipse.macros.macro_plugin.core.IMacroOpcodeHandler;
+import org.xeclipse.macros.macro_plugin.core.MacroPlaybackException;
+
+/**
+ * A macro compiled to a flat opcode program (which is immutable, so, it may be
+ * cached and played back many times).
+ *
+ * The code is a sequence of:
+ *
+ * <pre>
+ * opcode | operands count | operands
+ * </pre>
+ *
+ * where the opcode is either {@link #OP_EXECUTE} (with the index in the
+ * constant pool of a macro instruction to be executed), {@link #OP_REPEAT}
+ * (with the number of times that the next macro instruction should be
+ * executed) or {@link #FIRST_HANDLER_OPCODE} plus the index of the
+ * {@link IMacroOpcodeHandler} which lowered the macro instruction (with the
+ * operands created by that handler).
+ */
+public final class MacroProgram {
+
+	/* default */ static final int OP_EXECUTE = 0;
+
+	/* default */ static final int OP_REPEAT = 1;
+
+	/* default */ static final int FIRST_HANDLER_OPCODE = 2;
+
+	private final int[] fCode;
+
+	private final Object[] fConstants;
+
+	private final IMacroOpcodeHandler[] fHandlers;
+
+	private MacroProgram(int[] code, Object[] constants, IMacroOpcodeHandler[] handlers) {
+		fCode = code;
+		fConstants = constants;
+		fHandlers = handlers;
+	}
+
+	/**
+	 * @return the length of the code of this program.
+	 */
+	public int getCodeLength() {
+		return fCode.length;
+	}
+
+	/**
+	 * @return the number of constants in the pool of this program.
+	 */
+	public int getConstantsCount() {
+		return fConstants.length;
+	}
+
+	/**
+	 * Checks that all the macro instructions kept as objects in this program can
+	 * be executed in the given context (each distinct macro instruction is checked
+	 * only once). Macro instructions lowered by a handler were already validated
+	 * when compiled.
+	 *
+	 * @param macroPlaybackContext
+	 *            the context in which the macro will be played back.
+	 * @throws MacroPlaybackException
+	 *             if some macro instruction can't be executed in the given context.
+	 */
+	public void resolve(MacroPlaybackContextImpl macroPlaybackContext) throws MacroPlaybackException {
+		for (Object constant : fConstants) {
+			if (constant instanceof IMacroInstruction) {
+				macroPlaybackContext.resolve((IMacroInstruction) constant);
+			}
+		}
+	}
+
+	/**
+	 * Plays back this program in the given context.
+	 *
+	 * @param macroPlaybackContext
+	 *            the context in which the macro is being played back.
+	 * @throws Exception
+	 *             if some error happened executing a macro instruction.
+	 */
+	public void run(MacroPlaybackContextImpl macroPlaybackContext) throws Exception {
+		final int[] code = fCode;
+		int pc = 0;
+		while (pc < code.length) {
+			int repeat = 1;
+			if (code[pc] == OP_REPEAT) {
+				repeat = code[pc + 2];
+				pc += 3;
+			}
+			for (int i = 0; i < repeat; i++) {
+				execute(macroPlaybackContext, pc);
+			}
+			pc += 2 + code[pc + 1];
+		}
+	}
+
+	/**
+	 * Starts a playback of this program which executes a single macro instruction
+	 * at each step (the program must be already resolved in the given context).
+	 *
+	 * @param macroPlaybackContext
+	 *            the context in which the macro is being played back.
+	 * @return the cursor which plays back the steps of this program.
+	 */
+	/* default */ IMacroPlaybackCursor startPlayback(MacroPlaybackContextImpl macroPlaybackContext) {
+		return new IMacroPlaybackCursor() {
+
+			private int fPc;
+
+			/**
+			 * Number of times that the macro instruction at fPc should still be
+			 * executed (0 if it wasn't started yet).
+			 */
+			private int fRemaining;
+
+			@Override
+			public int getTotalSteps() {
+				return countExecutions();
+			}
+
+			@Override
+			public boolean playbackNext() throws MacroPlaybackException {
+				final int[] code = fCode;
+				if (fRemaining == 0) {
+					if (fPc >= code.length) {
+						return false;
+					}
+					fRemaining = 1;
+					if (code[fPc] == OP_REPEAT) {
+						fRemaining = code[fPc + 2];
+						fPc += 3;
+					}
+				}
+				try {
+					execute(macroPlaybackContext, fPc);
+				} catch (MacroPlaybackException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new MacroPlaybackException(e.getMessage(), e);
+				}
+				fRemaining--;
+				if (fRemaining == 0) {
+					fPc += 2 + code[fPc + 1];
+				}
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * @return the number of macro instructions executed when this program is run.
+	 */
+	/* default */ int countExecutions() {
+		final int[] code = fCode;
+		int count = 0;
+		int pc = 0;
+		while (pc < code.length) {
+			int repeat = 1;
+			if (code[pc] == OP_REPEAT) {
+				repeat = code[pc + 2];
+				pc += 3;
+			}
+			count += repeat;
+			pc += 2 + code[pc + 1];
+		}
+		return count;
+	}
+
+	private void execute(MacroPlaybackContextImpl macroPlaybackContext, int pc) throws Exception {
+		int opcode = fCode[pc];
+		if (opcode == OP_EXECUTE) {
+			macroPlaybackContext.execute((IMacroInstruction) fConstants[fCode[pc + 2]]);
+		} else {
+			fHandlers[opcode - FIRST_HANDLER_OPCODE].execute(macroPlaybackContext, fCode, pc + 2, fConstants);
+		}
+	}
+
+	/**
+	 * Compiles the macro instructions read from a stored macro into a
+	 * {@link MacroProgram}.
+	 */
+	public static final class Compiler implements IStoredMacroInstructionVisitor, IMacroOpcodeHandler.IConstantPool {
+
+		private static final int INITIAL_CODE_CAPACITY = 256;
+
+		private final MacroPlaybackContextImpl fMacroPlaybackContext;
+
+		private int[] fCode = new int[INITIAL_CODE_CAPACITY];
+
+		private int fCodeLength;
+
+		private final List<Object> fConstants = new ArrayList<>();
+
+		private final Map<String, Integer> fStringConstants = new HashMap<>();
+
+		/**
+		 * Constants created by the handlers (by their keys).
+		 */
+		private final Map<Object, Integer> fKeyedConstants = new HashMap<>();
+
+		/**
+		 * Macro instructions in the constant pool (by identity, so that shared macro
+		 * instructions take a single entry).
+		 */
+		private final Map<IMacroInstruction, Integer> fMacroInstructionConstants = new IdentityHashMap<>();
+
+		private final List<IMacroOpcodeHandler> fHandlers = new ArrayList<>();
+
+		/**
+		 * The opcode for each macro instruction id (-1 if it has no handler).
+		 */
+		private final Map<String, Integer> fIdToOpcode = new HashMap<>();
+
+		/**
+		 * @param macroPlaybackContext
+		 *            the context with the factories used to compile the macro
+		 *            instructions (macro instructions without a handler are created
+		 *            through it).
+		 */
+		public Compiler(MacroPlaybackContextImpl macroPlaybackContext) {
+			fMacroPlaybackContext = macroPlaybackContext;
+		}
+
+		@Override
+		public int add(String constant) {
+			Integer index = fStringConstants.get(constant);
+			if (index == null) {
+				index = fConstants.size();
+				fConstants.add(constant);
+				fStringConstants.put(constant, index);
+			}
+			return index;
+		}
+
+		@Override
+		public int add(Object key, Callable<?> constantFactory) throws Exception {
+			Integer index = fKeyedConstants.get(key);
+			if (index == null) {
+				Object constant = constantFactory.call();
+				index = fConstants.size();
+				fConstants.add(constant);
+				fKeyedConstants.put(key, index);
+			}
+			return index;
+		}
+
+		@Override
+		public void visit(String macroInstructionId, Map<String, String> macroInstructionParameters)
+				throws Exception {
+			visit(macroInstructionId, macroInstructionParameters, 1);
+		}
+
+		@Override
+		public void visit(String macroInstructionId, Map<String, String> macroInstructionParameters, int repeat)
+				throws Exception {
+			if (repeat > 1) {
+				emit(OP_REPEAT, new int[] { repeat });
+			}
+			int opcode = getOpcode(macroInstructionId);
+			if (opcode >= 0) {
+				int[] operands = fHandlers.get(opcode - FIRST_HANDLER_OPCODE).compile(macroInstructionParameters,
+						this);
+				if (operands != null) {
+					emit(opcode, operands);
+					return;
+				}
+			}
+			IMacroInstruction macroInstruction = fMacroPlaybackContext.createMacroInstruction(macroInstructionId,
+					macroInstructionParameters);
+			Integer index = fMacroInstructionConstants.get(macroInstruction);
+			if (index == null) {
+				index = fConstants.size();
+				fConstants.add(macroInstruction);
+				fMacroInstructionConstants.put(macroInstruction, index);
+			}
+			emit(OP_EXECUTE, new int[] { index });
+		}
+
+		private int getOpcode(String macroInstructionId) {
+			Integer opcode = fIdToOpcode.get(macroInstructionId);
+			if (opcode == null) {
+				IMacroInstructionFactory factory = fMacroPlaybackContext.getMacroInstructionIdToFactory()
+						.get(macroInstructionId);
+				IMacroOpcodeHandler handler = factory != null ? factory.getOpcodeHandler() : null;
+				if (handler == null) {
+					opcode = -1;
+				} else {
+					opcode = FIRST_HANDLER_OPCODE + fHandlers.size();
+					fHandlers.add(handler);
+				}
+				fIdToOpcode.put(macroInstructionId, opcode);
+			}
+			return opcode;
+		}
+
+		private void emit(int opcode, int[] operands) {
+			int required = fCodeLength + 2 + operands.length;
+			if (required > fCode.length) {
+				fCode = Arrays.copyOf(fCode, Math.max(required, fCode.length * 2));
+			}
+			fCode[fCodeLength++] = opcode;
+			fCode[fCodeLength++] = operands.length;
+			System.arraycopy(operands, 0, fCode, fCodeLength, operands.length);
+			fCodeLength += operands.length;
+		}
+
+		/**
+		 * @return the size of the program compiled so far (as given by
+		 *         {@link CompiledMacroCache#getSize(MacroProgram)} for the built
+		 *         program).
+		 */
+		public int getSize() {
+			return fCodeLength + fConstants.size();
+		}
+
+		/**
+		 * @return the program with the macro instructions compiled so far.
+		 */
+		public MacroProgram build() {
+			return new MacroProgram(Arrays.copyOf(fCode, fCodeLength), fConstants.toArray(),
+					fHandlers.toArray(new IMacroOpcodeHandler[fHandlers.size()]));
+		}
+	}
+}
@@ -11,17 +11,24 @@
 package org.xeclipse.macros.macro_plugin.core.internal;
 
 import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.function.Predicate;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import org.eclipse.core.runtime.Assert;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IConfigurationElement;
 import org.eclipse.core.runtime.IExtensionRegistry;
 import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.e4.core.contexts.ContextInjectionFactory;
 import org.eclipse.e4.core.contexts.IEclipseContext;
@@ -34,6 +41,8 @@ import org.xeclipse.macros.macro_plugin.core.IMacroInstructionsListener;
 import org.xeclipse.macros.macro_plugin.core.IMacroPlaybackContext;
 import org.xeclipse.macros.macro_plugin.core.IMacroRecordContext;
 import org.xeclipse.macros.macro_plugin.core.IMacroStateListener;
+import org.xeclipse.macros.macro_plugin.core.IPackedMacroInstructions;
+import org.xeclipse.macros.macro_plugin.core.MacroFileResult;
 import org.xeclipse.macros.macro_plugin.core.MacroPlaybackException;
 
 /**
@@ -54,6 +63,45 @@ public class MacroServiceImpl implements EMacroService {
 	public static final String MACRO_LISTENERS_EXTENSION_POINT = "org.xeclipse.macros.macro-plugin.core.macroStateListeners"; //$NON-NLS-1$
 	public static final String MACRO_LISTENER_CLASS = "class"; //$NON-NLS-1$
 
+	/**
+	 * System property which may be set to {@code true} to save recorded macros in
+	 * the compact binary format instead of XML.
+	 */
+	public static final String BINARY_FORMAT_PROPERTY = "org.xeclipse.macros.macro_plugin.core.binaryFormat"; //$NON-NLS-1$
+
+	/**
+	 * System property which may be set to the size (in bytes) above which recorded
+	 * macros are saved compressed (a negative value disables compression).
+	 */
+	public static final String COMPRESSION_THRESHOLD_PROPERTY = "org.xeclipse.macros.macro_plugin.core.compressionThreshold"; //$NON-NLS-1$
+
+	/**
+	 * System property which may be set to the max number of macro instructions of
+	 * the macro being recorded which are kept in memory (older ones are spilled to
+	 * the disk; 0 means that there's no limit).
+	 */
+	public static final String RECORDING_MEMORY_BUDGET_PROPERTY = "org.xeclipse.macros.macro_plugin.core.recordingMemoryBudget"; //$NON-NLS-1$
+
+	/**
+	 * System property which may be set to {@code true} so that recorded macros are
+	 * optimized before being saved and played back (removing macro instructions
+	 * which don't change the result of the playback, such as key presses of
+	 * modifiers alone).
+	 */
+	public static final String OPTIMIZE_MACROS_PROPERTY = "org.xeclipse.macros.macro_plugin.core.optimizeMacros"; //$NON-NLS-1$
+
+	/**
+	 * System property which may be set to the time (in milliseconds) of each slice
+	 * of a scheduled playback.
+	 */
+	public static final String PLAYBACK_SLICE_MILLIS_PROPERTY = "org.xeclipse.macros.macro_plugin.core.playbackSliceMillis"; //$NON-NLS-1$
+
+	/**
+	 * System property which may be set to the max number of times that a macro is
+	 * played back when playing it back until a failure.
+	 */
+	public static final String MAX_PLAYBACKS_UNTIL_FAILURE_PROPERTY = "org.xeclipse.macros.macro_plugin.core.maxPlaybacksUntilFailure"; //$NON-NLS-1$
+
 	// id to factory used in instance
 	private Map<String, IMacroInstructionFactory> fMacroInstructionIdToFactory;
 
@@ -83,6 +131,18 @@ public class MacroServiceImpl implements EMacroService {
 		fExtensionRegistry = extensionRegistry;
 	}
 
+	/**
+	 * Disposes the macro manager (called when the context which created this
+	 * service is disposed).
+	 */
+	@PreDestroy
+	public void dispose() {
+		if (fMacroManager != null) {
+			fMacroManager.dispose();
+			fMacroManager = null;
+		}
+	}
+
 	/**
 	 * Gets the macro manager (lazily creates it if needed).
 	 *
@@ -117,6 +177,22 @@ public class MacroServiceImpl implements EMacroService {
 				macrosDirectory = new File[] {};
 			}
 			fMacroManager = new MacroManager(macrosDirectory);
+			fMacroManager.setSaveInBinaryFormat(Boolean.getBoolean(BINARY_FORMAT_PROPERTY));
+			fMacroManager.setCompressionThreshold(
+					Integer.getInteger(COMPRESSION_THRESHOLD_PROPERTY, MacroManager.DEFAULT_COMPRESSION_THRESHOLD));
+			fMacroManager.setRecordingMemoryBudget(Integer.getInteger(RECORDING_MEMORY_BUDGET_PROPERTY,
+					MacroManager.DEFAULT_RECORDING_MEMORY_BUDGET));
+			fMacroManager.setOptimizeMacros(Boolean.getBoolean(OPTIMIZE_MACROS_PROPERTY));
+			int playbackSliceMillis = Integer.getInteger(PLAYBACK_SLICE_MILLIS_PROPERTY,
+					MacroManager.DEFAULT_PLAYBACK_SLICE_MILLIS);
+			if (playbackSliceMillis > 0) {
+				fMacroManager.setPlaybackSliceMillis(playbackSliceMillis);
+			}
+			int maxPlaybacksUntilFailure = Integer.getInteger(MAX_PLAYBACKS_UNTIL_FAILURE_PROPERTY,
+					MacroManager.DEFAULT_MAX_PLAYBACKS_UNTIL_FAILURE);
+			if (maxPlaybacksUntilFailure > 0) {
+				fMacroManager.setMaxPlaybacksUntilFailure(maxPlaybacksUntilFailure);
+			}
 		}
 		return fMacroManager;
 	}
@@ -232,6 +308,18 @@ public class MacroServiceImpl implements EMacroService {
 		}
 	}
 
+	@Override
+	public void addPackedMacroInstruction(IPackedMacroInstructions packedMacroInstructions, int slot,
+			Object event, int priority) {
+		if (isRecording()) {
+			try {
+				getMacroManager().addPackedMacroInstruction(packedMacroInstructions, slot, event, priority);
+			} catch (CancelMacroRecordingException e) {
+				stopMacroRecording();
+			}
+		}
+	}
+
 	/**
 	 * Stops the macro recording.
 	 */
@@ -255,6 +343,47 @@ public class MacroServiceImpl implements EMacroService {
 		getMacroManager().playbackLastMacro(this, macroPlaybackContext);
 	}
 
+	@Override
+	public int playbackLastMacro(int times) throws MacroPlaybackException {
+		loadExtensionPointsmacroStateListeners();
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = getMacroInstructionIdToFactory();
+		IMacroPlaybackContext macroPlaybackContext = new MacroPlaybackContextImpl(macroInstructionIdToFactory);
+		return getMacroManager().playbackLastMacro(this, macroPlaybackContext, times);
+	}
+
+	@Override
+	public int playbackLastMacroUntilFailure() {
+		loadExtensionPointsmacroStateListeners();
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = getMacroInstructionIdToFactory();
+		IMacroPlaybackContext macroPlaybackContext = new MacroPlaybackContextImpl(macroInstructionIdToFactory);
+		return getMacroManager().playbackLastMacroUntilFailure(this, macroPlaybackContext);
+	}
+
+	@Override
+	public CompletableFuture<Boolean> scheduleLastMacroPlayback(Executor executor, IProgressMonitor monitor,
+			boolean maxSpeed) {
+		loadExtensionPointsmacroStateListeners();
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = getMacroInstructionIdToFactory();
+		IMacroPlaybackContext macroPlaybackContext = new MacroPlaybackContextImpl(macroInstructionIdToFactory);
+		return getMacroManager().scheduleLastMacroPlayback(this, macroPlaybackContext, executor, monitor, maxSpeed);
+	}
+
+	@Override
+	public CompletableFuture<Integer> scheduleLastMacroPlaybackUntilFailure(Executor executor,
+			IProgressMonitor monitor) {
+		loadExtensionPointsmacroStateListeners();
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = getMacroInstructionIdToFactory();
+		IMacroPlaybackContext macroPlaybackContext = new MacroPlaybackContextImpl(macroInstructionIdToFactory);
+		return getMacroManager().scheduleLastMacroPlaybackUntilFailure(this, macroPlaybackContext, executor,
+				monitor);
+	}
+
+	@Override
+	public List<MacroFileResult> applyLastMacroToFiles(List<Path> files, Charset charset, boolean dryRun)
+			throws MacroPlaybackException {
+		return getMacroManager().applyLastMacroToFiles(files, charset, dryRun);
+	}
+
 	@Override
 	public void addMacroStateListener(IMacroStateListener listener) {
 		getMacroManager().addMacroStateListener(listener);
@@ -17,6 +17,8 @@ import org.eclipse.osgi.util.NLS;
  */
 public class Messages extends NLS {
 	private static final String BUNDLE_NAME = "org.xeclipse.macros.macro_plugin.core.internal.messages"; //$NON-NLS-1$
+	public static String MacroManager_MaxPlaybacksUntilFailureReached;
+	public static String MacroPlaybackScheduler_TaskName;
 	public static String SavedJSMacro_MacrosEvalError;
 	static {
 		// initialize resource bundle
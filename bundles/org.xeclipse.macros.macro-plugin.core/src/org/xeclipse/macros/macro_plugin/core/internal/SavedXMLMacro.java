@@ -10,43 +10,51 @@
  *******************************************************************************/
 package org.xeclipse.macros.macro_plugin.core.internal;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.text.MessageFormat;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Base64;
-import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import java.util.zip.GZIPInputStream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import org.eclipse.core.runtime.Assert;
-import org.w3c.dom.Document;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+import org.xeclipse.macros.macro_plugin.core.Activator;
+import org.xeclipse.macros.macro_plugin.core.IMacroInstruction;
+import org.xeclipse.macros.macro_plugin.core.IMacroInstructionFactory;
 import org.xeclipse.macros.macro_plugin.core.IMacroPlaybackContext;
 import org.xeclipse.macros.macro_plugin.core.MacroPlaybackException;
-import org.xml.sax.InputSource;
 
 /**
  * Actually loads a macro from a XML file to be played back. Works with the
- * contents saved from {@code ComposableMacro#toXMLBytes()}.
+ * contents saved from {@code ComposableMacro#toXMLBytes()} or from
+ * {@code ComposableMacro#toBinaryBytes()}, possibly compressed with gzip (the
+ * format is detected from the contents of the file).
  */
 public class SavedXMLMacro implements IMacro {
 
+	private static final String EXPECTED_ONE_ROOT = "Expected only one root in the macro XML."; //$NON-NLS-1$
+
 	/**
 	 * The file which contains the contents of the macro.
 	 */
 	private final File fFile;
 
+	/**
+	 * The cache with the macro instructions already created from stored macros (may
+	 * be {@code null}).
+	 */
+	private final CompiledMacroCache fCompiledMacroCache;
+
 	/**
 	 * Creates a macro which is backed by the contents of a XML file.
 	 *
@@ -54,61 +62,37 @@ public class SavedXMLMacro implements IMacro {
 	 *            the file with the contents of the macro.
 	 */
 	public SavedXMLMacro(File file) {
+		this(file, null);
+	}
+
+	/**
+	 * Creates a macro which is backed by the contents of a XML file and which
+	 * reuses the macro instructions created in a previous playback while the file
+	 * is unchanged.
+	 *
+	 * @param file
+	 *            the file with the contents of the macro.
+	 * @param compiledMacroCache
+	 *            the cache where the macro instructions created from the file
+	 *            should be kept (if {@code null} the file is always read on
+	 *            playback).
+	 */
+	public SavedXMLMacro(File file, CompiledMacroCache compiledMacroCache) {
 		fFile = file;
+		fCompiledMacroCache = compiledMacroCache;
 	}
 
 	@Override
 	public void playback(IMacroPlaybackContext macroPlaybackContext) throws MacroPlaybackException {
 		try {
-			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-			factory.setFeature("http://xml.org/sax/features/namespaces", false); //$NON-NLS-1$
-			factory.setFeature("http://xml.org/sax/features/validation", false); //$NON-NLS-1$
-			factory.setFeature("http://apache.org/xml/features/nonvalidating/load-dtd-grammar", false); //$NON-NLS-1$
-			factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false); //$NON-NLS-1$
+			if (macroPlaybackContext instanceof MacroPlaybackContextImpl) {
+				playbackCompiled((MacroPlaybackContextImpl) macroPlaybackContext);
+				return;
+			}
 			// The contents to execute are actually built at:
-			// org.eclipse.e4.core.macros.internal.ComposableMacro.toXMLBytes()
-			try (BufferedReader reader = new BufferedReader(
-					new InputStreamReader(new FileInputStream(fFile), "UTF-8"))) { //$NON-NLS-1$
-				DocumentBuilder parser = factory.newDocumentBuilder();
-				Document document = parser.parse(new InputSource(reader));
-				NodeList childNodes = document.getChildNodes();
-
-				int length = childNodes.getLength();
-				if (length != 1) {
-					throw new MacroPlaybackException(MessageFormat.format(Messages.SavedJSMacro_MacrosEvalError,
-							"Expected only one root in the macro XML.")); //$NON-NLS-1$
-				}
-				Node macroRoot = childNodes.item(0);
-				for (Node macroInstructionNode : getNodesAsCollection(macroRoot, ComposableMacro.XML_INSTRUCTION_TAG)) {
-					NamedNodeMap macroInstructionNodeAttributes = macroInstructionNode.getAttributes();
-					if (macroInstructionNodeAttributes == null) {
-						continue;
-					}
-					Node idAttribute = macroInstructionNodeAttributes.getNamedItem(ComposableMacro.XML_ID_ATTRIBUTE);
-					if (idAttribute == null) {
-						continue;
-					}
-					String macroInstructionId = idAttribute.getNodeValue();
-					for (Node definitionNode : getNodesAsCollection(macroInstructionNode,
-							ComposableMacro.XML_DEFINITION_TAG)) {
-						Map<String, String> macroInstructionParameters = new HashMap<>();
-						String key = null;
-						String val = null;
-						for (Node keyOrVal : getNodesAsCollection(definitionNode, ComposableMacro.XML_KEY_TAG,
-								ComposableMacro.XML_VALUE_TAG)) {
-							if (keyOrVal.getNodeName().equals(ComposableMacro.XML_KEY_TAG)) {
-								key = getTextContent(keyOrVal);
-							} else {
-								val = getTextContent(keyOrVal);
-								Assert.isNotNull(key, "XML malformed, received value without key."); //$NON-NLS-1$
-								macroInstructionParameters.put(key, val);
-								key = null;
-								val = null;
-							}
-						}
-						macroPlaybackContext.runMacroInstruction(macroInstructionId, macroInstructionParameters);
-					}
-				}
+			// org.xeclipse.macros.macro_plugin.core.internal.ComposableMacro.writeXML(OutputStream)
+			try (InputStream inputStream = new BufferedInputStream(new FileInputStream(fFile))) {
+				readStoredMacroInstructions(inputStream, macroPlaybackContext::runMacroInstruction);
 			}
 		} catch (Exception e) {
 			throw new MacroPlaybackException(
@@ -116,32 +100,450 @@ public class SavedXMLMacro implements IMacro {
 		}
 	}
 
-	private String getTextContent(Node keyOrVal) {
-		String str = keyOrVal.getTextContent();
-		NamedNodeMap attributes = keyOrVal.getAttributes();
-		if (attributes != null) {
-			Node base64Attribute = attributes.getNamedItem(ComposableMacro.XML_BASE64_ATTRIBUTE);
-			if (base64Attribute != null) {
-				if (ComposableMacro.XML_BASE64_ATTRIBUTE_TRUE.equals(base64Attribute.getNodeValue())) {
-					str = new String(Base64.getDecoder().decode(str.getBytes(StandardCharsets.UTF_8)),
-							StandardCharsets.UTF_8);
+	/**
+	 * Plays back a macro instruction at each step (all the macro instructions are
+	 * resolved before the first step). Unless the program compiled from the file
+	 * fits the budget of the cache, it's not kept in memory: the file is read
+	 * once to resolve the macro instructions and then read again, a chunk at a
+	 * time, as the steps are played back.
+	 */
+	@Override
+	public IMacroPlaybackCursor startPlayback(IMacroPlaybackContext macroPlaybackContext)
+			throws MacroPlaybackException {
+		if (!(macroPlaybackContext instanceof MacroPlaybackContextImpl)) {
+			return IMacro.super.startPlayback(macroPlaybackContext);
+		}
+		MacroPlaybackContextImpl macroPlaybackContextImpl = (MacroPlaybackContextImpl) macroPlaybackContext;
+		try {
+			MacroProgram program = getResolvedProgram(macroPlaybackContextImpl);
+			if (program != null) {
+				return program.startPlayback(macroPlaybackContextImpl);
+			}
+			int totalSteps = resolveStreaming(macroPlaybackContextImpl);
+			return new StreamingPlaybackCursor(new ChunkedProgramReader(fFile, macroPlaybackContextImpl),
+					macroPlaybackContextImpl, totalSteps);
+		} catch (MacroPlaybackException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new MacroPlaybackException(
+					MessageFormat.format(Messages.SavedJSMacro_MacrosEvalError, e.getMessage()), e);
+		}
+	}
+
+	/**
+	 * Plays back the program kept in the cache or compiled from the file (if it
+	 * fits the budget of the cache) or streams the file otherwise. Nothing is
+	 * executed if some macro instruction can't be compiled or resolved.
+	 */
+	private void playbackCompiled(MacroPlaybackContextImpl macroPlaybackContext) throws Exception {
+		MacroProgram program = getResolvedProgram(macroPlaybackContext);
+		if (program != null) {
+			program.run(macroPlaybackContext);
+			return;
+		}
+		// The program is too big to be kept in memory, so, the file is read twice
+		// (the first pass only resolves the macro instructions), so that the
+		// memory used doesn't depend on the size of the file.
+		resolveStreaming(macroPlaybackContext);
+		try (ChunkedProgramReader reader = new ChunkedProgramReader(fFile, macroPlaybackContext)) {
+			for (MacroProgram chunk = reader.next(); chunk != null; chunk = reader.next()) {
+				chunk.run(macroPlaybackContext);
+			}
+		}
+	}
+
+	/**
+	 * Reads the whole file a chunk at a time, resolving the macro instructions of
+	 * each chunk.
+	 *
+	 * @return the number of macro instructions executed to play back the file.
+	 */
+	private int resolveStreaming(MacroPlaybackContextImpl macroPlaybackContext) throws Exception {
+		int executions = 0;
+		try (ChunkedProgramReader reader = new ChunkedProgramReader(fFile, macroPlaybackContext)) {
+			for (MacroProgram chunk = reader.next(); chunk != null; chunk = reader.next()) {
+				chunk.resolve(macroPlaybackContext);
+				executions += chunk.countExecutions();
+			}
+		}
+		return executions;
+	}
+
+	/**
+	 * Reads a stored macro compiling up to {@link #CHUNK_SIZE} macro instructions
+	 * at a time (so, only the chunk being played back is kept in memory).
+	 */
+	private static final class ChunkedProgramReader implements Closeable {
+
+		private static final int CHUNK_SIZE = 1024;
+
+		private final MacroPlaybackContextImpl fMacroPlaybackContext;
+
+		private final InputStream fInputStream;
+
+		private final IStoredMacroReader fReader;
+
+		private ChunkedProgramReader(File file, MacroPlaybackContextImpl macroPlaybackContext) throws Exception {
+			fMacroPlaybackContext = macroPlaybackContext;
+			fInputStream = new BufferedInputStream(new FileInputStream(file));
+			try {
+				fReader = createReader(fInputStream);
+			} catch (Exception e) {
+				fInputStream.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * @return the program compiled from the next chunk of macro instructions or
+		 *         {@code null} if all the macro instructions were already read.
+		 */
+		private MacroProgram next() throws Exception {
+			MacroProgram.Compiler compiler = new MacroProgram.Compiler(fMacroPlaybackContext);
+			int read = 0;
+			while (read < CHUNK_SIZE && fReader.readNext(compiler)) {
+				read++;
+			}
+			return read == 0 ? null : compiler.build();
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				fReader.close();
+			} finally {
+				fInputStream.close();
+			}
+		}
+	}
+
+	/**
+	 * Plays back the chunks of a stored macro as they're read (the macro
+	 * instructions must be already resolved). The file is closed when the last
+	 * step is played back, when some step fails or when the cursor is closed.
+	 */
+	private static final class StreamingPlaybackCursor implements IMacroPlaybackCursor {
+
+		private final ChunkedProgramReader fReader;
+
+		private final MacroPlaybackContextImpl fMacroPlaybackContext;
+
+		private final int fTotalSteps;
+
+		/**
+		 * The playback of the chunk currently being played back ({@code null} if
+		 * the next chunk still wasn't read).
+		 */
+		private IMacroPlaybackCursor fChunk;
+
+		private boolean fClosed;
+
+		private StreamingPlaybackCursor(ChunkedProgramReader reader, MacroPlaybackContextImpl macroPlaybackContext,
+				int totalSteps) {
+			fReader = reader;
+			fMacroPlaybackContext = macroPlaybackContext;
+			fTotalSteps = totalSteps;
+		}
+
+		@Override
+		public int getTotalSteps() {
+			return fTotalSteps;
+		}
+
+		@Override
+		public boolean playbackNext() throws MacroPlaybackException {
+			if (fClosed) {
+				return false;
+			}
+			try {
+				while (true) {
+					if (fChunk == null) {
+						MacroProgram chunk = fReader.next();
+						if (chunk == null) {
+							close();
+							return false;
+						}
+						fChunk = chunk.startPlayback(fMacroPlaybackContext);
+					}
+					if (fChunk.playbackNext()) {
+						return true;
+					}
+					fChunk = null;
 				}
+			} catch (MacroPlaybackException e) {
+				close();
+				throw e;
+			} catch (Exception e) {
+				close();
+				throw new MacroPlaybackException(
+						MessageFormat.format(Messages.SavedJSMacro_MacrosEvalError, e.getMessage()), e);
 			}
 		}
-		return str;
+
+		@Override
+		public void close() {
+			if (fClosed) {
+				return;
+			}
+			fClosed = true;
+			fChunk = null;
+			try {
+				fReader.close();
+			} catch (IOException e) {
+				Activator.log(e);
+			}
+		}
+	}
+
+	/**
+	 * Provides the program kept in the cache or compiles it from the file (and
+	 * stores it in the cache, if available), checking that it can be played back
+	 * in the given context.
+	 *
+	 * @return the resolved program or {@code null} if the program is bigger than
+	 *         the budget of the cache (in which case it should be streamed from
+	 *         the file instead of being kept in memory).
+	 */
+	private MacroProgram getResolvedProgram(MacroPlaybackContextImpl macroPlaybackContext) throws Exception {
+		Path path = fFile.toPath();
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = macroPlaybackContext
+				.getMacroInstructionIdToFactory();
+		CompiledMacroCache.StoredMacroState state = CompiledMacroCache.StoredMacroState.read(path);
+		MacroProgram program = null;
+		if (fCompiledMacroCache != null) {
+			program = fCompiledMacroCache.get(path, state, macroInstructionIdToFactory);
+		}
+		if (program == null) {
+			program = compile(macroPlaybackContext, state);
+			if (program == null) {
+				return null;
+			}
+			if (fCompiledMacroCache != null) {
+				fCompiledMacroCache.put(path, state, macroInstructionIdToFactory, program);
+			}
+		}
+		program.resolve(macroPlaybackContext);
+		return program;
+	}
+
+	/**
+	 * Compiles the whole file unless the program would be bigger than the budget
+	 * of the cache (or {@link CompiledMacroCache#DEFAULT_MAX_SIZE} without a
+	 * cache).
+	 *
+	 * @return the compiled program or {@code null} if it's too big.
+	 */
+	private MacroProgram compile(MacroPlaybackContextImpl macroPlaybackContext,
+			CompiledMacroCache.StoredMacroState state) throws Exception {
+		int maxSize = fCompiledMacroCache != null ? fCompiledMacroCache.getMaxSize()
+				: CompiledMacroCache.DEFAULT_MAX_SIZE;
+		if (state.getSize() > maxSize) {
+			// A macro instruction usually takes more bytes in the file than in the
+			// program, so, it's not even compiled.
+			return null;
+		}
+		MacroProgram.Compiler compiler = new MacroProgram.Compiler(macroPlaybackContext);
+		try (InputStream inputStream = new BufferedInputStream(new FileInputStream(fFile));
+				IStoredMacroReader reader = createReader(inputStream)) {
+			while (reader.readNext(compiler)) {
+				if (compiler.getSize() > maxSize) {
+					// Bigger than the file (i.e.: compressed contents).
+					return null;
+				}
+			}
+		}
+		return compiler.build();
+	}
+
+	/**
+	 * Checks whether the given stream has gzip compressed contents. The stream
+	 * position is not changed.
+	 *
+	 * @param inputStream
+	 *            the stream to check (must support {@link InputStream#mark(int)}).
+	 * @return true if the stream starts with the gzip header.
+	 * @throws IOException
+	 *             if some error happens reading the stream.
+	 */
+	private static boolean isGZIPCompressed(InputStream inputStream) throws IOException {
+		inputStream.mark(2);
+		try {
+			return inputStream.read() == (GZIPInputStream.GZIP_MAGIC & 0xFF)
+					&& inputStream.read() == (GZIPInputStream.GZIP_MAGIC >> 8);
+		} finally {
+			inputStream.reset();
+		}
+	}
+
+	/**
+	 * Reads the macro instructions from the given stream in either the XML or the
+	 * binary format (possibly compressed with gzip).
+	 *
+	 * @param inputStream
+	 *            the stream with the contents of the macro (must support
+	 *            {@link InputStream#mark(int)}).
+	 * @param visitor
+	 *            the visitor which should handle each macro instruction read.
+	 * @throws Exception
+	 *             if the contents are malformed or if the visitor is not able to
+	 *             handle some macro instruction.
+	 */
+	/* default */ static void readStoredMacroInstructions(InputStream inputStream,
+			IStoredMacroInstructionVisitor visitor) throws Exception {
+		try (IStoredMacroReader reader = createReader(inputStream)) {
+			while (reader.readNext(visitor)) {
+				// Keep on reading.
+			}
+		}
+	}
+
+	/**
+	 * Creates a reader for the macro instructions in the given stream in either
+	 * the XML or the binary format (possibly compressed with gzip).
+	 *
+	 * @param inputStream
+	 *            the stream with the contents of the macro (must support
+	 *            {@link InputStream#mark(int)}; not closed by the reader).
+	 * @return the reader for the macro instructions in the stream.
+	 * @throws Exception
+	 *             if the start of the contents is malformed.
+	 */
+	/* default */ static IStoredMacroReader createReader(InputStream inputStream) throws Exception {
+		if (isGZIPCompressed(inputStream)) {
+			return createReader(new BufferedInputStream(new GZIPInputStream(inputStream)));
+		}
+		if (BinaryMacroFormat.isBinaryFormat(inputStream)) {
+			return new BinaryMacroFormat.Reader(inputStream);
+		}
+		return new XMLMacroReader(inputStream);
 	}
 
-	private Collection<Node> getNodesAsCollection(final Node node, String... filterNodeName) {
-		NodeList childNodes = node.getChildNodes();
-		int length = childNodes.getLength();
-		Set<String> filterNodeNames = new HashSet<>(Arrays.asList(filterNodeName));
-		List<Node> result = new ArrayList<>(length);
-		for (int i = 0; i < length; i++) {
-			Node item = childNodes.item(i);
-			if (filterNodeName.length == 0 || filterNodeNames.contains(item.getNodeName())) {
-				result.add(item);
+	/**
+	 * Reads the macro instructions from the given stream, passing each one to the
+	 * visitor as soon as its definition is read (so, the whole file is never kept
+	 * in memory and the first macro instruction can be handled before the whole
+	 * contents are parsed).
+	 *
+	 * @param inputStream
+	 *            the stream with the XML contents of the macro.
+	 * @param visitor
+	 *            the visitor which should handle each macro instruction read.
+	 * @throws Exception
+	 *             if the XML is malformed or if the visitor is not able to handle
+	 *             some macro instruction.
+	 */
+	/* default */ static void readMacroInstructions(InputStream inputStream, IStoredMacroInstructionVisitor visitor)
+			throws Exception {
+		try (XMLMacroReader reader = new XMLMacroReader(inputStream)) {
+			while (reader.readNext(visitor)) {
+				// Keep on reading.
+			}
+		}
+	}
+
+	/**
+	 * Reads the macro instructions from XML contents with a pull parser, one
+	 * macro instruction at a time (closing it doesn't close the stream).
+	 */
+	private static final class XMLMacroReader implements IStoredMacroReader {
+
+		private final XMLStreamReader fReader;
+
+		/**
+		 * Depth 1: macro, 2: instruction, 3: definition, 4: key/value.
+		 */
+		private int fDepth;
+
+		private String fMacroInstructionId;
+
+		private Map<String, String> fMacroInstructionParameters;
+
+		private String fKey;
+
+		private int fRepeat = 1;
+
+		private int fRoots;
+
+		private XMLMacroReader(InputStream inputStream) throws XMLStreamException {
+			XMLInputFactory factory = XMLInputFactory.newInstance();
+			factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+			factory.setProperty(XMLInputFactory.IS_VALIDATING, false);
+			factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+			factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+			fReader = factory.createXMLStreamReader(inputStream, StandardCharsets.UTF_8.name());
+		}
+
+		@Override
+		public boolean readNext(IStoredMacroInstructionVisitor visitor) throws Exception {
+			XMLStreamReader reader = fReader;
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					fDepth++;
+					String name = reader.getLocalName();
+					if (fDepth == 1) {
+						fRoots++;
+						if (fRoots > 1) {
+							throw new IOException(EXPECTED_ONE_ROOT);
+						}
+					} else if (fDepth == 2) {
+						fMacroInstructionId = ComposableMacro.XML_INSTRUCTION_TAG.equals(name)
+								? reader.getAttributeValue(null, ComposableMacro.XML_ID_ATTRIBUTE)
+								: null;
+						String repeatAttribute = reader.getAttributeValue(null, ComposableMacro.XML_REPEAT_ATTRIBUTE);
+						fRepeat = repeatAttribute != null ? Integer.parseInt(repeatAttribute) : 1;
+						Assert.isTrue(fRepeat >= 1, "XML malformed, repeat must be >= 1."); //$NON-NLS-1$
+					} else if (fDepth == 3) {
+						fMacroInstructionParameters = fMacroInstructionId != null
+								&& ComposableMacro.XML_DEFINITION_TAG.equals(name) ? new HashMap<>() : null;
+						fKey = null;
+					} else if (fDepth == 4 && fMacroInstructionParameters != null) {
+						if (ComposableMacro.XML_KEY_TAG.equals(name)) {
+							fKey = getTextContent(reader);
+							fDepth--; // getElementText() consumes the end element.
+						} else if (ComposableMacro.XML_VALUE_TAG.equals(name)) {
+							String val = getTextContent(reader);
+							fDepth--; // getElementText() consumes the end element.
+							Assert.isNotNull(fKey, "XML malformed, received value without key."); //$NON-NLS-1$
+							fMacroInstructionParameters.put(fKey, val);
+							fKey = null;
+						}
+					}
+				} else if (event == XMLStreamConstants.END_ELEMENT) {
+					fDepth--;
+					if (fDepth == 2 && fMacroInstructionParameters != null) {
+						Map<String, String> macroInstructionParameters = fMacroInstructionParameters;
+						fMacroInstructionParameters = null;
+						visitor.visit(fMacroInstructionId, macroInstructionParameters, fRepeat);
+						return true;
+					} else if (fDepth == 1) {
+						fMacroInstructionId = null;
+					}
+				}
+			}
+			if (fRoots != 1) {
+				throw new IOException(EXPECTED_ONE_ROOT);
+			}
+			return false;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				fReader.close();
+			} catch (XMLStreamException e) {
+				throw new IOException(e);
 			}
 		}
-		return result;
+	}
+
+	private static String getTextContent(XMLStreamReader reader) throws XMLStreamException {
+		String base64Attribute = reader.getAttributeValue(null, ComposableMacro.XML_BASE64_ATTRIBUTE);
+		String str = reader.getElementText();
+		if (ComposableMacro.XML_BASE64_ATTRIBUTE_TRUE.equals(base64Attribute)) {
+			str = new String(Base64.getDecoder().decode(str.getBytes(StandardCharsets.UTF_8)),
+					StandardCharsets.UTF_8);
+		}
+		return str;
 	}
 }
@@ -0,0 +1,72 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Fabio Zadrozny and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Fabio Zadrozny - initial API and implementation - http://eclip.se/8519
+ *******************************************************************************/
+package org.xeclipse.macros.macro_plugin.core.internal;
+
+import java.util.Collections;
+import java.util.Map;
+import org.eclipse.core.runtime.Assert;
+import org.xeclipse.macros.macro_plugin.core.IMacroInstruction;
+import org.xeclipse.macros.macro_plugin.core.IMacroPlaybackContext;
+import org.xeclipse.macros.macro_plugin.core.MacroPlaybackException;
+
+/**
+ * A macro instruction which only holds the id and the serialized contents of
+ * some other macro instruction (used when macro instructions are read back from
+ * the disk without a factory available to recreate them). When executed, the
+ * actual macro instruction is recreated through
+ * {@link IMacroPlaybackContext#runMacroInstruction(String, Map)}.
+ */
+public class StoredMacroInstruction implements IMacroInstruction {
+
+	private final String fId;
+
+	private final Map<String, String> fMacroInstructionParameters;
+
+	/**
+	 * @param id
+	 *            the id of the stored macro instruction.
+	 * @param macroInstructionParameters
+	 *            the contents of {@link IMacroInstruction#toMap()} of the stored
+	 *            macro instruction.
+	 */
+	public StoredMacroInstruction(String id, Map<String, String> macroInstructionParameters) {
+		Assert.isNotNull(id);
+		Assert.isNotNull(macroInstructionParameters);
+		fId = id;
+		fMacroInstructionParameters = Collections.unmodifiableMap(macroInstructionParameters);
+	}
+
+	@Override
+	public String getId() {
+		return fId;
+	}
+
+	@Override
+	public void execute(IMacroPlaybackContext macroPlaybackContext) throws MacroPlaybackException {
+		try {
+			macroPlaybackContext.runMacroInstruction(fId, fMacroInstructionParameters);
+		} catch (MacroPlaybackException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new MacroPlaybackException(e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public Map<String, String> toMap() {
+		return fMacroInstructionParameters;
+	}
+
+	@Override
+	public String toString() {
+		return fId;
+	}
+}
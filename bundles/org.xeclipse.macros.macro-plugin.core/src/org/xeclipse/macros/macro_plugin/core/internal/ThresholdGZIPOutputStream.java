@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Fabio Zadrozny and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Fabio Zadrozny - initial API and implementation - http://eclip.se/8519
+ *******************************************************************************/
+package org.xeclipse.macros.macro_plugin.core.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An output stream which only compresses the contents (with gzip) if more than
+ * a given number of bytes is written (so, small contents are written as is).
+ *
+ * Contents are kept in memory until the threshold is reached (or until the
+ * stream is closed).
+ */
+/* default */ class ThresholdGZIPOutputStream extends OutputStream {
+
+	private final OutputStream fOutputStream;
+
+	private final int fThreshold;
+
+	/**
+	 * Holds the contents while the threshold is not reached ({@code null}
+	 * afterwards).
+	 */
+	private ByteArrayOutputStream fBuffer;
+
+	/**
+	 * Stream where contents are written after the threshold is reached.
+	 */
+	private GZIPOutputStream fGZIPOutputStream;
+
+	/**
+	 * @param outputStream
+	 *            the stream where the contents should be written (closed when this
+	 *            stream is closed).
+	 * @param threshold
+	 *            the contents are compressed if more than this number of bytes is
+	 *            written.
+	 */
+	/* default */ ThresholdGZIPOutputStream(OutputStream outputStream, int threshold) {
+		fOutputStream = outputStream;
+		fThreshold = threshold;
+		fBuffer = new ByteArrayOutputStream(Math.min(threshold, 8192));
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (fGZIPOutputStream == null) {
+			fBuffer.write(b);
+			checkThreshold();
+		} else {
+			fGZIPOutputStream.write(b);
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (fGZIPOutputStream == null) {
+			fBuffer.write(b, off, len);
+			checkThreshold();
+		} else {
+			fGZIPOutputStream.write(b, off, len);
+		}
+	}
+
+	private void checkThreshold() throws IOException {
+		if (fBuffer.size() > fThreshold) {
+			fGZIPOutputStream = new GZIPOutputStream(fOutputStream, 8192);
+			fBuffer.writeTo(fGZIPOutputStream);
+			fBuffer = null;
+		}
+	}
+
+	/**
+	 * @return whether the contents written so far are being compressed.
+	 */
+	/* default */ boolean isCompressing() {
+		return fGZIPOutputStream != null;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		// Nothing is written while the threshold is not reached.
+		if (fGZIPOutputStream != null) {
+			fGZIPOutputStream.flush();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (fGZIPOutputStream != null) {
+			fGZIPOutputStream.close();
+		} else {
+			try {
+				fBuffer.writeTo(fOutputStream);
+			} finally {
+				fOutputStream.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Fabio Zadrozny and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Fabio Zadrozny - initial API and implementation - http://eclip.se/8519
+ *******************************************************************************/
+package org.xeclipse.macros.macro_plugin.core.internal;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.xeclipse.macros.macro_plugin.core.IMacroPlaybackContext;
+import org.xeclipse.macros.macro_plugin.core.MacroPlaybackException;
+
+/**
+ * Plays back a macro repeatedly (one step of the macro at a time) until some
+ * playback fails or until it's played back a max number of times. A failure
+ * just ends the playback (it's not reported to the caller).
+ */
+/* default */ final class UntilFailurePlaybackCursor implements IMacroPlaybackCursor {
+
+	private final IMacro fMacro;
+
+	private final IMacroPlaybackContext fMacroPlaybackContext;
+
+	private final int fMaxPlaybacks;
+
+	/**
+	 * The playback of the macro currently being done ({@code null} if the next
+	 * playback still wasn't started).
+	 */
+	private IMacroPlaybackCursor fCurrent;
+
+	private int fPlayed;
+
+	private boolean fFailed;
+
+	/**
+	 * @param macro
+	 *            the macro to be played back.
+	 * @param macroPlaybackContext
+	 *            the context in which the macro is played back.
+	 * @param maxPlaybacks
+	 *            the max number of times that the macro is played back.
+	 */
+	/* default */ UntilFailurePlaybackCursor(IMacro macro, IMacroPlaybackContext macroPlaybackContext,
+			int maxPlaybacks) {
+		fMacro = macro;
+		fMacroPlaybackContext = macroPlaybackContext;
+		fMaxPlaybacks = maxPlaybacks;
+	}
+
+	@Override
+	public int getTotalSteps() {
+		return IProgressMonitor.UNKNOWN;
+	}
+
+	@Override
+	public boolean playbackNext() {
+		if (fFailed || fPlayed >= fMaxPlaybacks) {
+			return false;
+		}
+		try {
+			if (fCurrent == null) {
+				fCurrent = fMacro.startPlayback(fMacroPlaybackContext);
+			}
+			if (!fCurrent.playbackNext()) {
+				close();
+				MacroManager.completeDeferredPlayback(fMacroPlaybackContext);
+				fPlayed++;
+			}
+		} catch (MacroPlaybackException e) {
+			close();
+			fFailed = true;
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void close() {
+		if (fCurrent != null) {
+			IMacroPlaybackCursor current = fCurrent;
+			fCurrent = null;
+			current.close();
+		}
+	}
+
+	/**
+	 * @return the number of times that the macro was completely played back.
+	 */
+	/* default */ int getPlayed() {
+		return fPlayed;
+	}
+}
@@ -79,6 +79,13 @@ package org.xeclipse.macros.macro_plugin.core;
  * </p>
  *
  * <p>
+ * {@link org.eclipse.e4.core.macros.IMacroInstructionsOptimizer}: provided by a
+ * factory to remove macro instructions which don't change the result of the
+ * playback from recorded macros (only applied if the optimization of recorded
+ * macros is enabled).
+ * </p>
+ *
+ * <p>
  * {@link org.eclipse.e4.core.macros.IMacroPlaybackContext}: received by a macro
  * instruction when it is being played back.
  * </p>
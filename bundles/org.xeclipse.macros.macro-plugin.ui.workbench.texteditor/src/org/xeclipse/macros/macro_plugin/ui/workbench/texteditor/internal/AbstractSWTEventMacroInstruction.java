@@ -129,28 +129,37 @@ public abstract class AbstractSWTEventMacroInstruction implements IMacroInstruct
 
 	@Override
 	public Map<String, String> toMap() {
+		return toMap(fEvent.keyCode, fEvent.stateMask, fEvent.character, fEvent.detail, fEvent.keyLocation);
+	}
+
+	/**
+	 * Provides the same contents {@link #toMap()} provides for an event with the
+	 * given fields (so, those can be obtained without creating the event).
+	 */
+	protected static Map<String, String> toMap(int keyCode, int stateMask, char character, int detail,
+			int keyLocation) {
 		Map<String, String> map = new HashMap<>();
 
 		// Only save non-default values.
 
-		if (fEvent.keyCode != 0) {
-			map.put(KEY_CODE, Integer.toString(fEvent.keyCode));
+		if (keyCode != 0) {
+			map.put(KEY_CODE, Integer.toString(keyCode));
 		}
 
-		if (fEvent.stateMask != 0) {
-			map.put(STATE_MASK, Integer.toString(fEvent.stateMask));
+		if (stateMask != 0) {
+			map.put(STATE_MASK, Integer.toString(stateMask));
 		}
 
-		if (fEvent.character != '\0') {
-			map.put(CHARACTER, Character.toString(fEvent.character));
+		if (character != '\0') {
+			map.put(CHARACTER, Character.toString(character));
 		}
 
-		if (fEvent.detail != 0) {
-			map.put(DETAIL, Integer.toString(fEvent.detail));
+		if (detail != 0) {
+			map.put(DETAIL, Integer.toString(detail));
 		}
 
-		if (fEvent.keyLocation != 0) {
-			map.put(KEY_LOCATION, Integer.toString(fEvent.keyLocation));
+		if (keyLocation != 0) {
+			map.put(KEY_LOCATION, Integer.toString(keyLocation));
 		}
 		return map;
 	}
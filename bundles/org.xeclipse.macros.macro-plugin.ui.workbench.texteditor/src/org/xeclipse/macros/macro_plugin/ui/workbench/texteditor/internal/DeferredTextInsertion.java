@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Fabio Zadrozny and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Fabio Zadrozny - initial API and implementation - http://eclip.se/8519
+ *******************************************************************************/
+package org.xeclipse.macros.macro_plugin.ui.workbench.texteditor.internal;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IRewriteTarget;
+import org.eclipse.jface.text.ITextOperationTarget;
+import org.eclipse.jface.text.ITextViewer;
+import org.eclipse.jface.text.ITextViewerExtension;
+import org.eclipse.swt.custom.StyledText;
+import org.eclipse.swt.graphics.Point;
+import org.eclipse.ui.IEditorPart;
+import org.eclipse.ui.texteditor.ITextEditorExtension2;
+import org.xeclipse.macros.macro_plugin.core.IMacroInstruction;
+import org.xeclipse.macros.macro_plugin.core.internal.IDeferredMacroPlayback;
+
+/**
+ * Text typed by consecutive plain key presses during a playback, which is
+ * inserted with a single replace of the selection in the document (as a single
+ * undo unit) instead of replaying each key press.
+ */
+/* default */ class DeferredTextInsertion implements IDeferredMacroPlayback {
+
+	private final StyledText fStyledText;
+
+	private final IEditorPart fEditorPart;
+
+	private final StringBuilder fText = new StringBuilder();
+
+	/**
+	 * @param styledText
+	 *            the StyledText where the text should be inserted.
+	 * @param editorPart
+	 *            the editor of the StyledText (may be {@code null}).
+	 */
+	/* default */ DeferredTextInsertion(StyledText styledText, IEditorPart editorPart) {
+		fStyledText = styledText;
+		fEditorPart = editorPart;
+	}
+
+	/**
+	 * @return the StyledText where the text should be inserted.
+	 */
+	/* default */ StyledText getStyledText() {
+		return fStyledText;
+	}
+
+	/**
+	 * Appends a character to the text to be inserted.
+	 *
+	 * @param c
+	 *            the character typed.
+	 */
+	/* default */ void append(char c) {
+		fText.append(c);
+	}
+
+	@Override
+	public boolean canDefer(IMacroInstruction macroInstruction) {
+		return macroInstruction instanceof StyledTextKeyDownMacroInstruction
+				&& ((StyledTextKeyDownMacroInstruction) macroInstruction).isPlainCharacter();
+	}
+
+	@Override
+	public void complete() throws BadLocationException {
+		if (fText.length() == 0 || fStyledText.isDisposed()) {
+			return;
+		}
+		String text = fText.toString();
+		fText.setLength(0);
+
+		ITextViewer textViewer = getTextViewer();
+		if (textViewer == null || textViewer.getDocument() == null) {
+			// Not a text viewer: let the StyledText handle it as a single change.
+			Point selection = fStyledText.getSelectionRange();
+			int charCount = fStyledText.getCharCount();
+			fStyledText.replaceTextRange(selection.x, selection.y, text);
+			fStyledText.setSelection(selection.x + fStyledText.getCharCount() - charCount + selection.y);
+			fStyledText.showSelection();
+			return;
+		}
+		if (!textViewer.isEditable() || (fEditorPart instanceof ITextEditorExtension2
+				&& !((ITextEditorExtension2) fEditorPart).validateEditorInputState())) {
+			return;
+		}
+		IDocument document = textViewer.getDocument();
+		IRewriteTarget rewriteTarget = textViewer instanceof ITextViewerExtension
+				? ((ITextViewerExtension) textViewer).getRewriteTarget()
+				: null;
+		if (rewriteTarget != null) {
+			rewriteTarget.beginCompoundChange();
+		}
+		try {
+			Point selection = textViewer.getSelectedRange();
+			document.replace(selection.x, selection.y, text);
+			textViewer.setSelectedRange(selection.x + text.length(), 0);
+			textViewer.revealRange(selection.x + text.length(), 0);
+		} finally {
+			if (rewriteTarget != null) {
+				rewriteTarget.endCompoundChange();
+			}
+		}
+	}
+
+	/**
+	 * @return the text viewer which owns the StyledText or {@code null} if not
+	 *         available.
+	 */
+	private ITextViewer getTextViewer() {
+		if (fEditorPart == null) {
+			return null;
+		}
+		ITextOperationTarget target = fEditorPart.getAdapter(ITextOperationTarget.class);
+		if (target instanceof ITextViewer && ((ITextViewer) target).getTextWidget() == fStyledText) {
+			return (ITextViewer) target;
+		}
+		return null;
+	}
+}
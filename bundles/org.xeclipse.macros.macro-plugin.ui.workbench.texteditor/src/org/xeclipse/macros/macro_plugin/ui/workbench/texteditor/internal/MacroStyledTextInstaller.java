@@ -21,6 +21,7 @@ import org.xeclipse.macros.macro_plugin.core.IMacroContext;
 import org.xeclipse.macros.macro_plugin.core.IMacroPlaybackContext;
 import org.xeclipse.macros.macro_plugin.core.IMacroRecordContext;
 import org.xeclipse.macros.macro_plugin.core.IMacroStateListener;
+import org.xeclipse.macros.macro_plugin.core.internal.MacroPlaybackContextImpl;
 import org.xeclipse.macros.macro_plugin.ui.internal.EditorUtils;
 
 /**
@@ -39,6 +40,11 @@ public class MacroStyledTextInstaller implements IMacroStateListener {
 	 */
 	private static final String MACRO_STYLED_TEXT_INSTALLER_MACRO_RECORDER = "MACRO_STYLED_TEXT_INSTALLER_MACRO_RECORDER"; //$NON-NLS-1$
 
+	/**
+	 * Constant used to keep the playback session on the macro context.
+	 */
+	/* default */ static final String MACRO_STYLED_TEXT_PLAYBACK_SESSION = "MACRO_STYLED_TEXT_PLAYBACK_SESSION"; //$NON-NLS-1$
+
 	@Inject
 	@Named(ISources.ACTIVE_EDITOR_NAME)
 	@Optional
@@ -73,13 +79,35 @@ public class MacroStyledTextInstaller implements IMacroStateListener {
 
 		} else if (stateChange == StateChange.PLAYBACK_STARTED) {
 			enterMacroMode(macroService.getMacroPlaybackContext(), macroService.getMacroRecordContext());
+			beginPlaybackSession(macroService.getMacroPlaybackContext());
 
 		} else if (stateChange == StateChange.PLAYBACK_FINISHED) {
+			endPlaybackSession(macroService.getMacroPlaybackContext());
 			leaveMacroMode(macroService.getMacroPlaybackContext());
 
 		}
 	}
 
+	private void beginPlaybackSession(IMacroPlaybackContext context) {
+		StyledText styledText = EditorUtils.getTargetStyledText(context);
+		if (styledText == null || styledText.isDisposed() || context.get(MACRO_STYLED_TEXT_PLAYBACK_SESSION) != null) {
+			return;
+		}
+		StyledTextPlaybackSession playbackSession = new StyledTextPlaybackSession(styledText,
+				EditorUtils.getTargetEditorPart(context));
+		playbackSession.begin(
+				context instanceof MacroPlaybackContextImpl ? (MacroPlaybackContextImpl) context : null);
+		context.set(MACRO_STYLED_TEXT_PLAYBACK_SESSION, playbackSession);
+	}
+
+	private void endPlaybackSession(IMacroPlaybackContext context) {
+		Object object = context.get(MACRO_STYLED_TEXT_PLAYBACK_SESSION);
+		if (object instanceof StyledTextPlaybackSession) {
+			context.set(MACRO_STYLED_TEXT_PLAYBACK_SESSION, null);
+			((StyledTextPlaybackSession) object).end();
+		}
+	}
+
 	private void enterMacroMode(IMacroContext context, IMacroContext otherContext) {
 		StyledText currentStyledText = EditorUtils.getTargetStyledText(context);
 		StyledText otherStyledText = EditorUtils.getTargetStyledText(otherContext);
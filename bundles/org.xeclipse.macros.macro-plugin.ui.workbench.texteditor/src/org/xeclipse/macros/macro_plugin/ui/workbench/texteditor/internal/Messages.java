@@ -20,6 +20,8 @@ public class Messages extends NLS {
 	public static String NotifyMacroOnlyInCurrentEditor_NotRecording;
 	public static String NotifyMacroOnlyInCurrentEditor_Recording;
 	public static String StyledTextKeyDownMacroInstruction_KeyDown;
+	public static String StyledTextPlaybackSession_ActiveEditorChanged;
+	public static String StyledTextPlaybackSession_TargetDisposed;
 	static {
 		// initialize resource bundle
 		NLS.initializeMessages(BUNDLE_NAME, Messages.class);
@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Fabio Zadrozny and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Fabio Zadrozny - initial API and implementation - http://eclip.se/8519
+ *******************************************************************************/
+package org.xeclipse.macros.macro_plugin.ui.workbench.texteditor.internal;
+
+import java.util.Map;
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.widgets.Event;
+import org.xeclipse.macros.macro_plugin.core.IMacroInstruction;
+import org.xeclipse.macros.macro_plugin.core.IPackedMacroInstructions;
+
+/**
+ * Keeps the key presses recorded in a styled text as packed primitive records
+ * (so, recording a key press doesn't need to create a
+ * {@link StyledTextKeyDownMacroInstruction} nor a copy of the event, which are
+ * only created when the macro is played back or saved).
+ *
+ * A buffer has a fixed capacity and its arrays are never replaced (slots may be
+ * read from other threads, i.e.: when the macro is spilled or saved). When it's
+ * full, a new buffer is used, so, a buffer is only referenced by the macro
+ * instructions in it and its memory is released once those are spilled to the
+ * disk or the macro is discarded.
+ */
+/* default */ class PackedStyledTextKeyDownMacroInstructions implements IPackedMacroInstructions {
+
+	/* default */ static final int CAPACITY = 1024;
+
+	private final int[] fKeyCodes = new int[CAPACITY];
+
+	private final int[] fStateMasks = new int[CAPACITY];
+
+	private final char[] fCharacters = new char[CAPACITY];
+
+	private final int[] fDetails = new int[CAPACITY];
+
+	private final int[] fKeyLocations = new int[CAPACITY];
+
+	/**
+	 * Only changed in the thread which adds the key presses.
+	 */
+	private volatile int fSize;
+
+	/**
+	 * @return whether no other key press may be added to this buffer.
+	 */
+	/* default */ boolean isFull() {
+		return fSize == CAPACITY;
+	}
+
+	/**
+	 * Stores the contents of a KeyDown event.
+	 *
+	 * @param event
+	 *            the KeyDown event to be stored.
+	 * @return the slot where the contents of the event were stored.
+	 * @throws IllegalStateException
+	 *             if the buffer is full.
+	 */
+	/* default */ int add(Event event) {
+		int slot = fSize;
+		if (slot == CAPACITY) {
+			throw new IllegalStateException("Packed key presses buffer is full."); //$NON-NLS-1$
+		}
+		fKeyCodes[slot] = event.keyCode;
+		fStateMasks[slot] = event.stateMask;
+		fCharacters[slot] = event.character;
+		fDetails[slot] = event.detail;
+		fKeyLocations[slot] = event.keyLocation;
+		fSize = slot + 1;
+		return slot;
+	}
+
+	@Override
+	public String getMacroInstructionId(int slot) {
+		return StyledTextKeyDownMacroInstruction.ID;
+	}
+
+	@Override
+	public IMacroInstruction createMacroInstruction(int slot) {
+		checkSlot(slot);
+		Event event = new Event();
+		event.type = SWT.KeyDown;
+		event.keyCode = fKeyCodes[slot];
+		event.stateMask = fStateMasks[slot];
+		event.character = fCharacters[slot];
+		event.detail = fDetails[slot];
+		event.keyLocation = fKeyLocations[slot];
+		return new StyledTextKeyDownMacroInstruction(event);
+	}
+
+	@Override
+	public Map<String, String> toMap(int slot) {
+		checkSlot(slot);
+		return AbstractSWTEventMacroInstruction.toMap(fKeyCodes[slot], fStateMasks[slot], fCharacters[slot],
+				fDetails[slot], fKeyLocations[slot]);
+	}
+
+	private void checkSlot(int slot) {
+		int size = fSize;
+		if (slot < 0 || slot >= size) {
+			throw new IndexOutOfBoundsException("Slot: " + slot + ", Size: " + size); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+	}
+}
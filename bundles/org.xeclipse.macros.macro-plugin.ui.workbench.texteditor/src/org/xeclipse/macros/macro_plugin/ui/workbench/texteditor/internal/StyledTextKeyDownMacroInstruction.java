@@ -15,6 +15,8 @@ import org.eclipse.swt.SWT;
 import org.eclipse.swt.custom.StyledText;
 import org.eclipse.swt.widgets.Event;
 import org.xeclipse.macros.macro_plugin.core.IMacroPlaybackContext;
+import org.xeclipse.macros.macro_plugin.core.MacroPlaybackException;
+import org.xeclipse.macros.macro_plugin.core.internal.MacroPlaybackContextImpl;
 import org.xeclipse.macros.macro_plugin.ui.internal.EditorUtils;
 
 /**
@@ -22,21 +24,81 @@ import org.xeclipse.macros.macro_plugin.ui.internal.EditorUtils;
  */
 /* default */ class StyledTextKeyDownMacroInstruction extends AbstractSWTEventMacroInstruction {
 
-	private static final String ID = "KeyEvent"; //$NON-NLS-1$
+	/* default */ static final String ID = "KeyEvent"; //$NON-NLS-1$
+
+	/**
+	 * System property which may be set to {@code true} so that runs of plain
+	 * characters are inserted at once in the document when playing back (note that
+	 * in this mode the typing-specific behavior of the editor, such as
+	 * auto-closing brackets, is not applied to those characters). It's read once
+	 * per playback (and kept in the playback context under the same key).
+	 */
+	public static final String BULK_TEXT_INSERT_PROPERTY = "org.xeclipse.macros.macro_plugin.ui.workbench.texteditor.bulkTextInsert"; //$NON-NLS-1$
+
+	/**
+	 * Modifiers which make a key press something other than typing a character.
+	 */
+	private static final int COMMAND_MODIFIERS = SWT.MODIFIER_MASK & ~SWT.SHIFT;
 
 	public StyledTextKeyDownMacroInstruction(Event event) {
 		super(event);
 	}
 
+	/**
+	 * @return whether this key press just types a printable character (no
+	 *         modifiers other than shift).
+	 */
+	/* default */ boolean isPlainCharacter() {
+		char c = fEvent.character;
+		return c >= ' ' && c != SWT.DEL && (fEvent.stateMask & COMMAND_MODIFIERS) == 0;
+	}
+
+	/**
+	 * @return whether this is just the press of a modifier key (such as Ctrl or
+	 *         Shift) on its own.
+	 */
+	/* default */ boolean isModifierOnly() {
+		return (fEvent.keyCode & SWT.MODIFIER_MASK) != 0 && (fEvent.keyCode & ~SWT.MODIFIER_MASK) == 0;
+	}
+
+	/**
+	 * @param keyCode
+	 *            the key code to check.
+	 * @return whether this is the press of the given key without any modifier.
+	 */
+	/* default */ boolean isKeyWithoutModifiers(int keyCode) {
+		return fEvent.keyCode == keyCode && (fEvent.stateMask & SWT.MODIFIER_MASK) == 0;
+	}
+
+	/**
+	 * @return the character typed by this key press.
+	 */
+	/* default */ char getCharacter() {
+		return fEvent.character;
+	}
+
 	@Override
-	public void execute(IMacroPlaybackContext macroPlaybackContext) {
+	public void execute(IMacroPlaybackContext macroPlaybackContext) throws MacroPlaybackException {
 		StyledText styledText = EditorUtils.getTargetStyledText(macroPlaybackContext);
 		if (styledText != null) {
 			if (styledText.isDisposed()) {
 				return;
 			}
+			StyledTextPlaybackSession playbackSession = null;
+			if (macroPlaybackContext instanceof MacroPlaybackContextImpl) {
+				MacroPlaybackContextImpl macroPlaybackContextImpl = (MacroPlaybackContextImpl) macroPlaybackContext;
+				Object object = macroPlaybackContext.get(MacroStyledTextInstaller.MACRO_STYLED_TEXT_PLAYBACK_SESSION);
+				if (object instanceof StyledTextPlaybackSession) {
+					playbackSession = (StyledTextPlaybackSession) object;
+					playbackSession.startRewriteSession(macroPlaybackContextImpl);
+				}
+				if (isPlainCharacter() && isBulkTextInsert(macroPlaybackContext)) {
+					deferInsertion(macroPlaybackContextImpl, styledText);
+					return;
+				}
+			}
 			Event keyDownEvent = copyEvent(fEvent);
-			styledText.notifyListeners(SWT.KeyDown, keyDownEvent);
+			sendEvent(styledText, playbackSession, SWT.KeyDown, keyDownEvent);
 
 			if (styledText.isDisposed()) {
 				return;
@@ -45,8 +107,53 @@ import org.xeclipse.macros.macro_plugin.ui.internal.EditorUtils;
 			// Key up is also needed to update the clipboard.
 			Event keyUpEvent = copyEvent(fEvent);
 			keyUpEvent.type = SWT.KeyUp;
-			styledText.notifyListeners(SWT.KeyUp, keyUpEvent);
+			sendEvent(styledText, playbackSession, SWT.KeyUp, keyUpEvent);
+		}
+	}
+
+	/**
+	 * Sends an event to the StyledText (through the playback session, if
+	 * available, so that it's not discarded as an event typed by the user).
+	 */
+	private static void sendEvent(StyledText styledText, StyledTextPlaybackSession playbackSession, int eventType,
+			Event event) {
+		if (playbackSession != null) {
+			playbackSession.sendPlayedBackEvent(eventType, event);
+		} else {
+			styledText.notifyListeners(eventType, event);
+		}
+	}
+
+	/**
+	 * @return whether runs of plain characters should be inserted at once in the
+	 *         playback with the given context.
+	 */
+	private static boolean isBulkTextInsert(IMacroPlaybackContext macroPlaybackContext) {
+		Object bulkTextInsert = macroPlaybackContext.get(BULK_TEXT_INSERT_PROPERTY);
+		if (!(bulkTextInsert instanceof Boolean)) {
+			bulkTextInsert = Boolean.getBoolean(BULK_TEXT_INSERT_PROPERTY);
+			macroPlaybackContext.set(BULK_TEXT_INSERT_PROPERTY, bulkTextInsert);
+		}
+		return (Boolean) bulkTextInsert;
+	}
+
+	/**
+	 * Appends the character of this key press to the text pending insertion in
+	 * the given StyledText.
+	 */
+	private void deferInsertion(MacroPlaybackContextImpl macroPlaybackContext, StyledText styledText)
+			throws MacroPlaybackException {
+		DeferredTextInsertion deferredTextInsertion = macroPlaybackContext
+				.getDeferredPlayback(DeferredTextInsertion.class);
+		if (deferredTextInsertion == null || deferredTextInsertion.getStyledText() != styledText) {
+			if (deferredTextInsertion != null) {
+				macroPlaybackContext.completeDeferredPlayback();
+			}
+			deferredTextInsertion = new DeferredTextInsertion(styledText,
+					EditorUtils.getTargetEditorPart(macroPlaybackContext));
+			macroPlaybackContext.addDeferredPlayback(deferredTextInsertion);
 		}
+		deferredTextInsertion.append(fEvent.character);
 	}
 
 	@Override
@@ -10,9 +10,12 @@
  *******************************************************************************/
 package org.xeclipse.macros.macro_plugin.ui.workbench.texteditor.internal;
 
+import java.util.List;
 import java.util.Map;
 import org.xeclipse.macros.macro_plugin.core.IMacroInstruction;
 import org.xeclipse.macros.macro_plugin.core.IMacroInstructionFactory;
+import org.xeclipse.macros.macro_plugin.core.IMacroInstructionsOptimizer;
+import org.xeclipse.macros.macro_plugin.core.IMacroOpcodeHandler;
 
 /**
  * A factory which will create macro instructions for styled text key presses.
@@ -24,4 +27,24 @@ public class StyledTextKeyDownMacroInstructionFactory implements IMacroInstructi
 		return StyledTextKeyDownMacroInstruction.fromMap(stringMap);
 	}
 
+	/**
+	 * Key presses only keep the event contents (which are copied for each
+	 * execution), so, the same macro instruction may be executed for all the
+	 * equal key presses.
+	 */
+	@Override
+	public boolean isShareable() {
+		return true;
+	}
+
+	@Override
+	public List<IMacroInstructionsOptimizer> getOptimizers() {
+		return StyledTextKeyDownMacroInstructionsOptimizers.OPTIMIZERS;
+	}
+
+	@Override
+	public IMacroOpcodeHandler getOpcodeHandler() {
+		return StyledTextKeyDownOpcodeHandler.INSTANCE;
+	}
+
 }
@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Fabio Zadrozny and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Fabio Zadrozny - initial API and implementation - http://eclip.se/8519
+ *******************************************************************************/
+package org.xeclipse.macros.macro_plugin.ui.workbench.texteditor.internal;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.eclipse.swt.SWT;
+import org.xeclipse.macros.macro_plugin.core.IMacroInstruction;
+import org.xeclipse.macros.macro_plugin.core.IMacroInstructionsOptimizer;
+
+/**
+ * Optimizations for recorded key presses.
+ *
+ * Note that the optimizations which remove pairs of key presses only do so when
+ * the key press before the pair types a character (as in that case there's no
+ * selection and the caret is not at the start of the document, so, the pair
+ * really doesn't change the document or the caret).
+ */
+/* default */ final class StyledTextKeyDownMacroInstructionsOptimizers {
+
+	private StyledTextKeyDownMacroInstructionsOptimizers() {
+	}
+
+	/**
+	 * Removes the presses of modifier keys on their own (the modifiers of a key
+	 * combination are recorded along with the combination).
+	 */
+	private static final IMacroInstructionsOptimizer MODIFIER_ONLY = new IMacroInstructionsOptimizer() {
+
+		@Override
+		public String getName() {
+			return "Modifier-only key presses"; //$NON-NLS-1$
+		}
+
+		@Override
+		public int optimize(List<IMacroInstruction> previous, IMacroInstruction macroInstruction) {
+			if (macroInstruction instanceof StyledTextKeyDownMacroInstruction
+					&& ((StyledTextKeyDownMacroInstruction) macroInstruction).isModifierOnly()) {
+				return 0;
+			}
+			return KEEP;
+		}
+	};
+
+	/**
+	 * Removes a letter or digit which was typed and then removed with backspace
+	 * (other characters may trigger edits in the editor, such as closing brackets
+	 * or indenting, which backspace doesn't undo).
+	 */
+	private static final IMacroInstructionsOptimizer TYPED_THEN_DELETED = new IMacroInstructionsOptimizer() {
+
+		@Override
+		public String getName() {
+			return "Characters typed and deleted"; //$NON-NLS-1$
+		}
+
+		@Override
+		public int optimize(List<IMacroInstruction> previous, IMacroInstruction macroInstruction) {
+			if (isKeyWithoutModifiers(macroInstruction, SWT.BS) && isLetterOrDigit(previous, 1)
+					&& isPlainCharacter(previous, 2)) {
+				return 1;
+			}
+			return KEEP;
+		}
+	};
+
+	/**
+	 * Removes a move of the caret to the left followed by a move back to the
+	 * right.
+	 */
+	private static final IMacroInstructionsOptimizer OPPOSITE_MOVES = new IMacroInstructionsOptimizer() {
+
+		@Override
+		public String getName() {
+			return "Opposite caret moves"; //$NON-NLS-1$
+		}
+
+		@Override
+		public int optimize(List<IMacroInstruction> previous, IMacroInstruction macroInstruction) {
+			if (isKeyWithoutModifiers(macroInstruction, SWT.ARROW_RIGHT)
+					&& previous.size() >= 2
+					&& isKeyWithoutModifiers(previous.get(previous.size() - 1), SWT.ARROW_LEFT)
+					&& isLetterOrDigit(previous, 2)) {
+				return 1;
+			}
+			return KEEP;
+		}
+	};
+
+	/**
+	 * The optimizers for key presses (in the order they should be checked).
+	 */
+	/* default */ static final List<IMacroInstructionsOptimizer> OPTIMIZERS = Collections
+			.unmodifiableList(Arrays.asList(MODIFIER_ONLY, TYPED_THEN_DELETED, OPPOSITE_MOVES));
+
+	private static boolean isKeyWithoutModifiers(IMacroInstruction macroInstruction, int keyCode) {
+		return macroInstruction instanceof StyledTextKeyDownMacroInstruction
+				&& ((StyledTextKeyDownMacroInstruction) macroInstruction).isKeyWithoutModifiers(keyCode);
+	}
+
+	/**
+	 * @return whether the macro instruction at the given position from the end of
+	 *         the list types a printable character.
+	 */
+	private static boolean isPlainCharacter(List<IMacroInstruction> previous, int fromEnd) {
+		if (previous.size() < fromEnd) {
+			return false;
+		}
+		IMacroInstruction macroInstruction = previous.get(previous.size() - fromEnd);
+		return macroInstruction instanceof StyledTextKeyDownMacroInstruction
+				&& ((StyledTextKeyDownMacroInstruction) macroInstruction).isPlainCharacter();
+	}
+
+	/**
+	 * @return whether the macro instruction at the given position from the end of
+	 *         the list types a letter or digit (which, unlike brackets, quotes
+	 *         or semicolons, doesn't trigger automatic edits in the editor, such
+	 *         as starting a linked edition which moving the caret would leave).
+	 */
+	private static boolean isLetterOrDigit(List<IMacroInstruction> previous, int fromEnd) {
+		if (!isPlainCharacter(previous, fromEnd)) {
+			return false;
+		}
+		return Character.isLetterOrDigit(
+				((StyledTextKeyDownMacroInstruction) previous.get(previous.size() - fromEnd)).getCharacter());
+	}
+}
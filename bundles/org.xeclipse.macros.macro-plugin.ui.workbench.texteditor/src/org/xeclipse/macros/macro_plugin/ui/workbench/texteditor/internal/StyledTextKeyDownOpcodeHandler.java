@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Fabio Zadrozny and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Fabio Zadrozny - initial API and implementation - http://eclip.se/8519
+ *******************************************************************************/
+package org.xeclipse.macros.macro_plugin.ui.workbench.texteditor.internal;
+
+import java.util.Arrays;
+import java.util.Map;
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.widgets.Event;
+import org.xeclipse.macros.macro_plugin.core.IMacroInstruction;
+import org.xeclipse.macros.macro_plugin.core.IMacroOpcodeHandler;
+import org.xeclipse.macros.macro_plugin.core.IMacroPlaybackContext;
+
+/**
+ * Compiles key presses to a macro instruction in the constant pool which is
+ * shared by all the equal key presses of the compiled macro (so, playing back
+ * a compiled macro doesn't need to parse the stored parameters again nor to
+ * create an event or a macro instruction for each key press).
+ *
+ * Operands: index of the macro instruction in the constant pool
+ */
+/* default */ class StyledTextKeyDownOpcodeHandler implements IMacroOpcodeHandler {
+
+	/* default */ static final StyledTextKeyDownOpcodeHandler INSTANCE = new StyledTextKeyDownOpcodeHandler();
+
+	private StyledTextKeyDownOpcodeHandler() {
+	}
+
+	@Override
+	public int[] compile(Map<String, String> macroInstructionParameters, IConstantPool constantPool)
+			throws Exception {
+		Event event = AbstractSWTEventMacroInstruction.createEventFromMap(macroInstructionParameters, SWT.KeyDown);
+		// The macro instruction only keeps these fields of the event.
+		Object key = Arrays.asList(this, event.keyCode, event.stateMask, event.character, event.detail,
+				event.keyLocation);
+		return new int[] { constantPool.add(key, () -> new StyledTextKeyDownMacroInstruction(event)) };
+	}
+
+	@Override
+	public void execute(IMacroPlaybackContext macroPlaybackContext, int[] code, int offset, Object[] constants)
+			throws Exception {
+		// Executed through the context (so, work left pending, such as a deferred
+		// text insertion, is still checked against this key press).
+		macroPlaybackContext.execute((IMacroInstruction) constants[code[offset]]);
+	}
+}
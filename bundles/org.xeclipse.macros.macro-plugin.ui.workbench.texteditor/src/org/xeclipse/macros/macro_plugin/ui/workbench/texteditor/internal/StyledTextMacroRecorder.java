@@ -15,6 +15,7 @@ import org.eclipse.swt.custom.StyledText;
 import org.eclipse.swt.widgets.Event;
 import org.eclipse.swt.widgets.Listener;
 import org.xeclipse.macros.macro_plugin.core.EMacroService;
+import org.xeclipse.macros.macro_plugin.core.IMacroRecordContext;
 
 /**
  * A listener that will record actions done in a StyledText and add them to the
@@ -22,6 +23,12 @@ import org.xeclipse.macros.macro_plugin.core.EMacroService;
  */
 public class StyledTextMacroRecorder implements Listener {
 
+	/**
+	 * Key in the record context for the buffer where key presses are kept during
+	 * the recording.
+	 */
+	private static final String PACKED_KEY_DOWN_MACRO_INSTRUCTIONS = "PACKED_KEY_DOWN_MACRO_INSTRUCTIONS"; //$NON-NLS-1$
+
 	private final EMacroService fMacroService;
 
 	/**
@@ -39,11 +46,41 @@ public class StyledTextMacroRecorder implements Listener {
 			// one with KeyDown and KeyUp. In practice, having a key pressed
 			// down multiple times down and only once up gives the same result
 			// as doing a down/up at each step.
+			// Keep the key press packed (the macro instruction is only created
+			// when actually needed).
+			PackedStyledTextKeyDownMacroInstructions packedMacroInstructions = getPackedMacroInstructions();
+			if (packedMacroInstructions != null) {
+				fMacroService.addPackedMacroInstruction(packedMacroInstructions, packedMacroInstructions.add(event),
+						event, EMacroService.PRIORITY_LOW);
+				return;
+			}
 			fMacroService.addMacroInstruction(new StyledTextKeyDownMacroInstruction(event), event,
 					EMacroService.PRIORITY_LOW);
 		}
 	}
 
+	/**
+	 * Provides the buffer for key presses in the current recording (shared by all
+	 * the recorders during the recording and replaced by a new one when full).
+	 *
+	 * @return the buffer for key presses or {@code null} if there's no record
+	 *         context.
+	 */
+	private PackedStyledTextKeyDownMacroInstructions getPackedMacroInstructions() {
+		IMacroRecordContext macroRecordContext = fMacroService.getMacroRecordContext();
+		if (macroRecordContext == null) {
+			return null;
+		}
+		Object object = macroRecordContext.get(PACKED_KEY_DOWN_MACRO_INSTRUCTIONS);
+		if (object instanceof PackedStyledTextKeyDownMacroInstructions
+				&& !((PackedStyledTextKeyDownMacroInstructions) object).isFull()) {
+			return (PackedStyledTextKeyDownMacroInstructions) object;
+		}
+		PackedStyledTextKeyDownMacroInstructions packedMacroInstructions = new PackedStyledTextKeyDownMacroInstructions();
+		macroRecordContext.set(PACKED_KEY_DOWN_MACRO_INSTRUCTIONS, packedMacroInstructions);
+		return packedMacroInstructions;
+	}
+
 	/**
 	 * Uninstalls the macro recorder from the given styled text (which means that it
 	 * will no longer create macro instructions from key presses in the given styled
@@ -0,0 +1,226 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Fabio Zadrozny and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Fabio Zadrozny - initial API and implementation - http://eclip.se/8519
+ *******************************************************************************/
+package org.xeclipse.macros.macro_plugin.ui.workbench.texteditor.internal;
+
+import org.eclipse.jface.text.DocumentRewriteSession;
+import org.eclipse.jface.text.DocumentRewriteSessionType;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentExtension4;
+import org.eclipse.jface.text.ITextOperationTarget;
+import org.eclipse.jface.text.ITextViewer;
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.custom.StyledText;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Event;
+import org.eclipse.swt.widgets.Listener;
+import org.eclipse.ui.IEditorPart;
+import org.eclipse.ui.IWorkbenchPage;
+import org.eclipse.ui.IWorkbenchPartSite;
+import org.xeclipse.macros.macro_plugin.core.IMacroInstruction;
+import org.xeclipse.macros.macro_plugin.core.MacroPlaybackException;
+import org.xeclipse.macros.macro_plugin.core.internal.IDeferredMacroPlayback;
+import org.xeclipse.macros.macro_plugin.core.internal.MacroPlaybackContextImpl;
+
+/**
+ * Keeps the target StyledText from being repainted during a macro playback (it's
+ * repainted once when the playback finishes) and keeps a document rewrite
+ * session active while key presses are played back (so that reconcilers don't
+ * run after each key press).
+ *
+ * The redraw is kept disabled for the whole playback, even between the slices
+ * of a playback done in time slices: the progress is shown in the status line
+ * and painting the intermediate states would make the playback much slower
+ * (the StyledText is always repainted when the playback finishes, even if it
+ * fails or is cancelled).
+ *
+ * As the UI processes its events between slices, key events which are not
+ * played back are discarded in the StyledText while the session is active and
+ * the playback fails if the target editor is no longer the active editor when
+ * it's resumed.
+ *
+ * The rewrite session is stopped before other macro instructions are executed
+ * (commands may need to start their own rewrite session, which is not possible
+ * while one is active).
+ */
+/* default */ class StyledTextPlaybackSession {
+
+	private final StyledText fStyledText;
+
+	private final IEditorPart fEditorPart;
+
+	private boolean fRedrawDisabled;
+
+	/**
+	 * The display where the key filter was added ({@code null} if not added).
+	 */
+	private Display fFilterDisplay;
+
+	/**
+	 * Whether a played back event is being sent to the StyledText.
+	 */
+	private boolean fSendingPlayedBackEvent;
+
+	/**
+	 * Discards the key events for the StyledText which are not played back.
+	 */
+	private final Listener fKeyFilter = event -> {
+		if (!fSendingPlayedBackEvent && event.widget == fStyledText) {
+			event.doit = false;
+			event.type = SWT.None;
+		}
+	};
+
+	private IDocumentExtension4 fRewriteDocument;
+
+	private DocumentRewriteSession fRewriteSession;
+
+	/**
+	 * @param styledText
+	 *            the StyledText where the macro is played back.
+	 * @param editorPart
+	 *            the editor of the StyledText (may be {@code null}).
+	 */
+	/* default */ StyledTextPlaybackSession(StyledText styledText, IEditorPart editorPart) {
+		fStyledText = styledText;
+		fEditorPart = editorPart;
+	}
+
+	/**
+	 * Stops repainting the StyledText and discarding the key events which are not
+	 * played back until the session ends.
+	 *
+	 * @param macroPlaybackContext
+	 *            the context of the playback (may be {@code null}).
+	 */
+	/* default */ void begin(MacroPlaybackContextImpl macroPlaybackContext) {
+		if (!fStyledText.isDisposed()) {
+			fStyledText.setRedraw(false);
+			fRedrawDisabled = true;
+			fFilterDisplay = fStyledText.getDisplay();
+			fFilterDisplay.addFilter(SWT.KeyDown, fKeyFilter);
+			fFilterDisplay.addFilter(SWT.KeyUp, fKeyFilter);
+		}
+		if (macroPlaybackContext != null) {
+			macroPlaybackContext.addResumeCheck(this::checkResume);
+		}
+	}
+
+	/**
+	 * Sends an event which is being played back to the StyledText.
+	 *
+	 * @param eventType
+	 *            the type of the event.
+	 * @param event
+	 *            the event to be sent.
+	 */
+	/* default */ void sendPlayedBackEvent(int eventType, Event event) {
+		boolean sendingPlayedBackEvent = fSendingPlayedBackEvent;
+		fSendingPlayedBackEvent = true;
+		try {
+			fStyledText.notifyListeners(eventType, event);
+		} finally {
+			fSendingPlayedBackEvent = sendingPlayedBackEvent;
+		}
+	}
+
+	/**
+	 * Fails the playback if it'd be resumed in some other editor or if the
+	 * StyledText was disposed meanwhile.
+	 */
+	private void checkResume() throws MacroPlaybackException {
+		if (fStyledText.isDisposed()) {
+			throw new MacroPlaybackException(Messages.StyledTextPlaybackSession_TargetDisposed);
+		}
+		IWorkbenchPartSite site = fEditorPart != null ? fEditorPart.getSite() : null;
+		IWorkbenchPage page = site != null ? site.getPage() : null;
+		if (page != null && page.getActiveEditor() != fEditorPart) {
+			throw new MacroPlaybackException(Messages.StyledTextPlaybackSession_ActiveEditorChanged);
+		}
+	}
+
+	/**
+	 * Starts a document rewrite session (if not already active) which is kept
+	 * while key presses are played back.
+	 *
+	 * @param macroPlaybackContext
+	 *            the context of the playback (where the rewrite session is
+	 *            registered to be stopped before other macro instructions).
+	 */
+	/* default */ void startRewriteSession(MacroPlaybackContextImpl macroPlaybackContext) {
+		if (fRewriteSession != null) {
+			return;
+		}
+		IDocument document = getDocument();
+		if (!(document instanceof IDocumentExtension4)) {
+			return;
+		}
+		IDocumentExtension4 documentExtension = (IDocumentExtension4) document;
+		if (documentExtension.getActiveRewriteSession() != null) {
+			return;
+		}
+		fRewriteDocument = documentExtension;
+		fRewriteSession = documentExtension.startRewriteSession(DocumentRewriteSessionType.UNRESTRICTED_SMALL);
+		macroPlaybackContext.addDeferredPlayback(new IDeferredMacroPlayback() {
+
+			@Override
+			public boolean canDefer(IMacroInstruction macroInstruction) {
+				return macroInstruction instanceof StyledTextKeyDownMacroInstruction;
+			}
+
+			@Override
+			public void complete() {
+				stopRewriteSession();
+			}
+		});
+	}
+
+	private void stopRewriteSession() {
+		if (fRewriteSession != null) {
+			DocumentRewriteSession rewriteSession = fRewriteSession;
+			fRewriteSession = null;
+			fRewriteDocument.stopRewriteSession(rewriteSession);
+			fRewriteDocument = null;
+		}
+	}
+
+	/**
+	 * Stops the rewrite session (if still active), stops discarding key events and
+	 * repaints the StyledText.
+	 */
+	/* default */ void end() {
+		stopRewriteSession();
+		if (fFilterDisplay != null) {
+			if (!fFilterDisplay.isDisposed()) {
+				fFilterDisplay.removeFilter(SWT.KeyDown, fKeyFilter);
+				fFilterDisplay.removeFilter(SWT.KeyUp, fKeyFilter);
+			}
+			fFilterDisplay = null;
+		}
+		if (fRedrawDisabled) {
+			fRedrawDisabled = false;
+			if (!fStyledText.isDisposed()) {
+				fStyledText.setRedraw(true);
+				fStyledText.showSelection();
+			}
+		}
+	}
+
+	private IDocument getDocument() {
+		if (fEditorPart == null) {
+			return null;
+		}
+		ITextOperationTarget target = fEditorPart.getAdapter(ITextOperationTarget.class);
+		if (target instanceof ITextViewer && ((ITextViewer) target).getTextWidget() == fStyledText) {
+			return ((ITextViewer) target).getDocument();
+		}
+		return null;
+	}
+}
@@ -12,34 +12,81 @@ package org.xeclipse.macros.macro_plugin.ui.internal.actions;
 
 import org.eclipse.core.commands.AbstractHandler;
 import org.eclipse.core.commands.ExecutionEvent;
+import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.Status;
+import org.eclipse.jface.action.IStatusLineManager;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.ui.IEditorPart;
+import org.eclipse.ui.IEditorSite;
+import org.eclipse.ui.IWorkbench;
 import org.eclipse.ui.IWorkbenchWindow;
 import org.eclipse.ui.PlatformUI;
 import org.eclipse.ui.handlers.HandlerUtil;
 import org.eclipse.ui.statushandlers.StatusAdapter;
 import org.eclipse.ui.statushandlers.StatusManager;
+import org.xeclipse.macros.macro_plugin.core.CancelMacroPlaybackException;
 import org.xeclipse.macros.macro_plugin.core.EMacroService;
-import org.xeclipse.macros.macro_plugin.core.MacroPlaybackException;
 import org.xeclipse.macros.macro_plugin.ui.Activator;
 
 /**
  * Activates the playback of the last macro.
+ *
+ * The macro is played back in time slices in the UI thread (so, the UI remains
+ * responsive during the playback of a long macro) and the progress is shown in
+ * the status line of the active editor, from where the playback may also be
+ * cancelled.
  */
 public class MacroPlaybackAction extends AbstractHandler {
 
+	/**
+	 * System property which may be set to {@code true} to play back macros at max
+	 * speed (without giving control back to the UI during the playback).
+	 */
+	public static final String MAX_SPEED_PLAYBACK_PROPERTY = "org.xeclipse.macros.macro_plugin.ui.maxSpeedPlayback"; //$NON-NLS-1$
+
 	@Override
 	public Object execute(ExecutionEvent event) {
-		try {
-			PlatformUI.getWorkbench().getService(EMacroService.class).playbackLastMacro();
-		} catch (MacroPlaybackException e) {
-			IWorkbenchWindow activeWorkbenchWindow = HandlerUtil.getActiveWorkbenchWindow(event);
-			if (activeWorkbenchWindow != null) {
-				StatusAdapter status = new StatusAdapter(new Status(IStatus.ERROR,
-						Activator.getDefault().getBundle().getSymbolicName(), e.getMessage(), e));
-				StatusManager.getManager().handle(status, StatusManager.SHOW | StatusManager.LOG);
-			}
+		IWorkbench workbench = PlatformUI.getWorkbench();
+		// Gotten right away as the playback may finish after the event is no
+		// longer current.
+		IWorkbenchWindow activeWorkbenchWindow = HandlerUtil.getActiveWorkbenchWindow(event);
+		Display display = workbench.getDisplay();
+		IStatusLineManager statusLineManager = getStatusLineManager(HandlerUtil.getActiveEditor(event));
+		IProgressMonitor monitor = null;
+		if (statusLineManager != null) {
+			statusLineManager.setCancelEnabled(true);
+			monitor = statusLineManager.getProgressMonitor();
 		}
+		boolean maxSpeed = Boolean.getBoolean(MAX_SPEED_PLAYBACK_PROPERTY);
+		workbench.getService(EMacroService.class).scheduleLastMacroPlayback(display::asyncExec, monitor, maxSpeed)
+				.whenComplete((played, exception) -> {
+					if (statusLineManager != null) {
+						statusLineManager.setCancelEnabled(false);
+					}
+					if (activeWorkbenchWindow != null && exception != null
+							&& !(exception instanceof CancelMacroPlaybackException)) {
+						StatusAdapter status = new StatusAdapter(new Status(IStatus.ERROR,
+								Activator.getDefault().getBundle().getSymbolicName(), exception.getMessage(),
+								exception));
+						StatusManager.getManager().handle(status, StatusManager.SHOW | StatusManager.LOG);
+					}
+				});
 		return null;
 	}
+
+	/**
+	 * @return the status line manager of the given editor or {@code null} if it
+	 *         is not available.
+	 */
+	private static IStatusLineManager getStatusLineManager(IEditorPart editor) {
+		if (editor == null) {
+			return null;
+		}
+		IEditorSite editorSite = editor.getEditorSite();
+		if (editorSite == null) {
+			return null;
+		}
+		return editorSite.getActionBars().getStatusLineManager();
+	}
 }
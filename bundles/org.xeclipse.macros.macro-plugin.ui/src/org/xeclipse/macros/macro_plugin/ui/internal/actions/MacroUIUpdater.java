@@ -10,12 +10,16 @@
  *******************************************************************************/
 package org.xeclipse.macros.macro_plugin.ui.internal.actions;
 
+import java.util.concurrent.Executor;
 import javax.inject.Inject;
 import org.eclipse.e4.core.contexts.ContextInjectionFactory;
 import org.eclipse.e4.core.contexts.IEclipseContext;
+import org.eclipse.osgi.util.NLS;
+import org.eclipse.swt.widgets.Display;
 import org.eclipse.ui.PlatformUI;
 import org.eclipse.ui.commands.ICommandService;
 import org.xeclipse.macros.macro_plugin.core.EMacroService;
+import org.xeclipse.macros.macro_plugin.core.ICoalescedMacroInstructionsListener;
 import org.xeclipse.macros.macro_plugin.core.IMacroInstruction;
 import org.xeclipse.macros.macro_plugin.core.IMacroInstructionsListener;
 import org.xeclipse.macros.macro_plugin.core.IMacroStateListener;
@@ -29,26 +33,61 @@ public class MacroUIUpdater implements IMacroStateListener {
 
 	/**
 	 * A listener which will show messages to the user while he types macro
-	 * instructions.
+	 * instructions (the status line is updated at most once per frame with the
+	 * number of macro instructions recorded so far and the last one added).
 	 */
-	private static final class MacroInstructionsListener implements IMacroInstructionsListener {
+	private static final class MacroInstructionsListener implements ICoalescedMacroInstructionsListener {
+
+		/**
+		 * Time to wait before updating the status line (about one frame).
+		 */
+		private static final int FRAME_MILLIS = 16;
 
 		/**
 		 * Helper class for giving notifications to the user.
 		 */
 		private UserNotifications fUserNotifications;
 
+		private final Display fDisplay;
+
+		/**
+		 * Number of macro instructions recorded since the listener was added (it's
+		 * added when the recording starts, so, this is the length of the macro, as
+		 * macro instructions which replace the one recorded for the same event are
+		 * not counted).
+		 */
+		private int fRecorded;
+
 		/**
 		 * @param userNotifications
 		 *            the helper class for giving notifications to the user.
+		 * @param display
+		 *            the display where the notifications should be shown.
 		 */
-		public MacroInstructionsListener(UserNotifications userNotifications) {
+		public MacroInstructionsListener(UserNotifications userNotifications, Display display) {
 			this.fUserNotifications = userNotifications;
+			this.fDisplay = display;
+		}
+
+		@Override
+		public Executor getNotificationExecutor() {
+			return runnable -> {
+				if (fDisplay.isDisposed()) {
+					return;
+				}
+				if (fDisplay.getThread() == Thread.currentThread()) {
+					fDisplay.timerExec(FRAME_MILLIS, runnable);
+				} else {
+					fDisplay.asyncExec(() -> fDisplay.timerExec(FRAME_MILLIS, runnable));
+				}
+			};
 		}
 
 		@Override
-		public void postAddMacroInstruction(IMacroInstruction macroInstruction) {
-			this.fUserNotifications.setMessage(Messages.KeepMacroUIUpdated_RecordedInMacro + macroInstruction);
+		public void postAddMacroInstructions(int count, IMacroInstruction lastMacroInstruction) {
+			fRecorded += count;
+			this.fUserNotifications.setMessage(
+					NLS.bind(Messages.KeepMacroUIUpdated_RecordedInMacro, fRecorded, lastMacroInstruction));
 		}
 	}
 
@@ -98,7 +137,8 @@ public class MacroUIUpdater implements IMacroStateListener {
 
 		if (macroService.isRecording()) {
 			if (fMacroInstructionsListener == null) {
-				fMacroInstructionsListener = new MacroInstructionsListener(getUserNotifications());
+				fMacroInstructionsListener = new MacroInstructionsListener(getUserNotifications(),
+						PlatformUI.getWorkbench().getDisplay());
 				macroService.addMacroInstructionsListener(fMacroInstructionsListener);
 			}
 		} else {
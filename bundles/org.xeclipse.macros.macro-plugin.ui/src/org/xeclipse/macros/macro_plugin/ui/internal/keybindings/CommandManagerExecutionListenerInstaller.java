@@ -69,11 +69,18 @@ public class CommandManagerExecutionListenerInstaller implements IMacroStateList
 				fCommandManagerExecutionListener = null;
 			}
 		}
+		if (stateChange == StateChange.PLAYBACK_FINISHED) {
+			IMacroPlaybackContext macroPlaybackContext = macroService.getMacroPlaybackContext();
+			if (macroPlaybackContext != null) {
+				CommandPlaybackCache.uninstall(macroPlaybackContext);
+			}
+		}
 	}
 
 	@Override
 	public void macroPlaybackContextCreated(IMacroPlaybackContext macroContext) {
 		EditorUtils.cacheTargetStyledText(activeEditor, macroContext);
+		CommandPlaybackCache.install(macroContext);
 	}
 
 	@Override
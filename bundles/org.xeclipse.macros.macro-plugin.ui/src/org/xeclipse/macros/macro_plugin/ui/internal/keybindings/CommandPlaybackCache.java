@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Fabio Zadrozny and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Fabio Zadrozny - initial API and implementation - http://eclip.se/8519
+ *******************************************************************************/
+package org.xeclipse.macros.macro_plugin.ui.internal.keybindings;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import org.eclipse.core.commands.ParameterizedCommand;
+import org.eclipse.e4.core.commands.internal.HandlerServiceImpl;
+import org.eclipse.e4.core.contexts.EclipseContextFactory;
+import org.eclipse.e4.core.contexts.IEclipseContext;
+import org.eclipse.swt.widgets.Event;
+import org.xeclipse.macros.macro_plugin.core.IMacroPlaybackContext;
+
+/**
+ * Keeps what may be reused among the executions of commands in a single macro
+ * playback: the static contexts passed to the handler service and the commands
+ * which were already found to be enabled.
+ *
+ * A static context is kept for each parameterized command (the handler service
+ * sets the command parameters in the static context, so, it's not shared among
+ * different commands).
+ */
+/* default */ class CommandPlaybackCache {
+
+	/**
+	 * Key of the cache in the macro playback context.
+	 */
+	private static final String COMMAND_PLAYBACK_CACHE = "COMMAND_PLAYBACK_CACHE"; //$NON-NLS-1$
+
+	/**
+	 * Max number of static contexts kept (the least recently used is disposed
+	 * when over this limit).
+	 */
+	private static final int MAX_STATIC_CONTEXTS = 32;
+
+	private final Map<ParameterizedCommand, IEclipseContext> fStaticContexts = new LinkedHashMap<ParameterizedCommand, IEclipseContext>(
+			16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Entry<ParameterizedCommand, IEclipseContext> eldest) {
+			if (size() > MAX_STATIC_CONTEXTS) {
+				eldest.getValue().dispose();
+				return true;
+			}
+			return false;
+		}
+	};
+
+	private final Set<ParameterizedCommand> fEnabledCommands = new HashSet<>();
+
+	/**
+	 * Creates a cache and stores it in the given macro playback context.
+	 *
+	 * @param macroPlaybackContext
+	 *            the context of the playback where the cache should be used.
+	 */
+	/* default */ static void install(IMacroPlaybackContext macroPlaybackContext) {
+		macroPlaybackContext.set(COMMAND_PLAYBACK_CACHE, new CommandPlaybackCache());
+	}
+
+	/**
+	 * Disposes of the cache stored in the given macro playback context (if any).
+	 *
+	 * @param macroPlaybackContext
+	 *            the context of the playback which finished.
+	 */
+	/* default */ static void uninstall(IMacroPlaybackContext macroPlaybackContext) {
+		CommandPlaybackCache cache = get(macroPlaybackContext);
+		if (cache != null) {
+			macroPlaybackContext.set(COMMAND_PLAYBACK_CACHE, null);
+			cache.dispose();
+		}
+	}
+
+	/**
+	 * @param macroPlaybackContext
+	 *            the context of the current playback.
+	 * @return the cache stored in the given macro playback context or
+	 *         {@code null} if there's none.
+	 */
+	/* default */ static CommandPlaybackCache get(IMacroPlaybackContext macroPlaybackContext) {
+		Object cache = macroPlaybackContext.get(COMMAND_PLAYBACK_CACHE);
+		if (cache instanceof CommandPlaybackCache) {
+			return (CommandPlaybackCache) cache;
+		}
+		return null;
+	}
+
+	/**
+	 * Provides the static context to execute the given command (which is reused
+	 * by other executions of the same command in this playback).
+	 *
+	 * @param cmd
+	 *            the command to be executed.
+	 * @param event
+	 *            the event to be set in the static context (may be {@code null}).
+	 * @return the static context to be used to execute the command (must not be
+	 *         disposed by the caller).
+	 */
+	/* default */ IEclipseContext getStaticContext(ParameterizedCommand cmd, Event event) {
+		IEclipseContext staticContext = fStaticContexts.get(cmd);
+		if (staticContext == null) {
+			staticContext = EclipseContextFactory.create("keys-staticContext"); //$NON-NLS-1$
+			fStaticContexts.put(cmd, staticContext);
+		}
+		staticContext.set(Event.class, event);
+		// Don't report an exception from a previous execution.
+		staticContext.remove(HandlerServiceImpl.HANDLER_EXCEPTION);
+		return staticContext;
+	}
+
+	/**
+	 * @param cmd
+	 *            the command to be executed.
+	 * @return whether the command was already found to be enabled in this
+	 *         playback (note that the handler service still checks whether the
+	 *         handler can be executed when executing it, so, the caller should
+	 *         call {@link #removeKnownEnabled(ParameterizedCommand)} if it
+	 *         reports that the command is not enabled).
+	 */
+	/* default */ boolean isKnownEnabled(ParameterizedCommand cmd) {
+		return fEnabledCommands.contains(cmd);
+	}
+
+	/**
+	 * Marks the given command as enabled in this playback.
+	 *
+	 * @param cmd
+	 *            the command which was found to be enabled.
+	 */
+	/* default */ void setKnownEnabled(ParameterizedCommand cmd) {
+		fEnabledCommands.add(cmd);
+	}
+
+	/**
+	 * Forgets that the given command was enabled in this playback (i.e.: when
+	 * its handler found it was not enabled anymore).
+	 *
+	 * @param cmd
+	 *            the command which may not be enabled anymore.
+	 */
+	/* default */ void removeKnownEnabled(ParameterizedCommand cmd) {
+		fEnabledCommands.remove(cmd);
+	}
+
+	private void dispose() {
+		for (IEclipseContext staticContext : fStaticContexts.values()) {
+			staticContext.dispose();
+		}
+		fStaticContexts.clear();
+		fEnabledCommands.clear();
+	}
+}
@@ -12,8 +12,13 @@ package org.xeclipse.macros.macro_plugin.ui.internal.keybindings;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.eclipse.core.commands.Command;
 import org.eclipse.core.commands.CommandManager;
+import org.eclipse.core.commands.ICommandListener;
+import org.eclipse.core.commands.NotEnabledException;
+import org.eclipse.core.commands.NotHandledException;
 import org.eclipse.core.commands.ParameterizedCommand;
 import org.eclipse.core.commands.common.NotDefinedException;
 import org.eclipse.core.runtime.Assert;
@@ -47,6 +52,31 @@ public class MacroInstructionForParameterizedCommand implements IMacroInstructio
 
 	private static final String NO_EVENT = "no_event"; //$NON-NLS-1$
 
+	/**
+	 * System property with the max time (in millis) to wait for a disabled
+	 * command to be enabled when playing back (i.e.:
+	 * {@code -Dorg.xeclipse.macros.macro_plugin.ui.commandEnablementTimeout=1000}
+	 * in the eclipse.ini). Defaults to {@link #DEFAULT_ENABLEMENT_TIMEOUT}.
+	 *
+	 * The playback is stopped if the command is still disabled afterwards, so,
+	 * this is also how long a playback until a failure takes to stop at a
+	 * disabled command: it may be raised if commands take longer to be enabled
+	 * (i.e.: after an editor is opened by the macro).
+	 */
+	public static final String ENABLEMENT_TIMEOUT_PROPERTY = "org.xeclipse.macros.macro_plugin.ui.commandEnablementTimeout"; //$NON-NLS-1$
+
+	/**
+	 * Default max time (in millis) to wait for a disabled command to be enabled
+	 * (enough for the pending UI events to be processed).
+	 */
+	public static final long DEFAULT_ENABLEMENT_TIMEOUT = 300;
+
+	/**
+	 * Interval (in millis) at which the enablement of a disabled command is
+	 * checked again while waiting if no notification is received.
+	 */
+	private static final long ENABLEMENT_RECHECK_INTERVAL = 100;
+
 	private EHandlerService fHandlerService;
 
 	private ParameterizedCommand fCmd;
@@ -88,64 +118,186 @@ public class MacroInstructionForParameterizedCommand implements IMacroInstructio
 		this.fEvent = newEvent;
 	}
 
+	/**
+	 * Checks that the command is defined (its enablement is only checked when
+	 * executed, as it may depend on the macro instructions executed before it).
+	 */
 	@Override
-	public void execute(IMacroPlaybackContext macroPlaybackContext) throws MacroPlaybackException {
+	public void resolve(IMacroPlaybackContext macroPlaybackContext) throws MacroPlaybackException {
 		ParameterizedCommand cmd = fCmd;
 		if (cmd == null) {
 			throw new MacroPlaybackException("Parameterized command not set."); //$NON-NLS-1$
 		}
-		final EHandlerService handlerService = fHandlerService;
-		final Command command = cmd.getCommand();
-
-		final IEclipseContext staticContext = EclipseContextFactory.create("keys-staticContext"); //$NON-NLS-1$
-		staticContext.set(Event.class, this.fEvent);
-
-		if (!command.isDefined()) {
+		if (!cmd.getCommand().isDefined()) {
 			throw new MacroPlaybackException(
 					String.format("Command: %s not defined (unable to playback macro).", cmd.getId())); //$NON-NLS-1$
 		}
+	}
+
+	@Override
+	public void execute(IMacroPlaybackContext macroPlaybackContext) throws MacroPlaybackException {
+		// Also checked here as the command may be undefined after the playback
+		// started.
+		resolve(macroPlaybackContext);
+		final ParameterizedCommand cmd = fCmd;
+		final EHandlerService handlerService = fHandlerService;
+
+		// Reuse the static context and the enablement found in this playback
+		// if possible.
+		final CommandPlaybackCache cache = CommandPlaybackCache.get(macroPlaybackContext);
+		final IEclipseContext staticContext;
+		if (cache != null) {
+			staticContext = cache.getStaticContext(cmd, this.fEvent);
+		} else {
+			staticContext = EclipseContextFactory.create("keys-staticContext"); //$NON-NLS-1$
+			staticContext.set(Event.class, this.fEvent);
+		}
 
 		try {
-			boolean commandEnabled = handlerService.canExecute(cmd, staticContext);
-			if (!commandEnabled) {
-				// This is to handle the following case:
-				// 1. Open an editor and record keypresses and an undo
-				// 2. Close editor/Open editor
-				// 3. Playback macro: at this point, the undo action is actually
-				// disabled, so, we need to process the current events in the
-				// queue and wait for it to be enabled (or fail if it can't be
-				// enabled in the current situation).
-				for (int i = 0; i < 100; i++) {
-					Display.getCurrent().readAndDispatch();
-					commandEnabled = handlerService.canExecute(cmd, staticContext);
-					if (commandEnabled) {
-						break;
-					}
-				}
-				commandEnabled = handlerService.canExecute(cmd, staticContext);
-				if (!commandEnabled) {
-					String name;
-					try {
-						name = cmd.getName();
-					} catch (NotDefinedException e) {
-						name = Messages.MacroInstructionForParameterizedCommand_CommandUnknown;
-					}
-					throw new MacroPlaybackException(
-							String.format(Messages.MacroInstructionForParameterizedCommand_CommandNotEnabled, name, cmd.getId()));
+			boolean knownEnabled = cache != null && cache.isKnownEnabled(cmd);
+			if (!knownEnabled) {
+				checkEnabled(handlerService, cmd, staticContext);
+				if (cache != null) {
+					cache.setKnownEnabled(cmd);
 				}
 			}
 
 			handlerService.executeHandler(cmd, staticContext);
-			final Object commandException = staticContext.get(HandlerServiceImpl.HANDLER_EXCEPTION);
+			Object commandException = staticContext.get(HandlerServiceImpl.HANDLER_EXCEPTION);
+			if (knownEnabled && isNotExecutable(commandException)) {
+				// The enablement found before in this playback is stale (it may
+				// depend on what the previous macro instructions did), so,
+				// check it again (waiting for it to be enabled if needed).
+				cache.removeKnownEnabled(cmd);
+				staticContext.remove(HandlerServiceImpl.HANDLER_EXCEPTION);
+				checkEnabled(handlerService, cmd, staticContext);
+				cache.setKnownEnabled(cmd);
+				handlerService.executeHandler(cmd, staticContext);
+				commandException = staticContext.get(HandlerServiceImpl.HANDLER_EXCEPTION);
+			}
+			if (isNotExecutable(commandException)) {
+				// Fail the playback (i.e.: so that a playback until a failure
+				// stops) instead of just skipping the command.
+				if (cache != null) {
+					cache.removeKnownEnabled(cmd);
+				}
+				throw createNotEnabledException(cmd);
+			}
 			if (commandException instanceof Exception) {
 				Activator.log((Exception) commandException);
 			}
 
 		} finally {
-			staticContext.dispose();
+			if (cache == null) {
+				staticContext.dispose();
+			}
 		}
 	}
 
+	/**
+	 * Checks whether the given command is enabled (waiting for it to be enabled
+	 * if it's not).
+	 *
+	 * @throws MacroPlaybackException
+	 *             if the command is not enabled.
+	 */
+	private static void checkEnabled(EHandlerService handlerService, ParameterizedCommand cmd,
+			IEclipseContext staticContext) throws MacroPlaybackException {
+		if (handlerService.canExecute(cmd, staticContext)) {
+			return;
+		}
+		// This is to handle the following case:
+		// 1. Open an editor and record keypresses and an undo
+		// 2. Close editor/Open editor
+		// 3. Playback macro: at this point, the undo action is actually
+		// disabled, so, we need to process the current events in the
+		// queue and wait for it to be enabled (or fail if it can't be
+		// enabled in the current situation).
+		if (!waitForEnablement(handlerService, cmd, staticContext)) {
+			throw createNotEnabledException(cmd);
+		}
+	}
+
+	/**
+	 * @return whether the given exception (set by the handler service in the
+	 *         static context) reports that the command was not executed because
+	 *         it was not enabled or handled.
+	 */
+	private static boolean isNotExecutable(Object commandException) {
+		return commandException instanceof NotEnabledException || commandException instanceof NotHandledException;
+	}
+
+	private static MacroPlaybackException createNotEnabledException(ParameterizedCommand cmd) {
+		String name;
+		try {
+			name = cmd.getName();
+		} catch (NotDefinedException e) {
+			name = Messages.MacroInstructionForParameterizedCommand_CommandUnknown;
+		}
+		return new MacroPlaybackException(
+				String.format(Messages.MacroInstructionForParameterizedCommand_CommandNotEnabled, name, cmd.getId()));
+	}
+
+	/**
+	 * Processes the events in the UI thread until the given command is enabled or
+	 * until the deadline set through {@link #ENABLEMENT_TIMEOUT_PROPERTY} is
+	 * reached. The enablement is checked when events are dispatched or when the
+	 * command notifies that its handler or enablement changed (and also
+	 * periodically, as not all handlers notify about enablement changes). The UI
+	 * thread sleeps while there's no event to be processed.
+	 *
+	 * @return whether the command was enabled before the deadline.
+	 */
+	private static boolean waitForEnablement(EHandlerService handlerService, ParameterizedCommand cmd,
+			IEclipseContext staticContext) {
+		final Display display = Display.getCurrent();
+		if (display == null) {
+			return handlerService.canExecute(cmd, staticContext);
+		}
+		final long deadline = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(Long.getLong(ENABLEMENT_TIMEOUT_PROPERTY, DEFAULT_ENABLEMENT_TIMEOUT));
+		final AtomicBoolean recheck = new AtomicBoolean();
+		final Runnable requestRecheck = () -> {
+			recheck.set(true);
+			display.wake();
+		};
+		final ICommandListener commandListener = commandEvent -> {
+			if (commandEvent.isEnabledChanged() || commandEvent.isHandledChanged()) {
+				requestRecheck.run();
+			}
+		};
+		final Command command = cmd.getCommand();
+		command.addCommandListener(commandListener);
+		try {
+			while (true) {
+				boolean dispatched = display.readAndDispatch();
+				if (dispatched || recheck.getAndSet(false)) {
+					if (handlerService.canExecute(cmd, staticContext)) {
+						return true;
+					}
+				}
+				long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				if (remaining <= 0) {
+					return false;
+				}
+				if (!dispatched) {
+					display.timerExec((int) Math.min(remaining, ENABLEMENT_RECHECK_INTERVAL), requestRecheck);
+					display.sleep();
+				}
+			}
+		} finally {
+			display.timerExec(-1, requestRecheck);
+			command.removeCommandListener(commandListener);
+		}
+	}
+
+	/**
+	 * @return the command executed by this macro instruction.
+	 */
+	/* default */ ParameterizedCommand getParameterizedCommand() {
+		return fCmd;
+	}
+
 	@Override
 	public String getId() {
 		return ID;
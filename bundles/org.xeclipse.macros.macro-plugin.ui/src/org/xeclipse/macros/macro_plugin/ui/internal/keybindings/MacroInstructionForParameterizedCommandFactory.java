@@ -10,12 +10,16 @@
  *******************************************************************************/
 package org.xeclipse.macros.macro_plugin.ui.internal.keybindings;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import javax.inject.Inject;
 import org.eclipse.core.commands.CommandManager;
 import org.eclipse.e4.core.commands.EHandlerService;
 import org.xeclipse.macros.macro_plugin.core.IMacroInstruction;
 import org.xeclipse.macros.macro_plugin.core.IMacroInstructionFactory;
+import org.xeclipse.macros.macro_plugin.core.IMacroInstructionsOptimizer;
+import org.xeclipse.macros.macro_plugin.core.IMacroOpcodeHandler;
 
 /**
  * Factory for macro instructions which were created from parameterized
@@ -29,9 +33,21 @@ public class MacroInstructionForParameterizedCommandFactory implements IMacroIns
 	@Inject
 	private EHandlerService fHandlerService;
 
+	private final IMacroOpcodeHandler fOpcodeHandler = new ParameterizedCommandOpcodeHandler(this);
+
 	@Override
 	public IMacroInstruction create(Map<String, String> stringMap) throws Exception {
 		return MacroInstructionForParameterizedCommand.fromMap(stringMap, fCommandManager, fHandlerService);
 	}
 
+	@Override
+	public List<IMacroInstructionsOptimizer> getOptimizers() {
+		return Collections.singletonList(RepeatedCommandsOptimizer.INSTANCE);
+	}
+
+	@Override
+	public IMacroOpcodeHandler getOpcodeHandler() {
+		return fOpcodeHandler;
+	}
+
 }
\ No newline at end of file
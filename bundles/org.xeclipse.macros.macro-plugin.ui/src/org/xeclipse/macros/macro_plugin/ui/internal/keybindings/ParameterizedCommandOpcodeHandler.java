@@ -0,0 +1,54 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Fabio Zadrozny and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Fabio Zadrozny - initial API and implementation - http://eclip.se/8519
+ *******************************************************************************/
+package org.xeclipse.macros.macro_plugin.ui.internal.keybindings;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.xeclipse.macros.macro_plugin.core.IMacroInstruction;
+import org.xeclipse.macros.macro_plugin.core.IMacroInstructionFactory;
+import org.xeclipse.macros.macro_plugin.core.IMacroOpcodeHandler;
+import org.xeclipse.macros.macro_plugin.core.IMacroPlaybackContext;
+
+/**
+ * Compiles commands to a macro instruction in the constant pool which is
+ * shared by all the equal commands of the compiled macro (so, the command is
+ * deserialized only once per compiled macro and playing it back doesn't create
+ * a macro instruction for each execution).
+ *
+ * Operands: index of the macro instruction in the constant pool
+ */
+/* default */ class ParameterizedCommandOpcodeHandler implements IMacroOpcodeHandler {
+
+	private final IMacroInstructionFactory fFactory;
+
+	/**
+	 * @param factory
+	 *            the factory which creates the macro instructions for commands.
+	 */
+	/* default */ ParameterizedCommandOpcodeHandler(IMacroInstructionFactory factory) {
+		fFactory = factory;
+	}
+
+	@Override
+	public int[] compile(Map<String, String> macroInstructionParameters, IConstantPool constantPool)
+			throws Exception {
+		// Copied (the stored parameters are owned by the reader).
+		Object key = Arrays.asList(this, new HashMap<>(macroInstructionParameters));
+		return new int[] { constantPool.add(key, () -> fFactory.create(macroInstructionParameters)) };
+	}
+
+	@Override
+	public void execute(IMacroPlaybackContext macroPlaybackContext, int[] code, int offset, Object[] constants)
+			throws Exception {
+		macroPlaybackContext.execute((IMacroInstruction) constants[code[offset]]);
+	}
+}
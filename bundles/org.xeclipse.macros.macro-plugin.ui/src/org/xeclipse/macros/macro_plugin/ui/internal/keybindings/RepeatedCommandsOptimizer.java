@@ -0,0 +1,69 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Fabio Zadrozny and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Fabio Zadrozny - initial API and implementation - http://eclip.se/8519
+ *******************************************************************************/
+package org.xeclipse.macros.macro_plugin.ui.internal.keybindings;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.eclipse.core.commands.ParameterizedCommand;
+import org.xeclipse.macros.macro_plugin.core.IMacroInstruction;
+import org.xeclipse.macros.macro_plugin.core.IMacroInstructionsOptimizer;
+
+/**
+ * Removes a command which is executed right after the same command when
+ * executing it again doesn't change anything (other repeated commands are
+ * already stored and played back as a single macro instruction with a repeat
+ * count).
+ */
+/* default */ final class RepeatedCommandsOptimizer implements IMacroInstructionsOptimizer {
+
+	/* default */ static final RepeatedCommandsOptimizer INSTANCE = new RepeatedCommandsOptimizer();
+
+	/**
+	 * Commands which have the same result if executed many times in a row.
+	 */
+	private static final Set<String> IDEMPOTENT_COMMAND_IDS = new HashSet<>(Arrays.asList(
+			"org.eclipse.ui.file.save", //$NON-NLS-1$
+			"org.eclipse.ui.file.saveAll", //$NON-NLS-1$
+			"org.eclipse.ui.edit.copy", //$NON-NLS-1$
+			"org.eclipse.ui.edit.selectAll", //$NON-NLS-1$
+			"org.eclipse.ui.edit.text.goto.textStart", //$NON-NLS-1$
+			"org.eclipse.ui.edit.text.goto.textEnd", //$NON-NLS-1$
+			"org.eclipse.ui.edit.text.select.textStart", //$NON-NLS-1$
+			"org.eclipse.ui.edit.text.select.textEnd")); //$NON-NLS-1$
+
+	private RepeatedCommandsOptimizer() {
+	}
+
+	@Override
+	public String getName() {
+		return "Repeated commands"; //$NON-NLS-1$
+	}
+
+	@Override
+	public int optimize(List<IMacroInstruction> previous, IMacroInstruction macroInstruction) {
+		if (!(macroInstruction instanceof MacroInstructionForParameterizedCommand) || previous.isEmpty()) {
+			return KEEP;
+		}
+		IMacroInstruction last = previous.get(previous.size() - 1);
+		if (!(last instanceof MacroInstructionForParameterizedCommand)) {
+			return KEEP;
+		}
+		ParameterizedCommand cmd = ((MacroInstructionForParameterizedCommand) macroInstruction)
+				.getParameterizedCommand();
+		if (cmd != null && IDEMPOTENT_COMMAND_IDS.contains(cmd.getId())
+				&& cmd.equals(((MacroInstructionForParameterizedCommand) last).getParameterizedCommand())) {
+			return 0;
+		}
+		return KEEP;
+	}
+}
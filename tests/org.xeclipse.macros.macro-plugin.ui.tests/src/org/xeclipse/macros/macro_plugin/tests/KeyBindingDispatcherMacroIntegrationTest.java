@@ -17,19 +17,32 @@ import static org.junit.Assert.assertTrue;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
+import org.eclipse.core.commands.AbstractHandler;
 import org.eclipse.core.commands.Category;
+import org.eclipse.core.commands.Command;
+import org.eclipse.core.commands.ExecutionEvent;
+import org.eclipse.core.commands.HandlerEvent;
+import org.eclipse.core.commands.IHandler;
 import org.eclipse.core.commands.ParameterizedCommand;
 import org.eclipse.core.commands.contexts.Context;
 import org.eclipse.core.commands.contexts.ContextManager;
 import org.eclipse.core.runtime.IConfigurationElement;
+import org.eclipse.core.runtime.NullProgressMonitor;
 import org.eclipse.e4.core.commands.CommandServiceAddon;
 import org.eclipse.e4.core.commands.ECommandService;
 import org.eclipse.e4.core.commands.EHandlerService;
@@ -47,12 +60,18 @@ import org.eclipse.e4.ui.services.ContextServiceAddon;
 import org.eclipse.e4.ui.services.EContextService;
 import org.eclipse.jface.bindings.Binding;
 import org.eclipse.jface.bindings.TriggerSequence;
+import org.eclipse.jface.text.Document;
+import org.eclipse.jface.text.ITextOperationTarget;
+import org.eclipse.jface.text.TextViewer;
+import org.eclipse.jface.text.TextViewerUndoManager;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.custom.StyledText;
+import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Control;
 import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.Event;
 import org.eclipse.swt.widgets.Shell;
+import org.eclipse.ui.IEditorPart;
 import org.eclipse.ui.IViewReference;
 import org.eclipse.ui.IWorkbench;
 import org.eclipse.ui.IWorkbenchWindow;
@@ -63,13 +82,23 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
+import org.xeclipse.macros.macro_plugin.core.CancelMacroPlaybackException;
 import org.xeclipse.macros.macro_plugin.core.EMacroService;
+import org.xeclipse.macros.macro_plugin.core.IMacroInstruction;
+import org.xeclipse.macros.macro_plugin.core.IMacroInstructionFactory;
+import org.xeclipse.macros.macro_plugin.core.IMacroInstructionsOptimizer;
 import org.xeclipse.macros.macro_plugin.core.IMacroRecordContext;
 import org.xeclipse.macros.macro_plugin.core.IMacroStateListener;
 import org.xeclipse.macros.macro_plugin.core.internal.MacroManager;
+import org.xeclipse.macros.macro_plugin.core.internal.MacroPlaybackContextImpl;
 import org.xeclipse.macros.macro_plugin.core.internal.MacroServiceImpl;
 import org.xeclipse.macros.macro_plugin.ui.internal.keybindings.CommandManagerExecutionListener;
+import org.xeclipse.macros.macro_plugin.ui.internal.EditorUtils;
 import org.xeclipse.macros.macro_plugin.ui.internal.keybindings.CommandManagerExecutionListenerInstaller;
+import org.xeclipse.macros.macro_plugin.ui.internal.keybindings.MacroInstructionForParameterizedCommand;
+import org.xeclipse.macros.macro_plugin.ui.internal.keybindings.MacroInstructionForParameterizedCommandFactory;
+import org.xeclipse.macros.macro_plugin.ui.workbench.texteditor.internal.MacroStyledTextInstaller;
+import org.xeclipse.macros.macro_plugin.ui.workbench.texteditor.internal.StyledTextKeyDownMacroInstructionFactory;
 
 @SuppressWarnings("restriction")
 public class KeyBindingDispatcherMacroIntegrationTest {
@@ -81,6 +110,8 @@ public class KeyBindingDispatcherMacroIntegrationTest {
 	final static String[] CONTEXTS = { ID_DIALOG_AND_WINDOW, "DAW", null, ID_DIALOG, "Dialog", ID_DIALOG_AND_WINDOW,
 			ID_WINDOW, "Window", ID_DIALOG_AND_WINDOW, };
 
+	private static final String BULK_TEXT_INSERT_PROPERTY = "org.xeclipse.macros.macro_plugin.ui.workbench.texteditor.bulkTextInsert";
+
 	private static final String TEST_CAT1 = "test.cat1";
 	private static final String TEST_ID1 = "test.id1";
 
@@ -104,6 +135,81 @@ public class KeyBindingDispatcherMacroIntegrationTest {
 		}
 	}
 
+	/**
+	 * A handler which is no longer enabled (or handled) after its first execution
+	 * until the pending UI events are processed.
+	 */
+	class StaleAfterFirstExecutionHandler {
+		private final boolean fUnhandle;
+		private boolean fEnabled = true;
+		public int executed;
+
+		StaleAfterFirstExecutionHandler(boolean unhandle) {
+			fUnhandle = unhandle;
+		}
+
+		@CanExecute
+		public boolean canExecute() {
+			return fEnabled;
+		}
+
+		@Execute
+		public void execute() {
+			executed++;
+			if (executed > 1) {
+				return;
+			}
+			EHandlerService hs = workbenchContext.get(EHandlerService.class);
+			if (fUnhandle) {
+				hs.deactivateHandler(TEST_ID1, this);
+				display.asyncExec(() -> hs.activateHandler(TEST_ID1, this));
+			} else {
+				fEnabled = false;
+				display.asyncExec(() -> fEnabled = true);
+			}
+		}
+	}
+
+	/**
+	 * A handler which is disabled until enabled from another thread.
+	 */
+	static class EnabledLaterHandler {
+		public final CountDownLatch waiting = new CountDownLatch(1);
+		public volatile boolean enabled;
+		public volatile long waitingSince;
+		public boolean executed;
+
+		@CanExecute
+		public boolean canExecute() {
+			if (!enabled && waiting.getCount() > 0) {
+				waitingSince = System.nanoTime();
+				waiting.countDown();
+			}
+			return enabled;
+		}
+
+		@Execute
+		public void execute() {
+			executed = true;
+		}
+	}
+
+	/**
+	 * A legacy handler used to notify the listeners of the command that its
+	 * enablement changed.
+	 */
+	static class NotifyingHandler extends AbstractHandler {
+
+		@Override
+		public Object execute(ExecutionEvent event) {
+			return null;
+		}
+
+		public void notifyEnabledChanged() {
+			fireHandlerChanged(new HandlerEvent(this, true, false));
+		}
+	}
+
 	private Display display;
 	private IEclipseContext workbenchContext;
 	private CallHandler handler;
@@ -281,9 +387,11 @@ public class KeyBindingDispatcherMacroIntegrationTest {
 		Assert.assertTrue(found);
 	}
 
-	private void finishRecording(EMacroService macroService) {
+	private void finishRecording(EMacroService macroService) throws Exception {
 		macroService.toggleMacroRecord();
 		assertFalse(macroService.isRecording());
+		// The macro is saved in the background.
+		((MacroServiceImpl) macroService).getMacroManager().getLastSaveFuture().get();
 	}
 
 	@Rule
@@ -307,6 +415,366 @@ public class KeyBindingDispatcherMacroIntegrationTest {
 		assertTrue(handler.q2);
 	}
 
+	/**
+	 * Creates an editor which only provides the given text viewer (and its
+	 * StyledText) through its adapters.
+	 */
+	private static IEditorPart createEditorPart(TextViewer textViewer) {
+		return (IEditorPart) Proxy.newProxyInstance(IEditorPart.class.getClassLoader(),
+				new Class<?>[] { IEditorPart.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getAdapter":
+						if (args[0] == ITextOperationTarget.class) {
+							return textViewer;
+						}
+						return args[0] == Control.class ? textViewer.getTextWidget() : null;
+					case "equals":
+						return proxy == args[0];
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					default:
+						return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+					}
+				});
+	}
+
+	private static Map<String, IMacroInstructionFactory> makeTextEditorMacroInstructionIdToFactory() {
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = new HashMap<>();
+		macroInstructionIdToFactory.put("KeyEvent", new StyledTextKeyDownMacroInstructionFactory());
+		return macroInstructionIdToFactory;
+	}
+
+	private static Map<String, String> keyDown(char c) {
+		return keyDown(c, c);
+	}
+
+	private static Map<String, String> keyDown(int keyCode, char c) {
+		Map<String, String> map = new HashMap<>();
+		map.put("keyCode", Integer.toString(keyCode));
+		map.put("character", Character.toString(c));
+		return map;
+	}
+
+	/**
+	 * Records a macro which types the given text and plays it back in the given
+	 * editor.
+	 */
+	private static void playbackTyping(IEditorPart editorPart, String text, boolean bulkTextInsert)
+			throws Exception {
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = makeTextEditorMacroInstructionIdToFactory();
+		MacroManager macroManager = new MacroManager();
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+		for (char c : text.toCharArray()) {
+			macroManager.addMacroInstruction(macroInstructionIdToFactory.get("KeyEvent").create(keyDown(c)));
+		}
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+
+		MacroPlaybackContextImpl macroPlaybackContext = new MacroPlaybackContextImpl(macroInstructionIdToFactory);
+		EditorUtils.cacheTargetEditorPart(editorPart, macroPlaybackContext);
+		EditorUtils.cacheTargetStyledText(editorPart, macroPlaybackContext);
+		macroPlaybackContext.set(BULK_TEXT_INSERT_PROPERTY, bulkTextInsert);
+		macroManager.playbackLastMacro(null, macroPlaybackContext);
+		macroManager.dispose();
+	}
+
+	@Test
+	public void testBulkTextInsertMatchesKeyPresses() throws Exception {
+		String initial = "line1\nline2";
+		String typed = "abc de_f";
+		String[] texts = new String[2];
+		int[] carets = new int[2];
+		for (int i = 0; i < 2; i++) {
+			boolean bulkTextInsert = i == 1;
+			TextViewer textViewer = new TextViewer(shell, SWT.NONE);
+			try {
+				textViewer.setDocument(new Document(initial));
+				TextViewerUndoManager undoManager = new TextViewerUndoManager(10);
+				textViewer.setUndoManager(undoManager);
+				undoManager.connect(textViewer);
+				textViewer.setSelectedRange(7, 2); // Typing replaces "in".
+
+				playbackTyping(createEditorPart(textViewer), typed, bulkTextInsert);
+				texts[i] = textViewer.getDocument().get();
+				carets[i] = textViewer.getSelectedRange().x;
+				assertEquals(0, textViewer.getSelectedRange().y);
+
+				if (bulkTextInsert) {
+					// The whole text typed is a single undo unit.
+					undoManager.undo();
+					assertEquals(initial, textViewer.getDocument().get());
+				}
+				undoManager.disconnect();
+			} finally {
+				textViewer.getTextWidget().dispose();
+			}
+		}
+		assertEquals("line1\nlabc de_fe2", texts[0]);
+		assertEquals(texts[0], texts[1]);
+		assertEquals(7 + typed.length(), carets[0]);
+		assertEquals(carets[0], carets[1]);
+	}
+
+	/**
+	 * A StyledText which keeps the number of pending calls to disable its redraw.
+	 */
+	private static class RedrawTrackingStyledText extends StyledText {
+
+		private int fRedrawDisabled;
+
+		public RedrawTrackingStyledText(Composite parent, int style) {
+			super(parent, style);
+		}
+
+		@Override
+		public void setRedraw(boolean redraw) {
+			fRedrawDisabled += redraw ? -1 : 1;
+			super.setRedraw(redraw);
+		}
+	}
+
+	private TextViewer createRedrawTrackingTextViewer() {
+		TextViewer textViewer = new TextViewer(shell, SWT.NONE) {
+
+			@Override
+			protected StyledText createTextWidget(Composite parent, int styles) {
+				return new RedrawTrackingStyledText(parent, styles);
+			}
+		};
+		textViewer.setDocument(new Document("text"));
+		return textViewer;
+	}
+
+	/**
+	 * Records a macro typing the given text in the macro service used in the test
+	 * (with the installer for editors as the only listener).
+	 */
+	private MacroManager recordTyping(String text, Map<String, IMacroInstructionFactory> macroInstructionIdToFactory)
+			throws Exception {
+		EMacroService macroService = workbenchContext.get(EMacroService.class);
+		MacroManager macroManager = ((MacroServiceImpl) macroService).getMacroManager();
+		macroManager.toggleMacroRecord(macroService, macroInstructionIdToFactory);
+		for (char c : text.toCharArray()) {
+			macroManager.addMacroInstruction(macroInstructionIdToFactory.get("KeyEvent").create(keyDown(c)));
+		}
+		macroManager.toggleMacroRecord(macroService, macroInstructionIdToFactory);
+		macroManager.getLastSaveFuture().get();
+		macroManager.addMacroStateListener(new MacroStyledTextInstaller());
+		return macroManager;
+	}
+
+	private static MacroPlaybackContextImpl createPlaybackContext(IEditorPart editorPart,
+			Map<String, IMacroInstructionFactory> macroInstructionIdToFactory) {
+		MacroPlaybackContextImpl macroPlaybackContext = new MacroPlaybackContextImpl(macroInstructionIdToFactory);
+		EditorUtils.cacheTargetEditorPart(editorPart, macroPlaybackContext);
+		EditorUtils.cacheTargetStyledText(editorPart, macroPlaybackContext);
+		return macroPlaybackContext;
+	}
+
+	@Test
+	public void testPlaybackSessionEndsWhenPlaybackFails() throws Exception {
+		TextViewer textViewer = createRedrawTrackingTextViewer();
+		RedrawTrackingStyledText textWidget = (RedrawTrackingStyledText) textViewer.getTextWidget();
+		Document document = (Document) textViewer.getDocument();
+		boolean[] failed = new boolean[1];
+		textWidget.addListener(SWT.KeyDown, event -> {
+			if (event.character == 'x') {
+				// Fails while the session is active.
+				assertTrue(textWidget.fRedrawDisabled > 0);
+				Assert.assertNotNull(document.getActiveRewriteSession());
+				failed[0] = true;
+				throw new IllegalStateException("Key press failed.");
+			}
+		});
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = makeTextEditorMacroInstructionIdToFactory();
+		MacroManager macroManager = recordTyping("abxc", macroInstructionIdToFactory);
+		try {
+			macroManager.playbackLastMacro(workbenchContext.get(EMacroService.class),
+					createPlaybackContext(createEditorPart(textViewer), macroInstructionIdToFactory));
+			Assert.fail("Expected the playback to fail.");
+		} catch (IllegalStateException e) {
+			// Expected.
+		}
+		assertTrue(failed[0]);
+		assertFalse(macroManager.isPlayingBack());
+		assertEquals(0, textWidget.fRedrawDisabled);
+		Assert.assertNull(document.getActiveRewriteSession());
+		// The StyledText typed the character before the failing listener.
+		assertEquals("abxtext", document.get());
+		textWidget.dispose();
+	}
+
+	@Test
+	public void testPlaybackSessionEndsWhenPlaybackIsCancelled() throws Exception {
+		TextViewer textViewer = createRedrawTrackingTextViewer();
+		RedrawTrackingStyledText textWidget = (RedrawTrackingStyledText) textViewer.getTextWidget();
+		Document document = (Document) textViewer.getDocument();
+		textWidget.addListener(SWT.KeyDown, event -> {
+			try {
+				// Each key press takes longer than a slice.
+				Thread.sleep(2);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = makeTextEditorMacroInstructionIdToFactory();
+		MacroManager macroManager = recordTyping("abc", macroInstructionIdToFactory);
+		macroManager.setPlaybackSliceMillis(1);
+		List<Runnable> slices = new ArrayList<>();
+		NullProgressMonitor monitor = new NullProgressMonitor();
+		CompletableFuture<Boolean> future = macroManager.scheduleLastMacroPlayback(
+				workbenchContext.get(EMacroService.class),
+				createPlaybackContext(createEditorPart(textViewer), macroInstructionIdToFactory), slices::add, monitor,
+				false);
+		assertEquals(1, slices.size());
+		assertTrue(macroManager.isPlayingBack());
+		assertTrue(textWidget.fRedrawDisabled > 0);
+
+		monitor.setCanceled(true);
+		slices.remove(0).run();
+		assertTrue(future.isDone());
+		try {
+			future.get();
+			Assert.fail("Expected the playback to be cancelled.");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof CancelMacroPlaybackException);
+		}
+		assertTrue(slices.isEmpty());
+		assertFalse(macroManager.isPlayingBack());
+		assertEquals(0, textWidget.fRedrawDisabled);
+		Assert.assertNull(document.getActiveRewriteSession());
+		assertEquals("atext", document.get());
+		textWidget.dispose();
+	}
+
+	@Test
+	public void testKeysTypedDuringPlaybackAreDiscarded() throws Exception {
+		TextViewer textViewer = createRedrawTrackingTextViewer();
+		RedrawTrackingStyledText textWidget = (RedrawTrackingStyledText) textViewer.getTextWidget();
+		Document document = (Document) textViewer.getDocument();
+		textWidget.addListener(SWT.KeyDown, event -> {
+			try {
+				// Each key press takes longer than a slice.
+				Thread.sleep(2);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = makeTextEditorMacroInstructionIdToFactory();
+		MacroManager macroManager = recordTyping("abc", macroInstructionIdToFactory);
+		macroManager.setPlaybackSliceMillis(1);
+		List<Runnable> slices = new ArrayList<>();
+		CompletableFuture<Boolean> future = macroManager.scheduleLastMacroPlayback(
+				workbenchContext.get(EMacroService.class),
+				createPlaybackContext(createEditorPart(textViewer), macroInstructionIdToFactory), slices::add,
+				new NullProgressMonitor(), false);
+		assertEquals(1, slices.size());
+
+		// The user types between slices: the key does not reach the target.
+		notifyKeyDown(textWidget, 'z');
+		assertEquals("atext", document.get());
+		while (!slices.isEmpty()) {
+			slices.remove(0).run();
+		}
+		assertTrue(future.get());
+		assertFalse(macroManager.isPlayingBack());
+		assertEquals("abctext", document.get());
+
+		// Once the playback ends, keys reach the target again.
+		notifyKeyDown(textWidget, 'z');
+		assertEquals("abcztext", document.get());
+		textWidget.dispose();
+	}
+
+	private static void notifyKeyDown(Control control, char c) {
+		Event event = new Event();
+		event.type = SWT.KeyDown;
+		event.keyCode = c;
+		event.character = c;
+		control.notifyListeners(SWT.KeyDown, event);
+	}
+
+	/**
+	 * Plays back a macro which executes a command twice, where the command is
+	 * found to be enabled in the first execution and is not executable when the
+	 * second execution starts.
+	 */
+	private void checkStaleEnablementIsCheckedAgain(boolean unhandle) throws Exception {
+		EMacroService macroService = workbenchContext.get(EMacroService.class);
+		startRecording(macroService);
+		notifyCtrlI(styledText);
+		assertTrue(handler.q2);
+		finishRecording(macroService);
+
+		EHandlerService hs = workbenchContext.get(EHandlerService.class);
+		hs.deactivateHandler(TEST_ID1, handler);
+		StaleAfterFirstExecutionHandler staleHandler = new StaleAfterFirstExecutionHandler(unhandle);
+		hs.activateHandler(TEST_ID1, staleHandler);
+
+		// The cached enablement is checked again (waiting for the command to be
+		// executable) instead of failing the playback.
+		assertEquals(2, macroService.playbackLastMacro(2));
+		assertEquals(2, staleHandler.executed);
+	}
+
+	@Test
+	public void testKnownEnabledCommandCheckedAgainWhenNotEnabled() throws Exception {
+		checkStaleEnablementIsCheckedAgain(false);
+	}
+
+	@Test
+	public void testKnownEnabledCommandCheckedAgainWhenNotHandled() throws Exception {
+		checkStaleEnablementIsCheckedAgain(true);
+	}
+
+	@Test
+	public void testWaitForEnablementWakesOnCommandChange() throws Exception {
+		EMacroService macroService = workbenchContext.get(EMacroService.class);
+		startRecording(macroService);
+		notifyCtrlI(styledText);
+		assertTrue(handler.q2);
+		finishRecording(macroService);
+
+		EHandlerService hs = workbenchContext.get(EHandlerService.class);
+		hs.deactivateHandler(TEST_ID1, handler);
+		EnabledLaterHandler enabledLaterHandler = new EnabledLaterHandler();
+		hs.activateHandler(TEST_ID1, enabledLaterHandler);
+		Command command = workbenchContext.get(ECommandService.class).getCommand(TEST_ID1);
+		NotifyingHandler notifyingHandler = new NotifyingHandler();
+		IHandler previousHandler = command.getHandler();
+		command.setHandler(notifyingHandler);
+
+		// Enabled (and notified) from another thread while the playback waits
+		// (the UI thread is sleeping, as there are no events to be processed).
+		AtomicBoolean done = new AtomicBoolean();
+		Thread enabler = new Thread(() -> {
+			try {
+				enabledLaterHandler.waiting.await();
+				enabledLaterHandler.enabled = true;
+				while (!done.get()) {
+					notifyingHandler.notifyEnabledChanged();
+					Thread.sleep(5);
+				}
+			} catch (InterruptedException e) {
+				// Finish.
+			}
+		});
+		enabler.start();
+		System.setProperty(MacroInstructionForParameterizedCommand.ENABLEMENT_TIMEOUT_PROPERTY, "5000");
+		try {
+			macroService.playbackLastMacro();
+		} finally {
+			done.set(true);
+			System.clearProperty(MacroInstructionForParameterizedCommand.ENABLEMENT_TIMEOUT_PROPERTY);
+			command.setHandler(previousHandler);
+			enabler.join();
+		}
+		assertTrue(enabledLaterHandler.executed);
+		// Woken by the notification before the periodic check (done every 100
+		// millis) and long before the deadline.
+		long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - enabledLaterHandler.waitingSince);
+		assertTrue("Waited: " + waited, waited < 100);
+	}
+
 	public List<String> getRegisteredClasses(EMacroService macroService) {
 		IMacroStateListener[] macroStateListeners = ((MacroServiceImpl) macroService)
 				.getMacroStateListeners();
@@ -315,6 +783,71 @@ public class KeyBindingDispatcherMacroIntegrationTest {
 		return classes;
 	}
 
+	private static IMacroInstructionsOptimizer getOptimizer(IMacroInstructionFactory macroInstructionFactory,
+			String name) {
+		for (IMacroInstructionsOptimizer optimizer : macroInstructionFactory.getOptimizers()) {
+			if (optimizer.getName().equals(name)) {
+				return optimizer;
+			}
+		}
+		throw new AssertionError("Optimizer not found: " + name);
+	}
+
+	@Test
+	public void testKeyPressOptimizers() throws Exception {
+		IMacroInstructionFactory factory = new StyledTextKeyDownMacroInstructionFactory();
+		IMacroInstructionsOptimizer modifierOnly = getOptimizer(factory, "Modifier-only key presses");
+		IMacroInstructionsOptimizer typedThenDeleted = getOptimizer(factory, "Characters typed and deleted");
+		IMacroInstructionsOptimizer oppositeMoves = getOptimizer(factory, "Opposite caret moves");
+		IMacroInstruction a = factory.create(keyDown('a'));
+		IMacroInstruction b = factory.create(keyDown('b'));
+		IMacroInstruction closingBrace = factory.create(keyDown('}'));
+		IMacroInstruction openingParenthesis = factory.create(keyDown('('));
+		IMacroInstruction backspace = factory.create(keyDown(SWT.BS));
+		IMacroInstruction ctrl = factory.create(keyDown(SWT.CTRL, '\0'));
+		IMacroInstruction left = factory.create(keyDown(SWT.ARROW_LEFT, '\0'));
+		IMacroInstruction right = factory.create(keyDown(SWT.ARROW_RIGHT, '\0'));
+		int keep = IMacroInstructionsOptimizer.KEEP;
+
+		assertEquals(0, modifierOnly.optimize(Arrays.asList(a), ctrl));
+		assertEquals(keep, modifierOnly.optimize(Arrays.asList(a), b));
+
+		assertEquals(1, typedThenDeleted.optimize(Arrays.asList(a, b), backspace));
+		// Without a character typed before, there may be a selection.
+		assertEquals(keep, typedThenDeleted.optimize(Arrays.asList(b), backspace));
+		assertEquals(keep, typedThenDeleted.optimize(Arrays.asList(left, b), backspace));
+		// Other characters may trigger edits which backspace doesn't undo.
+		assertEquals(keep, typedThenDeleted.optimize(Arrays.asList(a, closingBrace), backspace));
+
+		assertEquals(1, oppositeMoves.optimize(Arrays.asList(a, left), right));
+		assertEquals(keep, oppositeMoves.optimize(Arrays.asList(a, right), left));
+		assertEquals(keep, oppositeMoves.optimize(Arrays.asList(left), right));
+		// Moving the caret would leave the linked edition started.
+		assertEquals(keep, oppositeMoves.optimize(Arrays.asList(openingParenthesis, left), right));
+	}
+
+	@Test
+	public void testRepeatedCommandsOptimizer() throws Exception {
+		ECommandService cs = workbenchContext.get(ECommandService.class);
+		EHandlerService hs = workbenchContext.get(EHandlerService.class);
+		String saveId = "org.eclipse.ui.file.save";
+		cs.defineCommand(saveId, "Save", null, cs.getCategory(TEST_CAT1), null);
+		IMacroInstruction save = new MacroInstructionForParameterizedCommand(cs.createCommand(saveId, null), hs);
+		IMacroInstruction otherSave = new MacroInstructionForParameterizedCommand(cs.createCommand(saveId, null), hs);
+		IMacroInstruction test = new MacroInstructionForParameterizedCommand(cs.createCommand(TEST_ID1, null), hs);
+		IMacroInstruction otherTest = new MacroInstructionForParameterizedCommand(cs.createCommand(TEST_ID1, null),
+				hs);
+		IMacroInstructionsOptimizer repeatedCommands = getOptimizer(
+				new MacroInstructionForParameterizedCommandFactory(), "Repeated commands");
+		int keep = IMacroInstructionsOptimizer.KEEP;
+
+		assertEquals(0, repeatedCommands.optimize(Arrays.asList(test, save), otherSave));
+		assertEquals(keep, repeatedCommands.optimize(Arrays.asList(save, test), otherSave));
+		assertEquals(keep, repeatedCommands.optimize(Collections.emptyList(), save));
+		// Commands which aren't known to be idempotent are kept.
+		assertEquals(keep, repeatedCommands.optimize(Arrays.asList(test), otherTest));
+	}
+
 	@Test
 	public void testMacroIntegrationSaveRestore() throws Exception {
 		FilenameFilter macrosFilter = new FilenameFilter() {
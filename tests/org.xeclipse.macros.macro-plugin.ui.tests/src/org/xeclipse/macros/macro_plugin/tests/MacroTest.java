@@ -13,14 +13,27 @@ package org.xeclipse.macros.macro_plugin.tests;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import org.eclipse.core.runtime.IExtensionRegistry;
+import org.eclipse.core.runtime.NullProgressMonitor;
 import org.eclipse.core.runtime.RegistryFactory;
 import org.eclipse.core.runtime.spi.RegistryStrategy;
 import org.eclipse.e4.core.contexts.EclipseContextFactory;
@@ -29,15 +42,30 @@ import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
-import org.xeclipse.macros.macro_plugin.core.CancelMacroRecordingException;
+import org.xeclipse.macros.macro_plugin.core.CancelMacroPlaybackException;
 import org.xeclipse.macros.macro_plugin.core.EMacroService;
+import org.xeclipse.macros.macro_plugin.core.ICoalescedMacroInstructionsListener;
 import org.xeclipse.macros.macro_plugin.core.IMacroInstruction;
 import org.xeclipse.macros.macro_plugin.core.IMacroInstructionFactory;
+import org.xeclipse.macros.macro_plugin.core.IMacroInstructionsOptimizer;
 import org.xeclipse.macros.macro_plugin.core.IMacroPlaybackContext;
 import org.xeclipse.macros.macro_plugin.core.IMacroStateListener;
+import org.xeclipse.macros.macro_plugin.core.IPackedMacroInstructions;
+import org.xeclipse.macros.macro_plugin.core.MacroFileResult;
+import org.xeclipse.macros.macro_plugin.core.MacroPlaybackException;
+import org.xeclipse.macros.macro_plugin.core.internal.CompiledMacroCache;
+import org.xeclipse.macros.macro_plugin.core.internal.ComposableMacro;
+import org.xeclipse.macros.macro_plugin.core.internal.HeadlessMacroPlaybackContext;
+import org.xeclipse.macros.macro_plugin.core.internal.HeadlessTextBuffer;
+import org.xeclipse.macros.macro_plugin.core.internal.IDeferredMacroPlayback;
+import org.xeclipse.macros.macro_plugin.core.internal.MacroJournal;
 import org.xeclipse.macros.macro_plugin.core.internal.MacroManager;
+import org.xeclipse.macros.macro_plugin.core.internal.MacroOptimizationReport;
+import org.xeclipse.macros.macro_plugin.core.internal.MacroPlaybackContextImpl;
 import org.xeclipse.macros.macro_plugin.core.internal.MacroServiceImpl;
 import org.xeclipse.macros.macro_plugin.core.internal.MacroManager.StoredMacroReference;
+import org.xeclipse.macros.macro_plugin.core.internal.SavedXMLMacro;
+import org.xeclipse.macros.macro_plugin.core.internal.StoredMacroInstruction;
 
 public class MacroTest {
 
@@ -185,6 +213,707 @@ public class MacroTest {
 		Assert.assertEquals("macro1\nmacro2", playbackContext.buffer.toString());
 	}
 
+	private static class FailingMacroInstruction implements IMacroInstruction {
+
+		private final int fMaxExecutions;
+
+		public FailingMacroInstruction(int maxExecutions) {
+			fMaxExecutions = maxExecutions;
+		}
+
+		@Override
+		public void execute(IMacroPlaybackContext macroPlaybackContext) throws MacroPlaybackException {
+			Integer executions = (Integer) macroPlaybackContext.get("executions");
+			executions = executions == null ? 1 : executions + 1;
+			if (executions > fMaxExecutions) {
+				throw new MacroPlaybackException("Max executions reached.");
+			}
+			macroPlaybackContext.set("executions", executions);
+		}
+
+		@Override
+		public String getId() {
+			return "failing";
+		}
+
+		@Override
+		public Map<String, String> toMap() {
+			Map<String, String> map = new HashMap<>();
+			map.put("maxExecutions", Integer.toString(fMaxExecutions));
+			return map;
+		}
+	}
+
+	private static class UnresolvedMacroInstruction extends DummyMacroInstruction {
+
+		public UnresolvedMacroInstruction(String name) {
+			super(name);
+		}
+
+		@Override
+		public void resolve(IMacroPlaybackContext macroPlaybackContext) throws MacroPlaybackException {
+			throw new MacroPlaybackException("Unable to resolve.");
+		}
+	}
+
+	@Test
+	public void testSharedMacroInstructions() throws Exception {
+		int[] created = new int[1];
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = makeMacroInstructionIdToFactory();
+		macroInstructionIdToFactory.put("shared", new IMacroInstructionFactory() {
+
+			@Override
+			public IMacroInstruction create(Map<String, String> stringMap) throws Exception {
+				created[0]++;
+				return new DummyMacroInstruction(stringMap.get("name"));
+			}
+
+			@Override
+			public boolean isShareable() {
+				return true;
+			}
+		});
+		MacroPlaybackContextImpl playbackContext = new MacroPlaybackContextImpl(macroInstructionIdToFactory);
+		Map<String, String> parameters = new HashMap<>();
+		parameters.put("name", "a");
+		IMacroInstruction macroInstruction = playbackContext.createMacroInstruction("shared", parameters);
+		// Changing the parameters afterwards doesn't change the shared entry.
+		parameters.put("name", "b");
+		IMacroInstruction otherMacroInstruction = playbackContext.createMacroInstruction("shared", parameters);
+		Assert.assertTrue(macroInstruction != otherMacroInstruction);
+		Assert.assertSame(macroInstruction,
+				playbackContext.createMacroInstruction("shared", Collections.singletonMap("name", "a")));
+		Assert.assertSame(otherMacroInstruction,
+				playbackContext.createMacroInstruction("shared", Collections.singletonMap("name", "b")));
+		Assert.assertEquals(2, created[0]);
+
+		// Macro instructions from factories which aren't shareable are always
+		// created.
+		Map<String, String> dummyParameters = new HashMap<>();
+		dummyParameters.put("name", "a");
+		dummyParameters.put("dummyKey", "dummyValue");
+		Assert.assertTrue(playbackContext.createMacroInstruction("dummy", dummyParameters) != playbackContext
+				.createMacroInstruction("dummy", dummyParameters));
+
+		// Shared macro instructions aren't shared among contexts.
+		MacroPlaybackContextImpl otherPlaybackContext = new MacroPlaybackContextImpl(macroInstructionIdToFactory);
+		Assert.assertTrue(macroInstruction != otherPlaybackContext.createMacroInstruction("shared",
+				Collections.singletonMap("name", "a")));
+		Assert.assertEquals(3, created[0]);
+
+		// After the max number of shared macro instructions, new ones are still
+		// created but are no longer shared.
+		for (int i = 0; i < 5000; i++) {
+			playbackContext.createMacroInstruction("shared", Collections.singletonMap("name", "n" + i));
+		}
+		Assert.assertSame(macroInstruction,
+				playbackContext.createMacroInstruction("shared", Collections.singletonMap("name", "a")));
+		Assert.assertTrue(playbackContext.createMacroInstruction("shared",
+				Collections.singletonMap("name", "n4999")) != playbackContext.createMacroInstruction("shared",
+						Collections.singletonMap("name", "n4999")));
+	}
+
+	@Test
+	public void testPlaybackFailsBeforeExecutingUnresolvedMacro() throws Exception {
+		MacroManager macroManager = new MacroManager();
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = makeMacroInstructionIdToFactory();
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+		macroManager.addMacroInstruction(new DummyMacroInstruction("macro1"));
+		macroManager.addMacroInstruction(new UnresolvedMacroInstruction("macro2"));
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+
+		PlaybackContext playbackContext = new PlaybackContext(macroInstructionIdToFactory);
+		try {
+			macroManager.playbackLastMacro(null, playbackContext);
+			Assert.fail("Expected the playback to fail.");
+		} catch (MacroPlaybackException e) {
+			// Expected.
+		}
+		Assert.assertEquals("", playbackContext.buffer.toString());
+	}
+
+	@Test
+	public void testPlaybackLastMacroRepeatedly() throws Exception {
+		MacroManager macroManager = new MacroManager();
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = makeMacroInstructionIdToFactory();
+		final StringBuilder buf = new StringBuilder();
+		macroManager.addMacroStateListener(new IMacroStateListener() {
+
+			@Override
+			public void macroStateChanged(EMacroService macroService, StateChange stateChange) {
+				buf.append(stateChange).append("\n");
+			}
+		});
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+		macroManager.addMacroInstruction(new DummyMacroInstruction("macro1"));
+		macroManager.addMacroInstruction(new DummyMacroInstruction("macro2"));
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+		buf.setLength(0);
+
+		PlaybackContext playbackContext = new PlaybackContext(macroInstructionIdToFactory);
+		Assert.assertEquals(3, macroManager.playbackLastMacro(null, playbackContext, 3));
+		Assert.assertEquals("macro1\nmacro2\nmacro1\nmacro2\nmacro1\nmacro2", playbackContext.buffer.toString());
+		// Listeners are notified only once.
+		Assert.assertEquals("PLAYBACK_STARTED\nPLAYBACK_FINISHED\n", buf.toString());
+
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+		macroManager.addMacroInstruction(new DummyMacroInstruction("macro1"));
+		macroManager.addMacroInstruction(new FailingMacroInstruction(2));
+		macroManager.addMacroInstruction(new DummyMacroInstruction("macro2"));
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+
+		playbackContext = new PlaybackContext(macroInstructionIdToFactory);
+		Assert.assertEquals(2, macroManager.playbackLastMacroUntilFailure(null, playbackContext));
+		Assert.assertEquals("macro1\nmacro2\nmacro1\nmacro2\nmacro1", playbackContext.buffer.toString());
+		Assert.assertFalse(macroManager.isPlayingBack());
+	}
+
+	@Test
+	public void testPlaybackLastMacroUntilFailureLimitAndCancel() throws Exception {
+		MacroManager macroManager = new MacroManager();
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = makeMacroInstructionIdToFactory();
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+		macroManager.addMacroInstruction(new SlowMacroInstruction("macro1"));
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+
+		// A macro which never fails stops at the max number of playbacks.
+		macroManager.setMaxPlaybacksUntilFailure(3);
+		MacroPlaybackContextImpl playbackContext = new MacroPlaybackContextImpl(macroInstructionIdToFactory);
+		Assert.assertEquals(3, macroManager.playbackLastMacroUntilFailure(null, playbackContext));
+		Assert.assertEquals("macro1\nmacro1\nmacro1", playbackContext.get("executed"));
+
+		ArrayDeque<Runnable> slices = new ArrayDeque<>();
+		playbackContext = new MacroPlaybackContextImpl(macroInstructionIdToFactory);
+		CompletableFuture<Integer> future = macroManager.scheduleLastMacroPlaybackUntilFailure(null,
+				playbackContext, slices::add, null);
+		while (!slices.isEmpty()) {
+			slices.poll().run();
+		}
+		Assert.assertEquals(Integer.valueOf(3), future.get());
+		Assert.assertEquals("macro1\nmacro1\nmacro1", playbackContext.get("executed"));
+
+		// The scheduled playback may be cancelled between slices.
+		macroManager.setMaxPlaybacksUntilFailure(MacroManager.DEFAULT_MAX_PLAYBACKS_UNTIL_FAILURE);
+		macroManager.setPlaybackSliceMillis(1);
+		NullProgressMonitor monitor = new NullProgressMonitor();
+		playbackContext = new MacroPlaybackContextImpl(macroInstructionIdToFactory);
+		future = macroManager.scheduleLastMacroPlaybackUntilFailure(null, playbackContext, slices::add, monitor);
+		Assert.assertTrue(macroManager.isPlayingBack());
+		slices.poll().run();
+		monitor.setCanceled(true);
+		slices.poll().run();
+		Assert.assertTrue(slices.isEmpty());
+		try {
+			future.get();
+			Assert.fail("Expected the playback to be cancelled.");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof CancelMacroPlaybackException);
+		}
+		Assert.assertEquals("macro1\nmacro1", playbackContext.get("executed"));
+		Assert.assertFalse(macroManager.isPlayingBack());
+
+		// A failure ends the scheduled playback normally.
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+		macroManager.addMacroInstruction(new DummyMacroInstruction("macro1"));
+		macroManager.addMacroInstruction(new FailingMacroInstruction(2));
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+		PlaybackContext failingPlaybackContext = new PlaybackContext(macroInstructionIdToFactory);
+		future = macroManager.scheduleLastMacroPlaybackUntilFailure(null, failingPlaybackContext, slices::add,
+				null);
+		while (!slices.isEmpty()) {
+			slices.poll().run();
+		}
+		Assert.assertEquals(Integer.valueOf(2), future.get());
+		Assert.assertFalse(macroManager.isPlayingBack());
+	}
+
+	/**
+	 * Types its text in a pending text insertion (which is kept pending even if
+	 * other macro instructions are executed).
+	 */
+	private static class DeferredTypingMacroInstruction implements IMacroInstruction {
+
+		private static class PendingTyping implements IDeferredMacroPlayback {
+
+			private final StringBuilder fText = new StringBuilder();
+
+			private final IMacroPlaybackContext fMacroPlaybackContext;
+
+			public PendingTyping(IMacroPlaybackContext macroPlaybackContext) {
+				fMacroPlaybackContext = macroPlaybackContext;
+			}
+
+			@Override
+			public boolean canDefer(IMacroInstruction macroInstruction) {
+				return true;
+			}
+
+			@Override
+			public void complete() {
+				String typed = (String) fMacroPlaybackContext.get("typed");
+				fMacroPlaybackContext.set("typed", (typed == null ? "" : typed) + fText);
+				fText.setLength(0);
+			}
+		}
+
+		private final String fText;
+
+		public DeferredTypingMacroInstruction(String text) {
+			fText = text;
+		}
+
+		@Override
+		public void execute(IMacroPlaybackContext macroPlaybackContext) throws MacroPlaybackException {
+			MacroPlaybackContextImpl macroPlaybackContextImpl = (MacroPlaybackContextImpl) macroPlaybackContext;
+			PendingTyping pendingTyping = macroPlaybackContextImpl.getDeferredPlayback(PendingTyping.class);
+			if (pendingTyping == null) {
+				pendingTyping = new PendingTyping(macroPlaybackContext);
+				macroPlaybackContextImpl.addDeferredPlayback(pendingTyping);
+			}
+			pendingTyping.fText.append(fText);
+		}
+
+		@Override
+		public String getId() {
+			return "dummy";
+		}
+
+		@Override
+		public Map<String, String> toMap() {
+			return new HashMap<>();
+		}
+	}
+
+	@Test
+	public void testDeferredPlaybackCompletedWhenPlaybackFails() throws Exception {
+		MacroManager macroManager = new MacroManager();
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = makeMacroInstructionIdToFactory();
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+		macroManager.addMacroInstruction(new DeferredTypingMacroInstruction("a"));
+		macroManager.addMacroInstruction(new FailingMacroInstruction(1));
+		macroManager.addMacroInstruction(new DeferredTypingMacroInstruction("b"));
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+
+		// The text typed before the failure in the last playback is not lost.
+		MacroPlaybackContextImpl playbackContext = new MacroPlaybackContextImpl(macroInstructionIdToFactory);
+		Assert.assertEquals(1, macroManager.playbackLastMacroUntilFailure(null, playbackContext));
+		Assert.assertEquals("aba", playbackContext.get("typed"));
+
+		playbackContext = new MacroPlaybackContextImpl(macroInstructionIdToFactory);
+		try {
+			macroManager.playbackLastMacro(null, playbackContext, 2);
+			Assert.fail("Expected the playback to fail.");
+		} catch (MacroPlaybackException e) {
+			// Expected.
+		}
+		Assert.assertEquals("aba", playbackContext.get("typed"));
+		Assert.assertFalse(macroManager.isPlayingBack());
+
+		// Also when a scheduled playback fails.
+		for (boolean maxSpeed : new boolean[] { false, true }) {
+			playbackContext = new MacroPlaybackContextImpl(macroInstructionIdToFactory);
+			playbackContext.set("executions", 1);
+			ArrayDeque<Runnable> slices = new ArrayDeque<>();
+			CompletableFuture<Boolean> future = macroManager.scheduleLastMacroPlayback(null, playbackContext,
+					slices::add, null, maxSpeed);
+			while (!slices.isEmpty()) {
+				slices.poll().run();
+			}
+			try {
+				future.get();
+				Assert.fail("Expected the playback to fail.");
+			} catch (ExecutionException e) {
+				Assert.assertTrue(e.getCause() instanceof MacroPlaybackException);
+			}
+			Assert.assertEquals("a", playbackContext.get("typed"));
+			Assert.assertFalse(macroManager.isPlayingBack());
+		}
+	}
+
+	private static class SlowMacroInstruction implements IMacroInstruction {
+
+		private final String fName;
+
+		public SlowMacroInstruction(String name) {
+			fName = name;
+		}
+
+		@Override
+		public void execute(IMacroPlaybackContext macroPlaybackContext) throws MacroPlaybackException {
+			try {
+				Thread.sleep(2);
+			} catch (InterruptedException e) {
+				throw new MacroPlaybackException(e.getMessage(), e);
+			}
+			String executed = (String) macroPlaybackContext.get("executed");
+			macroPlaybackContext.set("executed", executed == null ? fName : executed + "\n" + fName);
+		}
+
+		@Override
+		public String getId() {
+			return "dummy";
+		}
+
+		@Override
+		public Map<String, String> toMap() {
+			return new HashMap<>();
+		}
+	}
+
+	private static class CountingProgressMonitor extends NullProgressMonitor {
+
+		private int fTotalWork;
+
+		private int fWorked;
+
+		@Override
+		public void beginTask(String name, int totalWork) {
+			fTotalWork = totalWork;
+		}
+
+		@Override
+		public void worked(int work) {
+			fWorked += work;
+		}
+	}
+
+	@Test
+	public void testScheduledPlayback() throws Exception {
+		MacroManager macroManager = new MacroManager();
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = makeMacroInstructionIdToFactory();
+		final StringBuilder buf = new StringBuilder();
+		macroManager.addMacroStateListener(new IMacroStateListener() {
+
+			@Override
+			public void macroStateChanged(EMacroService macroService, StateChange stateChange) {
+				buf.append(stateChange).append("\n");
+			}
+		});
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+		for (int i = 0; i < 5; i++) {
+			macroManager.addMacroInstruction(new SlowMacroInstruction("macro" + i));
+		}
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+		buf.setLength(0);
+
+		// Each macro instruction takes longer than a slice.
+		macroManager.setPlaybackSliceMillis(1);
+		ArrayDeque<Runnable> slices = new ArrayDeque<>();
+		CountingProgressMonitor monitor = new CountingProgressMonitor();
+		MacroPlaybackContextImpl playbackContext = new MacroPlaybackContextImpl(macroInstructionIdToFactory);
+		CompletableFuture<Boolean> future = macroManager.scheduleLastMacroPlayback(null, playbackContext,
+				slices::add, monitor, false);
+		Assert.assertFalse(future.isDone());
+		Assert.assertTrue(macroManager.isPlayingBack());
+		Assert.assertEquals("macro0", playbackContext.get("executed"));
+		Assert.assertEquals(5, monitor.fTotalWork);
+		Assert.assertEquals(1, monitor.fWorked);
+		Assert.assertEquals(1, slices.size());
+
+		// Another playback can't be started while this one is running.
+		Assert.assertFalse(macroManager.scheduleLastMacroPlayback(null,
+				new MacroPlaybackContextImpl(macroInstructionIdToFactory), slices::add, null, false).get());
+
+		slices.poll().run();
+		Assert.assertEquals("macro0\nmacro1", playbackContext.get("executed"));
+		monitor.setCanceled(true);
+		slices.poll().run();
+		Assert.assertTrue(future.isCompletedExceptionally());
+		try {
+			future.get();
+			Assert.fail("Expected the playback to be cancelled.");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof CancelMacroPlaybackException);
+		}
+		Assert.assertTrue(slices.isEmpty());
+		Assert.assertEquals("macro0\nmacro1", playbackContext.get("executed"));
+		Assert.assertFalse(macroManager.isPlayingBack());
+		Assert.assertEquals("PLAYBACK_STARTED\nPLAYBACK_FINISHED\n", buf.toString());
+
+		// The checks added to the context may fail the playback before it's
+		// resumed.
+		playbackContext = new MacroPlaybackContextImpl(macroInstructionIdToFactory);
+		playbackContext.addResumeCheck(() -> {
+			throw new MacroPlaybackException("Unable to resume.");
+		});
+		future = macroManager.scheduleLastMacroPlayback(null, playbackContext, slices::add, null, false);
+		Assert.assertEquals("macro0", playbackContext.get("executed"));
+		slices.poll().run();
+		try {
+			future.get();
+			Assert.fail("Expected the playback to fail.");
+		} catch (ExecutionException e) {
+			Assert.assertEquals("Unable to resume.", e.getCause().getMessage());
+		}
+		Assert.assertTrue(slices.isEmpty());
+		Assert.assertEquals("macro0", playbackContext.get("executed"));
+		Assert.assertFalse(macroManager.isPlayingBack());
+
+		// At max speed the whole macro is played back in the first slice.
+		monitor = new CountingProgressMonitor();
+		playbackContext = new MacroPlaybackContextImpl(macroInstructionIdToFactory);
+		future = macroManager.scheduleLastMacroPlayback(null, playbackContext, slices::add, monitor, true);
+		Assert.assertTrue(future.get());
+		Assert.assertTrue(slices.isEmpty());
+		Assert.assertEquals("macro0\nmacro1\nmacro2\nmacro3\nmacro4", playbackContext.get("executed"));
+		Assert.assertEquals(5, monitor.fWorked);
+		Assert.assertFalse(macroManager.isPlayingBack());
+	}
+
+	/**
+	 * Appends its name to the StringBuilder in the "executed" key of the context
+	 * (the first one takes longer than a playback slice).
+	 */
+	private static class AppendMacroInstruction implements IMacroInstruction {
+
+		private final String fName;
+
+		public AppendMacroInstruction(String name) {
+			fName = name;
+		}
+
+		@Override
+		public void execute(IMacroPlaybackContext macroPlaybackContext) throws MacroPlaybackException {
+			if ("0".equals(fName)) {
+				try {
+					Thread.sleep(2);
+				} catch (InterruptedException e) {
+					throw new MacroPlaybackException(e.getMessage(), e);
+				}
+			}
+			((StringBuilder) macroPlaybackContext.get("executed")).append(fName).append(',');
+		}
+
+		@Override
+		public String getId() {
+			return "append";
+		}
+
+		@Override
+		public Map<String, String> toMap() {
+			Map<String, String> map = new HashMap<>();
+			map.put("name", fName);
+			return map;
+		}
+	}
+
+	private static Object getField(Object object, String name) throws Exception {
+		Field field = object.getClass().getDeclaredField(name);
+		field.setAccessible(true);
+		return field.get(object);
+	}
+
+	@Test
+	public void testSpilledMacroInstructions() throws Exception {
+		MacroManager macroManager = new MacroManager(folder.getRoot());
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = new HashMap<>();
+		macroInstructionIdToFactory.put("append", stringMap -> new AppendMacroInstruction(stringMap.get("name")));
+		int length = 10 * 1024 + 5;
+		StringBuilder expected = new StringBuilder();
+		macroManager.setRecordingMemoryBudget(1);
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+		for (int i = 0; i < length; i++) {
+			macroManager.addMacroInstruction(new AppendMacroInstruction(Integer.toString(i)));
+			expected.append(i).append(',');
+		}
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+		Assert.assertTrue(macroManager.getLastSaveFuture().get());
+		ComposableMacro macro = (ComposableMacro) getField(macroManager, "fLastMacro");
+		Assert.assertEquals(length, macro.getLength());
+
+		// Chunks are spilled in the background.
+		Object macroInstructions = getField(macro, "fMacroInstructions");
+		Method hasSpilledChunks = macroInstructions.getClass().getDeclaredMethod("hasSpilledChunks");
+		hasSpilledChunks.setAccessible(true);
+		long timeout = System.currentTimeMillis() + 10000;
+		while (!(Boolean) hasSpilledChunks.invoke(macroInstructions)) {
+			Assert.assertTrue("Expected chunks to be spilled.", System.currentTimeMillis() < timeout);
+			Thread.sleep(5);
+		}
+
+		// Spilled chunks are read back when the macro is serialized.
+		File file = new File(folder.newFolder(), "spilled.macro");
+		Files.write(file.toPath(), macro.toBinaryBytes());
+		MacroPlaybackContextImpl playbackContext = new MacroPlaybackContextImpl(macroInstructionIdToFactory);
+		playbackContext.set("executed", new StringBuilder());
+		new SavedXMLMacro(file).playback(playbackContext);
+		Assert.assertEquals(expected.toString(), playbackContext.get("executed").toString());
+
+		// A playback still running keeps the spilled chunks available even if the
+		// macro is replaced by the saved one (and disposed) meanwhile.
+		macroManager.setPlaybackSliceMillis(1);
+		ArrayDeque<Runnable> slices = new ArrayDeque<>();
+		playbackContext = new MacroPlaybackContextImpl(macroInstructionIdToFactory);
+		playbackContext.set("executed", new StringBuilder());
+		CompletableFuture<Boolean> future = macroManager.scheduleLastMacroPlayback(null, playbackContext,
+				slices::add, null, false);
+		Assert.assertFalse(future.isDone());
+
+		macroManager.reloadMacros();
+		Assert.assertTrue(macro != getField(macroManager, "fLastMacro"));
+		Assert.assertFalse(macro.acquire());
+		Assert.assertNotNull(getField(macroInstructions, "fSpillChannel"));
+
+		while (!slices.isEmpty()) {
+			slices.poll().run();
+		}
+		Assert.assertTrue(future.get());
+		Assert.assertEquals(expected.toString(), playbackContext.get("executed").toString());
+		// Released once the playback finished.
+		Assert.assertNull(getField(macroInstructions, "fSpillChannel"));
+	}
+
+	@Test
+	public void testPlaybackThroughContext() throws Exception {
+		ComposableMacro macro = new ComposableMacro(makeMacroInstructionIdToFactory());
+		macro.addMacroInstruction(new DummyMacroInstruction("macro1"));
+		macro.addMacroInstruction(new DummyMacroInstruction("macro2"));
+
+		// The context decides how each macro instruction is resolved and executed.
+		PlaybackContext playbackContext = new PlaybackContext(null) {
+
+			@Override
+			public void resolve(IMacroInstruction macroInstruction) throws MacroPlaybackException {
+				recordPlayback("resolve " + macroInstruction.toMap().get("name"));
+			}
+
+			@Override
+			public void execute(IMacroInstruction macroInstruction) throws MacroPlaybackException {
+				recordPlayback("execute " + macroInstruction.toMap().get("name"));
+			}
+		};
+		macro.playback(playbackContext);
+		Assert.assertEquals("resolve macro1\nresolve macro2\nexecute macro1\nexecute macro2",
+				playbackContext.buffer.toString());
+	}
+
+	@Test
+	public void testScheduledPlaybackOfStreamedSavedMacro() throws Exception {
+		MacroManager macroManager = new MacroManager(folder.newFolder());
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = new HashMap<>();
+		macroInstructionIdToFactory.put("append", stringMap -> new AppendMacroInstruction(stringMap.get("name")));
+		int length = 3 * 1024 + 5;
+		StringBuilder expected = new StringBuilder();
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+		for (int i = 0; i < length; i++) {
+			macroManager.addMacroInstruction(new AppendMacroInstruction(Integer.toString(i)));
+			expected.append(i).append(',');
+		}
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+		Assert.assertTrue(macroManager.getLastSaveFuture().get());
+		macroManager.reloadMacros();
+		Assert.assertTrue(getField(macroManager, "fLastMacro") instanceof SavedXMLMacro);
+
+		// The saved macro doesn't fit the cache, so, it's played back as read.
+		CompiledMacroCache cache = macroManager.getCompiledMacroCache();
+		cache.setMaxSize(1024);
+		macroManager.setPlaybackSliceMillis(1);
+		ArrayDeque<Runnable> slices = new ArrayDeque<>();
+		CountingProgressMonitor monitor = new CountingProgressMonitor();
+		MacroPlaybackContextImpl playbackContext = new MacroPlaybackContextImpl(macroInstructionIdToFactory);
+		playbackContext.set("executed", new StringBuilder());
+		CompletableFuture<Boolean> future = macroManager.scheduleLastMacroPlayback(null, playbackContext,
+				slices::add, monitor, false);
+		Assert.assertFalse(future.isDone());
+		Assert.assertEquals(length, monitor.fTotalWork);
+		Assert.assertEquals("0,", playbackContext.get("executed").toString());
+		while (!slices.isEmpty()) {
+			slices.poll().run();
+		}
+		Assert.assertTrue(future.get());
+		Assert.assertEquals(expected.toString(), playbackContext.get("executed").toString());
+		Assert.assertEquals(length, monitor.fWorked);
+		Assert.assertEquals(0, cache.size());
+	}
+
+	private static IMacroInstruction createKeyEvent(int keyCode, char character) {
+		Map<String, String> map = new HashMap<>();
+		map.put("keyCode", Integer.toString(keyCode));
+		map.put("stateMask", "0");
+		map.put("character", Character.toString(character));
+		return new StoredMacroInstruction("KeyEvent", map);
+	}
+
+	private static IMacroInstruction createCommand(String commandId) {
+		Map<String, String> map = new HashMap<>();
+		map.put("command", commandId);
+		return new StoredMacroInstruction("Command", map);
+	}
+
+	@Test
+	public void testHeadlessPlayback() throws Exception {
+		MacroManager macroManager = new MacroManager();
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = makeMacroInstructionIdToFactory();
+		macroInstructionIdToFactory.put("KeyEvent", stringMap -> new StoredMacroInstruction("KeyEvent", stringMap));
+		macroInstructionIdToFactory.put("Command", stringMap -> new StoredMacroInstruction("Command", stringMap));
+
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+		macroManager.addMacroInstruction(createCommand("org.eclipse.ui.edit.text.goto.lineEnd"));
+		macroManager.addMacroInstruction(createKeyEvent(';', ';'));
+		macroManager.addMacroInstruction(createKeyEvent((1 << 24) + 2, '\0')); // Arrow down
+		macroManager.addMacroInstruction(createCommand("org.eclipse.ui.edit.text.moveLineUp"));
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+
+		HeadlessMacroPlaybackContext playbackContext = new HeadlessMacroPlaybackContext(
+				new HeadlessTextBuffer("a\n  b\n"));
+		Assert.assertTrue(macroManager.playbackLastMacroHeadless(playbackContext));
+		Assert.assertEquals("  b\na;\n", playbackContext.getTextBuffer().getText());
+		Assert.assertEquals(2, playbackContext.getTextBuffer().getCaretOffset());
+
+		// Each context has its own buffer.
+		playbackContext = new HeadlessMacroPlaybackContext(new HeadlessTextBuffer("x\r\ny"));
+		Assert.assertTrue(macroManager.playbackLastMacroHeadless(playbackContext));
+		Assert.assertEquals("y\r\nx;", playbackContext.getTextBuffer().getText());
+
+		// Macro instructions which need an editor are not played back.
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+		macroManager.addMacroInstruction(new DummyMacroInstruction("macro1"));
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+		try {
+			macroManager.playbackLastMacroHeadless(
+					new HeadlessMacroPlaybackContext(new HeadlessTextBuffer("")));
+			Assert.fail("Expected the playback to fail.");
+		} catch (MacroPlaybackException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testApplyLastMacroToFiles() throws Exception {
+		MacroManager macroManager = new MacroManager();
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = makeMacroInstructionIdToFactory();
+		macroInstructionIdToFactory.put("KeyEvent", stringMap -> new StoredMacroInstruction("KeyEvent", stringMap));
+		macroInstructionIdToFactory.put("Command", stringMap -> new StoredMacroInstruction("Command", stringMap));
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+		macroManager.addMacroInstruction(createCommand("org.eclipse.ui.edit.text.goto.textEnd"));
+		macroManager.addMacroInstruction(createKeyEvent('!', '!'));
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+
+		List<Path> files = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			Path path = folder.newFile("file" + i + ".txt").toPath();
+			Files.write(path, ("file" + i).getBytes(StandardCharsets.UTF_8));
+			files.add(path);
+		}
+		files.add(folder.getRoot().toPath().resolve("missing.txt"));
+
+		List<MacroFileResult> results = macroManager.applyLastMacroToFiles(files, StandardCharsets.UTF_8, true);
+		Assert.assertEquals(MacroFileResult.Status.MODIFIED, results.get(0).getStatus());
+		Assert.assertEquals("file0", new String(Files.readAllBytes(files.get(0)), StandardCharsets.UTF_8));
+
+		results = macroManager.applyLastMacroToFiles(files, StandardCharsets.UTF_8, false);
+		Assert.assertEquals(21, results.size());
+		for (int i = 0; i < 20; i++) {
+			Assert.assertEquals(files.get(i), results.get(i).getPath());
+			Assert.assertEquals(MacroFileResult.Status.MODIFIED, results.get(i).getStatus());
+			Assert.assertEquals("file" + i + "!", new String(Files.readAllBytes(files.get(i)), StandardCharsets.UTF_8));
+		}
+		Assert.assertEquals(MacroFileResult.Status.FAILED, results.get(20).getStatus());
+		Assert.assertNotNull(results.get(20).getError());
+		// The contents are written to temporary files which replace the files.
+		Assert.assertEquals(20, folder.getRoot().list().length);
+	}
+
 	@Test
 	public void testAddMacroInstructionPriority() throws Exception {
 		MacroManager macroManager = new MacroManager();
@@ -223,6 +952,35 @@ public class MacroTest {
 		Assert.assertEquals("macro2", playbackContext.buffer.toString());
 	}
 
+	@Test
+	public void testAddMacroInstructionPriorityAfterEviction() throws Exception {
+		MacroManager macroManager = new MacroManager();
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = makeMacroInstructionIdToFactory();
+		PlaybackContext playbackContext = new PlaybackContext(macroInstructionIdToFactory);
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+		Object first = new Object();
+		macroManager.addMacroInstruction(new DummyMacroInstruction("first"), first, 1);
+		// Many more events than the placements kept (so, the first one is evicted).
+		StringBuilder expected = new StringBuilder("first");
+		for (int i = 0; i < 100; i++) {
+			// Each key press is replaced by the command it triggers.
+			Object ev = new Object();
+			macroManager.addMacroInstruction(new DummyMacroInstruction("key" + i), ev, 1);
+			macroManager.addMacroInstruction(new DummyMacroInstruction("command" + i), ev, 2);
+			macroManager.addMacroInstruction(new DummyMacroInstruction("other" + i), ev, 1); // will not replace it
+			expected.append("\ncommand").append(i);
+		}
+		Assert.assertEquals(101, macroManager.getLengthOfMacroBeingRecorded());
+		// The evicted event is no longer arbitrated (so, it's added again).
+		macroManager.addMacroInstruction(new DummyMacroInstruction("last"), first, 2);
+		expected.append("\nlast");
+		Assert.assertEquals(102, macroManager.getLengthOfMacroBeingRecorded());
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+
+		macroManager.playbackLastMacro(null, playbackContext);
+		Assert.assertEquals(expected.toString(), playbackContext.buffer.toString());
+	}
+
 	@Test
 	public void testMacroManagerSaveRestore() throws Exception {
 		File root = folder.getRoot();
@@ -239,6 +997,476 @@ public class MacroTest {
 		Assert.assertEquals("macro1", playbackContext.buffer.toString());
 	}
 
+	@Test
+	public void testRecoverMacroJournalAfterCrash() throws Exception {
+		File root = folder.getRoot();
+		// Written in the calling thread.
+		MacroJournal macroJournal = MacroJournal.create(root.toPath(), Runnable::run);
+		macroJournal.add(new DummyMacroInstruction("macro1"));
+		macroJournal.add(new DummyMacroInstruction("macro2"));
+		macroJournal.set(1, new DummyMacroInstruction("macro3"));
+		// Closed as it'd be when the application exits.
+		macroJournal.close().get();
+
+		// Simulate a crash: the seal record (the last byte) is replaced by an add
+		// record which was only partially written.
+		Path path = macroJournal.getPath();
+		byte[] contents = Files.readAllBytes(path);
+		byte[] crashed = Arrays.copyOf(contents, contents.length + 3);
+		crashed[contents.length - 1] = 1; // Add record.
+		crashed[contents.length] = 0; // New string.
+		crashed[contents.length + 1] = 10; // With 10 bytes...
+		crashed[contents.length + 2] = 'd'; // ... but only 1 written.
+		Files.write(path, crashed);
+
+		// The journal is recovered as a temporary macro when the macros are loaded.
+		MacroManager macroManager = new MacroManager(root);
+		Assert.assertFalse(Files.exists(path));
+		Assert.assertEquals(1, listTemporaryMacros(root).length);
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = makeMacroInstructionIdToFactory();
+		PlaybackContext playbackContext = new PlaybackContext(macroInstructionIdToFactory);
+		macroManager.playbackLastMacro(null, playbackContext);
+		Assert.assertEquals("macro1\nmacro3", playbackContext.buffer.toString());
+	}
+
+	/**
+	 * Blocks the persistence thread when it's written (until released).
+	 */
+	private static class BlockingSaveMacroInstruction extends DummyMacroInstruction {
+
+		private final CountDownLatch fBlocked;
+
+		private final CountDownLatch fRelease;
+
+		public BlockingSaveMacroInstruction(String name, CountDownLatch blocked, CountDownLatch release) {
+			super(name);
+			fBlocked = blocked;
+			fRelease = release;
+		}
+
+		@Override
+		public Map<String, String> toMap() {
+			if (Thread.currentThread().getName().equals("Macro persistence")) {
+				fBlocked.countDown();
+				try {
+					fRelease.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					throw new AssertionError(e);
+				}
+			}
+			return super.toMap();
+		}
+	}
+
+	@Test
+	public void testSupersededSavesAreDropped() throws Exception {
+		File root = folder.getRoot();
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = makeMacroInstructionIdToFactory();
+		MacroManager macroManager = new MacroManager(root);
+		macroManager.setMaxNumberOfTemporaryMacros(2);
+		CountDownLatch blocked = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+
+		// The first save blocks the persistence thread.
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+		macroManager.addMacroInstruction(new BlockingSaveMacroInstruction("macro0", blocked, release));
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+		CompletableFuture<Boolean> blockedSave = macroManager.getLastSaveFuture();
+		Assert.assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+		List<CompletableFuture<Boolean>> saves = new ArrayList<>();
+		for (int i = 1; i <= 4; i++) {
+			macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+			macroManager.addMacroInstruction(new DummyMacroInstruction("macro" + i));
+			macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+			saves.add(macroManager.getLastSaveFuture());
+		}
+		// An empty recording doesn't supersede anything.
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+		CompletableFuture<Boolean> emptySave = macroManager.getLastSaveFuture();
+
+		Assert.assertFalse(saves.get(2).isDone());
+		Assert.assertFalse(saves.get(3).isDone());
+
+		// Only the 2 newest saves are still pending (the older ones would be removed
+		// when those are saved anyway), so, the older ones are dropped (and finished
+		// once their journals are removed in the persistence thread).
+		release.countDown();
+		Assert.assertTrue(blockedSave.get(5, TimeUnit.SECONDS));
+		Assert.assertFalse(saves.get(0).get(5, TimeUnit.SECONDS));
+		Assert.assertFalse(saves.get(1).get(5, TimeUnit.SECONDS));
+		Assert.assertTrue(saves.get(2).get(5, TimeUnit.SECONDS));
+		Assert.assertTrue(saves.get(3).get(5, TimeUnit.SECONDS));
+		Assert.assertTrue(emptySave.get(5, TimeUnit.SECONDS));
+
+		// The journals of the superseded saves aren't recovered later on.
+		Assert.assertEquals(Collections.emptyList(), MacroJournal.listJournals(root.toPath()));
+		Assert.assertEquals(2, listTemporaryMacros(root).length);
+		macroManager = new MacroManager(root);
+		PlaybackContext playbackContext = new PlaybackContext(macroInstructionIdToFactory);
+		macroManager.playbackLastMacro(null, playbackContext);
+		Assert.assertEquals("macro4", playbackContext.buffer.toString());
+	}
+
+	@Test
+	public void testLiveMacroJournalIsNotRecovered() throws Exception {
+		File root = folder.getRoot();
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = makeMacroInstructionIdToFactory();
+		MacroManager recordingMacroManager = new MacroManager(root);
+		recordingMacroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+		recordingMacroManager.addMacroInstruction(new DummyMacroInstruction("macro1"));
+		List<Path> journals = MacroJournal.listJournals(root.toPath());
+		Assert.assertEquals(1, journals.size());
+
+		// Some other manager sharing the directory (i.e.: another running
+		// application) must not recover the journal of a recording which is alive.
+		MacroManager otherMacroManager = new MacroManager(root);
+		otherMacroManager.reloadMacros();
+		Assert.assertTrue(Files.exists(journals.get(0)));
+		Assert.assertEquals(0, listTemporaryMacros(root).length);
+
+		// Sealed (but still locked) while the save is pending.
+		recordingMacroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+		otherMacroManager.reloadMacros();
+		Assert.assertTrue(recordingMacroManager.getLastSaveFuture().get());
+		Assert.assertFalse(Files.exists(journals.get(0)));
+		Assert.assertEquals(1, listTemporaryMacros(root).length);
+
+		// When the recording manager is disposed while recording, the journal is
+		// released to be recovered.
+		recordingMacroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+		recordingMacroManager.addMacroInstruction(new DummyMacroInstruction("macro2"));
+		journals = MacroJournal.listJournals(root.toPath());
+		Assert.assertEquals(1, journals.size());
+		otherMacroManager.reloadMacros();
+		Assert.assertEquals(1, listTemporaryMacros(root).length);
+		recordingMacroManager.dispose();
+		long timeout = System.currentTimeMillis() + 5000;
+		while (Files.exists(journals.get(0)) && System.currentTimeMillis() < timeout) {
+			otherMacroManager.reloadMacros();
+			Thread.sleep(10);
+		}
+		Assert.assertFalse(Files.exists(journals.get(0)));
+		Assert.assertEquals(2, listTemporaryMacros(root).length);
+		PlaybackContext playbackContext = new PlaybackContext(macroInstructionIdToFactory);
+		otherMacroManager.playbackLastMacro(null, playbackContext);
+		Assert.assertEquals("macro2", playbackContext.buffer.toString());
+		otherMacroManager.dispose();
+	}
+
+	/**
+	 * Keeps the names of dummy macro instructions packed (counting how many macro
+	 * instructions are actually created).
+	 */
+	private static class PackedDummyMacroInstructions implements IPackedMacroInstructions {
+
+		private final List<String> fNames = new ArrayList<>();
+
+		private int fCreated;
+
+		/**
+		 * Whether the contents of a slot were read in the thread which added it.
+		 */
+		private volatile boolean fMapInCallingThread;
+
+		private final Thread fCallingThread = Thread.currentThread();
+
+		public int add(String name) {
+			fNames.add(name);
+			return fNames.size() - 1;
+		}
+
+		@Override
+		public String getMacroInstructionId(int slot) {
+			return "dummy";
+		}
+
+		@Override
+		public IMacroInstruction createMacroInstruction(int slot) {
+			fCreated++;
+			return new DummyMacroInstruction(fNames.get(slot));
+		}
+
+		@Override
+		public Map<String, String> toMap(int slot) {
+			if (Thread.currentThread() == fCallingThread) {
+				fMapInCallingThread = true;
+			}
+			HashMap<String, String> map = new HashMap<>();
+			map.put("dummyKey", "dummyValue");
+			map.put("name", fNames.get(slot));
+			return map;
+		}
+	}
+
+	@Test
+	public void testCoalescedMacroInstructionsListener() throws Exception {
+		MacroManager macroManager = new MacroManager();
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = makeMacroInstructionIdToFactory();
+		ArrayDeque<Runnable> notifications = new ArrayDeque<>();
+		List<String> delivered = new ArrayList<>();
+		ICoalescedMacroInstructionsListener listener = new ICoalescedMacroInstructionsListener() {
+
+			@Override
+			public Executor getNotificationExecutor() {
+				return notifications::add;
+			}
+
+			@Override
+			public void postAddMacroInstructions(int count, IMacroInstruction lastMacroInstruction) {
+				delivered.add(count + ":" + lastMacroInstruction.toMap().get("name"));
+			}
+		};
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+		macroManager.addMacroInstructionsListener(listener);
+		for (int i = 0; i < 5; i++) {
+			macroManager.addMacroInstruction(new DummyMacroInstruction("macro" + i));
+		}
+		// A single notification is pending for all the macro instructions added.
+		Assert.assertEquals(1, notifications.size());
+		Assert.assertTrue(delivered.isEmpty());
+		notifications.poll().run();
+		Assert.assertEquals(Arrays.asList("5:macro4"), delivered);
+
+		// The last packed macro instruction is only created when delivered.
+		PackedDummyMacroInstructions packedMacroInstructions = new PackedDummyMacroInstructions();
+		macroManager.addMacroInstruction(new DummyMacroInstruction("macro5"));
+		macroManager.addPackedMacroInstruction(packedMacroInstructions, packedMacroInstructions.add("macro6"),
+				new Object(), EMacroService.PRIORITY_LOW);
+		macroManager.addPackedMacroInstruction(packedMacroInstructions, packedMacroInstructions.add("macro7"),
+				new Object(), EMacroService.PRIORITY_LOW);
+		Assert.assertEquals(1, notifications.size());
+		Assert.assertEquals(0, packedMacroInstructions.fCreated);
+		notifications.poll().run();
+		Assert.assertEquals(Arrays.asList("5:macro4", "3:macro7"), delivered);
+		Assert.assertEquals(1, packedMacroInstructions.fCreated);
+
+		// A key press replaced by the command it triggered is only counted once.
+		Object event = new Object();
+		macroManager.addPackedMacroInstruction(packedMacroInstructions, packedMacroInstructions.add("key"), event,
+				EMacroService.PRIORITY_LOW);
+		macroManager.addMacroInstruction(new DummyMacroInstruction("command"), event, EMacroService.PRIORITY_HIGH);
+		notifications.poll().run();
+		Assert.assertEquals(Arrays.asList("5:macro4", "3:macro7", "1:command"), delivered);
+		Assert.assertEquals(9, macroManager.getLengthOfMacroBeingRecorded());
+
+		// Pending notifications are discarded when the listener is removed.
+		macroManager.addMacroInstruction(new DummyMacroInstruction("macro8"));
+		macroManager.removeMacroInstructionsListener(listener);
+		while (!notifications.isEmpty()) {
+			notifications.poll().run();
+		}
+		Assert.assertEquals(Arrays.asList("5:macro4", "3:macro7", "1:command"), delivered);
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+	}
+
+	@Test
+	public void testPackedMacroInstructionsCreatedOnlyOnPlayback() throws Exception {
+		File root = folder.getRoot();
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = makeMacroInstructionIdToFactory();
+		PackedDummyMacroInstructions packedMacroInstructions = new PackedDummyMacroInstructions();
+		for (boolean binary : new boolean[] { false, true }) {
+			MacroManager macroManager = new MacroManager(root);
+			macroManager.setSaveInBinaryFormat(binary);
+			macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+			Object event = new Object();
+			macroManager.addPackedMacroInstruction(packedMacroInstructions, packedMacroInstructions.add("macro1"),
+					event, EMacroService.PRIORITY_LOW);
+			// Replaces the one added for the same event.
+			macroManager.addPackedMacroInstruction(packedMacroInstructions, packedMacroInstructions.add("macro2"),
+					event, EMacroService.PRIORITY_HIGH);
+			macroManager.addPackedMacroInstruction(packedMacroInstructions, packedMacroInstructions.add("macro3"),
+					new Object(), EMacroService.PRIORITY_LOW);
+			macroManager.addPackedMacroInstruction(packedMacroInstructions, packedMacroInstructions.add("macro3"),
+					new Object(), EMacroService.PRIORITY_LOW);
+			macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+			Assert.assertTrue(macroManager.getLastSaveFuture().get());
+
+			// Journaled and saved without creating the macro instructions (nor their
+			// contents in the recording thread).
+			Assert.assertEquals(0, packedMacroInstructions.fCreated);
+			Assert.assertFalse(packedMacroInstructions.fMapInCallingThread);
+
+			macroManager = new MacroManager(root);
+			PlaybackContext playbackContext = new PlaybackContext(macroInstructionIdToFactory);
+			macroManager.playbackLastMacro(null, playbackContext);
+			Assert.assertEquals("macro2\nmacro3\nmacro3", playbackContext.buffer.toString());
+			Assert.assertEquals(0, packedMacroInstructions.fCreated);
+		}
+	}
+
+	/**
+	 * Removes a dummy macro instruction with the same name as the one before it.
+	 */
+	private static final IMacroInstructionsOptimizer REPEATED_DUMMIES = new IMacroInstructionsOptimizer() {
+
+		@Override
+		public String getName() {
+			return "Repeated dummies";
+		}
+
+		@Override
+		public int optimize(List<IMacroInstruction> previous, IMacroInstruction macroInstruction) {
+			if (!previous.isEmpty() && previous.get(previous.size() - 1).toMap().get("name")
+					.equals(macroInstruction.toMap().get("name"))) {
+				return 0;
+			}
+			return KEEP;
+		}
+	};
+
+	/**
+	 * Removes a dummy macro instruction named "undo" along with the one before it.
+	 */
+	private static final IMacroInstructionsOptimizer UNDONE_DUMMIES = new IMacroInstructionsOptimizer() {
+
+		@Override
+		public String getName() {
+			return "Undone dummies";
+		}
+
+		@Override
+		public int optimize(List<IMacroInstruction> previous, IMacroInstruction macroInstruction) {
+			if (!previous.isEmpty() && "undo".equals(macroInstruction.toMap().get("name"))) {
+				return 1;
+			}
+			return KEEP;
+		}
+	};
+
+	private Map<String, IMacroInstructionFactory> makeOptimizedMacroInstructionIdToFactory() {
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = makeMacroInstructionIdToFactory();
+		IMacroInstructionFactory dummyFactory = macroInstructionIdToFactory.get("dummy");
+		macroInstructionIdToFactory.put("dummy", new IMacroInstructionFactory() {
+
+			@Override
+			public IMacroInstruction create(Map<String, String> stringMap) throws Exception {
+				return dummyFactory.create(stringMap);
+			}
+
+			@Override
+			public List<IMacroInstructionsOptimizer> getOptimizers() {
+				return Arrays.asList(REPEATED_DUMMIES, UNDONE_DUMMIES);
+			}
+		});
+		return macroInstructionIdToFactory;
+	}
+
+	@Test
+	public void testOptimizedMacro() throws Exception {
+		MacroManager macroManager = new MacroManager(folder.getRoot());
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = makeOptimizedMacroInstructionIdToFactory();
+		macroManager.setOptimizeMacros(true);
+		// MacroOptimizer.WINDOW_SIZE: the window is flushed each time it reaches
+		// 2 * windowSize macro instructions.
+		int windowSize = 256;
+		List<String> expected = new ArrayList<>();
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+		for (int i = 0; i < 3 * windowSize; i++) {
+			macroManager.addMacroInstruction(new DummyMacroInstruction("macro" + i));
+			expected.add("macro" + i);
+			if (i % 100 == 0) {
+				macroManager.addMacroInstruction(new DummyMacroInstruction("macro" + i));
+			}
+			if (i == 2 * windowSize - 1) {
+				// Right after the window is flushed the previous macro instruction is
+				// still available to the optimizers.
+				macroManager.addMacroInstruction(new DummyMacroInstruction("undo"));
+				expected.remove(expected.size() - 1);
+			}
+		}
+		macroManager.addMacroInstruction(new DummyMacroInstruction("undo"));
+		expected.remove(expected.size() - 1);
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+		Assert.assertTrue(macroManager.getLastSaveFuture().get());
+
+		MacroOptimizationReport report = macroManager.getLastOptimizationReport();
+		Assert.assertEquals(3 * windowSize + 8 + 2, report.getOriginalLength());
+		Assert.assertEquals(3 * windowSize - 2, report.getOptimizedLength());
+		Map<String, Integer> removed = new HashMap<>();
+		removed.put("Repeated dummies", 8);
+		removed.put("Undone dummies", 4);
+		Assert.assertEquals(removed, report.getRemoved());
+
+		PlaybackContext playbackContext = new PlaybackContext(macroInstructionIdToFactory);
+		macroManager.playbackLastMacro(null, playbackContext);
+		Assert.assertEquals(String.join("\n", expected), playbackContext.buffer.toString());
+
+		// The saved macro is the optimized one.
+		macroManager = new MacroManager(folder.getRoot());
+		playbackContext = new PlaybackContext(macroInstructionIdToFactory);
+		macroManager.playbackLastMacro(null, playbackContext);
+		Assert.assertEquals(String.join("\n", expected), playbackContext.buffer.toString());
+	}
+
+	@Test
+	public void testOptimizedMacroKeepsPackedMacroInstructions() throws Exception {
+		MacroManager macroManager = new MacroManager(folder.getRoot());
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = makeOptimizedMacroInstructionIdToFactory();
+		macroManager.setOptimizeMacros(true);
+		PackedDummyMacroInstructions packedMacroInstructions = new PackedDummyMacroInstructions();
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+		for (String name : new String[] { "macro1", "macro1", "macro2", "macro3" }) {
+			macroManager.addPackedMacroInstruction(packedMacroInstructions, packedMacroInstructions.add(name),
+					new Object(), EMacroService.PRIORITY_LOW);
+		}
+		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+		Assert.assertTrue(macroManager.getLastSaveFuture().get());
+		Assert.assertEquals(Collections.singletonMap("Repeated dummies", 1),
+				macroManager.getLastOptimizationReport().getRemoved());
+
+		// Created only for the optimizers to check those.
+		Assert.assertEquals(4, packedMacroInstructions.fCreated);
+
+		// The ones kept are still packed (so, created again on playback).
+		PlaybackContext playbackContext = new PlaybackContext(macroInstructionIdToFactory);
+		macroManager.playbackLastMacro(null, playbackContext);
+		Assert.assertEquals("macro1\nmacro2\nmacro3", playbackContext.buffer.toString());
+		Assert.assertEquals(4 + 3, packedMacroInstructions.fCreated);
+	}
+
+	@Test
+	public void testCompressedTemporaryMacros() throws Exception {
+		File root = folder.getRoot();
+		MacroManager macroManager = new MacroManager(root);
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = makeMacroInstructionIdToFactory();
+		File[] files;
+
+		// Below the threshold: plain XML.
+		macroManager.setCompressionThreshold(64 * 1024);
+		createMacroWithOneDummyMacroInstruction(macroManager, macroInstructionIdToFactory);
+		files = root.listFiles((dir, name) -> name.startsWith("temp_macro"));
+		Assert.assertEquals(1, files.length);
+		Assert.assertTrue(files[0].getName(), files[0].getName().endsWith(".xml"));
+		Assert.assertEquals('<', Files.readAllBytes(files[0].toPath())[0]);
+		Assert.assertTrue(files[0].delete());
+
+		// Above the threshold: compressed with the .gz suffix.
+		macroManager.setCompressionThreshold(10);
+		createMacroWithOneDummyMacroInstruction(macroManager, macroInstructionIdToFactory);
+		files = root.listFiles((dir, name) -> name.startsWith("temp_macro"));
+		Assert.assertEquals(1, files.length);
+		Assert.assertTrue(files[0].getName(), files[0].getName().endsWith(".xml.gz"));
+		byte[] contents = Files.readAllBytes(files[0].toPath());
+		Assert.assertEquals(0x1f, contents[0] & 0xFF);
+		Assert.assertEquals(0x8b, contents[1] & 0xFF);
+
+		// Loaded back as the last macro.
+		macroManager = new MacroManager(root);
+		PlaybackContext playbackContext = new PlaybackContext(macroInstructionIdToFactory);
+		macroManager.playbackLastMacro(null, playbackContext);
+		Assert.assertEquals("macro1", playbackContext.buffer.toString());
+		Assert.assertTrue(files[0].delete());
+
+		// A negative threshold never compresses.
+		macroManager.setCompressionThreshold(-1);
+		createMacroWithOneDummyMacroInstruction(macroManager, macroInstructionIdToFactory);
+		files = root.listFiles((dir, name) -> name.startsWith("temp_macro"));
+		Assert.assertEquals(1, files.length);
+		Assert.assertTrue(files[0].getName(), files[0].getName().endsWith(".xml"));
+	}
+
 	@Test
 	public void testMacroManagerMaxNumberOfMacros() throws Exception {
 		File root = folder.getRoot();
@@ -321,10 +1549,12 @@ public class MacroTest {
 	}
 
 	protected void createMacroWithOneDummyMacroInstruction(MacroManager macroManager,
-			Map<String, IMacroInstructionFactory> macroInstructionIdToFactory) throws CancelMacroRecordingException {
+			Map<String, IMacroInstructionFactory> macroInstructionIdToFactory) throws Exception {
 		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
 		macroManager.addMacroInstruction(new DummyMacroInstruction("macro1"));
 		macroManager.toggleMacroRecord(null, macroInstructionIdToFactory);
+		// The macro is saved in the background.
+		Assert.assertTrue(macroManager.getLastSaveFuture().get());
 	}
 
 	private Map<String, IMacroInstructionFactory> makeMacroInstructionIdToFactory() {
@@ -346,6 +1576,8 @@ public class MacroTest {
 				return new DummyMacroInstruction(stringMap.get("name"));
 			}
 		});
+		macroInstructionIdToFactory.put("failing",
+				stringMap -> new FailingMacroInstruction(Integer.parseInt(stringMap.get("maxExecutions"))));
 		return macroInstructionIdToFactory;
 	}
 
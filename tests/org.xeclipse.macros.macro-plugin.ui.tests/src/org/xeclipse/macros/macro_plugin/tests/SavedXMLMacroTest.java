@@ -12,11 +12,20 @@ package org.xeclipse.macros.macro_plugin.tests;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
 
 import org.eclipse.core.runtime.Assert;
 import org.junit.Rule;
@@ -24,9 +33,13 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import org.xeclipse.macros.macro_plugin.core.IMacroInstruction;
 import org.xeclipse.macros.macro_plugin.core.IMacroInstructionFactory;
+import org.xeclipse.macros.macro_plugin.core.IMacroOpcodeHandler;
 import org.xeclipse.macros.macro_plugin.core.IMacroPlaybackContext;
 import org.xeclipse.macros.macro_plugin.core.MacroPlaybackException;
+import org.xeclipse.macros.macro_plugin.core.internal.BinaryMacroFormat;
+import org.xeclipse.macros.macro_plugin.core.internal.CompiledMacroCache;
 import org.xeclipse.macros.macro_plugin.core.internal.ComposableMacro;
+import org.xeclipse.macros.macro_plugin.core.internal.MacroPlaybackContextImpl;
 import org.xeclipse.macros.macro_plugin.core.internal.SavedXMLMacro;
 
 public class SavedXMLMacroTest {
@@ -114,4 +127,519 @@ public class SavedXMLMacroTest {
 		macro.playback(macroPlaybackContext);
 		assertEquals(macroPlaybackContext.get("played"), true);
 	}
+
+	@Test
+	public void testSavedXMLMacroWithoutSingleRoot() throws Exception {
+		String[] contents = new String[] { "<?xml version=\"1.0\" encoding=\"UTF-8\"?><!-- no root -->",
+				"<?xml version=\"1.0\" encoding=\"UTF-8\"?><macro/><macro/>" };
+		for (int i = 0; i < contents.length; i++) {
+			File tempFile = folder.newFile("malformed" + i + ".xml");
+			Files.write(tempFile.toPath(), contents[i].getBytes(StandardCharsets.UTF_8));
+			try {
+				new SavedXMLMacro(tempFile).playback(new MyMacroPlaybackContext());
+				Assert.isTrue(false, "Expected the playback to fail.");
+			} catch (MacroPlaybackException e) {
+				// Expected.
+			}
+		}
+	}
+
+	private static class MapMacroInstruction implements IMacroInstruction {
+
+		private final String fId;
+
+		private final Map<String, String> fMap;
+
+		public MapMacroInstruction(String id, Map<String, String> map) {
+			fId = id;
+			fMap = map;
+		}
+
+		@Override
+		public String getId() {
+			return fId;
+		}
+
+		@Override
+		public void execute(IMacroPlaybackContext macroPlaybackContext) throws MacroPlaybackException {
+		}
+
+		@Override
+		public Map<String, String> toMap() {
+			return fMap;
+		}
+	}
+
+	/**
+	 * Keeps the id and contents of the macro instructions read from a stored macro.
+	 */
+	private static class RecordingMacroPlaybackContext extends MyMacroPlaybackContext {
+
+		private final List<String> fRead = new ArrayList<>();
+
+		@Override
+		public void runMacroInstruction(String macroInstructionId, Map<String, String> macroInstructionParameters)
+				throws Exception {
+			fRead.add(macroInstructionId + "=" + new TreeMap<>(macroInstructionParameters));
+		}
+	}
+
+	private static Map<String, String> createMap(String... keysAndValues) {
+		Map<String, String> map = new HashMap<>();
+		for (int i = 0; i < keysAndValues.length; i += 2) {
+			map.put(keysAndValues[i], keysAndValues[i + 1]);
+		}
+		return map;
+	}
+
+	@Test
+	public void testBinaryFormatRoundTrip() throws Exception {
+		List<IMacroInstruction> macroInstructions = new ArrayList<>();
+		macroInstructions.add(new MyMacroInstruction());
+		// Values which look like integers but aren't written back the same way
+		// must be kept as strings.
+		macroInstructions.add(new MapMacroInstruction("values",
+				createMap("zero", "0", "negative", "-1", "max", "2147483647", "min", "-2147483648", "overflow",
+						"2147483648", "leadingZero", "007", "negativeZero", "-0", "plus", "+1", "empty", "",
+						"dash", "-", "unicode", "\u00e7\u4e2d")));
+		macroInstructions.add(new MapMacroInstruction("empty", createMap()));
+		// Repeated macro instructions and strings.
+		for (int i = 0; i < 3; i++) {
+			macroInstructions.add(new MapMacroInstruction("values", createMap("zero", "0")));
+		}
+		macroInstructions.add(new MyMacroInstruction());
+
+		ComposableMacro composable = new ComposableMacro(null);
+		List<String> expected = new ArrayList<>();
+		for (IMacroInstruction macroInstruction : macroInstructions) {
+			composable.addMacroInstruction(macroInstruction);
+			expected.add(macroInstruction.getId() + "=" + new TreeMap<>(macroInstruction.toMap()));
+		}
+		File tempFile = folder.newFile("round_trip.macro");
+		try (OutputStream outputStream = Files.newOutputStream(tempFile.toPath())) {
+			composable.writeBinary(outputStream);
+		}
+		try (InputStream inputStream = new BufferedInputStream(Files.newInputStream(tempFile.toPath()))) {
+			assertEquals(true, BinaryMacroFormat.isBinaryFormat(inputStream));
+		}
+
+		RecordingMacroPlaybackContext macroPlaybackContext = new RecordingMacroPlaybackContext();
+		new SavedXMLMacro(tempFile).playback(macroPlaybackContext);
+		assertEquals(expected, macroPlaybackContext.fRead);
+
+		// The XML format reads back the same contents.
+		File xmlFile = folder.newFile("round_trip.xml");
+		Files.write(xmlFile.toPath(), composable.toXMLBytes());
+		macroPlaybackContext = new RecordingMacroPlaybackContext();
+		new SavedXMLMacro(xmlFile).playback(macroPlaybackContext);
+		assertEquals(expected, macroPlaybackContext.fRead);
+	}
+
+	private static class AddMacroInstruction implements IMacroInstruction {
+
+		private final int fValue;
+
+		public AddMacroInstruction(int value) {
+			fValue = value;
+		}
+
+		@Override
+		public String getId() {
+			return "add";
+		}
+
+		@Override
+		public void execute(IMacroPlaybackContext macroPlaybackContext) throws MacroPlaybackException {
+			add(macroPlaybackContext, fValue);
+		}
+
+		private static void add(IMacroPlaybackContext macroPlaybackContext, int value) {
+			Integer sum = (Integer) macroPlaybackContext.get("sum");
+			macroPlaybackContext.set("sum", (sum == null ? 0 : sum) + value);
+		}
+
+		@Override
+		public Map<String, String> toMap() {
+			Map<String, String> map = new HashMap<>();
+			map.put("value", Integer.toString(fValue));
+			return map;
+		}
+	}
+
+	@Test
+	public void testRepeatCounts() throws Exception {
+		AtomicInteger created = new AtomicInteger();
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = new HashMap<>();
+		macroInstructionIdToFactory.put("add", new IMacroInstructionFactory() {
+
+			@Override
+			public IMacroInstruction create(Map<String, String> stringMap) throws Exception {
+				created.incrementAndGet();
+				return new AddMacroInstruction(Integer.parseInt(stringMap.get("value")));
+			}
+		});
+		ComposableMacro composable = new ComposableMacro(macroInstructionIdToFactory);
+		int[] values = new int[] { 1, 2, 2, 2, 1, 2, 2 };
+		for (int value : values) {
+			composable.addMacroInstruction(new AddMacroInstruction(value));
+		}
+
+		// Runs are written once with their repeat count (omitted for single
+		// macro instructions).
+		String xml = new String(composable.toXMLBytes(), StandardCharsets.UTF_8);
+		assertEquals(4, xml.split("<" + ComposableMacro.XML_INSTRUCTION_TAG + "\\b", -1).length - 1);
+		assertEquals(1, xml.split(ComposableMacro.XML_REPEAT_ATTRIBUTE + "=\"3\"", -1).length - 1);
+		assertEquals(1, xml.split(ComposableMacro.XML_REPEAT_ATTRIBUTE + "=\"2\"", -1).length - 1);
+		assertEquals(2, xml.split(ComposableMacro.XML_REPEAT_ATTRIBUTE + "=", -1).length - 1);
+
+		File xmlFile = folder.newFile("repeat.xml");
+		Files.write(xmlFile.toPath(), composable.toXMLBytes());
+		File binaryFile = folder.newFile("repeat.macro");
+		try (OutputStream outputStream = Files.newOutputStream(binaryFile.toPath())) {
+			composable.writeBinary(outputStream);
+		}
+
+		for (File file : new File[] { xmlFile, binaryFile }) {
+			created.set(0);
+			MacroPlaybackContextImpl macroPlaybackContext = new MacroPlaybackContextImpl(
+					macroInstructionIdToFactory);
+			new SavedXMLMacro(file).playback(macroPlaybackContext);
+			// Each run is executed repeat times but created only once.
+			assertEquals(12, macroPlaybackContext.get("sum"));
+			assertEquals(4, created.get());
+
+			// Contexts which aren't able to share macro instructions still get
+			// each one of them.
+			RecordingMacroPlaybackContext recordingMacroPlaybackContext = new RecordingMacroPlaybackContext();
+			new SavedXMLMacro(file).playback(recordingMacroPlaybackContext);
+			assertEquals(values.length, recordingMacroPlaybackContext.fRead.size());
+		}
+	}
+
+	/**
+	 * @return factories where "add" macro instructions are lowered by an opcode
+	 *         handler (which counts the compiled ones).
+	 */
+	private static Map<String, IMacroInstructionFactory> makeCompiledMacroInstructionIdToFactory(
+			AtomicInteger compiled) {
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = new HashMap<>();
+		macroInstructionIdToFactory.put("my_macro_instruction", new MyMacroInstructionFactory());
+		macroInstructionIdToFactory.put("add", new IMacroInstructionFactory() {
+
+			@Override
+			public IMacroInstruction create(Map<String, String> stringMap) throws Exception {
+				return new AddMacroInstruction(Integer.parseInt(stringMap.get("value")));
+			}
+
+			@Override
+			public IMacroOpcodeHandler getOpcodeHandler() {
+				return new IMacroOpcodeHandler() {
+
+					@Override
+					public int[] compile(Map<String, String> macroInstructionParameters, IConstantPool constantPool) {
+						compiled.incrementAndGet();
+						return new int[] { Integer.parseInt(macroInstructionParameters.get("value")) };
+					}
+
+					@Override
+					public void execute(IMacroPlaybackContext macroPlaybackContext, int[] code, int offset,
+							Object[] constants) {
+						AddMacroInstruction.add(macroPlaybackContext, code[offset]);
+					}
+				};
+			}
+		});
+		return macroInstructionIdToFactory;
+	}
+
+	@Test
+	public void testCompiledSavedXMLMacro() throws Exception {
+		AtomicInteger compiled = new AtomicInteger();
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = makeCompiledMacroInstructionIdToFactory(
+				compiled);
+		ComposableMacro composable = new ComposableMacro(macroInstructionIdToFactory);
+		composable.addMacroInstruction(new AddMacroInstruction(1));
+		composable.addMacroInstruction(new AddMacroInstruction(2));
+		composable.addMacroInstruction(new AddMacroInstruction(2));
+		composable.addMacroInstruction(new AddMacroInstruction(2));
+		composable.addMacroInstruction(new MyMacroInstruction());
+		File tempFile = folder.newFile("saved_binary.macro");
+		try (OutputStream outputStream = Files.newOutputStream(tempFile.toPath())) {
+			composable.writeBinary(outputStream);
+		}
+
+		SavedXMLMacro macro = new SavedXMLMacro(tempFile, new CompiledMacroCache(1));
+		for (int i = 1; i <= 2; i++) {
+			MacroPlaybackContextImpl macroPlaybackContext = new MacroPlaybackContextImpl(
+					macroInstructionIdToFactory);
+			macro.playback(macroPlaybackContext);
+			assertEquals(7, macroPlaybackContext.get("sum"));
+			assertEquals(true, macroPlaybackContext.get("played"));
+			// Equal macro instructions in a row are compiled once and the program is
+			// reused in the second playback.
+			assertEquals(2, compiled.get());
+		}
+
+		// Without a factory for some macro instruction nothing is played back.
+		Map<String, IMacroInstructionFactory> withoutAdd = new HashMap<>(macroInstructionIdToFactory);
+		withoutAdd.remove("add");
+		MacroPlaybackContextImpl macroPlaybackContext = new MacroPlaybackContextImpl(withoutAdd);
+		try {
+			macro.playback(macroPlaybackContext);
+			Assert.isTrue(false, "Expected the playback to fail.");
+		} catch (MacroPlaybackException e) {
+			// Expected.
+		}
+		assertEquals(null, macroPlaybackContext.get("played"));
+	}
+
+	@Test
+	public void testCompiledMacroInstructionConstants() throws Exception {
+		AtomicInteger created = new AtomicInteger();
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = new HashMap<>();
+		macroInstructionIdToFactory.put("add", new IMacroInstructionFactory() {
+
+			@Override
+			public IMacroInstruction create(Map<String, String> stringMap) throws Exception {
+				created.incrementAndGet();
+				return new AddMacroInstruction(Integer.parseInt(stringMap.get("value")));
+			}
+
+			@Override
+			public IMacroOpcodeHandler getOpcodeHandler() {
+				IMacroInstructionFactory factory = this;
+				return new IMacroOpcodeHandler() {
+
+					@Override
+					public int[] compile(Map<String, String> macroInstructionParameters, IConstantPool constantPool)
+							throws Exception {
+						return new int[] { constantPool.add(macroInstructionParameters.get("value"),
+								() -> factory.create(macroInstructionParameters)) };
+					}
+
+					@Override
+					public void execute(IMacroPlaybackContext macroPlaybackContext, int[] code, int offset,
+							Object[] constants) throws Exception {
+						macroPlaybackContext.execute((IMacroInstruction) constants[code[offset]]);
+					}
+				};
+			}
+		});
+		ComposableMacro composable = new ComposableMacro(macroInstructionIdToFactory);
+		for (int value : new int[] { 1, 2, 1, 2, 1 }) {
+			composable.addMacroInstruction(new AddMacroInstruction(value));
+		}
+		File tempFile = folder.newFile("constants.macro");
+		try (OutputStream outputStream = Files.newOutputStream(tempFile.toPath())) {
+			composable.writeBinary(outputStream);
+		}
+
+		SavedXMLMacro macro = new SavedXMLMacro(tempFile, new CompiledMacroCache(1));
+		for (int i = 1; i <= 2; i++) {
+			MacroPlaybackContextImpl macroPlaybackContext = new MacroPlaybackContextImpl(
+					macroInstructionIdToFactory);
+			macro.playback(macroPlaybackContext);
+			assertEquals(7, macroPlaybackContext.get("sum"));
+			// A macro instruction is created at compile time for each distinct key
+			// (and none is created when the cached program is played back again).
+			assertEquals(2, created.get());
+		}
+	}
+
+	@Test
+	public void testStreamedSavedXMLMacro() throws Exception {
+		AtomicInteger compiled = new AtomicInteger();
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = makeCompiledMacroInstructionIdToFactory(
+				compiled);
+		// More macro instructions than compiled at once.
+		int length = 2500;
+		ComposableMacro composable = new ComposableMacro(macroInstructionIdToFactory);
+		for (int i = 0; i < length; i++) {
+			composable.addMacroInstruction(new AddMacroInstruction(1 + i % 2));
+		}
+		composable.addMacroInstruction(new MyMacroInstruction());
+		File tempFile = folder.newFile("streamed.macro");
+		try (OutputStream outputStream = Files.newOutputStream(tempFile.toPath())) {
+			composable.writeBinary(outputStream);
+		}
+
+		// The file is bigger than the budget of the cache, so, it's read once to
+		// resolve and once to execute (and the program is never kept).
+		CompiledMacroCache cache = new CompiledMacroCache(1, 1024);
+		Assert.isTrue(tempFile.length() > cache.getMaxSize());
+		SavedXMLMacro macro = new SavedXMLMacro(tempFile, cache);
+		MacroPlaybackContextImpl macroPlaybackContext = new MacroPlaybackContextImpl(macroInstructionIdToFactory);
+		macro.playback(macroPlaybackContext);
+		assertEquals(length / 2 * 3, macroPlaybackContext.get("sum"));
+		assertEquals(true, macroPlaybackContext.get("played"));
+		assertEquals(2 * length, compiled.get());
+		assertEquals(0, cache.size());
+
+		// Compressed contents are only found to be too big while compiled.
+		File compressedFile = folder.newFile("streamed.macro.gz");
+		try (OutputStream outputStream = new GZIPOutputStream(Files.newOutputStream(compressedFile.toPath()))) {
+			composable.writeBinary(outputStream);
+		}
+		Assert.isTrue(compressedFile.length() <= cache.getMaxSize());
+		compiled.set(0);
+		macroPlaybackContext = new MacroPlaybackContextImpl(macroInstructionIdToFactory);
+		new SavedXMLMacro(compressedFile, cache).playback(macroPlaybackContext);
+		assertEquals(length / 2 * 3, macroPlaybackContext.get("sum"));
+		Assert.isTrue(compiled.get() < 3 * length, Integer.toString(compiled.get()));
+		assertEquals(0, cache.size());
+
+		// Small files are still compiled once (even without a cache).
+		compiled.set(0);
+		macroPlaybackContext = new MacroPlaybackContextImpl(macroInstructionIdToFactory);
+		new SavedXMLMacro(tempFile).playback(macroPlaybackContext);
+		assertEquals(length / 2 * 3, macroPlaybackContext.get("sum"));
+		assertEquals(length, compiled.get());
+
+		// Nothing is played back if the last macro instruction can't be created.
+		Map<String, IMacroInstructionFactory> withoutMyMacroInstruction = new HashMap<>(
+				macroInstructionIdToFactory);
+		withoutMyMacroInstruction.remove("my_macro_instruction");
+		macroPlaybackContext = new MacroPlaybackContextImpl(withoutMyMacroInstruction);
+		try {
+			macro.playback(macroPlaybackContext);
+			Assert.isTrue(false, "Expected the playback to fail.");
+		} catch (MacroPlaybackException e) {
+			// Expected.
+		}
+		assertEquals(null, macroPlaybackContext.get("sum"));
+	}
+
+	@Test
+	public void testCompiledMacroCacheSize() throws Exception {
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = new HashMap<>();
+		macroInstructionIdToFactory.put("add", new IMacroInstructionFactory() {
+
+			@Override
+			public IMacroInstruction create(Map<String, String> stringMap) throws Exception {
+				return new AddMacroInstruction(Integer.parseInt(stringMap.get("value")));
+			}
+		});
+		File[] files = new File[2];
+		for (int i = 0; i < files.length; i++) {
+			ComposableMacro composable = new ComposableMacro(macroInstructionIdToFactory);
+			for (int value = 1; value <= 10; value++) {
+				composable.addMacroInstruction(new AddMacroInstruction(value + i));
+			}
+			files[i] = folder.newFile("cached" + i + ".xml");
+			Files.write(files[i].toPath(), composable.toXMLBytes());
+		}
+
+		CompiledMacroCache cache = new CompiledMacroCache(CompiledMacroCache.DEFAULT_MAX_ENTRIES);
+		new SavedXMLMacro(files[0], cache).playback(new MacroPlaybackContextImpl(macroInstructionIdToFactory));
+		assertEquals(1, cache.size());
+		int programSize = cache.getSize();
+		Assert.isTrue(programSize >= 10, "Expected the constants to be part of the size.");
+
+		// Only one of the programs fits in the cache.
+		cache.setMaxSize(programSize);
+		MacroPlaybackContextImpl macroPlaybackContext = new MacroPlaybackContextImpl(macroInstructionIdToFactory);
+		new SavedXMLMacro(files[1], cache).playback(macroPlaybackContext);
+		assertEquals(65, macroPlaybackContext.get("sum"));
+		assertEquals(1, cache.size());
+		assertEquals(programSize, cache.getSize());
+
+		// A program bigger than the cache is still played back but not cached.
+		cache.setMaxSize(programSize - 1);
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getSize());
+		macroPlaybackContext = new MacroPlaybackContextImpl(macroInstructionIdToFactory);
+		new SavedXMLMacro(files[0], cache).playback(macroPlaybackContext);
+		assertEquals(55, macroPlaybackContext.get("sum"));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testInvalidateStaleCompiledMacros() throws Exception {
+		Map<String, IMacroInstructionFactory> macroInstructionIdToFactory = new HashMap<>();
+		macroInstructionIdToFactory.put("add", new IMacroInstructionFactory() {
+
+			@Override
+			public IMacroInstruction create(Map<String, String> stringMap) throws Exception {
+				return new AddMacroInstruction(Integer.parseInt(stringMap.get("value")));
+			}
+		});
+		CompiledMacroCache cache = new CompiledMacroCache(CompiledMacroCache.DEFAULT_MAX_ENTRIES);
+		File[] files = new File[2];
+		for (int i = 0; i < files.length; i++) {
+			ComposableMacro composable = new ComposableMacro(macroInstructionIdToFactory);
+			composable.addMacroInstruction(new AddMacroInstruction(i + 1));
+			files[i] = folder.newFile("stale" + i + ".xml");
+			Files.write(files[i].toPath(), composable.toXMLBytes());
+			new SavedXMLMacro(files[i], cache).playback(new MacroPlaybackContextImpl(macroInstructionIdToFactory));
+		}
+		assertEquals(2, cache.size());
+		int programSize = cache.getSize() / 2;
+
+		// Only the entry of the removed stored macro is invalidated.
+		Files.delete(files[1].toPath());
+		cache.invalidateStale();
+		assertEquals(1, cache.size());
+		assertEquals(programSize, cache.getSize());
+		MacroPlaybackContextImpl macroPlaybackContext = new MacroPlaybackContextImpl(macroInstructionIdToFactory);
+		new SavedXMLMacro(files[0], cache).playback(macroPlaybackContext);
+		assertEquals(1, macroPlaybackContext.get("sum"));
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testStreamedXMLMatchesDOMXML() throws Exception {
+		Map<String, String> map = new TreeMap<>();
+		map.put("", "");
+		map.put("empty", "");
+		map.put("plain", "value");
+		map.put("encoded", "\u00e7\u00e3o\n");
+		IMacroInstruction withValues = new IMacroInstruction() {
+
+			@Override
+			public String getId() {
+				return "with_values";
+			}
+
+			@Override
+			public void execute(IMacroPlaybackContext macroPlaybackContext) throws MacroPlaybackException {
+			}
+
+			@Override
+			public Map<String, String> toMap() {
+				return map;
+			}
+		};
+		IMacroInstruction withoutValues = new IMacroInstruction() {
+
+			@Override
+			public String getId() {
+				return "without_values";
+			}
+
+			@Override
+			public void execute(IMacroPlaybackContext macroPlaybackContext) throws MacroPlaybackException {
+			}
+
+			@Override
+			public Map<String, String> toMap() {
+				return new HashMap<>();
+			}
+		};
+		ComposableMacro composable = new ComposableMacro(null);
+		composable.addMacroInstruction(withValues);
+		composable.addMacroInstruction(withValues);
+		composable.addMacroInstruction(withoutValues);
+
+		String streamed = new String(composable.toXMLBytes(), StandardCharsets.UTF_8);
+		String dom;
+		System.setProperty(ComposableMacro.DOM_SERIALIZATION_PROPERTY, "true");
+		try {
+			dom = new String(composable.toXMLBytes(), StandardCharsets.UTF_8);
+		} finally {
+			System.clearProperty(ComposableMacro.DOM_SERIALIZATION_PROPERTY);
+		}
+		Assert.isTrue(streamed.contains("<key/>"), streamed);
+		Assert.isTrue(streamed.contains("base64=\"true\""), streamed);
+		assertEquals(dom, streamed);
+	}
 }